@@ -0,0 +1,164 @@
+package phil.projects.mongo;
+
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.WriteConcern;
+
+import phil.projects.mongo.jfr.BatchWrittenEvent;
+import phil.projects.mongo.stats.RetryListener;
+
+/**
+ * Decouples document generation from writing. Generators submit batches and continue immediately, while a small pool of
+ * I/O threads sends them to MongoDB as bulk inserts. The number of documents submitted but not yet acknowledged is
+ * bounded, so generators block instead of buffering without limit when the server falls behind.
+ *
+ * The driver in use only offers blocking calls, so each I/O thread still waits for one request at a time. Batching lets
+ * a handful of threads keep thousands of documents in flight nonetheless. Batches failing with transient errors are retried
+ * on their I/O thread, keeping their documents in flight until they complete.
+ *
+ * @author ptaprogg
+ *
+ */
+public class AsyncWriteEngine {
+
+	private static Logger logger = Logger.getLogger(AsyncWriteEngine.class);
+
+	/**
+	 * Notified on an I/O thread once a submitted batch has been written or has failed
+	 */
+	public interface Completion {
+
+		public void completed(List<DBObject> batch, long latencyMicros);
+
+		public void failed(List<DBObject> batch, Throwable t);
+
+	}
+
+	private final DBCollection collection;
+	private final WriteConcern writeConcern;
+	private final WriteRetrier retrier;
+	private final RetryListener retryListener;
+	private final ExecutorService executor;
+
+	//Permits for documents in flight
+	private final Semaphore inFlight;
+	private final int maxInFlight;
+	private final AtomicInteger inFlightCount = new AtomicInteger();
+
+	/**
+	 * @param collection The collection to insert into
+	 * @param writeConcern The write concern of each insert
+	 * @param ioThreads The number of threads sending requests
+	 * @param maxInFlight The maximum number of documents submitted but not yet written
+	 * @param retrier Retries inserts failing with transient errors
+	 * @param retryListener Records the retries
+	 */
+	public AsyncWriteEngine(DBCollection collection, WriteConcern writeConcern, int ioThreads, int maxInFlight, WriteRetrier retrier,
+			RetryListener retryListener) {
+		this.collection = collection;
+		this.writeConcern = writeConcern;
+		this.retrier = retrier;
+		this.retryListener = retryListener;
+		this.maxInFlight = maxInFlight;
+		this.inFlight = new Semaphore(maxInFlight);
+		final AtomicInteger threadNumber = new AtomicInteger();
+		this.executor = Executors.newFixedThreadPool(ioThreads, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "MongoLoad I/O " + threadNumber.getAndIncrement());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		logger.info("Async write engine started with " + ioThreads + " I/O threads and up to " + maxInFlight + " documents in flight");
+	}
+
+	/**
+	 * Queues a batch for writing. Blocks while the maximum number of documents is in flight.
+	 *
+	 * @param batch The documents to insert. Must not be modified after submitting.
+	 * @param completion Notified once the batch has been written
+	 * @throws InterruptedException If interrupted while waiting for capacity
+	 */
+	public void submit(final List<DBObject> batch, final Completion completion) throws InterruptedException {
+		//Batches larger than the limit would wait forever, so they take all permits instead
+		final int permits = Math.min(batch.size(), maxInFlight);
+		inFlight.acquire(permits);
+		inFlightCount.addAndGet(batch.size());
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				BatchWrittenEvent written = new BatchWrittenEvent();
+				written.begin();
+				long latency = 0;
+				Throwable error = null;
+				try {
+					long start = System.nanoTime();
+					retrier.execute(new WriteRetrier.BatchInsert(collection, batch, writeConcern), retryListener);
+					latency = (System.nanoTime() - start) / 1000;
+				}
+				catch (Throwable t) {
+					error = t;
+				}
+				//Outside the try, so a failing callback neither releases the batch twice nor reports it as failed as well
+				commit(written, error == null);
+				release();
+				if (error == null) {
+					completion.completed(batch, latency);
+				}
+				else {
+					completion.failed(batch, error);
+				}
+			}
+
+			private void commit(BatchWrittenEvent written, boolean succeeded) {
+				written.end();
+				if (written.shouldCommit()) {
+					written.collection = collection.getFullName();
+					written.documents = batch.size();
+					written.async = true;
+					written.succeeded = succeeded;
+					written.commit();
+				}
+			}
+
+			private void release() {
+				inFlightCount.addAndGet(-batch.size());
+				inFlight.release(permits);
+			}
+		});
+	}
+
+	/**
+	 * @return The number of documents submitted but not yet written
+	 */
+	public int getInFlight() {
+		return inFlightCount.get();
+	}
+
+	/**
+	 * Waits for all submitted batches to complete and stops the I/O threads.
+	 */
+	public void shutdown() {
+		executor.shutdown();
+		try {
+			while (!executor.awaitTermination(1, TimeUnit.SECONDS)) {
+				logger.debug("Waiting for " + getInFlight() + " documents in flight");
+			}
+		}
+		catch (InterruptedException ie) {
+			executor.shutdownNow();
+			Thread.currentThread().interrupt();
+		}
+	}
+}
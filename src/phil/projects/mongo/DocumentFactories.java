@@ -0,0 +1,104 @@
+package phil.projects.mongo;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.ServiceLoader;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Resolves the document factory configured for a run.
+ *
+ * A provider named by the factory property is looked up among the DocumentFactoryProviders registered with ServiceLoader.
+ * Otherwise the factory class is instantiated, which may be a DocumentFactoryProvider or a MongoDBObjectFactory. The latter is
+ * wrapped in a LegacyFactoryProvider named after the class.
+ *
+ * @author ptaprogg
+ *
+ */
+public final class DocumentFactories {
+
+	private static Logger logger = Logger.getLogger(DocumentFactories.class);
+
+	private DocumentFactories() {
+	}
+
+	/**
+	 * @return New instances of all providers registered with ServiceLoader
+	 */
+	public static List<DocumentFactoryProvider> available() {
+		List<DocumentFactoryProvider> providers = new ArrayList<DocumentFactoryProvider>();
+		for (DocumentFactoryProvider provider : ServiceLoader.load(DocumentFactoryProvider.class)) {
+			providers.add(provider);
+		}
+		return providers;
+	}
+
+	/**
+	 * Creates a new instance of a registered provider
+	 *
+	 * @param name The name of the provider
+	 * @return The provider
+	 * @throws IllegalArgumentException If no provider of that name is registered
+	 */
+	public static DocumentFactoryProvider byName(String name) {
+		List<String> names = new ArrayList<String>();
+		for (DocumentFactoryProvider provider : available()) {
+			if (name.equals(provider.getName())) {
+				return provider;
+			}
+			names.add(provider.getName());
+		}
+		logger.error("No document factory named " + name + " found");
+		throw new IllegalArgumentException("No document factory named " + name + ", available are " + names);
+	}
+
+	/**
+	 * Instantiates a DocumentFactoryProvider or MongoDBObjectFactory by class name
+	 *
+	 * @param className The fully qualified name of the class
+	 * @return The provider
+	 * @throws IllegalArgumentException If the class cannot be instantiated or is of neither type
+	 */
+	public static DocumentFactoryProvider byClass(String className) {
+		Object factory;
+		try {
+			logger.debug("Trying to get factory class");
+			factory = Class.forName(className).newInstance();
+		}
+		catch (ClassNotFoundException cnfe) {
+			throw new IllegalArgumentException("Specified factory " + className + " not found", cnfe);
+		}
+		catch (IllegalAccessException iae) {
+			throw new IllegalArgumentException("IllegalAccessException encountered when trying to instantiate " + className, iae);
+		}
+		catch (InstantiationException ie) {
+			throw new IllegalArgumentException("Failed to instantiate " + className, ie);
+		}
+		if (factory instanceof DocumentFactoryProvider) {
+			return (DocumentFactoryProvider)factory;
+		}
+		if (factory instanceof MongoDBObjectFactory) {
+			return new LegacyFactoryProvider(className, (MongoDBObjectFactory)factory);
+		}
+		throw new IllegalArgumentException("Specified factory " + className + " is of wrong type");
+	}
+
+	/**
+	 * Creates the provider configured for a run
+	 *
+	 * @param config The config naming the provider or factory class
+	 * @return The provider, not yet initialized
+	 * @throws IllegalArgumentException If neither is configured or the configured one cannot be created
+	 */
+	public static DocumentFactoryProvider create(MongoLoadConfig config) {
+		if (!"".equals(config.getFactory())) {
+			return byName(config.getFactory());
+		}
+		if (!"".equals(config.getFactoryClass())) {
+			return byClass(config.getFactoryClass());
+		}
+		logger.error("Neither a document factory nor a factory class specified");
+		throw new IllegalArgumentException("Neither a document factory nor a factory class specified");
+	}
+}
@@ -0,0 +1,45 @@
+package phil.projects.mongo;
+
+/**
+ * A source of generated documents, discovered by DocumentFactories through java.util.ServiceLoader.
+ *
+ * To add a provider, implement this interface with a public no-argument constructor and list the class in
+ * META-INF/services/phil.projects.mongo.DocumentFactoryProvider of its jar. It can then be selected with the factory property.
+ *
+ * The loader calls init() once before generation starts and close() after the run, and asks for one DocumentGenerator per
+ * thread generating documents. Generators are only ever used by the thread they were created for, so they can keep buffers and
+ * other state without synchronization. If the run is seeded, the calling thread's RandomGenerator is positioned at the
+ * document before each call of DocumentGenerator.generate(), so drawing from it keeps the documents deterministic.
+ *
+ * @author ptaprogg
+ *
+ */
+public interface DocumentFactoryProvider {
+
+	/**
+	 * @return The name the provider is selected by
+	 */
+	public String getName();
+
+	/**
+	 * Prepares the provider for a run, e.g. by reading samples or parsing distributions. Not part of the measurements.
+	 *
+	 * @param config The config of the run
+	 * @throws IllegalArgumentException If the config holds invalid settings for this provider
+	 */
+	public void init(MongoLoadConfig config);
+
+	/**
+	 * Creates the generator of one thread. Called after init(), possibly from several threads at once.
+	 *
+	 * @param worker The index of the thread, unique among the threads generating at the same time
+	 * @return The new generator
+	 */
+	public DocumentGenerator createGenerator(int worker);
+
+	/**
+	 * Releases the resources of the run. init() may be called again afterwards.
+	 */
+	public void close();
+
+}
@@ -0,0 +1,24 @@
+package phil.projects.mongo;
+
+/**
+ * Generates the documents of one thread, see DocumentFactoryProvider
+ *
+ * @author ptaprogg
+ *
+ */
+public interface DocumentGenerator {
+
+	/**
+	 * Generates one document and passes it to the target. The document must not be modified afterwards.
+	 *
+	 * @param sequence The number of the document within the run
+	 * @param target Receives the document
+	 */
+	public void generate(long sequence, DocumentOutput target);
+
+	/**
+	 * Releases the resources of this generator once its thread is done
+	 */
+	public void close();
+
+}
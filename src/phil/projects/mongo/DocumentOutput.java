@@ -0,0 +1,18 @@
+package phil.projects.mongo;
+
+import com.mongodb.DBObject;
+
+/**
+ * Receives the documents of a DocumentGenerator
+ *
+ * @author ptaprogg
+ *
+ */
+public interface DocumentOutput {
+
+	/**
+	 * @param document The generated document
+	 */
+	public void accept(DBObject document);
+
+}
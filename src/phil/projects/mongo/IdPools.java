@@ -0,0 +1,92 @@
+package phil.projects.mongo;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.log4j.Logger;
+
+/**
+ * The ids of the documents loaded by the loaders of this process, by collection, so that generated documents can reference
+ * documents of other collections of the same run.
+ *
+ * Loaders register collections with sequence ids, whose ids are the document numbers of the configured range, so such a pool
+ * takes no memory beyond the range itself, however many documents it holds. Loaders with ObjectIds register an IdRegistry that
+ * their workers add the id of every document written to, which takes 16 bytes per id. Loaders register their collection when they are
+ * prepared, so with WorkloadRunner, which prepares all workloads before starting any, every pool is known before the first
+ * document is generated. The referenced documents may still be loading while they are referenced. References are resolved
+ * against the pools when the document factories are initialized, which fails if a referenced collection is not registered.
+ *
+ * The pools are per process. When MongoCoordinator spreads a run over agents, each agent only registers the slice of the
+ * keyspace it loads itself, so references only point to documents loaded by the same agent.
+ *
+ * @author ptaprogg
+ *
+ */
+public final class IdPools {
+
+	private static Logger logger = Logger.getLogger(IdPools.class);
+
+	//Ranges by collection name and by full namespace
+	private static final ConcurrentMap<String, KeyRange> pools = new ConcurrentHashMap<String, KeyRange>();
+	
+	//Registries by collection name and by full namespace, for collections whose ids are not a range
+	private static final ConcurrentMap<String, IdRegistry> registries = new ConcurrentHashMap<String, IdRegistry>();
+
+	private IdPools() {
+	}
+
+	/**
+	 * Registers the ids of a collection, replacing those registered before
+	 *
+	 * @param database The database of the collection
+	 * @param collection The collection name
+	 * @param ids The ids of the documents loaded
+	 */
+	public static void register(String database, String collection, KeyRange ids) {
+		registries.remove(collection);
+		registries.remove(database + "." + collection);
+		pools.put(collection, ids);
+		pools.put(database + "." + collection, ids);
+		logger.debug("Registered ids " + ids + " of " + database + "." + collection);
+	}
+
+	/**
+	 * Registers the ids of a collection as a registry that may still grow, replacing those registered before
+	 *
+	 * @param database The database of the collection
+	 * @param collection The collection name
+	 * @param ids The ids of the documents loaded so far
+	 */
+	public static void register(String database, String collection, IdRegistry ids) {
+		pools.remove(collection);
+		pools.remove(database + "." + collection);
+		registries.put(collection, ids);
+		registries.put(database + "." + collection, ids);
+		logger.debug("Registered id registry of " + database + "." + collection);
+	}
+
+	/**
+	 * @param name A collection name or full namespace. If several databases hold a collection of that name, the name refers to
+	 * the one registered last.
+	 * @return The ids of the collection, null if none are registered
+	 */
+	public static KeyRange get(String name) {
+		return pools.get(name);
+	}
+
+	/**
+	 * @param name A collection name or full namespace, as for get
+	 * @return The id registry of the collection, null if its ids are registered as a range or not at all
+	 */
+	public static IdRegistry getRegistry(String name) {
+		return registries.get(name);
+	}
+
+	/**
+	 * Forgets all registered collections
+	 */
+	public static void clear() {
+		pools.clear();
+		registries.clear();
+	}
+}
@@ -0,0 +1,264 @@
+package phil.projects.mongo;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.bson.types.ObjectId;
+
+/**
+ * An append-only registry of long ids or ObjectIds, such as the keys of inserted documents, for workloads that need to draw ids
+ * that exist.
+ *
+ * Ids are held in primitive chunks of 64K longs, allocated as the registry grows, so it takes 8 bytes per long id, 16 bytes per
+ * ObjectId and no objects per id, which keeps the garbage collector out of the way at hundreds of millions of ids. An ObjectId is
+ * stored as its timestamp and machine in one long and its process and counter in the next. Any number of threads can append
+ * concurrently without locking: an append reserves a slot with a single atomic increment and stores its id there. Sampling
+ * picks a random slot, so it takes constant time at any size. A slot that is reserved but not stored yet is skipped, there
+ * are never more of those than appending threads.
+ *
+ * The registry holds up to 2^32 long ids or 2^31 ObjectIds. It does not check for duplicates, an id appended twice is sampled
+ * twice as often.
+ *
+ * @author ptaprogg
+ *
+ */
+public final class IdRegistry {
+
+	private static final int CHUNK_BITS = 16;
+	private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+	private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+	private static final int MAX_CHUNKS = 1 << 16;
+
+	/**
+	 * The largest number of long ids a registry holds
+	 */
+	public static final long CAPACITY = (long)MAX_CHUNKS * CHUNK_SIZE;
+
+	//Marks slots that are reserved but not stored yet, it cannot be registered as an id
+	private static final long PENDING = Long.MIN_VALUE;
+
+	private final AtomicReferenceArray<AtomicLongArray> chunks = new AtomicReferenceArray<AtomicLongArray>(MAX_CHUNKS);
+	private final AtomicLong reserved = new AtomicLong();
+	private final AtomicInteger allocated = new AtomicInteger();
+
+	//Longs per id, 1 for long ids and 2 for ObjectIds
+	private final int width;
+
+	/**
+	 * Creates a registry of long ids
+	 */
+	public IdRegistry() {
+		this(1);
+	}
+
+	private IdRegistry(int width) {
+		this.width = width;
+	}
+
+	/**
+	 * @return A registry of ObjectIds
+	 */
+	public static IdRegistry forObjectIds() {
+		return new IdRegistry(2);
+	}
+
+	/**
+	 * @return True if the registry holds ObjectIds, false if it holds long ids
+	 */
+	public boolean isObjectIds() {
+		return width == 2;
+	}
+
+	/**
+	 * Reserves the slots of the next id
+	 *
+	 * @return The index of the id
+	 */
+	private long reserve() {
+		long index = reserved.getAndIncrement();
+		if (index >= CAPACITY / width) {
+			throw new IllegalStateException("Id registry is full at " + (CAPACITY / width) + " ids");
+		}
+		return index;
+	}
+
+	/**
+	 * Appends an id. Safe to call from any number of threads.
+	 *
+	 * @param id The id, any value but Long.MIN_VALUE
+	 * @return The index of the id
+	 * @throws IllegalArgumentException If the id is Long.MIN_VALUE
+	 * @throws IllegalStateException If the registry is full or holds ObjectIds
+	 */
+	public long add(long id) {
+		if (isObjectIds()) {
+			throw new IllegalStateException("Registry of ObjectIds cannot hold long ids");
+		}
+		if (id == PENDING) {
+			throw new IllegalArgumentException("Long.MIN_VALUE cannot be registered");
+		}
+		long index = reserve();
+		chunk((int)(index >>> CHUNK_BITS)).set((int)(index & CHUNK_MASK), id);
+		return index;
+	}
+
+	/**
+	 * Appends an ObjectId. Safe to call from any number of threads.
+	 *
+	 * @param id The id
+	 * @return The index of the id
+	 * @throws IllegalArgumentException If the id cannot be told apart from a pending slot
+	 * @throws IllegalStateException If the registry is full or holds long ids
+	 */
+	public long add(ObjectId id) {
+		if (!isObjectIds()) {
+			throw new IllegalStateException("Registry of long ids cannot hold ObjectIds");
+		}
+		long high = ((long)id.getTimeSecond() << 32) | (id.getMachine() & 0xffffffffL);
+		if (high == PENDING) {
+			throw new IllegalArgumentException("ObjectId " + id + " cannot be registered");
+		}
+		long index = reserve();
+		long slot = index * 2;
+		AtomicLongArray chunk = chunk((int)(slot >>> CHUNK_BITS));
+		//The low half first, a reader that sees the high half stored then sees the low half too
+		chunk.set((int)(slot & CHUNK_MASK) + 1, id.getInc() & 0xffffffffL);
+		chunk.set((int)(slot & CHUNK_MASK), high);
+		return index;
+	}
+
+	/**
+	 * Appends an id of either kind the registry holds
+	 *
+	 * @param id A Long, Integer or ObjectId
+	 * @return The index of the id
+	 * @throws IllegalArgumentException If the id is of another type
+	 */
+	public long add(Object id) {
+		if (id instanceof ObjectId) {
+			return add((ObjectId)id);
+		}
+		if ((id instanceof Long) || (id instanceof Integer)) {
+			return add(((Number)id).longValue());
+		}
+		throw new IllegalArgumentException("Id " + id + " is neither a long nor an ObjectId");
+	}
+
+	private AtomicLongArray chunk(int index) {
+		AtomicLongArray chunk = chunks.get(index);
+		if (chunk == null) {
+			AtomicLongArray created = new AtomicLongArray(CHUNK_SIZE);
+			for (int i = 0; i < CHUNK_SIZE; i++) {
+				created.lazySet(i, PENDING);
+			}
+			//Threads appending to the same new chunk race to allocate it, all but one discard theirs
+			if (chunks.compareAndSet(index, null, created)) {
+				allocated.incrementAndGet();
+				chunk = created;
+			}
+			else {
+				chunk = chunks.get(index);
+			}
+		}
+		return chunk;
+	}
+
+	/**
+	 * @return The number of ids appended, including those whose append is still in progress
+	 */
+	public long size() {
+		return Math.min(reserved.get(), CAPACITY / width);
+	}
+
+	/**
+	 * @return The first long of the id at the index, Long.MIN_VALUE if its append is still in progress
+	 */
+	private long slot(long index) {
+		if ((index < 0) || (index >= size())) {
+			throw new IndexOutOfBoundsException("Index " + index + " not below size " + size());
+		}
+		long slot = index * width;
+		AtomicLongArray chunk = chunks.get((int)(slot >>> CHUNK_BITS));
+		return (chunk == null ? PENDING : chunk.get((int)(slot & CHUNK_MASK)));
+	}
+
+	/**
+	 * @param index The index returned by add
+	 * @return The id at the index, Long.MIN_VALUE if its append is still in progress
+	 * @throws IndexOutOfBoundsException If no id was appended at the index
+	 * @throws IllegalStateException If the registry holds ObjectIds
+	 */
+	public long get(long index) {
+		if (isObjectIds()) {
+			throw new IllegalStateException("Registry holds ObjectIds");
+		}
+		return slot(index);
+	}
+
+	/**
+	 * @param index The index returned by add
+	 * @return The id at the index, a Long or an ObjectId, null if its append is still in progress
+	 * @throws IndexOutOfBoundsException If no id was appended at the index
+	 */
+	public Object getId(long index) {
+		long high = slot(index);
+		if (high == PENDING) {
+			return null;
+		}
+		if (!isObjectIds()) {
+			return Long.valueOf(high);
+		}
+		long slot = index * 2 + 1;
+		int low = (int)chunks.get((int)(slot >>> CHUNK_BITS)).get((int)(slot & CHUNK_MASK));
+		return new ObjectId((int)(high >>> 32), (int)high, low);
+	}
+
+	/**
+	 * Draws an id, each appended id being equally likely
+	 *
+	 * @param random The generator to draw the index from
+	 * @return The id
+	 * @throws IllegalStateException If no ids have been appended or the registry holds ObjectIds
+	 */
+	public long sample(Random random) {
+		if (isObjectIds()) {
+			throw new IllegalStateException("Registry holds ObjectIds");
+		}
+		return ((Long)sampleId(random)).longValue();
+	}
+
+	/**
+	 * Draws an id of either kind, each appended id being equally likely
+	 *
+	 * @param random The generator to draw the index from
+	 * @return The id, a Long or an ObjectId
+	 * @throws IllegalStateException If no ids have been appended
+	 */
+	public Object sampleId(Random random) {
+		while (true) {
+			long size = size();
+			if (size == 0) {
+				throw new IllegalStateException("No ids registered");
+			}
+			Object id = getId((long)(random.nextDouble() * size));
+			if (id != null) {
+				return id;
+			}
+		}
+	}
+
+	/**
+	 * @return The heap taken by the ids in bytes
+	 */
+	public long getMemoryBytes() {
+		return (long)allocated.get() * CHUNK_SIZE * 8;
+	}
+
+	@Override
+	public String toString() {
+		return size() + " ids";
+	}
+}
@@ -0,0 +1,235 @@
+package phil.projects.mongo;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.CommandResult;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.util.JSON;
+import com.mongodb.util.JSONParseException;
+
+import phil.projects.mongo.stats.LoadStatistics;
+
+/**
+ * Builds the secondary indexes configured for a run and measures their cost.
+ *
+ * Indexes are given as a semicolon-separated list of JSON documents. Each is either a key document such as
+ * {"invoice number": 1} or a document holding "key" and further index options such as {"key": {"total price": -1}, "sparse": true}.
+ * Depending on the index phase, indexes are built before the load, after it, or one at a time between equal segments of the load.
+ *
+ * @author ptaprogg
+ *
+ */
+public class IndexBenchmark {
+
+	private static Logger logger = Logger.getLogger(IndexBenchmark.class);
+
+	/**
+	 * A single configured index and what was measured for it
+	 */
+	public static final class IndexResult {
+		private final DBObject keys;
+		private final DBObject options;
+		private final String name;
+		private long buildMillis = -1;
+		private LoadStatistics segment;
+		private long sizeBytes = -1;
+
+		IndexResult(DBObject keys, DBObject options) {
+			this.keys = keys;
+			this.options = options;
+			this.name = (options.containsField("name") ? options.get("name").toString() : DBCollection.genIndexName(keys));
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public DBObject getKeys() {
+			return keys;
+		}
+
+		/**
+		 * @return The time the index build took in ms, -1 if it has not been built yet
+		 */
+		public long getBuildMillis() {
+			return buildMillis;
+		}
+
+		/**
+		 * @return The statistics of the load segment run with this index as the latest addition, null if not loaded incrementally
+		 */
+		public LoadStatistics getSegment() {
+			return segment;
+		}
+
+		/**
+		 * @return The index size in bytes as reported by collStats, -1 if not known
+		 */
+		public long getSizeBytes() {
+			return sizeBytes;
+		}
+	}
+
+	private final DBCollection collection;
+	private final String phase;
+	private final List<IndexResult> indexes = new ArrayList<IndexResult>();
+
+	//Load statistics of the segment before any secondary index was built, incremental phase only
+	private LoadStatistics baseline;
+
+	//Size of all indexes including _id as reported by collStats
+	private long totalIndexSize = -1;
+	private long idIndexSize = -1;
+
+	/**
+	 * @param collection The collection to index
+	 * @param definitions The semicolon-separated index definitions
+	 * @param phase One of the MongoLoadConfig.INDEX_ phase constants
+	 */
+	public IndexBenchmark(DBCollection collection, String definitions, String phase) {
+		this.collection = collection;
+		this.phase = phase;
+		for (String definition : definitions.split(";")) {
+			if (definition.trim().length() == 0) {
+				continue;
+			}
+			Object parsed;
+			try {
+				parsed = JSON.parse(definition.trim());
+			}
+			catch (JSONParseException jpe) {
+				throw new IllegalArgumentException("Index definition " + definition + " is not valid JSON", jpe);
+			}
+			if (!(parsed instanceof DBObject)) {
+				throw new IllegalArgumentException("Index definition " + definition + " is not a document");
+			}
+			DBObject spec = (DBObject)parsed;
+			if (spec.get("key") instanceof DBObject) {
+				DBObject options = new BasicDBObject(spec.toMap());
+				options.removeField("key");
+				indexes.add(new IndexResult((DBObject)spec.get("key"), options));
+			}
+			else {
+				indexes.add(new IndexResult(spec, new BasicDBObject()));
+			}
+		}
+	}
+
+	/**
+	 * @return The number of configured indexes
+	 */
+	public int size() {
+		return indexes.size();
+	}
+
+	public String getPhase() {
+		return phase;
+	}
+
+	public List<IndexResult> getIndexes() {
+		return indexes;
+	}
+
+	/**
+	 * Builds one index and records how long it took
+	 *
+	 * @param index The position of the index in the configured list
+	 */
+	public void build(int index) {
+		IndexResult result = indexes.get(index);
+		logger.info("Building index " + result.name);
+		long start = System.currentTimeMillis();
+		collection.createIndex(result.keys, result.options);
+		result.buildMillis = System.currentTimeMillis() - start;
+		logger.info("Index " + result.name + " built in " + result.buildMillis + "ms");
+	}
+
+	/**
+	 * Builds all configured indexes, one after the other
+	 */
+	public void buildAll() {
+		for (int i = 0; i < indexes.size(); i++) {
+			build(i);
+		}
+	}
+
+	/**
+	 * Records the statistics of a load segment in the incremental phase
+	 *
+	 * @param segment The segment number. Segment 0 runs without secondary indexes, segment n after index n-1 was built.
+	 * @param statistics The statistics of the segment
+	 */
+	public void recordSegment(int segment, LoadStatistics statistics) {
+		if (segment == 0) {
+			baseline = statistics;
+		}
+		else {
+			indexes.get(segment - 1).segment = statistics;
+		}
+	}
+
+	/**
+	 * Reads the final index sizes from collStats
+	 */
+	public void collectSizes() {
+		CommandResult stats = collection.getStats();
+		if (!stats.ok()) {
+			logger.warn("Unable to retrieve collection statistics: " + stats.getErrorMessage());
+			return;
+		}
+		if (stats.get("totalIndexSize") instanceof Number) {
+			totalIndexSize = ((Number)stats.get("totalIndexSize")).longValue();
+		}
+		if (stats.get("indexSizes") instanceof DBObject) {
+			DBObject sizes = (DBObject)stats.get("indexSizes");
+			if (sizes.get("_id_") instanceof Number) {
+				idIndexSize = ((Number)sizes.get("_id_")).longValue();
+			}
+			for (IndexResult result : indexes) {
+				if (sizes.get(result.name) instanceof Number) {
+					result.sizeBytes = ((Number)sizes.get(result.name)).longValue();
+				}
+			}
+		}
+	}
+
+	private static String percentChange(double from, double to) {
+		return (from <= 0 ? "n/a" : String.format("%+.1f%%", (to - from) * 100 / from));
+	}
+
+	/**
+	 * @param documents The number of documents in the collection when the indexes were built, used for build rates in the after phase
+	 * @return A multi-line, human-readable report of index builds, throughput per index and index sizes
+	 */
+	public String report(long documents) {
+		StringBuilder sb = new StringBuilder();
+		sb.append("Index phase ").append(phase).append(String.format(" with %d secondary indexes%n", indexes.size()));
+		if (baseline != null) {
+			sb.append(String.format("  no secondary indexes: %.1f docs/s, insert p99 %.2fms%n",
+					baseline.getDocumentsPerSecond(), baseline.getInsertLatency().getValueAtPercentile(99) / 1000.0));
+		}
+		double previous = (baseline == null ? 0 : baseline.getDocumentsPerSecond());
+		for (IndexResult result : indexes) {
+			sb.append("  ").append(result.name).append(": built in ").append(result.buildMillis).append("ms");
+			if (MongoLoadConfig.INDEX_AFTER.equals(phase) && (result.buildMillis > 0)) {
+				sb.append(String.format(" (%.1f docs/s)", documents * 1000.0 / result.buildMillis));
+			}
+			if (result.segment != null) {
+				double current = result.segment.getDocumentsPerSecond();
+				sb.append(String.format(", then %.1f docs/s (%s vs. previous, %s vs. no indexes), insert p99 %.2fms",
+						current, percentChange(previous, current), percentChange(baseline.getDocumentsPerSecond(), current),
+						result.segment.getInsertLatency().getValueAtPercentile(99) / 1000.0));
+				previous = current;
+			}
+			sb.append(", size ").append(result.sizeBytes < 0 ? "unknown" : result.sizeBytes + " bytes").append(String.format("%n"));
+		}
+		sb.append("  _id index size ").append(idIndexSize < 0 ? "unknown" : idIndexSize + " bytes");
+		sb.append(", total index size ").append(totalIndexSize < 0 ? "unknown" : totalIndexSize + " bytes");
+		return sb.toString();
+	}
+}
@@ -0,0 +1,147 @@
+package phil.projects.mongo;
+
+import java.util.Random;
+
+/**
+ * Picks document numbers from a range following a key distribution, to choose which existing documents an operation targets.
+ *
+ * uniform - every document is equally likely
+ * zipfian - a few documents are hot, most are rarely picked. Hot documents are scattered over the range.
+ * latest - like zipfian, but the most recently inserted documents, those with the highest numbers, are the hottest
+ *
+ * The zipfian distributions use the algorithm of Gray et al., "Quickly Generating Billion-Record Synthetic Databases". Its
+ * normalization constant, the sum of 1/i^theta over the range, is summed exactly for the first ranks and approximated beyond,
+ * so that creating a distribution over billions of documents takes no longer than over thousands.
+ * Instances are immutable and can be shared between threads, each passing its own Random.
+ *
+ * @author ptaprogg
+ *
+ */
+public abstract class KeyDistribution {
+
+	public static final String UNIFORM = "uniform";
+	public static final String ZIPFIAN = "zipfian";
+	public static final String LATEST = "latest";
+
+	protected final KeyRange range;
+
+	protected KeyDistribution(KeyRange range) {
+		if (range.getCount() < 1) {
+			throw new IllegalArgumentException("Cannot pick keys from an empty range");
+		}
+		this.range = range;
+	}
+
+	/**
+	 * Creates a distribution by name
+	 *
+	 * @param name One of UNIFORM, ZIPFIAN or LATEST
+	 * @param range The document numbers to pick from
+	 * @param theta The skew of the zipfian distributions, between 0 and 1 exclusive. Higher values make hot documents hotter.
+	 * @return The distribution
+	 */
+	public static KeyDistribution create(String name, KeyRange range, double theta) {
+		if (UNIFORM.equals(name)) {
+			return new Uniform(range);
+		}
+		if (ZIPFIAN.equals(name)) {
+			return new Zipfian(range, theta, false);
+		}
+		if (LATEST.equals(name)) {
+			return new Zipfian(range, theta, true);
+		}
+		throw new IllegalArgumentException("Unknown key distribution " + name);
+	}
+
+	/**
+	 * @param random The source of randomness
+	 * @return The next document number, within the range
+	 */
+	public abstract long next(Random random);
+
+	private static final class Uniform extends KeyDistribution {
+
+		Uniform(KeyRange range) {
+			super(range);
+		}
+
+		@Override
+		public long next(Random random) {
+			//Random.nextLong() % n is slightly biased, which does not matter for picking keys
+			return range.getStart() + Math.abs(random.nextLong() % range.getCount());
+		}
+	}
+
+	static final class Zipfian extends KeyDistribution {
+
+		//Terms of zeta summed exactly, the remaining error of the approximation falls with the cube of this
+		private static final long ZETA_EXACT = 10000;
+
+		private final double theta;
+		private final double alpha;
+		private final double zetan;
+		private final double eta;
+		private final boolean latest;
+
+		//Scatters hot ranks over the range without two ranks mapping to the same document
+		private final long scrambleKey;
+
+		Zipfian(KeyRange range, double theta, boolean latest) {
+			super(range);
+			if ((theta <= 0) || (theta >= 1)) {
+				throw new IllegalArgumentException("Zipfian theta must be between 0 and 1 exclusive");
+			}
+			this.theta = theta;
+			this.latest = latest;
+			long n = range.getCount();
+			this.zetan = zeta(n, theta);
+			this.alpha = 1 / (1 - theta);
+			this.eta = (1 - Math.pow(2.0 / n, 1 - theta)) / (1 - zeta(Math.min(2, n), theta) / zetan);
+			this.scrambleKey = RandomGenerator.mix(range.getStart() ^ n);
+		}
+
+		/**
+		 * @return The sum of 1/i^theta for i from 1 to n, exact up to ZETA_EXACT terms and within 1e-12 relative beyond
+		 */
+		static double zeta(long n, double theta) {
+			long exact = Math.min(n, ZETA_EXACT);
+			double sum = 0;
+			for (long i = 1; i <= exact; i++) {
+				sum += 1 / Math.pow(i, theta);
+			}
+			if (n > exact) {
+				//Euler-Maclaurin: the integral of x^-theta from m to n, the end point correction and the first derivative term
+				double m = exact;
+				double x = n;
+				sum += (Math.pow(x, 1 - theta) - Math.pow(m, 1 - theta)) / (1 - theta);
+				sum += (Math.pow(x, -theta) - Math.pow(m, -theta)) / 2;
+				sum -= theta * (Math.pow(x, -theta - 1) - Math.pow(m, -theta - 1)) / 12;
+			}
+			return sum;
+		}
+
+		/**
+		 * @return The rank of the next pick, 0 being the most popular
+		 */
+		private long rank(Random random) {
+			double u = random.nextDouble();
+			double uz = u * zetan;
+			if (uz < 1) {
+				return 0;
+			}
+			if (uz < 1 + Math.pow(0.5, theta)) {
+				return Math.min(1, range.getCount() - 1);
+			}
+			return Math.min((long)(range.getCount() * Math.pow(eta * u - eta + 1, alpha)), range.getCount() - 1);
+		}
+
+		@Override
+		public long next(Random random) {
+			long rank = rank(random);
+			if (latest) {
+				return range.getEnd() - 1 - rank;
+			}
+			return range.getStart() + RandomGenerator.permute(rank, range.getCount(), scrambleKey);
+		}
+	}
+}
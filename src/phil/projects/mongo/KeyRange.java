@@ -0,0 +1,65 @@
+package phil.projects.mongo;
+
+import java.io.Serializable;
+
+/**
+ * A consecutive range of document numbers, used to split the keyspace of a run between agents and workers.
+ *
+ * @author ptaprogg
+ *
+ */
+public final class KeyRange implements Serializable {
+
+	static final long serialVersionUID = 2026101902;
+
+	private final long start;
+	private final long count;
+
+	public KeyRange(long start, long count) {
+		if (count < 0) {
+			throw new IllegalArgumentException("Range must not have a negative size");
+		}
+		this.start = start;
+		this.count = count;
+	}
+
+	/**
+	 * Splits this range into a number of consecutive parts of nearly equal size. The first parts get one extra
+	 * document each if the range does not divide evenly.
+	 *
+	 * @param parts The number of parts to split into
+	 * @param index The part to return, between 0 and parts-1
+	 * @return The requested part
+	 */
+	public KeyRange split(int parts, int index) {
+		if ((index < 0) || (index >= parts)) {
+			throw new IllegalArgumentException("Part " + index + " is outside of 0.." + (parts-1));
+		}
+		long share = count / parts;
+		long remainder = count % parts;
+		return new KeyRange(start + index * share + Math.min(index, remainder), share + (index < remainder ? 1 : 0));
+	}
+
+	/**
+	 * @return The first document number in this range
+	 */
+	public long getStart() {
+		return start;
+	}
+
+	public long getCount() {
+		return count;
+	}
+
+	/**
+	 * @return The first document number after this range
+	 */
+	public long getEnd() {
+		return start + count;
+	}
+
+	@Override
+	public String toString() {
+		return "[" + start + ", " + getEnd() + ")";
+	}
+}
@@ -0,0 +1,69 @@
+package phil.projects.mongo;
+
+/**
+ * Adapts a MongoDBObjectFactory to the DocumentFactoryProvider interface. All generators share the factory, which must
+ * therefore be safe to use from several threads, as it had to be before.
+ *
+ * @author ptaprogg
+ *
+ */
+public class LegacyFactoryProvider implements DocumentFactoryProvider {
+
+	private final String name;
+	private final MongoDBObjectFactory factory;
+
+	//Set by init(), passed to every call of the factory
+	private volatile MongoLoadConfig config;
+
+	/**
+	 * @param name The name of the provider
+	 * @param factory The factory generating the documents
+	 */
+	public LegacyFactoryProvider(String name, MongoDBObjectFactory factory) {
+		this.name = name;
+		this.factory = factory;
+	}
+
+	@Override
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * @return The adapted factory
+	 */
+	public MongoDBObjectFactory getFactory() {
+		return factory;
+	}
+
+	@Override
+	public void init(MongoLoadConfig config) {
+		this.config = config;
+		//Parse samples before anything is timed
+		if (factory instanceof MongoJSONFactory) {
+			((MongoJSONFactory)factory).initialize(config);
+		}
+	}
+
+	@Override
+	public DocumentGenerator createGenerator(int worker) {
+		final MongoLoadConfig generatorConfig = config;
+		if (generatorConfig == null) {
+			throw new IllegalStateException("Provider " + name + " has not been initialized");
+		}
+		return new DocumentGenerator() {
+			@Override
+			public void generate(long sequence, DocumentOutput target) {
+				target.accept(factory.generateDocument(generatorConfig));
+			}
+
+			@Override
+			public void close() {
+			}
+		};
+	}
+
+	@Override
+	public void close() {
+	}
+}
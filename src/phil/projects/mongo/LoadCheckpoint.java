@@ -0,0 +1,137 @@
+package phil.projects.mongo;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * The position of one load worker, persisted periodically so that an interrupted load can be resumed.
+ *
+ * Workers own disjoint ranges of document numbers and their own RandomGenerator, so each one is checkpointed independently into
+ * its own file. A checkpoint is only written once all documents before its position have been acknowledged.
+ * The unique strings the worker has handed out are not part of the checkpoint but appended to a UniqueStringJournal, so that
+ * a checkpoint takes constant time however far the load has got.
+ *
+ * @author ptaprogg
+ *
+ */
+public class LoadCheckpoint implements Serializable {
+
+	static final long serialVersionUID = 2026101903;
+
+	//The worker this checkpoint belongs to and the number of workers in the run
+	private final int worker;
+	private final int workers;
+
+	//The documents assigned to the worker
+	private final KeyRange range;
+
+	//The number of the next document the worker will generate
+	private final long next;
+
+	//The worker's RandomGenerator state before generating document next, without its unique strings
+	private final RandomGenerator.State generatorState;
+
+	//The length of the worker's unique string journal at this checkpoint
+	private final long journalLength;
+
+	public LoadCheckpoint(int worker, int workers, KeyRange range, long next, RandomGenerator.State generatorState, long journalLength) {
+		this.worker = worker;
+		this.workers = workers;
+		this.range = range;
+		this.next = next;
+		this.generatorState = generatorState;
+		this.journalLength = journalLength;
+	}
+
+	/**
+	 * Gets the file a worker's checkpoints are stored in
+	 *
+	 * @param base The checkpoint file configured for the run
+	 * @param worker The worker index
+	 * @return The worker's checkpoint file
+	 */
+	public static File fileFor(String base, int worker) {
+		return new File(base + "." + worker);
+	}
+
+	/**
+	 * Writes the checkpoint to a file. The file is replaced atomically, so a crash while writing leaves the previous checkpoint intact.
+	 *
+	 * @param file The file to write to
+	 * @throws IOException If the checkpoint cannot be written
+	 */
+	public void save(File file) throws IOException {
+		File tmp = new File(file.getPath() + ".tmp");
+		ObjectOutputStream oos = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+		try {
+			oos.writeObject(this);
+		}
+		finally {
+			oos.close();
+		}
+		Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Reads a checkpoint from a file.
+	 *
+	 * @param file The file to read
+	 * @return The checkpoint or null if the file does not exist
+	 * @throws IOException If the file exists but cannot be read
+	 */
+	public static LoadCheckpoint load(File file) throws IOException {
+		if (!file.exists()) {
+			return null;
+		}
+		ObjectInputStream ois = new ObjectInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			return (LoadCheckpoint)ois.readObject();
+		}
+		catch (ClassNotFoundException cnfe) {
+			throw new IOException("Checkpoint file " + file + " holds an unknown class", cnfe);
+		}
+		finally {
+			ois.close();
+		}
+	}
+
+	public int getWorker() {
+		return worker;
+	}
+
+	public int getWorkers() {
+		return workers;
+	}
+
+	public KeyRange getRange() {
+		return range;
+	}
+
+	public long getNext() {
+		return next;
+	}
+
+	public RandomGenerator.State getGeneratorState() {
+		return generatorState;
+	}
+
+	public long getJournalLength() {
+		return journalLength;
+	}
+
+	/**
+	 * @return The number of documents of the worker's range completed at this checkpoint
+	 */
+	public long getCompleted() {
+		return next - range.getStart();
+	}
+}
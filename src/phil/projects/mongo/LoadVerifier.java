@@ -0,0 +1,307 @@
+package phil.projects.mongo;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.log4j.Logger;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+
+/**
+ * Checks after a seeded load that every document made it into the collection unchanged.
+ *
+ * The range of document numbers is split between several threads. Each thread scans its part of the collection in _id order
+ * and walks it alongside the expected document numbers, regenerating each document from the seed and comparing it field by
+ * field with the stored one. Gaps in the scan are missing documents, repeated ids are duplicates and differing content is
+ * corrupt. If the load emptied the collection, documents outside the keyspace of the run are counted as unexpected, while the
+ * parts of other loaders of the run are left alone. A collection that was not emptied may hold anything else, so then nothing
+ * is unexpected. Only counters and a few example ids are kept, so memory use does not depend on the size of the collection.
+ *
+ * Requires a seeded run with sequence ids, the only setting in which any document can be generated again.
+ *
+ * @author ptaprogg
+ *
+ */
+public class LoadVerifier {
+
+	private static Logger logger = Logger.getLogger(LoadVerifier.class);
+
+	//Example ids kept per kind of problem
+	private static final int MAX_EXAMPLES = 10;
+
+	//Documents fetched per round trip while scanning
+	private static final int SCAN_BATCH_SIZE = 1000;
+
+	private final MongoLoad loader;
+	private final DBCollection collection;
+	private final KeyRange range;
+	//The documents of all loaders of the run, and whether they were alone in the collection when the run started
+	private final KeyRange keyspace;
+	private final boolean emptied;
+	private final int threads;
+
+	private final LongAdder checked = new LongAdder();
+	private final LongAdder missing = new LongAdder();
+	private final LongAdder duplicates = new LongAdder();
+	private final LongAdder corrupt = new LongAdder();
+	private long unexpected = -1;
+	private long durationMillis;
+
+	private final List<Long> missingExamples = Collections.synchronizedList(new ArrayList<Long>());
+	private final List<Long> duplicateExamples = Collections.synchronizedList(new ArrayList<Long>());
+	private final List<String> corruptExamples = Collections.synchronizedList(new ArrayList<String>());
+
+	private volatile Throwable failure;
+
+	/**
+	 * @param loader The loader that generated the documents, used to generate them again
+	 * @param collection The collection to verify
+	 * @param config The config of the load
+	 */
+	public LoadVerifier(MongoLoad loader, DBCollection collection, MongoLoadConfig config) {
+		this.loader = loader;
+		this.collection = collection;
+		this.range = new KeyRange(config.getFirstDoc(), config.getNumdocs());
+		this.keyspace = config.getKeyspace();
+		this.emptied = config.isDrop() && !config.isResume();
+		this.threads = config.getVerifyThreads();
+	}
+
+	/**
+	 * Scans the collection and compares it with the regenerated documents. Blocks until all threads are done.
+	 *
+	 * @throws RuntimeException If a scan failed
+	 */
+	public void verify() {
+		long start = System.currentTimeMillis();
+		logger.info("Verifying " + range + " of " + collection.getFullName() + " using " + threads + " threads");
+		Thread[] workers = new Thread[threads];
+		for (int i = 0; i < threads; i++) {
+			final int worker = i;
+			final KeyRange part = range.split(threads, i);
+			workers[i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						DocumentGenerator generator = loader.createGenerator(worker);
+						try {
+							scan(part, generator);
+						}
+						finally {
+							generator.close();
+						}
+					}
+					catch (Throwable t) {
+						logger.error("Verifying " + part + " failed: " + t.getMessage());
+						failure = t;
+					}
+				}
+			}, "MongoLoad verifier " + i);
+			workers[i].start();
+		}
+		for (Thread worker : workers) {
+			try {
+				worker.join();
+			}
+			catch (InterruptedException ie) {
+				failure = ie;
+				Thread.currentThread().interrupt();
+			}
+		}
+		if (failure != null) {
+			throw (failure instanceof RuntimeException ? (RuntimeException)failure : new RuntimeException("Verification aborted", failure));
+		}
+		//Counted by _id rather than from the collection's total, which would include orphaned copies of documents on shards
+		unexpected = (emptied ? collection.count(new BasicDBObject("_id", new BasicDBObject("$not",
+				new BasicDBObject("$gte", keyspace.getStart()).append("$lt", keyspace.getEnd())))) : -1);
+		durationMillis = System.currentTimeMillis() - start;
+	}
+
+	private void scan(KeyRange part, DocumentGenerator generator) {
+		if (part.getCount() == 0) {
+			return;
+		}
+		DBObject query = new BasicDBObject("_id", new BasicDBObject("$gte", part.getStart()).append("$lt", part.getEnd()));
+		DBCursor cursor = collection.find(query).sort(new BasicDBObject("_id", 1)).batchSize(SCAN_BATCH_SIZE);
+		try {
+			compare(part, cursor, generator);
+		}
+		finally {
+			cursor.close();
+		}
+	}
+
+	/**
+	 * Walks the stored documents of a part of the range alongside the expected document numbers
+	 *
+	 * @param part The range of document numbers
+	 * @param documents The stored documents of the range in _id order
+	 * @param generator The generator to generate the expected documents with
+	 */
+	void compare(KeyRange part, Iterator<DBObject> documents, DocumentGenerator generator) {
+		long expected = part.getStart();
+		while (documents.hasNext() && (failure == null)) {
+			DBObject stored = documents.next();
+			long id = ((Number)stored.get("_id")).longValue();
+			if (id < expected) {
+				duplicates.increment();
+				example(duplicateExamples, Long.valueOf(id));
+				continue;
+			}
+			if (id > expected) {
+				missing.add(id - expected);
+				for (long m = expected; m < id; m++) {
+					if (!example(missingExamples, Long.valueOf(m))) {
+						break;
+					}
+				}
+			}
+			expected = id + 1;
+			checked.increment();
+			//Added at write time, not by the generator
+			stored.removeField(ReplicationLagMonitor.FIELD);
+			String difference = difference("", loader.generateDocument(generator, id), stored);
+			if (difference != null) {
+				corrupt.increment();
+				example(corruptExamples, id + " at " + difference);
+			}
+		}
+		if (expected < part.getEnd()) {
+			missing.add(part.getEnd() - expected);
+			for (long m = expected; m < part.getEnd(); m++) {
+				if (!example(missingExamples, Long.valueOf(m))) {
+					break;
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return False if enough examples have been collected already
+	 */
+	private static <T> boolean example(List<T> examples, T example) {
+		synchronized (examples) {
+			if (examples.size() >= MAX_EXAMPLES) {
+				return false;
+			}
+			examples.add(example);
+			return true;
+		}
+	}
+
+	/**
+	 * Compares a generated value with the stored one, descending into documents and arrays. Numbers are compared by value,
+	 * as BSON does not distinguish all Java number types.
+	 *
+	 * @param path The path of the values within the document
+	 * @return The path of the first difference, null if the values are equal
+	 */
+	static String difference(String path, Object generated, Object stored) {
+		if ((generated == null) || (stored == null)) {
+			return (generated == stored ? null : path);
+		}
+		if ((generated instanceof Map) && (stored instanceof Map)) {
+			Map<?, ?> g = (Map<?, ?>)generated;
+			Map<?, ?> s = (Map<?, ?>)stored;
+			if (!g.keySet().equals(s.keySet())) {
+				return path + "{}";
+			}
+			for (Object key : g.keySet()) {
+				String difference = difference(path + "." + key, g.get(key), s.get(key));
+				if (difference != null) {
+					return difference;
+				}
+			}
+			return null;
+		}
+		if ((generated instanceof DBObject) && (stored instanceof DBObject)) {
+			return difference(path, ((DBObject)generated).toMap(), ((DBObject)stored).toMap());
+		}
+		if ((generated instanceof List) && (stored instanceof List)) {
+			List<?> g = (List<?>)generated;
+			List<?> s = (List<?>)stored;
+			if (g.size() != s.size()) {
+				return path + "[]";
+			}
+			for (int i = 0; i < g.size(); i++) {
+				String difference = difference(path + "[" + i + "]", g.get(i), s.get(i));
+				if (difference != null) {
+					return difference;
+				}
+			}
+			return null;
+		}
+		if ((generated instanceof Number) && (stored instanceof Number)) {
+			boolean integral = !(generated instanceof Double || generated instanceof Float || stored instanceof Double || stored instanceof Float);
+			boolean equal = (integral ? ((Number)generated).longValue() == ((Number)stored).longValue()
+					: Double.compare(((Number)generated).doubleValue(), ((Number)stored).doubleValue()) == 0);
+			return (equal ? null : path);
+		}
+		if ((generated instanceof byte[]) && (stored instanceof byte[])) {
+			return (Arrays.equals((byte[])generated, (byte[])stored) ? null : path);
+		}
+		if ((generated instanceof Date) && (stored instanceof Date)) {
+			//BSON dates have millisecond precision like java.util.Date
+			return (((Date)generated).getTime() == ((Date)stored).getTime() ? null : path);
+		}
+		return (generated.equals(stored) ? null : path);
+	}
+
+	public long getChecked() {
+		return checked.sum();
+	}
+
+	public long getMissing() {
+		return missing.sum();
+	}
+
+	public long getDuplicates() {
+		return duplicates.sum();
+	}
+
+	public long getCorrupt() {
+		return corrupt.sum();
+	}
+
+	/**
+	 * @return The number of documents outside the keyspace of the run, -1 if not checked as the collection was not emptied
+	 */
+	public long getUnexpected() {
+		return unexpected;
+	}
+
+	/**
+	 * @return True if every document was found exactly once and unchanged, and no unexpected documents were found
+	 */
+	public boolean isClean() {
+		return (getMissing() == 0) && (getDuplicates() == 0) && (getCorrupt() == 0) && (unexpected <= 0);
+	}
+
+	/**
+	 * @return A multi-line, human-readable report of the verification, listing a few examples of each problem
+	 */
+	public String report() {
+		StringBuilder sb = new StringBuilder();
+		sb.append(String.format("Verified %d documents of %s in %dms: %d missing, %d duplicate, %d corrupt, %s unexpected",
+				getChecked(), range, durationMillis, getMissing(), getDuplicates(), getCorrupt(), (unexpected < 0 ? "not checked for" : Long.toString(unexpected))));
+		if (!missingExamples.isEmpty()) {
+			sb.append(String.format("%n  missing e.g. %s", missingExamples));
+		}
+		if (!duplicateExamples.isEmpty()) {
+			sb.append(String.format("%n  duplicate e.g. %s", duplicateExamples));
+		}
+		if (!corruptExamples.isEmpty()) {
+			sb.append(String.format("%n  corrupt e.g. %s", corruptExamples));
+		}
+		return sb.toString();
+	}
+}
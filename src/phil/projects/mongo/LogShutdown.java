@@ -0,0 +1,37 @@
+package phil.projects.mongo;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.log4j.LogManager;
+
+/**
+ * Flushes and closes the log appenders when the JVM exits.
+ *
+ * Logging goes through an AsyncAppender, see log4j.xml, whose dispatcher is a daemon thread. Without closing it, events still
+ * queued at exit, such as the final report or the error a run was aborted with right before System.exit, are lost. Every main
+ * method installs the hook first.
+ *
+ * @author ptaprogg
+ *
+ */
+public final class LogShutdown {
+
+	private static final AtomicBoolean installed = new AtomicBoolean();
+
+	private LogShutdown() {
+	}
+
+	/**
+	 * Installs the shutdown hook, once however often called
+	 */
+	public static void install() {
+		if (installed.compareAndSet(false, true)) {
+			Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+				@Override
+				public void run() {
+					LogManager.shutdown();
+				}
+			}, "MongoLoad log shutdown"));
+		}
+	}
+}
@@ -0,0 +1,100 @@
+package phil.projects.mongo;
+
+/**
+ * Counters keyed by long in primitive open-addressing tables, taking 24 to 48 bytes per key that has been counted and nothing
+ * for the others. Keys are spread over stripes locked separately, so that threads counting different keys rarely contend.
+ *
+ * @author ptaprogg
+ *
+ */
+final class LongCounterMap {
+
+	private static final int STRIPE_BITS = 6;
+
+	private static final class Stripe {
+
+		private long[] keys = new long[16];
+		//A count of 0 marks a free slot, as a key is only stored once counted
+		private int[] counts = new int[16];
+		private int size;
+
+		private int slot(long hash, long[] table) {
+			return (int)hash & (table.length - 1);
+		}
+
+		synchronized int getAndIncrement(long key, long hash) {
+			int mask = keys.length - 1;
+			int slot = slot(hash, keys);
+			while (counts[slot] != 0) {
+				if (keys[slot] == key) {
+					return counts[slot]++;
+				}
+				slot = (slot + 1) & mask;
+			}
+			keys[slot] = key;
+			counts[slot] = 1;
+			size++;
+			//At most half full, so that probes stay short
+			if (size * 2 > keys.length) {
+				grow();
+			}
+			return 0;
+		}
+
+		private void grow() {
+			if (keys.length == 1 << 30) {
+				throw new IllegalStateException("Counter stripe is full at " + size + " keys");
+			}
+			long[] oldKeys = keys;
+			int[] oldCounts = counts;
+			keys = new long[oldKeys.length * 2];
+			counts = new int[oldKeys.length * 2];
+			int mask = keys.length - 1;
+			for (int i = 0; i < oldKeys.length; i++) {
+				if (oldCounts[i] != 0) {
+					int slot = slot(RandomGenerator.mix(oldKeys[i]), keys);
+					while (counts[slot] != 0) {
+						slot = (slot + 1) & mask;
+					}
+					keys[slot] = oldKeys[i];
+					counts[slot] = oldCounts[i];
+				}
+			}
+		}
+
+		synchronized int size() {
+			return size;
+		}
+	}
+
+	private final Stripe[] stripes = new Stripe[1 << STRIPE_BITS];
+
+	LongCounterMap() {
+		for (int i = 0; i < stripes.length; i++) {
+			stripes[i] = new Stripe();
+		}
+	}
+
+	/**
+	 * Increments the counter of a key
+	 *
+	 * @param key The key to count
+	 * @return The count before incrementing, 0 for a key not counted before
+	 */
+	int getAndIncrement(long key) {
+		long hash = RandomGenerator.mix(key);
+		//The top bits pick the stripe, the bottom bits the slot within it
+		return stripes[(int)(hash >>> (64 - STRIPE_BITS))].getAndIncrement(key, hash);
+	}
+
+	/**
+	 * @return The number of keys counted
+	 */
+	int size() {
+		int size = 0;
+		for (Stripe stripe : stripes) {
+			size += stripe.size();
+		}
+		return size;
+	}
+}
@@ -0,0 +1,99 @@
+package phil.projects.mongo;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * A set of longs in a primitive open-addressing table, taking 8 to 16 bytes per value instead of the 50 or more of a
+ * HashSet of boxed values. Not thread-safe.
+ *
+ * @author ptaprogg
+ *
+ */
+final class LongHashSet implements Serializable {
+
+	static final long serialVersionUID = 2026101904;
+
+	//Marks free slots, 0 itself is tracked separately
+	private static final long FREE = 0;
+
+	private long[] table;
+	private int size;
+	private boolean containsFree;
+
+	LongHashSet() {
+		table = new long[16];
+	}
+
+	LongHashSet(LongHashSet other) {
+		table = Arrays.copyOf(other.table, other.table.length);
+		size = other.size;
+		containsFree = other.containsFree;
+	}
+
+	/**
+	 * @return True if the value was not in the set before
+	 */
+	boolean add(long value) {
+		if (value == FREE) {
+			if (containsFree) {
+				return false;
+			}
+			containsFree = true;
+			size++;
+			return true;
+		}
+		int mask = table.length - 1;
+		int slot = (int)RandomGenerator.mix(value) & mask;
+		while (table[slot] != FREE) {
+			if (table[slot] == value) {
+				return false;
+			}
+			slot = (slot + 1) & mask;
+		}
+		table[slot] = value;
+		size++;
+		//At most half full, so that probes stay short
+		if (size * 2 > table.length) {
+			grow();
+		}
+		return true;
+	}
+
+	boolean contains(long value) {
+		if (value == FREE) {
+			return containsFree;
+		}
+		int mask = table.length - 1;
+		int slot = (int)RandomGenerator.mix(value) & mask;
+		while (table[slot] != FREE) {
+			if (table[slot] == value) {
+				return true;
+			}
+			slot = (slot + 1) & mask;
+		}
+		return false;
+	}
+
+	private void grow() {
+		if (table.length == 1 << 30) {
+			throw new IllegalStateException("Set is full at " + size + " values");
+		}
+		long[] old = table;
+		table = new long[old.length * 2];
+		int mask = table.length - 1;
+		for (long value : old) {
+			if (value != FREE) {
+				int slot = (int)RandomGenerator.mix(value) & mask;
+				while (table[slot] != FREE) {
+					slot = (slot + 1) & mask;
+				}
+				table[slot] = value;
+			}
+		}
+	}
+
+	int size() {
+		return size;
+	}
+}
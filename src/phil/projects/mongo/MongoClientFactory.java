@@ -0,0 +1,109 @@
+package phil.projects.mongo;
+
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+import com.mongodb.MongoClient;
+import com.mongodb.MongoClientOptions;
+import com.mongodb.MongoClientURI;
+import com.mongodb.ReadPreference;
+import com.mongodb.ServerAddress;
+
+/**
+ * Creates the MongoClient of a run from the connection settings of a config.
+ *
+ * If a connection URI is configured, it defines the servers and may carry credentials and options of its own. Options set in the
+ * config are applied first and can be overridden by the URI. Without a URI, the seed list is used if configured, otherwise the
+ * single hostname and port.
+ *
+ * @author ptaprogg
+ *
+ */
+public class MongoClientFactory {
+
+	private static Logger logger = Logger.getLogger(MongoClientFactory.class);
+
+	private MongoClientFactory() {
+	}
+
+	/**
+	 * Builds the client options configured
+	 *
+	 * @param config The config holding the client settings
+	 * @return The options builder, to be completed by a URI if one is used
+	 */
+	static MongoClientOptions.Builder options(MongoLoadConfig config) {
+		MongoClientOptions.Builder builder = new MongoClientOptions.Builder()
+				.description("MongoLoad")
+				.connectionsPerHost(config.getConnectionsPerHost())
+				.threadsAllowedToBlockForConnectionMultiplier(config.getThreadsAllowedToBlock())
+				.connectTimeout(config.getConnectTimeout())
+				.socketTimeout(config.getSocketTimeout())
+				.maxWaitTime(config.getMaxWaitTime());
+		if (!"".equals(config.getReadPreference())) {
+			builder.readPreference(ReadPreference.valueOf(config.getReadPreference()));
+		}
+		return builder;
+	}
+
+	/**
+	 * Parses the seed list of a config
+	 *
+	 * @param config The config holding the seed list
+	 * @return The addresses of the seeds, using the configured port for hosts given without one
+	 * @throws UnknownHostException If a hostname cannot be resolved
+	 */
+	static List<ServerAddress> seeds(MongoLoadConfig config) throws UnknownHostException {
+		List<ServerAddress> seeds = new ArrayList<ServerAddress>();
+		for (String host : config.getHosts().split(",")) {
+			host = host.trim();
+			if ("".equals(host)) {
+				continue;
+			}
+			int colon = host.lastIndexOf(':');
+			if (colon < 0) {
+				seeds.add(new ServerAddress(host, (config.getPort() == 0 ? ServerAddress.defaultPort() : config.getPort())));
+			}
+			else {
+				try {
+					seeds.add(new ServerAddress(host.substring(0, colon), Integer.parseInt(host.substring(colon + 1))));
+				}
+				catch (NumberFormatException nfe) {
+					throw new IllegalArgumentException("Invalid port in seed " + host, nfe);
+				}
+			}
+		}
+		return seeds;
+	}
+
+	/**
+	 * Creates a new client. The caller is responsible for closing it.
+	 *
+	 * @param config The config holding the connection settings
+	 * @return The new client
+	 * @throws UnknownHostException If a hostname cannot be resolved
+	 */
+	public static MongoClient create(MongoLoadConfig config) throws UnknownHostException {
+		MongoClientOptions.Builder options = options(config);
+		MongoClient client;
+		if (!"".equals(config.getUri())) {
+			MongoClientURI uri = new MongoClientURI(config.getUri(), options);
+			client = new MongoClient(uri);
+			logger.info("Connecting to " + uri.getHosts() + " from URI");
+		}
+		else if (!"".equals(config.getHosts())) {
+			List<ServerAddress> seeds = seeds(config);
+			client = new MongoClient(seeds, options.build());
+			logger.info("Connecting to replica set seeds " + seeds);
+		}
+		else {
+			client = new MongoClient(new ServerAddress(config.getHostname(), config.getPort()), options.build());
+			logger.info("Connecting to " + config.getHostname() + ":" + config.getPort());
+		}
+		logger.debug("Client options: " + client.getMongoClientOptions());
+		return client;
+	}
+}
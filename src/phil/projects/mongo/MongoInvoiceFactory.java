@@ -7,7 +7,17 @@ import com.mongodb.DBObject;
 
 public class MongoInvoiceFactory implements MongoDBObjectFactory {
 
-	Logger logger = Logger.getLogger(MongoInvoiceFactory.class);
+	private static final Logger logger = Logger.getLogger(MongoInvoiceFactory.class);
+	
+	/**
+	 * Registers the factory under the name invoice
+	 */
+	public static final class Provider extends LegacyFactoryProvider {
+		
+		public Provider() {
+			super("invoice", new MongoInvoiceFactory());
+		}
+	}
 	
 	@Override
 	public DBObject generateDocument(MongoLoadConfig config) {
@@ -16,7 +26,11 @@ public class MongoInvoiceFactory implements MongoDBObjectFactory {
 		
 		//The invoice number this invoice will use
 		String invoiceno = rand.getRandomUniqueString(6).toUpperCase();
-		logger.debug("Generating invoice with number " + invoiceno);
+		//Checked once per invoice, the messages are only built if they are logged
+		boolean debug = logger.isDebugEnabled();
+		if (debug) {
+			logger.debug("Generating invoice with number " + invoiceno);
+		}
 		//The top-level document
 		BasicDBObject invoice = new BasicDBObject("invoice number", invoiceno);
 		//The line-item document to be added to this invoice
@@ -24,7 +38,9 @@ public class MongoInvoiceFactory implements MongoDBObjectFactory {
 		//all sub-documents should be marked as partial to prevent accidental upserts
 		items.markAsPartialObject();
 		int numberOfItems = rand.getRandomIntInRange(14)+1;
-		logger.debug("Invoice " + invoiceno + " will have " + numberOfItems + " items");
+		if (debug) {
+			logger.debug("Invoice " + invoiceno + " will have " + numberOfItems + " items");
+		}
 
 		//Will store total amount
 		int invoiceAmount = 0;
@@ -47,15 +63,18 @@ public class MongoInvoiceFactory implements MongoDBObjectFactory {
 			
 			//Update total amount
 			invoiceAmount += price;
-			logger.debug("Generated lineitem: " + itemDetails.toString());
+			if (debug) {
+				logger.debug("Generated lineitem: " + itemDetails.toString());
+			}
 		}
 		//Append item, total price and total number of items to invoice document
 		invoice.append("items", items);
 		invoice.append("total number of items", numberOfItems);
 		invoice.append("total price", invoiceAmount);
 		
-		logger.debug("Invoice generation complete for number " + invoiceno);
-		logger.trace("Generated invoice: " + invoice.toString());
+		if (logger.isTraceEnabled()) {
+			logger.trace("Generated invoice: " + invoice.toString());
+		}
 		
 		return invoice;
 	}
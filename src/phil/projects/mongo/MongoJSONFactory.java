@@ -1,9 +1,15 @@
 package phil.projects.mongo;
 
+import java.io.DataInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.log4j.Logger;
 
@@ -17,7 +23,15 @@ import com.mongodb.util.JSONParseException;
  * DBObject factory creating DBObjects with random data based on a sample provided as a JSON file
  * 
  * It will read in the file and try to convert it into its BSON representation. It will then create a document with the same structure and all random values.
- * Note: Sample parsing will only be done the first time generateDocument() is called.
+ * The sample is parsed and compiled into a template by initialize(), which the loader calls after preparing the collections of the
+ * run and before it starts timing. Templates are immutable and cached by file and modification time, so all factories share one
+ * compiled template per sample until the file changes. Each factory resolves the references to other collections of the template
+ * into fields of its own, shared by all its workers, so that initializing one factory does not change the documents of another.
+ * 
+ * Instead of a literal value, a field of the sample can hold a generator expression such as {"$gen": "int", "min": 0, "max": 1000},
+ * to generate values following the distribution of the data being simulated, see SampleExpression. Sequence expressions use the
+ * document number passed by the loader to the generators of the json provider. Called through generateDocument() instead, they
+ * number the documents of each factory in the order generated.
  * 
  * @author ptaprogg
  *
@@ -26,134 +40,323 @@ public class MongoJSONFactory implements MongoDBObjectFactory {
 
 	private static final Logger logger = Logger.getLogger(MongoJSONFactory.class);
 	
-	//The RandomGenerator this factory will use
-	private final RandomGenerator rand = RandomGenerator.getInstance();
+	//Compiled samples by canonical path and encoding
+	private static final ConcurrentMap<String, Template> templates = new ConcurrentHashMap<String, Template>();
+	
+	//The fields of the template with references resolved for this factory, used during object generation
+	private volatile Field[] fields = null;
 	
-	//The sample used during object generation
-	private DBObject sample = null;
+	//Numbers the documents generated without a document number
+	private final AtomicLong generated = new AtomicLong();
 	
 	/**
-	 * Worker method that assembles a BasicDBObject based on the sample provided.
-	 * It will iterate over the keys in the sample and generate random values for each.
-	 * If a key holds a subdocument, it will recursively generate a random DBObject for this.
-	 * 
-	 * @param sample The sample DBObject to follow
-	 * @return A DBObject with random data based on the sample's structure
+	 * Registers the factory under the name json. All generators share the template of the factory.
 	 */
-	private final DBObject assembleDBObject(DBObject sample) {
-
-		logger.debug("Starting to assemble object");
+	public static final class Provider implements DocumentFactoryProvider {
 		
-		//Create a fresh DBObject to load
-		BasicDBObject generatedObject = new BasicDBObject(); 
+		private final MongoJSONFactory factory = new MongoJSONFactory();
+		
+		@Override
+		public String getName() {
+			return "json";
+		}
+		
+		@Override
+		public void init(MongoLoadConfig config) {
+			factory.initialize(config);
+		}
+		
+		@Override
+		public DocumentGenerator createGenerator(int worker) {
+			final Field[] f = factory.fields;
+			if (f == null) {
+				throw new IllegalStateException("Provider json has not been initialized");
+			}
+			return new DocumentGenerator() {
+				@Override
+				public void generate(long sequence, DocumentOutput target) {
+					target.accept(factory.assembleDBObject(f, sequence));
+				}
+				
+				@Override
+				public void close() {
+				}
+			};
+		}
+		
+		@Override
+		public void close() {
+		}
+	}
+	
+	/**
+	 * The kinds of values a sample can hold
+	 */
+	private enum Kind {
+		STRING, INTEGER, DOUBLE, BOOLEAN, DOCUMENT, LIST, EXPRESSION
+	}
+	
+	/**
+	 * A field of a compiled sample: its name, the kind of value to generate and the lengths of the strings or the expression to generate
+	 */
+	private static final class Field {
+		
+		final String key;
+		final Kind kind;
+		final int length;
+		final int[] listLengths;
+		final Field[] fields;
+		final SampleExpression expression;
+		
+		Field(String key, Kind kind, int length, int[] listLengths, Field[] fields) {
+			this.key = key;
+			this.kind = kind;
+			this.length = length;
+			this.listLengths = listLengths;
+			this.fields = fields;
+			this.expression = null;
+		}
+		
+		Field(String key, SampleExpression expression) {
+			this.key = key;
+			this.kind = Kind.EXPRESSION;
+			this.length = 0;
+			this.listLengths = null;
+			this.fields = null;
+			this.expression = expression;
+		}
+	}
+	
+	/**
+	 * A compiled sample together with the file it was read from
+	 */
+	private static final class Template {
+		
+		final Field[] fields;
+		final long lastModified;
 		
-		//Get the key set from the sample and iterate over that
-		for (String key : sample.keySet() ) {
+		Template(Field[] fields, long lastModified) {
+			this.fields = fields;
+			this.lastModified = lastModified;
+		}
+	}
+	
+	/**
+	 * Compiles a sample document into the fields to generate, checking all values are supported
+	 * 
+	 * @param sample The parsed sample
+	 * @return The fields of the document
+	 * @throws IllegalArgumentException If the sample holds an unsupported value
+	 */
+	private static Field[] compile(DBObject sample) {
+		List<Field> fields = new ArrayList<Field>();
+		for (String key : sample.keySet()) {
 			Object sampleValue = sample.get(key);
-			logger.trace("Value read from sample for key " + key + ": " + sampleValue.toString());
-			
-			if (sampleValue instanceof String) {
-				logger.debug("Generating String value for key " + key);
-				generatedObject.put(key, rand.getRandomString(((String)sampleValue).length()));
+			if (SampleExpression.isExpression(sampleValue)) {
+				fields.add(new Field(key, SampleExpression.compile(key, (DBObject)sampleValue)));
+			}
+			else if (sampleValue instanceof String) {
+				fields.add(new Field(key, Kind.STRING, ((String)sampleValue).length(), null, null));
 			}
 			else if ((sampleValue instanceof Long) || (sampleValue instanceof Integer)) {
-				logger.debug("Generating Integer value for key " + key);
-				generatedObject.put(key, rand.getRandomInt());
+				fields.add(new Field(key, Kind.INTEGER, 0, null, null));
 			}
 			else if (sampleValue instanceof Double) {
-				logger.debug("Generating Double value for key " + key);
-				generatedObject.put(key, rand.getRandomDouble());
+				fields.add(new Field(key, Kind.DOUBLE, 0, null, null));
 			}
 			else if (sampleValue instanceof Boolean) {
-				logger.debug("Generating Boolean value for key " + key);
-				if (rand.getRandomIntInRange(2) == 0) {
-					generatedObject.put(key,true);
-				}
-				else {
-					generatedObject.put(key, false);
-				}
+				fields.add(new Field(key, Kind.BOOLEAN, 0, null, null));
 			}
 			else if (sampleValue instanceof BasicDBObject) {
-				logger.debug("Generating subdocument for key " + key);
-				generatedObject.put(key, assembleDBObject((BasicDBObject)sample.get(key)));
+				fields.add(new Field(key, Kind.DOCUMENT, 0, null, compile((BasicDBObject)sampleValue)));
 			}
 			else if (sampleValue instanceof BasicDBList) {
 				BasicDBList list = (BasicDBList)sampleValue;
-				BasicDBList out = new BasicDBList();
-				for (Object item : list) {
-					try {
-						out.add(rand.getRandomString(((String)item).length()));						
-					}
-					catch (ClassCastException cce) {
-						logger.error("Error processing token '" + sampleValue.toString() + "'. Contains non-string class " + item.getClass().getCanonicalName());
-						throw cce;
+				int[] lengths = new int[list.size()];
+				for (int i = 0; i < lengths.length; i++) {
+					if (!(list.get(i) instanceof String)) {
+						logger.error("Error processing token '" + sampleValue.toString() + "'. Contains non-string class " + list.get(i).getClass().getCanonicalName());
+						throw new IllegalArgumentException("Unsupported data type in sample list at \"" + key + "\": " + list.get(i).getClass().getCanonicalName());
 					}
+					lengths[i] = ((String)list.get(i)).length();
 				}
-				generatedObject.put(key, out);
+				fields.add(new Field(key, Kind.LIST, 0, lengths, null));
 			}
 			else {
-				logger.error("Unsupported data type in sample. Object at \"" + key + "\": " + sample.get(key).getClass().getCanonicalName());
-				throw new IllegalArgumentException("Unsupported data type in sample document. Object at \"" + key + "\": " + sample.get(key).getClass().getCanonicalName());
+				logger.error("Unsupported data type in sample. Object at \"" + key + "\": " + sampleValue.getClass().getCanonicalName());
+				throw new IllegalArgumentException("Unsupported data type in sample document. Object at \"" + key + "\": " + sampleValue.getClass().getCanonicalName());
+			}
+		}
+		return fields.toArray(new Field[fields.size()]);
+	}
+	
+	/**
+	 * Worker method that assembles a BasicDBObject based on the compiled sample.
+	 * It will iterate over the fields and generate random values for each.
+	 * If a field holds a subdocument, it will recursively generate a random DBObject for this.
+	 * 
+	 * @param fields The compiled fields to follow
+	 * @param sequence The number of the document, for sequence expressions
+	 * @return A DBObject with random data based on the sample's structure
+	 */
+	private final DBObject assembleDBObject(Field[] fields, long sequence) {
+		
+		//The RandomGenerator of the calling worker
+		RandomGenerator rand = RandomGenerator.getInstance();
+		
+		//Create a fresh DBObject to load
+		BasicDBObject generatedObject = new BasicDBObject(); 
+		
+		for (Field field : fields) {
+			switch (field.kind) {
+			case STRING:
+				generatedObject.put(field.key, rand.getRandomString(field.length));
+				break;
+			case INTEGER:
+				generatedObject.put(field.key, rand.getRandomInt());
+				break;
+			case DOUBLE:
+				generatedObject.put(field.key, rand.getRandomDouble());
+				break;
+			case BOOLEAN:
+				generatedObject.put(field.key, rand.getRandomIntInRange(2) == 0);
+				break;
+			case DOCUMENT:
+				generatedObject.put(field.key, assembleDBObject(field.fields, sequence));
+				break;
+			case LIST:
+				BasicDBList out = new BasicDBList();
+				for (int length : field.listLengths) {
+					out.add(rand.getRandomString(length));
+				}
+				generatedObject.put(field.key, out);
+				break;
+			case EXPRESSION:
+				generatedObject.put(field.key, field.expression.evaluate(rand, sequence));
+				break;
 			}
 		}
-		logger.debug("Document generation complete.");
-		logger.trace("Generated object: " + generatedObject.toString());
+		if (logger.isTraceEnabled()) {
+			logger.trace("Generated object: " + generatedObject.toString());
+		}
 		return generatedObject;
 	}
 	
-	private String readSample(String path, MongoLoadConfig config) throws IOException {
+	static File sampleFile(String path) {
 		File f = new File(path);
 		if (!f.canRead()) {
 			logger.info("Sample file not found at absolute location. Will try relative to userdir");
-			f = new File(System.getProperty("user.dir")+path);
+			f = new File(System.getProperty("user.dir"), path);
 			if (!f.canRead()) {
-				throw new IllegalArgumentException("Sample file not found");
+				throw new IllegalArgumentException("Sample file " + path + " not found");
 			}
 		}
-		
+		return f;
+	}
+	
+	static String readSample(File f, String encoding) throws IOException {
 		if (f.length() > Integer.MAX_VALUE) {
 			throw new IllegalArgumentException("Sample file too big.");
 		}
-		
-		FileInputStream fis = new FileInputStream(f);
 		byte[] fileContents = new byte[(int)f.length()];
-		int bytesRead = fis.read(fileContents);
-		while (bytesRead < f.length()) {
-			logger.debug("Having to read in multiple steps...");
-			bytesRead = bytesRead + fis.read(fileContents, bytesRead-1, fis.available());
+		DataInputStream in = new DataInputStream(new FileInputStream(f));
+		try {
+			in.readFully(fileContents);
+		}
+		finally {
+			in.close();
 		}
-		fis.close();
 		try {
-			String sampleString = new String(fileContents, (("".equals(config.getSampleEncoding()) ? "UTF-8" : config.getSampleEncoding())));
-			return sampleString;
+			return new String(fileContents, encoding);
 		}
 		catch (UnsupportedEncodingException uce) {
-			logger.error("Specified character encoding " + config.getSampleEncoding() + " is not supported.");
+			logger.error("Specified character encoding " + encoding + " is not supported.");
 			throw uce;
 		}
-		
-//		return new String(fileContents, (config.getSampleEncoding() == null ? "UTF-8" : config.getSampleEncoding()));
 	}
 	
-	@Override
-	public DBObject generateDocument(MongoLoadConfig config) {
-		if (sample == null) {
-			logger.info("Initializing model");
+	/**
+	 * Reads and compiles the configured sample, or takes it from the cache if the file has not changed since it was compiled.
+	 * Safe to call from several threads. Called by the loader before generation starts, so that parsing is not part of the
+	 * measurements, and otherwise by the first call of generateDocument().
+	 * 
+	 * @param config The config holding the sample path and encoding
+	 * @throws IllegalArgumentException If the sample cannot be read, is not valid JSON or holds unsupported values
+	 */
+	public void initialize(MongoLoadConfig config) {
+		String encoding = ("".equals(config.getSampleEncoding()) ? "UTF-8" : config.getSampleEncoding());
+		File f = sampleFile(config.getSamplePath());
+		String cacheKey;
+		try {
+			cacheKey = f.getCanonicalPath() + "|" + encoding;
+		}
+		catch (IOException ioe) {
+			cacheKey = f.getAbsolutePath() + "|" + encoding;
+		}
+		long lastModified = f.lastModified();
+		Template cached = templates.get(cacheKey);
+		if ((cached == null) || (cached.lastModified != lastModified)) {
+			//Concurrent callers may compile the same sample twice, both results are equal
+			logger.info("Initializing model from " + f);
+			Object sample;
 			try {
-				String JSONSample = readSample(config.getSamplePath(), config);
-				sample = (DBObject)JSON.parse(JSONSample);
+				sample = JSON.parse(readSample(f, encoding));
 			}
-			catch(IOException ioe) {
-				logger.error("IO Exception while parsing JSON: " + ioe.getMessage());
-				ioe.printStackTrace();
+			catch (IOException ioe) {
+				logger.error("IO Exception while reading sample: " + ioe.getMessage());
+				throw new IllegalArgumentException("Unable to read sample " + f, ioe);
 			}
-			catch(JSONParseException jpe) {
+			catch (JSONParseException jpe) {
 				logger.error("JSON parse exception while trying to parse sample: " + jpe.getMessage());
-				jpe.printStackTrace();
+				throw new IllegalArgumentException("Sample " + f + " is not valid JSON", jpe);
+			}
+			if (!(sample instanceof BasicDBObject)) {
+				throw new IllegalArgumentException("Sample " + f + " is not a JSON document");
+			}
+			cached = new Template(compile((DBObject)sample), lastModified);
+			templates.put(cacheKey, cached);
+			logger.info("Model init complete");
+		}
+		//Other collections may have been loaded since the template was compiled
+		fields = resolve(cached.fields);
+	}
+	
+	/**
+	 * Resolves the references of the fields against the ids registered for the run, leaving the compiled fields unchanged
+	 * 
+	 * @param compiled The compiled fields
+	 * @return The fields to generate in this run
+	 * @throws IllegalStateException If a field refers to a collection that is not registered
+	 */
+	private static Field[] resolve(Field[] compiled) {
+		Field[] resolved = new Field[compiled.length];
+		for (int i = 0; i < compiled.length; i++) {
+			Field field = compiled[i];
+			if (field.kind == Kind.EXPRESSION) {
+				resolved[i] = new Field(field.key, field.expression.resolve());
+			}
+			else if (field.kind == Kind.DOCUMENT) {
+				resolved[i] = new Field(field.key, Kind.DOCUMENT, 0, null, resolve(field.fields));
+			}
+			else {
+				resolved[i] = field;
+			}
+		}
+		return resolved;
+	}
+	
+	@Override
+	public DBObject generateDocument(MongoLoadConfig config) {
+		Field[] f = fields;
+		if (f == null) {
+			synchronized (this) {
+				if (fields == null) {
+					initialize(config);
+				}
+				f = fields;
 			}
 		}
-		logger.info("Model init complete");
-		return assembleDBObject(sample);
+		return assembleDBObject(f, generated.getAndIncrement());
 	}
 
 }
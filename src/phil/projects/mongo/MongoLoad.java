@@ -1,9 +1,24 @@
 package phil.projects.mongo;
 
+import java.io.File;
+import java.io.IOException;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.log4j.Logger;
+import org.bson.BasicBSONEncoder;
+import org.bson.io.BasicOutputBuffer;
+import org.bson.types.ObjectId;
 
+import com.mongodb.BasicDBObject;
 import com.mongodb.DB;
 import com.mongodb.DBCollection;
 import com.mongodb.DBObject;
@@ -11,6 +26,18 @@ import com.mongodb.MongoClient;
 import com.mongodb.MongoException;
 import com.mongodb.WriteConcern;
 
+import phil.projects.mongo.compare.RunResult;
+import phil.projects.mongo.jfr.BatchWrittenEvent;
+import phil.projects.mongo.jfr.DocumentGeneratedEvent;
+import phil.projects.mongo.jfr.LoadRecording;
+import phil.projects.mongo.metrics.MetricsServer;
+import phil.projects.mongo.stats.GrowthStatistics;
+import phil.projects.mongo.stats.LatencyHistogram;
+import phil.projects.mongo.stats.LoadListener;
+import phil.projects.mongo.stats.LoadSnapshot;
+import phil.projects.mongo.stats.LoadStatistics;
+import phil.projects.mongo.stats.QueryStatistics;
+
 public class MongoLoad {
 	
 	private static Logger logger = Logger.getLogger(MongoLoad.class);
@@ -18,31 +45,115 @@ public class MongoLoad {
 	//The config object holding connection details
 	private MongoLoadConfig config;
 	
-	//The document factory used to generate the documents being inserted
-	private MongoDBObjectFactory documentFactory;
+	//Provides the generators of the documents being inserted
+	private final DocumentFactoryProvider factoryProvider;
+	
+	//The client shared by all connects of this loader, created on first use unless one is passed in
+	private MongoClient client;
+	
+	//Whether the client was passed in by the caller, who then also closes it
+	private final boolean sharedClient;
 	
 	
+	//The collection documents are saved to, retrieved in prepare()
+	private DBCollection invoices;
+	
 	//Used to keep track of the generation progress
-	protected int progress = 0;
+	protected final AtomicInteger progress = new AtomicInteger();
+	
+	//Latency and throughput of the current or last run
+	private volatile LoadStatistics statistics;
+	
+	//Shared by all workers of a run
+	private volatile RateLimiter limiter;
+	
+	//Writes the batches of all workers in async write mode, null when writing synchronously
+	private volatile AsyncWriteEngine writeEngine;
+	
+	//Retries writes failing with transient errors
+	private WriteRetrier retrier;
+	
+	//The first error encountered by any worker. Other workers stop once this is set.
+	private volatile Throwable failure;
+	
+	//Secondary index builds and measurements of the current or last run
+	private IndexBenchmark indexBenchmark;
+	
+	//The generator state of each worker at the end of the last segment, null unless loading in segments
+	private RandomGenerator.State[] segmentStates;
+	
+	//Sharding of the collection, null if not sharded by this loader
+	private ShardingSetup sharding;
+	
+	//Updates growing the loaded documents, if configured
+	private volatile UpdateWorkload updateWorkload;
+	
+	//Queries run after the load and updates, if configured
+	private volatile QueryWorkload queryWorkload;
+	
+	//Replication lag measured during the load, if configured and connected to a replica set
+	private volatile ReplicationLagMonitor lagMonitor;
+	
+	//Read-back check of the loaded documents, if configured
+	private LoadVerifier verifier;
+	
+	//Ids of the documents written, for workloads drawing existing documents. Null with sequence ids, which are a range.
+	private volatile IdRegistry idRegistry;
+	
+	//Receivers of the periodic snapshots taken while populating
+	private final List<LoadListener> listeners = new CopyOnWriteArrayList<LoadListener>();
+	
+	//Time between two snapshots in ms
+	private static final long REPORT_INTERVAL = 250;
+	
+	//One in this many documents is encoded to estimate the number of bytes written
+	private static final int SIZE_SAMPLE_INTERVAL = 16;
 	
 	public MongoLoad(MongoLoadConfig config, MongoDBObjectFactory factory) {
+		this(config, factory, null);
+	}
+	
+	/**
+	 * Creates a loader generating documents with a factory of the old interface, see LegacyFactoryProvider
+	 * 
+	 * @param config The loader config
+	 * @param factory The document factory
+	 * @param client The client to use or null to create one on connect
+	 */
+	public MongoLoad(MongoLoadConfig config, MongoDBObjectFactory factory, MongoClient client) {
+		this(config, new LegacyFactoryProvider(factory.getClass().getName(), factory), client);
+	}
+	
+	/**
+	 * Creates a loader using an existing client, so that several loaders share one connection pool.
+	 * The client is not closed by close(). The connection settings of the config are ignored.
+	 * 
+	 * @param config The loader config
+	 * @param provider The provider of the document generators, initialized by each run
+	 * @param client The client to use or null to create one on connect
+	 */
+	public MongoLoad(MongoLoadConfig config, DocumentFactoryProvider provider, MongoClient client) {
 		MongoLoadConfig.MongoLoadConfigValidator.validate(config);
 		this.config = config;
-		this.documentFactory = factory;
+		this.factoryProvider = provider;
+		this.client = client;
+		this.sharedClient = (client != null);
 	}
 	
 	/**
-	 * Helper method to connect to Mongo instance
+	 * Helper method to connect to Mongo instance. All calls share one client, and with it one connection pool, until close() is called.
 	 * 
 	 * @return The requested Mongo database once connection succeeds
 	 * @throws MongoException If a problem during communication with MongoDB occurs
 	 * @throws IllegalArgumentException If the port number or the provided DBs are invalid, null or empty
 	 * @throws UnknownHostException If the hostname specified for the Mongo instance cannot be resolved
 	 */
-	DB connect() throws UnknownHostException {
+	synchronized DB connect() throws UnknownHostException {
 
-		//Now connect the client
-		MongoClient client = new MongoClient(config.getHostname(), config.getPort());
+		//Now connect the client, unless already connected
+		if (client == null) {
+			client = MongoClientFactory.create(config);
+		}
 
 		DB db = null;
 		
@@ -59,10 +170,10 @@ public class MongoLoad {
 			if (aDB == null) {
 				throw new IllegalArgumentException ("Requested authentication DB does not exist");
 			}
-			//...and try to authenticate
+			//...and try to authenticate, unless a shared client already did
 			boolean auth = false;
 			try {
-				auth = aDB.authenticate(config.getUsername(), config.getPassword().toCharArray());
+				auth = aDB.isAuthenticated() || aDB.authenticate(config.getUsername(), config.getPassword().toCharArray());
 			}
 			catch (Exception e) {
 				//If an exception occurs during connect, throw it up as a RuntimeException
@@ -88,13 +199,22 @@ public class MongoLoad {
 
 	/**
 	 * Generates a number of invoices and stores them in Mongo DB provided.
-	 * The invoices collection used to store the invoices is dropped and re-created each time. 
+	 * The invoices collection used to store the invoices is dropped and re-created each time, unless an interrupted load is resumed. 
 	 * 
 	 */
 	public void createAndPopulate() throws UnknownHostException {
-		//Mark start time
-		long startTime = System.currentTimeMillis();
-
+		prepare();
+		populate();
+	}
+	
+	/**
+	 * Connects to the DB and retrieves the target collection. Unless disabled in the config, the collection is dropped
+	 * and, if a shard key is configured, sharded again.
+	 * Separate from populate() so that several loaders can be prepared first and then started together.
+	 * 
+	 * @throws UnknownHostException If the hostname specified for the Mongo instance cannot be resolved
+	 */
+	public void prepare() throws UnknownHostException {
 		DB db = null;
 		//Connect and retrieve the DB
 		db = connect();
@@ -106,23 +226,171 @@ public class MongoLoad {
 		logger.debug("Successfully connected to DB " + db.getName());
 		
 		//Get the invoices collection...
-		DBCollection invoices = db.getCollection(config.getCollection());
+		invoices = db.getCollection(config.getCollection());
 		logger.info("Retrieved " + config.getCollection() + " collection");
-		//...and drop it. This will always succeed, no need to guard against null
-		invoices.drop();
-		logger.debug("Collection emptied");
-		logger.info("Starting to generate " + config.getNumdocs() + " invoices.");
-		
-		//Generate invoices and save each to the collection
-		for (progress = 0; progress < config.getNumdocs(); progress++) {
-			DBObject invoice = documentFactory.generateDocument(config);
-			if (invoice == null) {
-				logger.error("Factory returned null object. This should never happen...");
-				throw new RuntimeException("Factory returned null object");
-			}
-			//using WriteConcern.ACKNOWLEDGED to ensure each document is at least accepted by the master
-			invoices.save(invoice, WriteConcern.ACKNOWLEDGED);
-			logger.debug("Saved an invoice to Mongo. Invoices remaining: " + (config.getNumdocs() - (progress+1)));
+		idRegistry = null;
+		if (MongoLoadConfig.ID_SEQUENCE.equals(config.getIdStrategy())) {
+			//Other loaders of this run may generate references to the documents
+			IdPools.register(db.getName(), config.getCollection(), new KeyRange(config.getFirstDoc(), config.getNumdocs()));
+		}
+		else if (config.isRegisterIds()) {
+			//Filled as documents are written
+			idRegistry = IdRegistry.forObjectIds();
+			IdPools.register(db.getName(), config.getCollection(), idRegistry);
+		}
+		if (config.isDrop() && !config.isResume()) {
+			//...and drop it. This will always succeed, no need to guard against null
+			invoices.drop();
+			logger.debug("Collection emptied");
+			if (!"".equals(config.getShardKey())) {
+				sharding = new ShardingSetup(invoices, config.getShardKey());
+				sharding.shard(config.getKeyspace(), config.getShardChunks(),
+						MongoLoadConfig.ID_SEQUENCE.equals(config.getIdStrategy()));
+			}
+		}
+	}
+	
+	/**
+	 * Generates the configured number of documents and saves them to the collection retrieved by prepare().
+	 * The documents are split into consecutive ranges, one for each worker thread.
+	 * If configured, the whole run including index builds is recorded by Flight Recorder.
+	 */
+	public void populate() {
+		if (invoices == null) {
+			throw new IllegalStateException("Loader has not been prepared");
+		}
+		LoadRecording recording = ("".equals(config.getRecordingFile()) ? null : LoadRecording.start(config.getRecordingFile(), config.getRecordingSettings()));
+		try {
+			//Parse samples before anything is timed
+			factoryProvider.init(config);
+			try {
+				populateCollection();
+				saveResult();
+				//After verification, updates and queries, so listeners waiting for the end of the run see all of it
+				publish(true);
+			}
+			finally {
+				factoryProvider.close();
+			}
+		}
+		finally {
+			if (recording != null) {
+				recording.stop();
+			}
+		}
+	}
+	
+	private void populateCollection() {
+		updateWorkload = null;
+		verifier = null;
+		//Before loading, so that invalid query definitions fail fast
+		queryWorkload = ("".equals(config.getQueries()) ? null : new QueryWorkload(this, invoices, config));
+		if (config.getMetricsPort() > 0) {
+			MetricsServer.getInstance(config.getMetricsPort()).register(this);
+		}
+		if (!config.isUpdateOnly()) {
+			insertDocuments();
+		}
+		//Before any updates change the documents
+		if (config.isVerify()) {
+			verifier = new LoadVerifier(this, invoices, config);
+			verifier.verify();
+			if (verifier.isClean()) {
+				logger.info(verifier.report());
+			}
+			else {
+				logger.error(verifier.report());
+			}
+		}
+		if (config.getUpdates() > 0) {
+			updateWorkload = new UpdateWorkload(invoices, config, idRegistry);
+			updateWorkload.run();
+			logger.info(updateWorkload.report());
+		}
+		if (queryWorkload != null) {
+			queryWorkload.run();
+			logger.info(queryWorkload.report());
+		}
+	}
+	
+	/**
+	 * Saves the result file of the run, if configured. A failure to save does not fail the run.
+	 */
+	private void saveResult() {
+		if ("".equals(config.getResultDir())) {
+			return;
+		}
+		try {
+			File file = RunResult.collect(this, invoices, config).save(new File(config.getResultDir()));
+			logger.info("Saved run result to " + file);
+		}
+		catch (IOException ioe) {
+			logger.error("Unable to save run result: " + ioe.getMessage());
+		}
+	}
+	
+	private void insertDocuments() {
+		//Secondary indexes to build before, during or after the load
+		indexBenchmark = ("".equals(config.getIndexes()) ? null : new IndexBenchmark(invoices, config.getIndexes(), config.getIndexPhase()));
+		if ((indexBenchmark != null) && MongoLoadConfig.INDEX_BEFORE.equals(config.getIndexPhase())) {
+			indexBenchmark.buildAll();
+		}
+		
+		//Mark start time
+		long startTime = System.currentTimeMillis();
+		statistics = new LoadStatistics(startTime);
+		limiter = (config.getRateLimit() > 0 ? new RateLimiter(config.getRateLimit()) : null);
+		progress.set(0);
+		failure = null;
+		retrier = new WriteRetrier(config);
+		if (MongoLoadConfig.WRITE_ASYNC.equals(config.getWriteMode())) {
+			writeEngine = new AsyncWriteEngine(invoices, config.getWriteConcern(), config.getIOThreads(), config.getMaxInFlight(), retrier, statistics);
+		}
+		logger.info("Starting to generate " + config.getNumdocs() + " invoices using " + config.getThreads() + " threads, writing "
+				+ (writeEngine != null ? "asynchronously" : "synchronously") + " in batches of " + config.getBatchSize() + ".");
+		int writers = (writeEngine != null ? config.getIOThreads() : config.getThreads());
+		if (writers > config.getConnectionsPerHost()) {
+			logger.warn(writers + " writers share a pool of only " + config.getConnectionsPerHost() + " connections per host");
+		}
+		
+		lagMonitor = null;
+		if (config.isLagMonitor()) {
+			ReplicationLagMonitor monitor = new ReplicationLagMonitor(client, invoices, config.getLagSample());
+			lagMonitor = (monitor.start() ? monitor : null);
+		}
+		
+		//Push snapshots to listeners until all workers have stopped
+		ScheduledExecutorService reporter = startReporter();
+		try {
+			load();
+		}
+		finally {
+			if (lagMonitor != null) {
+				lagMonitor.stop();
+			}
+			if (writeEngine != null) {
+				writeEngine.shutdown();
+				writeEngine = null;
+			}
+			if (sharding != null) {
+				sharding.finish();
+			}
+			statistics.finish();
+			if (reporter != null) {
+				reporter.shutdownNow();
+				try {
+					//Make sure the last snapshot of the insert phase is the last one listeners receive from it
+					reporter.awaitTermination(REPORT_INTERVAL, TimeUnit.MILLISECONDS);
+				}
+				catch (InterruptedException ie) {
+					Thread.currentThread().interrupt();
+				}
+				publish(false);
+			}
+		}
+		if (failure != null) {
+			logger.error("Load aborted: " + failure.getMessage());
+			throw (failure instanceof RuntimeException ? (RuntimeException)failure : new RuntimeException("Load aborted", failure));
 		}
 
 		//Check how many invoices actually made it into the collection
@@ -130,11 +398,470 @@ public class MongoLoad {
 		//Mark completion time
 		long endTime = System.currentTimeMillis();
 		logger.info("Generate run completed in " +(endTime-startTime)+ "ms. Invoice collection now holds " + storedInvoices + " invoice documents.");
-		if (storedInvoices != config.getNumdocs()) {
+		logger.info(statistics.report());
+		if (idRegistry != null) {
+			logger.info(String.format("Registered %d ids in %.1fMB", idRegistry.size(), idRegistry.getMemoryBytes() / 1048576.0));
+		}
+		if (lagMonitor != null) {
+			logger.info(lagMonitor.report(statistics.getThroughput()));
+		}
+		if (config.isDrop() && !config.isResume() && (storedInvoices != config.getNumdocs())) {
 			//This can happen if other concurrent connections modified the collection while we were running.
 			logger.warn("Number of invoices in collection does not match number of invoices generated!");
 		}
-		return;
+		if (sharding != null) {
+			logger.info(sharding.report());
+		}
+		
+		if (indexBenchmark != null) {
+			if (MongoLoadConfig.INDEX_AFTER.equals(config.getIndexPhase())) {
+				indexBenchmark.buildAll();
+			}
+			indexBenchmark.collectSizes();
+			logger.info(indexBenchmark.report(storedInvoices));
+		}
+	}
+	
+	/**
+	 * Runs the workers over the whole range, segment by segment in the incremental index phase.
+	 */
+	private void load() {
+		KeyRange range = new KeyRange(config.getFirstDoc(), config.getNumdocs());
+		if ((indexBenchmark != null) && MongoLoadConfig.INDEX_INCREMENTAL.equals(config.getIndexPhase())) {
+			//Load equal segments, adding one more index before each segment after the first. Each segment starts new threads,
+			//whose workers continue with the generator state of the worker of the same number, so unique strings stay unique.
+			int segments = indexBenchmark.size() + 1;
+			segmentStates = new RandomGenerator.State[config.getThreads()];
+			for (int s = 0; (s < segments) && (failure == null); s++) {
+				if (s > 0) {
+					indexBenchmark.build(s - 1);
+				}
+				LoadStatistics segment = new LoadStatistics(System.currentTimeMillis());
+				runWorkers(range.split(segments, s), segment);
+				segment.finish();
+				indexBenchmark.recordSegment(s, segment);
+			}
+			segmentStates = null;
+		}
+		else {
+			runWorkers(range, null);
+		}
+	}
+	
+	/**
+	 * Starts the thread publishing snapshots to the registered listeners
+	 * 
+	 * @return The reporting executor or null if nobody is listening
+	 */
+	private ScheduledExecutorService startReporter() {
+		if (listeners.isEmpty()) {
+			return null;
+		}
+		ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "MongoLoad reporter");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		reporter.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				publish(false);
+			}
+		}, REPORT_INTERVAL, REPORT_INTERVAL, TimeUnit.MILLISECONDS);
+		return reporter;
+	}
+	
+	private void publish(boolean finished) {
+		if (listeners.isEmpty()) {
+			return;
+		}
+		//Runs with updateonly insert nothing and have no statistics
+		LoadStatistics current = statistics;
+		LoadSnapshot snapshot = (current == null ? new LoadSnapshot(System.currentTimeMillis(), 0, 0, 0, 0, 0, 0, finished)
+				: current.snapshot(progress.get(), config.getNumdocs(), finished));
+		for (LoadListener listener : listeners) {
+			try {
+				listener.statisticsUpdated(snapshot);
+			}
+			catch (RuntimeException re) {
+				logger.error("Load listener failed: " + re.getMessage());
+			}
+		}
+	}
+	
+	/**
+	 * Starts one worker per thread on consecutive parts of a range and waits for all of them to finish.
+	 * 
+	 * @param range The documents to generate
+	 * @param segment Additional statistics to record into, may be null
+	 */
+	private void runWorkers(KeyRange range, LoadStatistics segment) {
+		Thread[] workers = new Thread[config.getThreads()];
+		for (int i = 0; i < workers.length; i++) {
+			workers[i] = new Thread(new LoadWorker(i, range.split(workers.length, i), segment), "MongoLoad worker " + i);
+			workers[i].start();
+		}
+		for (Thread worker : workers) {
+			try {
+				worker.join();
+			}
+			catch (InterruptedException ie) {
+				failure = ie;
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+	
+	/**
+	 * Creates a generator for a thread of this loader, to be closed by that thread once done. Only valid while populating.
+	 * 
+	 * @param worker The index of the thread, unique among the threads generating at the same time
+	 * @return The new generator
+	 */
+	public DocumentGenerator createGenerator(int worker) {
+		return factoryProvider.createGenerator(worker);
+	}
+	
+	/**
+	 * Receives the single document of one call of a generator
+	 */
+	private static final class GeneratedDocument implements DocumentOutput {
+		
+		DBObject document;
+		
+		@Override
+		public void accept(DBObject document) {
+			if (this.document != null) {
+				throw new IllegalStateException("Generator returned more than one document");
+			}
+			this.document = document;
+		}
+	}
+	
+	/**
+	 * Generates document number n using the calling thread's generator and RandomGenerator.
+	 * In a seeded run, the result only depends on the seed and n, so any document can be generated again at any time.
+	 * 
+	 * @param generator The generator of the calling thread
+	 * @param number The document number
+	 * @return The generated document, with _id set if ids are assigned by sequence
+	 */
+	public DBObject generateDocument(DocumentGenerator generator, long number) {
+		if (config.isSeeded()) {
+			RandomGenerator rand = RandomGenerator.getInstance();
+			rand.setUniqueStringsPerDocument(config.getUniquePerDoc());
+			rand.startDocument(config.getSeed(), number);
+		}
+		GeneratedDocument output = new GeneratedDocument();
+		generator.generate(number, output);
+		DBObject document = output.document;
+		if (document == null) {
+			logger.error("Generator returned no document. This should never happen...");
+			throw new RuntimeException("Generator returned no document");
+		}
+		if (MongoLoadConfig.ID_SEQUENCE.equals(config.getIdStrategy())) {
+			document.put("_id", number);
+		}
+		return document;
+	}
+	
+	/**
+	 * Generates and saves the documents of one range. Each worker uses its own RandomGenerator, drawing unique strings
+	 * from its own partition, and checkpoints its position independently of the other workers.
+	 * In async write mode, batches are handed to the write engine and accounted for once they complete.
+	 */
+	private class LoadWorker implements Runnable, AsyncWriteEngine.Completion {
+		
+		private final int worker;
+		private final KeyRange range;
+		private final File checkpointFile;
+		private final UniqueStringJournal journal;
+		private final LoadStatistics segment;
+		
+		//Documents submitted to the write engine but not yet completed. Also used as the monitor to wait for them.
+		private final AtomicInteger pending = new AtomicInteger();
+		
+		//Reused to measure the size of sampled documents
+		private final BasicBSONEncoder encoder = new BasicBSONEncoder();
+		private final BasicOutputBuffer buffer = new BasicOutputBuffer();
+		
+		LoadWorker(int worker, KeyRange range, LoadStatistics segment) {
+			this.worker = worker;
+			this.range = range;
+			this.segment = segment;
+			this.checkpointFile = ("".equals(config.getCheckpointFile()) ? null : LoadCheckpoint.fileFor(config.getCheckpointFile(), worker));
+			this.journal = (checkpointFile == null ? null : new UniqueStringJournal(UniqueStringJournal.fileFor(checkpointFile)));
+		}
+		
+		@Override
+		public void run() {
+			try {
+				DocumentGenerator generator = createGenerator(worker);
+				try {
+					load(generator);
+				}
+				finally {
+					generator.close();
+				}
+			}
+			catch (Throwable t) {
+				logger.error("Worker " + worker + " failed: " + t.getMessage());
+				statistics.recordError();
+				failure = t;
+			}
+		}
+		
+		private int sizeOf(DBObject document) {
+			buffer.seekStart();
+			encoder.set(buffer);
+			try {
+				return encoder.putObject(document);
+			}
+			finally {
+				encoder.done();
+			}
+		}
+		
+		/**
+		 * Writes a batch, either directly or through the write engine
+		 */
+		private void write(final List<DBObject> batch) throws InterruptedException {
+			if (limiter != null) {
+				limiter.acquire(batch.size());
+			}
+			if (lagMonitor != null) {
+				lagMonitor.stamp(batch);
+			}
+			if (writeEngine != null) {
+				pending.addAndGet(batch.size());
+				writeEngine.submit(batch, this);
+				return;
+			}
+			BatchWrittenEvent written = new BatchWrittenEvent();
+			written.begin();
+			long writeStart = System.nanoTime();
+			boolean succeeded = false;
+			try {
+				//using the configured write concern, WriteConcern.ACKNOWLEDGED by default to ensure each document is at least accepted by the master
+				if (batch.size() == 1) {
+					retrier.execute(new WriteRetrier.Write<Void>() {
+						@Override
+						public Void attempt(boolean retry) {
+							//An upsert by _id once the driver has set it, so retries cannot fail with a duplicate key
+							invoices.save(batch.get(0), config.getWriteConcern());
+							return null;
+						}
+
+						@Override
+						public boolean isApplied() {
+							return false;
+						}
+					}, statistics);
+				}
+				else {
+					retrier.execute(new WriteRetrier.BatchInsert(invoices, batch, config.getWriteConcern()), statistics);
+				}
+				succeeded = true;
+			}
+			catch (MongoException me) {
+				writeFailed(batch, me);
+			}
+			long latency = (System.nanoTime() - writeStart) / 1000;
+			written.end();
+			if (written.shouldCommit()) {
+				written.collection = invoices.getFullName();
+				written.documents = batch.size();
+				written.succeeded = succeeded;
+				written.commit();
+			}
+			if (succeeded) {
+				recordWrite(batch, latency);
+			}
+		}
+		
+		/**
+		 * Counts a batch that failed for good and, unless errors are skipped, aborts the load
+		 */
+		private void writeFailed(List<DBObject> batch, Throwable t) {
+			WriteError error = WriteError.classify(t);
+			statistics.recordError(error.getLabel());
+			if (config.isSkipErrors()) {
+				logger.warn("Worker " + worker + " skipped a batch of " + batch.size() + " documents after " + error.getLabel() + " error: " + t.getMessage());
+			}
+			else {
+				logger.error("Worker " + worker + " failed to write a batch: " + t.getMessage());
+				failure = t;
+			}
+		}
+		
+		private void recordWrite(List<DBObject> batch, long latency) {
+			int documents = batch.size();
+			if (idRegistry != null) {
+				//The driver has set the ids of the documents
+				for (DBObject document : batch) {
+					if (document.get("_id") instanceof ObjectId) {
+						idRegistry.add((ObjectId)document.get("_id"));
+					}
+				}
+			}
+			statistics.recordInsert(latency, documents);
+			if (segment != null) {
+				segment.recordInsert(latency, documents);
+			}
+			int done = progress.addAndGet(documents);
+			if (logger.isDebugEnabled()) {
+				logger.debug("Saved " + documents + " invoices to Mongo. Invoices remaining: " + (config.getNumdocs() - done));
+			}
+		}
+		
+		@Override
+		public void completed(List<DBObject> batch, long latencyMicros) {
+			recordWrite(batch, latencyMicros);
+			release(batch.size());
+		}
+		
+		@Override
+		public void failed(List<DBObject> batch, Throwable t) {
+			writeFailed(batch, t);
+			release(batch.size());
+		}
+		
+		private void release(int documents) {
+			synchronized (pending) {
+				pending.addAndGet(-documents);
+				pending.notifyAll();
+			}
+		}
+		
+		/**
+		 * Waits until all batches this worker submitted to the write engine have completed
+		 */
+		private void awaitPending() throws InterruptedException {
+			synchronized (pending) {
+				while (pending.get() > 0) {
+					pending.wait();
+				}
+			}
+		}
+		
+		private void checkpoint(RandomGenerator rand, long next) throws IOException {
+			//The journal is written first, a crash in between leaves strings beyond the old checkpoint, which resuming drops
+			long journalLength = journal.flush();
+			new LoadCheckpoint(worker, config.getThreads(), range, next, rand.getStateWithoutStrings(), journalLength).save(checkpointFile);
+			logger.debug("Worker " + worker + " checkpointed at document " + next);
+		}
+		
+		private void load(DocumentGenerator generator) throws IOException, InterruptedException {
+			int threads = config.getThreads();
+			RandomGenerator rand = RandomGenerator.getInstance();
+			//Keep unique strings of this worker apart from those of other workers and loaders sharing the collection
+			if (!config.isSeeded()) {
+				rand.setPartition(config.getPartition() * threads + worker, config.getPartitions() * threads);
+			}
+			if ((segmentStates != null) && (segmentStates[worker] != null)) {
+				rand.restoreState(segmentStates[worker]);
+			}
+			
+			long next = range.getStart();
+			LoadCheckpoint checkpoint = (config.isResume() ? LoadCheckpoint.load(checkpointFile) : null);
+			if (config.isResume()) {
+				if (checkpoint != null) {
+					if ((checkpoint.getWorkers() != threads) || (checkpoint.getRange().getStart() != range.getStart()) || (checkpoint.getRange().getCount() != range.getCount())) {
+						throw new IllegalStateException("Checkpoint " + checkpointFile + " was written by a run with a different configuration");
+					}
+					rand.restoreState(checkpoint.getGeneratorState());
+					journal.replay(checkpoint.getJournalLength(), rand);
+					next = checkpoint.getNext();
+					progress.addAndGet((int)checkpoint.getCompleted());
+				}
+				//Documents saved after the checkpoint will be generated again, so remove them first
+				invoices.remove(new BasicDBObject("_id", new BasicDBObject("$gte", next).append("$lt", range.getEnd())), WriteConcern.ACKNOWLEDGED);
+				logger.info("Worker " + worker + " resuming at document " + next + " of " + range);
+			}
+			if (checkpointFile != null) {
+				if (checkpoint == null) {
+					journal.reset();
+				}
+				rand.setJournal(journal);
+				checkpoint(rand, next);
+			}
+			
+			//Generate invoices and save them to the collection in batches
+			int batchSize = config.getBatchSize();
+			long collisions = rand.getRetryCount();
+			List<DBObject> batch = new ArrayList<DBObject>(batchSize);
+			try {
+				for (; (next < range.getEnd()) && (failure == null); next++) {
+					DocumentGeneratedEvent generated = new DocumentGeneratedEvent();
+					generated.begin();
+					long generateStart = System.nanoTime();
+					DBObject invoice = generateDocument(generator, next);
+					statistics.recordGeneration(System.nanoTime() - generateStart);
+					if ((lagMonitor != null) && lagMonitor.isSampled(next)) {
+						lagMonitor.mark(invoice);
+					}
+					generated.end();
+					//Documents are only encoded for the size estimate, or if the event is recorded
+					boolean sampled = (next % SIZE_SAMPLE_INTERVAL == 0);
+					if (sampled || generated.shouldCommit()) {
+						int size = sizeOf(invoice);
+						if (sampled) {
+							statistics.recordDocumentSize(size);
+						}
+						if (generated.shouldCommit()) {
+							generated.documentNumber = next;
+							generated.factory = factoryProvider.getName();
+							generated.size = size;
+							generated.commit();
+						}
+					}
+					batch.add(invoice);
+					boolean checkpointDue = (checkpointFile != null) && ((next + 1 - range.getStart()) % config.getCheckpointInterval() == 0);
+					if ((batch.size() == batchSize) || checkpointDue || (next + 1 == range.getEnd())) {
+						write(batch);
+						batch = new ArrayList<DBObject>(batchSize);
+						//Collisions are counted by the generator, pass them on once per batch
+						long generatorCollisions = rand.getRetryCount();
+						if (generatorCollisions != collisions) {
+							statistics.recordCollisions(generatorCollisions - collisions);
+							collisions = generatorCollisions;
+						}
+					}
+					if (checkpointDue) {
+						//A checkpoint must not cover documents that are still in flight
+						awaitPending();
+						if (failure == null) {
+							checkpoint(rand, next + 1);
+						}
+					}
+				}
+			}
+			finally {
+				awaitPending();
+				rand.setJournal(null);
+			}
+			if ((checkpointFile != null) && (failure == null)) {
+				checkpoint(rand, next);
+			}
+			if (segmentStates != null) {
+				//Read by the worker of the next segment, which is started after this thread has been joined
+				segmentStates[worker] = rand.getState();
+			}
+		}
+	}
+	
+	/**
+	 * Closes the client and its connections. A later connect opens a new one. A shared client is left open for its owner to close.
+	 */
+	public synchronized void close() {
+		if ((client != null) && !sharedClient) {
+			client.close();
+			client = null;
+			logger.debug("Client closed");
+		}
 	}
 	
 	/**
@@ -174,7 +901,112 @@ public class MongoLoad {
 	 * @return The completed percentage
 	 */
 	public int getProgressPercent() {
-		return Math.round((((float)this.progress/(float)this.config.getNumdocs())*100));
+		return Math.round((((float)this.progress.get()/(float)this.config.getNumdocs())*100));
+	}
+	
+	/**
+	 * Registers a listener for snapshots of the running load. Snapshots are pushed from a separate reporting thread
+	 * a few times per second, once more after the last worker has stopped, and a finished one when populate() completes
+	 * after verification, updates and queries. A run that fails sends no finished snapshot.
+	 * 
+	 * @param listener The listener to add
+	 */
+	public void addLoadListener(LoadListener listener) {
+		listeners.add(listener);
+	}
+	
+	public void removeLoadListener(LoadListener listener) {
+		listeners.remove(listener);
+	}
+	
+	/**
+	 * Get the index measurements of the current or last run.
+	 * 
+	 * @return The index benchmark or null if no secondary indexes are configured
+	 */
+	public IndexBenchmark getIndexBenchmark() {
+		return indexBenchmark;
+	}
+	
+	/**
+	 * Get the sharding of the collection.
+	 * 
+	 * @return The sharding setup or null if this loader did not shard the collection
+	 */
+	public ShardingSetup getShardingSetup() {
+		return sharding;
+	}
+	
+	/**
+	 * @return The database and collection loaded into, separated by a dot
+	 */
+	public String getNamespace() {
+		return config.getUserDB() + "." + config.getCollection();
+	}
+	
+	/**
+	 * @return The number of documents submitted for writing but not yet written, always 0 when writing synchronously
+	 */
+	public int getWritesInFlight() {
+		AsyncWriteEngine engine = writeEngine;
+		return (engine == null ? 0 : engine.getInFlight());
+	}
+	
+	/**
+	 * Get the statistics of the current or last run.
+	 * 
+	 * @return The statistics or null if populate() has not been called yet
+	 */
+	public LoadStatistics getStatistics() {
+		return statistics;
+	}
+	
+	/**
+	 * Get the verification of the current or last run.
+	 * 
+	 * @return The verifier or null if verification is not configured or has not run yet
+	 */
+	public LoadVerifier getVerifier() {
+		return verifier;
+	}
+	
+	/**
+	 * Get the update statistics of the current or last run.
+	 * 
+	 * @return The statistics or null if no updates are configured or they have not started yet
+	 */
+	public GrowthStatistics getUpdateStatistics() {
+		UpdateWorkload workload = updateWorkload;
+		return (workload == null ? null : workload.getStatistics());
+	}
+	
+	/**
+	 * Get the ids of the documents written so far.
+	 * 
+	 * @return The ids or null if ids are assigned by sequence or not registered
+	 */
+	public IdRegistry getIdRegistry() {
+		return idRegistry;
+	}
+	
+	/**
+	 * Get the statistics of each query of the current or last run.
+	 * 
+	 * @return The statistics or null if no queries are configured or they have not started yet
+	 */
+	public List<QueryStatistics> getQueryStatistics() {
+		QueryWorkload workload = queryWorkload;
+		return (workload == null ? null : workload.getStatistics());
+	}
+	
+	/**
+	 * Get the replication lag of each secondary in the current or last run.
+	 * 
+	 * @return The lag by secondary or null if not measured
+	 */
+	public Map<String, LatencyHistogram> getReplicationLag() {
+		ReplicationLagMonitor monitor = lagMonitor;
+		return (monitor == null ? null : monitor.getLag());
 	}
 	
 
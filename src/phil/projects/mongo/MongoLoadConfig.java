@@ -4,6 +4,9 @@ import java.util.Properties;
 
 import org.apache.log4j.Logger;
 
+import com.mongodb.ReadPreference;
+import com.mongodb.WriteConcern;
+
 /**
  * Config object for loaders. It stores the connection details for the Mongo instance and the number of documents to generate.
  * 
@@ -32,6 +35,65 @@ public class MongoLoadConfig {
 		private String sampleEncoding;
 		private String factoryClass;
 		private String collection;
+		private String idStrategy;
+		private long firstDoc;
+		private long keyspaceFirst = -1;
+		private long keyspaceDocs = -1;
+		private int partition;
+		private int partitions = 1;
+		private int rateLimit;
+		private boolean drop = true;
+		private int threads = 1;
+		private String checkpointFile;
+		private int checkpointInterval = DEFAULT_CHECKPOINT_INTERVAL;
+		private boolean resume;
+		private Long seed;
+		private int uniquePerDoc = 1;
+		private String indexes;
+		private String indexPhase;
+		private String writeMode;
+		private int batchSize = 1;
+		private int ioThreads = DEFAULT_IO_THREADS;
+		private int maxInFlight = DEFAULT_MAX_IN_FLIGHT;
+		private String uri;
+		private String hosts;
+		private int connectionsPerHost = DEFAULT_CONNECTIONS_PER_HOST;
+		private int threadsAllowedToBlock = DEFAULT_THREADS_ALLOWED_TO_BLOCK;
+		private int connectTimeout = DEFAULT_CONNECT_TIMEOUT;
+		private int socketTimeout;
+		private int maxWaitTime = DEFAULT_MAX_WAIT_TIME;
+		private String readPreference;
+		private String compression;
+		private String shardKey;
+		private int shardChunks;
+		private String recordingFile;
+		private String recordingSettings;
+		private int metricsPort;
+		private String writeConcern;
+		private int updates;
+		private String updateDistribution;
+		private double updateTheta = DEFAULT_UPDATE_THETA;
+		private int updateItems = 1;
+		private int updateThreads;
+		private boolean updateOnly;
+		private boolean verify;
+		private int verifyThreads;
+		private int maxRetries;
+		private long retryBackoff = DEFAULT_RETRY_BACKOFF;
+		private long maxRetryBackoff = DEFAULT_MAX_RETRY_BACKOFF;
+		private boolean skipErrors;
+		private String invoiceItems;
+		private String factory;
+		private String queries;
+		private int queryThreads;
+		private int queryDuration = DEFAULT_QUERY_DURATION;
+		private String queryDistribution;
+		private double queryTheta = DEFAULT_UPDATE_THETA;
+		private boolean queryExplain = true;
+		private boolean lagMonitor;
+		private int lagSample = DEFAULT_LAG_SAMPLE;
+		private String resultDir = DEFAULT_RESULT_DIR;
+		private boolean registerIds = true;
 		
 		public MongoLoadConfigBuilder(String userDB, int numdocs) {
 			this.userDB = userDB;
@@ -83,6 +145,222 @@ public class MongoLoadConfig {
 			return this;
 		}
 		
+		public MongoLoadConfigBuilder withIdStrategy(String strategy) {
+			this.idStrategy = strategy;
+			return this;
+		}
+		
+		public MongoLoadConfigBuilder withFirstDoc(long firstDoc) {
+			this.firstDoc = firstDoc;
+			return this;
+		}
+		
+		public MongoLoadConfigBuilder withKeyspace(long first, long docs) {
+			this.keyspaceFirst = first;
+			this.keyspaceDocs = docs;
+			return this;
+		}
+		
+		public MongoLoadConfigBuilder withPartition(int partition, int partitions) {
+			this.partition = partition;
+			this.partitions = partitions;
+			return this;
+		}
+		
+		public MongoLoadConfigBuilder withRateLimit(int docsPerSecond) {
+			this.rateLimit = docsPerSecond;
+			return this;
+		}
+		
+		public MongoLoadConfigBuilder withDrop(boolean drop) {
+			this.drop = drop;
+			return this;
+		}
+		
+		public MongoLoadConfigBuilder withThreads(int threads) {
+			this.threads = threads;
+			return this;
+		}
+		
+		public MongoLoadConfigBuilder withCheckpoint(String file, int interval) {
+			this.checkpointFile = file;
+			this.checkpointInterval = interval;
+			return this;
+		}
+		
+		public MongoLoadConfigBuilder withResume(boolean resume) {
+			this.resume = resume;
+			return this;
+		}
+		
+		public MongoLoadConfigBuilder withSeed(long seed) {
+			this.seed = Long.valueOf(seed);
+			return this;
+		}
+		
+		public MongoLoadConfigBuilder withUniquePerDoc(int count) {
+			this.uniquePerDoc = count;
+			return this;
+		}
+		
+		public MongoLoadConfigBuilder withIndexes(String indexes, String phase) {
+			this.indexes = indexes;
+			this.indexPhase = phase;
+			return this;
+		}
+		
+		public MongoLoadConfigBuilder withWriteMode(String mode) {
+			this.writeMode = mode;
+			return this;
+		}
+		
+		public MongoLoadConfigBuilder withBatchSize(int batchSize) {
+			this.batchSize = batchSize;
+			return this;
+		}
+		
+		public MongoLoadConfigBuilder withAsyncWrites(int ioThreads, int maxInFlight) {
+			this.writeMode = WRITE_ASYNC;
+			this.ioThreads = ioThreads;
+			this.maxInFlight = maxInFlight;
+			return this;
+		}
+		
+		public MongoLoadConfigBuilder withUri(String uri) {
+			this.uri = uri;
+			return this;
+		}
+		
+		public MongoLoadConfigBuilder withHosts(String hosts) {
+			this.hosts = hosts;
+			return this;
+		}
+		
+		public MongoLoadConfigBuilder withConnectionPool(int connectionsPerHost, int threadsAllowedToBlock, int maxWaitTime) {
+			this.connectionsPerHost = connectionsPerHost;
+			this.threadsAllowedToBlock = threadsAllowedToBlock;
+			this.maxWaitTime = maxWaitTime;
+			return this;
+		}
+		
+		public MongoLoadConfigBuilder withTimeouts(int connectTimeout, int socketTimeout) {
+			this.connectTimeout = connectTimeout;
+			this.socketTimeout = socketTimeout;
+			return this;
+		}
+		
+		public MongoLoadConfigBuilder withReadPreference(String readPreference) {
+			this.readPreference = readPreference;
+			return this;
+		}
+		
+		public MongoLoadConfigBuilder withCompression(String compression) {
+			this.compression = compression;
+			return this;
+		}
+		
+		public MongoLoadConfigBuilder withSharding(String shardKey, int chunks) {
+			this.shardKey = shardKey;
+			this.shardChunks = chunks;
+			return this;
+		}
+		
+		public MongoLoadConfigBuilder withRecording(String file, String settings) {
+			this.recordingFile = file;
+			this.recordingSettings = settings;
+			return this;
+		}
+		
+		public MongoLoadConfigBuilder withMetricsPort(int port) {
+			this.metricsPort = port;
+			return this;
+		}
+		
+		public MongoLoadConfigBuilder withWriteConcern(String writeConcern) {
+			this.writeConcern = writeConcern;
+			return this;
+		}
+		
+		public MongoLoadConfigBuilder withUpdates(int updates, String distribution, double theta, int items) {
+			this.updates = updates;
+			this.updateDistribution = distribution;
+			this.updateTheta = theta;
+			this.updateItems = items;
+			return this;
+		}
+		
+		public MongoLoadConfigBuilder withUpdateThreads(int threads) {
+			this.updateThreads = threads;
+			return this;
+		}
+		
+		public MongoLoadConfigBuilder withUpdateOnly(boolean updateOnly) {
+			this.updateOnly = updateOnly;
+			return this;
+		}
+		
+		public MongoLoadConfigBuilder withVerify(boolean verify, int threads) {
+			this.verify = verify;
+			this.verifyThreads = threads;
+			return this;
+		}
+		
+		public MongoLoadConfigBuilder withRetries(int maxRetries, long backoff, long maxBackoff) {
+			this.maxRetries = maxRetries;
+			this.retryBackoff = backoff;
+			this.maxRetryBackoff = maxBackoff;
+			return this;
+		}
+		
+		public MongoLoadConfigBuilder withSkipErrors(boolean skipErrors) {
+			this.skipErrors = skipErrors;
+			return this;
+		}
+		
+		public MongoLoadConfigBuilder withInvoiceItems(String distribution) {
+			this.invoiceItems = distribution;
+			return this;
+		}
+		
+		public MongoLoadConfigBuilder withFactory(String name) {
+			this.factory = name;
+			return this;
+		}
+		
+		public MongoLoadConfigBuilder withQueries(String queryFile, int threads, int durationSeconds) {
+			this.queries = queryFile;
+			this.queryThreads = threads;
+			this.queryDuration = durationSeconds;
+			return this;
+		}
+		
+		public MongoLoadConfigBuilder withQueryDistribution(String distribution, double theta) {
+			this.queryDistribution = distribution;
+			this.queryTheta = theta;
+			return this;
+		}
+		
+		public MongoLoadConfigBuilder withQueryExplain(boolean explain) {
+			this.queryExplain = explain;
+			return this;
+		}
+		
+		public MongoLoadConfigBuilder withLagMonitor(boolean monitor, int sample) {
+			this.lagMonitor = monitor;
+			this.lagSample = sample;
+			return this;
+		}
+		
+		public MongoLoadConfigBuilder withResultDir(String directory) {
+			this.resultDir = directory;
+			return this;
+		}
+		
+		public MongoLoadConfigBuilder withRegisterIds(boolean register) {
+			this.registerIds = register;
+			return this;
+		}
+		
 		public MongoLoadConfig build() {
 			return new MongoLoadConfig(this);
 		}
@@ -94,7 +372,9 @@ public class MongoLoadConfig {
 		private static Logger logger = Logger.getLogger(MongoLoadConfigValidator.class);
 		
 		public static void validate(MongoLoadConfig config) {
-			if ((config.getPort() == 0) || (config.getPort() > 65535)) {
+			//A URI or a seed list may specify all ports themselves
+			boolean portRequired = "".equals(config.getUri()) && "".equals(config.getHosts());
+			if ((portRequired && (config.getPort() == 0)) || (config.getPort() < 0) || (config.getPort() > 65535)) {
 				logger.error("Port invalid " + config.getPort());
 				throw new IllegalArgumentException("Configured port number is invalid");
 			}
@@ -107,10 +387,188 @@ public class MongoLoadConfig {
 			if ("".equals(config.getCollection())) {
 				throw new IllegalArgumentException("Collection name is missing");
 			}
+			if (!ID_OBJECTID.equals(config.getIdStrategy()) && !ID_SEQUENCE.equals(config.getIdStrategy())) {
+				throw new IllegalArgumentException("Unknown id strategy " + config.getIdStrategy());
+			}
+			if (config.getFirstDoc() < 0) {
+				throw new IllegalArgumentException("First document number must not be negative");
+			}
+			KeyRange keyspace = config.getKeyspace();
+			if ((config.getFirstDoc() < keyspace.getStart()) || (config.getFirstDoc() + config.getNumdocs() > keyspace.getEnd())) {
+				throw new IllegalArgumentException("Documents [" + config.getFirstDoc() + ", " + (config.getFirstDoc() + config.getNumdocs())
+						+ ") are outside of the keyspace " + keyspace);
+			}
+			if ((config.getPartitions() < 1) || (config.getPartition() < 0) || (config.getPartition() >= config.getPartitions())) {
+				throw new IllegalArgumentException("Partition " + config.getPartition() + " of " + config.getPartitions() + " is invalid");
+			}
+			if (config.getRateLimit() < 0) {
+				throw new IllegalArgumentException("Rate limit must not be negative");
+			}
+			if (config.getThreads() < 1) {
+				throw new IllegalArgumentException("At least one thread required");
+			}
+			if (config.getUniquePerDoc() < 1) {
+				throw new IllegalArgumentException("Unique strings per document must be at least 1");
+			}
+			//Seeded runs derive unique strings from document numbers and do not need partitions
+			if (!config.isSeeded() && (config.getThreads() * config.getPartitions() > RandomGenerator.allowedCharacters.length())) {
+				throw new IllegalArgumentException("Unique strings cannot be split between more than " + RandomGenerator.allowedCharacters.length() + " workers");
+			}
+			if (!"".equals(config.getCheckpointFile())) {
+				if (!ID_SEQUENCE.equals(config.getIdStrategy())) {
+					//Resuming replaces documents written after the last checkpoint, which requires predictable ids
+					throw new IllegalArgumentException("Checkpointing requires id strategy " + ID_SEQUENCE);
+				}
+				if (config.getCheckpointInterval() < 1) {
+					throw new IllegalArgumentException("Checkpoint interval must be at least 1");
+				}
+			}
+			if (config.isResume() && "".equals(config.getCheckpointFile())) {
+				throw new IllegalArgumentException("Resume requested but no checkpoint file configured");
+			}
+			if (!INDEX_BEFORE.equals(config.getIndexPhase()) && !INDEX_AFTER.equals(config.getIndexPhase()) && !INDEX_INCREMENTAL.equals(config.getIndexPhase())) {
+				throw new IllegalArgumentException("Unknown index phase " + config.getIndexPhase());
+			}
+			if (INDEX_INCREMENTAL.equals(config.getIndexPhase()) && !"".equals(config.getIndexes()) && !"".equals(config.getCheckpointFile())) {
+				throw new IllegalArgumentException("Incremental index builds cannot be combined with checkpointing");
+			}
+			if (!WRITE_SYNC.equals(config.getWriteMode()) && !WRITE_ASYNC.equals(config.getWriteMode())) {
+				throw new IllegalArgumentException("Unknown write mode " + config.getWriteMode());
+			}
+			if (config.getBatchSize() < 1) {
+				throw new IllegalArgumentException("Batch size must be at least 1");
+			}
+			if (WRITE_ASYNC.equals(config.getWriteMode()) && ((config.getIOThreads() < 1) || (config.getMaxInFlight() < 1))) {
+				throw new IllegalArgumentException("Async writes require at least one I/O thread and one document in flight");
+			}
+			if ((config.getConnectionsPerHost() < 1) || (config.getThreadsAllowedToBlock() < 1)) {
+				throw new IllegalArgumentException("Connections per host and threads allowed to block must be at least 1");
+			}
+			if ((config.getConnectTimeout() < 0) || (config.getSocketTimeout() < 0) || (config.getMaxWaitTime() < 0)) {
+				throw new IllegalArgumentException("Timeouts must not be negative");
+			}
+			if (!"".equals(config.getReadPreference())) {
+				try {
+					ReadPreference.valueOf(config.getReadPreference());
+				}
+				catch (IllegalArgumentException iae) {
+					throw new IllegalArgumentException("Unknown read preference " + config.getReadPreference(), iae);
+				}
+			}
+			if (!"".equals(config.getCompression()) && !"none".equals(config.getCompression())) {
+				//Wire compression was only added to later drivers and servers
+				throw new IllegalArgumentException("Compression " + config.getCompression() + " is not supported by the MongoDB driver in use");
+			}
+			if (!"".equals(config.getShardKey())) {
+				ShardingSetup.parseKey(config.getShardKey());
+			}
+			if (config.getShardChunks() < 0) {
+				throw new IllegalArgumentException("Number of chunks must not be negative");
+			}
+			if ((config.getMetricsPort() < 0) || (config.getMetricsPort() > 65535)) {
+				throw new IllegalArgumentException("Metrics port " + config.getMetricsPort() + " is invalid");
+			}
+			//Throws for unknown write concerns
+			config.getWriteConcern();
+			if (config.getUpdates() < 0) {
+				throw new IllegalArgumentException("Number of updates must not be negative");
+			}
+			if (config.isUpdateOnly() && !ID_SEQUENCE.equals(config.getIdStrategy())) {
+				//Nothing is inserted, so no ids are registered to pick documents from
+				throw new IllegalArgumentException("Update-only runs require id strategy " + ID_SEQUENCE);
+			}
+			if (config.getUpdates() > 0) {
+				if (!ID_SEQUENCE.equals(config.getIdStrategy()) && !config.isRegisterIds()) {
+					//Updates pick existing documents by number, or from the ids registered while inserting them
+					throw new IllegalArgumentException("Updates require id strategy " + ID_SEQUENCE + " or the ids of the documents inserted in the same run");
+				}
+				if (!KeyDistribution.UNIFORM.equals(config.getUpdateDistribution()) && !KeyDistribution.ZIPFIAN.equals(config.getUpdateDistribution())
+						&& !KeyDistribution.LATEST.equals(config.getUpdateDistribution())) {
+					throw new IllegalArgumentException("Unknown update distribution " + config.getUpdateDistribution());
+				}
+				if ((config.getUpdateTheta() <= 0) || (config.getUpdateTheta() >= 1)) {
+					throw new IllegalArgumentException("Update theta must be between 0 and 1 exclusive");
+				}
+				if ((config.getUpdateItems() < 1) || (config.getUpdateThreads() < 1)) {
+					throw new IllegalArgumentException("Updates require at least one item and one thread");
+				}
+			}
+			if (!"".equals(config.getQueries())) {
+				if (!KeyDistribution.UNIFORM.equals(config.getQueryDistribution()) && !KeyDistribution.ZIPFIAN.equals(config.getQueryDistribution())
+						&& !KeyDistribution.LATEST.equals(config.getQueryDistribution())) {
+					throw new IllegalArgumentException("Unknown query distribution " + config.getQueryDistribution());
+				}
+				if ((config.getQueryTheta() <= 0) || (config.getQueryTheta() >= 1)) {
+					throw new IllegalArgumentException("Query theta must be between 0 and 1 exclusive");
+				}
+				if ((config.getQueryThreads() < 1) || (config.getQueryDuration() < 1)) {
+					throw new IllegalArgumentException("Queries require at least one thread and a duration of at least one second");
+				}
+			}
+			if (config.isUpdateOnly() && (config.getUpdates() == 0)) {
+				throw new IllegalArgumentException("Update-only run requested but no updates configured");
+			}
+			if (config.isVerify()) {
+				if (!config.isSeeded() || !ID_SEQUENCE.equals(config.getIdStrategy())) {
+					//Only then can every document be generated again
+					throw new IllegalArgumentException("Verification requires a seed and id strategy " + ID_SEQUENCE);
+				}
+				if (config.getVerifyThreads() < 1) {
+					throw new IllegalArgumentException("At least one verification thread required");
+				}
+			}
+			if ((config.getMaxRetries() < 0) || (config.getRetryBackoff() < 0) || (config.getMaxRetryBackoff() < config.getRetryBackoff())) {
+				throw new IllegalArgumentException("Retries and backoff must not be negative, and the maximum backoff not below the initial one");
+			}
+			if (config.isLagMonitor() && (config.getLagSample() < 1)) {
+				throw new IllegalArgumentException("Lag sample interval must be at least 1");
+			}
+			//Throws for invalid distributions
+			FastInvoiceFactory.ItemCounts.parse(config.getInvoiceItems());
 			//TODO: Add validation for sample path
 		}
 	}
 	
+	//Valid values for the idstrategy property
+	public static final String ID_OBJECTID = "objectid";
+	public static final String ID_SEQUENCE = "sequence";
+	
+	//Valid values for the indexphase property
+	public static final String INDEX_BEFORE = "before";
+	public static final String INDEX_AFTER = "after";
+	public static final String INDEX_INCREMENTAL = "incremental";
+	
+	//Valid values for the writemode property
+	public static final String WRITE_SYNC = "sync";
+	public static final String WRITE_ASYNC = "async";
+	
+	//Documents per worker between two checkpoints unless configured otherwise
+	public static final int DEFAULT_CHECKPOINT_INTERVAL = 10000;
+	
+	//Defaults for the async write engine
+	public static final int DEFAULT_IO_THREADS = 4;
+	public static final int DEFAULT_MAX_IN_FLIGHT = 1000;
+	
+	//Client defaults, the same as the driver's own
+	public static final int DEFAULT_CONNECTIONS_PER_HOST = 100;
+	public static final int DEFAULT_THREADS_ALLOWED_TO_BLOCK = 5;
+	public static final int DEFAULT_CONNECT_TIMEOUT = 10000;
+	public static final int DEFAULT_MAX_WAIT_TIME = 120000;
+	
+	//Skew of the zipfian update distributions unless configured otherwise
+	public static final double DEFAULT_UPDATE_THETA = 0.99;
+	public static final int DEFAULT_QUERY_DURATION = 60;
+	
+	//Every how many documents the replication lag is sampled, unless configured otherwise
+	public static final int DEFAULT_LAG_SAMPLE = 100;
+	
+	//Directory the result file of each run is saved to unless configured otherwise
+	public static final String DEFAULT_RESULT_DIR = "results";
+	
+	//Backoff before the first retry of a write and the limit it doubles up to, in ms
+	public static final long DEFAULT_RETRY_BACKOFF = 100;
+	public static final long DEFAULT_MAX_RETRY_BACKOFF = 5000;
+	
 	//Config items
 	private String hostname = "localhost";
 	private int port;
@@ -123,6 +581,65 @@ public class MongoLoadConfig {
 	private String sampleEncoding;
 	private String factoryClass;
 	private String collection;
+	private String idStrategy;
+	private long firstDoc;
+	private long keyspaceFirst = -1;
+	private long keyspaceDocs = -1;
+	private int partition;
+	private int partitions = 1;
+	private int rateLimit;
+	private boolean drop = true;
+	private int threads = 1;
+	private String checkpointFile;
+	private int checkpointInterval = DEFAULT_CHECKPOINT_INTERVAL;
+	private boolean resume;
+	private Long seed;
+	private int uniquePerDoc = 1;
+	private String indexes;
+	private String indexPhase;
+	private String writeMode;
+	private int batchSize = 1;
+	private int ioThreads = DEFAULT_IO_THREADS;
+	private int maxInFlight = DEFAULT_MAX_IN_FLIGHT;
+	private String uri;
+	private String hosts;
+	private int connectionsPerHost = DEFAULT_CONNECTIONS_PER_HOST;
+	private int threadsAllowedToBlock = DEFAULT_THREADS_ALLOWED_TO_BLOCK;
+	private int connectTimeout = DEFAULT_CONNECT_TIMEOUT;
+	private int socketTimeout;
+	private int maxWaitTime = DEFAULT_MAX_WAIT_TIME;
+	private String readPreference;
+	private String compression;
+	private String shardKey;
+	private int shardChunks;
+	private String recordingFile;
+	private String recordingSettings;
+	private int metricsPort;
+	private String writeConcern;
+	private int updates;
+	private String updateDistribution;
+	private double updateTheta = DEFAULT_UPDATE_THETA;
+	private int updateItems = 1;
+	private int updateThreads;
+	private boolean updateOnly;
+	private boolean verify;
+	private int verifyThreads;
+	private int maxRetries;
+	private long retryBackoff = DEFAULT_RETRY_BACKOFF;
+	private long maxRetryBackoff = DEFAULT_MAX_RETRY_BACKOFF;
+	private boolean skipErrors;
+	private String invoiceItems;
+	private String factory;
+	private String queries;
+	private int queryThreads;
+	private int queryDuration = DEFAULT_QUERY_DURATION;
+	private String queryDistribution;
+	private double queryTheta = DEFAULT_UPDATE_THETA;
+	private boolean queryExplain = true;
+	private boolean lagMonitor;
+	private int lagSample = DEFAULT_LAG_SAMPLE;
+	private String resultDir = DEFAULT_RESULT_DIR;
+	private boolean registerIds = true;
 	
 	/**
 	 * Constructor for the config object using Properties. Use either this or MongoLoadConfigBuilder to obtain config object
@@ -160,6 +677,67 @@ public class MongoLoadConfig {
 		this.sampleEncoding = props.getProperty("sampleencoding");
 		this.factoryClass = props.getProperty("factoryclass");
 		this.collection = props.getProperty("collection");
+		this.idStrategy = props.getProperty("idstrategy");
+		this.firstDoc = parseLong(props, "firstdoc", 0);
+		this.keyspaceFirst = parseLong(props, "keyspacefirst", -1);
+		this.keyspaceDocs = parseLong(props, "keyspacedocs", -1);
+		this.partition = parseInt(props, "partition", 0);
+		this.partitions = parseInt(props, "partitions", 1);
+		this.rateLimit = parseInt(props, "ratelimit", 0);
+		this.drop = Boolean.parseBoolean(props.getProperty("drop", "true"));
+		this.threads = parseInt(props, "threads", 1);
+		this.checkpointFile = props.getProperty("checkpointfile");
+		this.checkpointInterval = parseInt(props, "checkpointinterval", DEFAULT_CHECKPOINT_INTERVAL);
+		this.resume = Boolean.parseBoolean(props.getProperty("resume", "false"));
+		if (props.containsKey("seed")) {
+			this.seed = Long.valueOf(parseLong(props, "seed", 0));
+		}
+		this.uniquePerDoc = parseInt(props, "uniqueperdoc", 1);
+		this.indexes = props.getProperty("indexes");
+		this.indexPhase = props.getProperty("indexphase");
+		this.writeMode = props.getProperty("writemode");
+		this.batchSize = parseInt(props, "batchsize", 1);
+		this.ioThreads = parseInt(props, "iothreads", DEFAULT_IO_THREADS);
+		this.maxInFlight = parseInt(props, "maxinflight", DEFAULT_MAX_IN_FLIGHT);
+		this.uri = props.getProperty("uri");
+		this.hosts = props.getProperty("hosts");
+		this.connectionsPerHost = parseInt(props, "connectionsperhost", DEFAULT_CONNECTIONS_PER_HOST);
+		this.threadsAllowedToBlock = parseInt(props, "threadsallowedtoblock", DEFAULT_THREADS_ALLOWED_TO_BLOCK);
+		this.connectTimeout = parseInt(props, "connecttimeout", DEFAULT_CONNECT_TIMEOUT);
+		this.socketTimeout = parseInt(props, "sockettimeout", 0);
+		this.maxWaitTime = parseInt(props, "maxwaittime", DEFAULT_MAX_WAIT_TIME);
+		this.readPreference = props.getProperty("readpreference");
+		this.compression = props.getProperty("compression");
+		this.shardKey = props.getProperty("shardkey");
+		this.shardChunks = parseInt(props, "shardchunks", 0);
+		this.recordingFile = props.getProperty("jfr");
+		this.recordingSettings = props.getProperty("jfrsettings");
+		this.metricsPort = parseInt(props, "metricsport", 0);
+		this.writeConcern = props.getProperty("writeconcern");
+		this.updates = parseInt(props, "updates", 0);
+		this.updateDistribution = props.getProperty("updatedistribution");
+		this.updateTheta = parseDouble(props, "updatetheta", DEFAULT_UPDATE_THETA);
+		this.updateItems = parseInt(props, "updateitems", 1);
+		this.updateThreads = parseInt(props, "updatethreads", 0);
+		this.updateOnly = Boolean.parseBoolean(props.getProperty("updateonly", "false"));
+		this.verify = Boolean.parseBoolean(props.getProperty("verify", "false"));
+		this.verifyThreads = parseInt(props, "verifythreads", 0);
+		this.maxRetries = parseInt(props, "maxretries", 0);
+		this.retryBackoff = parseLong(props, "retrybackoff", DEFAULT_RETRY_BACKOFF);
+		this.maxRetryBackoff = parseLong(props, "maxretrybackoff", DEFAULT_MAX_RETRY_BACKOFF);
+		this.skipErrors = Boolean.parseBoolean(props.getProperty("skiperrors", "false"));
+		this.invoiceItems = props.getProperty("invoiceitems");
+		this.factory = props.getProperty("factory");
+		this.queries = props.getProperty("queries");
+		this.queryThreads = parseInt(props, "querythreads", 0);
+		this.queryDuration = parseInt(props, "queryduration", DEFAULT_QUERY_DURATION);
+		this.queryDistribution = props.getProperty("querydistribution");
+		this.queryTheta = parseDouble(props, "querytheta", DEFAULT_UPDATE_THETA);
+		this.queryExplain = Boolean.parseBoolean(props.getProperty("queryexplain", "true"));
+		this.lagMonitor = Boolean.parseBoolean(props.getProperty("lagmonitor", "false"));
+		this.lagSample = parseInt(props, "lagsample", DEFAULT_LAG_SAMPLE);
+		this.resultDir = props.getProperty("resultdir", DEFAULT_RESULT_DIR);
+		this.registerIds = Boolean.parseBoolean(props.getProperty("registerids", "true"));
 	}
 	
 	private MongoLoadConfig(MongoLoadConfigBuilder builder) {
@@ -174,6 +752,104 @@ public class MongoLoadConfig {
 		this.sampleEncoding = builder.sampleEncoding;
 		this.factoryClass = builder.factoryClass;
 		this.collection = builder.collection;
+		this.idStrategy = builder.idStrategy;
+		this.firstDoc = builder.firstDoc;
+		this.keyspaceFirst = builder.keyspaceFirst;
+		this.keyspaceDocs = builder.keyspaceDocs;
+		this.partition = builder.partition;
+		this.partitions = builder.partitions;
+		this.rateLimit = builder.rateLimit;
+		this.drop = builder.drop;
+		this.threads = builder.threads;
+		this.checkpointFile = builder.checkpointFile;
+		this.checkpointInterval = builder.checkpointInterval;
+		this.resume = builder.resume;
+		this.seed = builder.seed;
+		this.uniquePerDoc = builder.uniquePerDoc;
+		this.indexes = builder.indexes;
+		this.indexPhase = builder.indexPhase;
+		this.writeMode = builder.writeMode;
+		this.batchSize = builder.batchSize;
+		this.ioThreads = builder.ioThreads;
+		this.maxInFlight = builder.maxInFlight;
+		this.uri = builder.uri;
+		this.hosts = builder.hosts;
+		this.connectionsPerHost = builder.connectionsPerHost;
+		this.threadsAllowedToBlock = builder.threadsAllowedToBlock;
+		this.connectTimeout = builder.connectTimeout;
+		this.socketTimeout = builder.socketTimeout;
+		this.maxWaitTime = builder.maxWaitTime;
+		this.readPreference = builder.readPreference;
+		this.compression = builder.compression;
+		this.shardKey = builder.shardKey;
+		this.shardChunks = builder.shardChunks;
+		this.recordingFile = builder.recordingFile;
+		this.recordingSettings = builder.recordingSettings;
+		this.metricsPort = builder.metricsPort;
+		this.writeConcern = builder.writeConcern;
+		this.updates = builder.updates;
+		this.updateDistribution = builder.updateDistribution;
+		this.updateTheta = builder.updateTheta;
+		this.updateItems = builder.updateItems;
+		this.updateThreads = builder.updateThreads;
+		this.updateOnly = builder.updateOnly;
+		this.verify = builder.verify;
+		this.verifyThreads = builder.verifyThreads;
+		this.maxRetries = builder.maxRetries;
+		this.retryBackoff = builder.retryBackoff;
+		this.maxRetryBackoff = builder.maxRetryBackoff;
+		this.skipErrors = builder.skipErrors;
+		this.invoiceItems = builder.invoiceItems;
+		this.factory = builder.factory;
+		this.queries = builder.queries;
+		this.queryThreads = builder.queryThreads;
+		this.queryDuration = builder.queryDuration;
+		this.queryDistribution = builder.queryDistribution;
+		this.queryTheta = builder.queryTheta;
+		this.queryExplain = builder.queryExplain;
+		this.lagMonitor = builder.lagMonitor;
+		this.lagSample = builder.lagSample;
+		this.resultDir = builder.resultDir;
+		this.registerIds = builder.registerIds;
+	}
+	
+	private static int parseInt(Properties props, String key, int defaultValue) {
+		if (!props.containsKey(key)) {
+			return defaultValue;
+		}
+		try {
+			return Integer.parseInt(props.getProperty(key).trim());
+		}
+		catch (NumberFormatException nfe) {
+			logger.error("Error reading " + key + " from properties file: " + nfe.getMessage());
+			throw new IllegalArgumentException("Error reading " + key + " from properties file", nfe);
+		}
+	}
+	
+	private static long parseLong(Properties props, String key, long defaultValue) {
+		if (!props.containsKey(key)) {
+			return defaultValue;
+		}
+		try {
+			return Long.parseLong(props.getProperty(key).trim());
+		}
+		catch (NumberFormatException nfe) {
+			logger.error("Error reading " + key + " from properties file: " + nfe.getMessage());
+			throw new IllegalArgumentException("Error reading " + key + " from properties file", nfe);
+		}
+	}
+	
+	private static double parseDouble(Properties props, String key, double defaultValue) {
+		if (!props.containsKey(key)) {
+			return defaultValue;
+		}
+		try {
+			return Double.parseDouble(props.getProperty(key).trim());
+		}
+		catch (NumberFormatException nfe) {
+			logger.error("Error reading " + key + " from properties file: " + nfe.getMessage());
+			throw new IllegalArgumentException("Error reading " + key + " from properties file", nfe);
+		}
 	}
 	
 	private String scrubbedString(String s) {
@@ -267,4 +943,726 @@ public class MongoLoadConfig {
 	public void setCollection(String collection) {
 		this.collection = collection;
 	}
-}
\ No newline at end of file
+	
+	/**
+	 * The strategy used to assign _id values. "objectid" leaves this to the driver, "sequence" uses the document number.
+	 * 
+	 * @return The configured id strategy, defaulting to "objectid"
+	 */
+	public String getIdStrategy() {
+		return ("".equals(scrubbedString(idStrategy)) ? ID_OBJECTID : idStrategy);
+	}
+	
+	public void setIdStrategy(String strategy) {
+		this.idStrategy = strategy;
+	}
+	
+	/**
+	 * The number of the first document this loader generates. Loaders sharing a keyspace use disjoint ranges.
+	 * 
+	 * @return The first document number
+	 */
+	public long getFirstDoc() {
+		return firstDoc;
+	}
+	
+	public void setFirstDoc(long firstDoc) {
+		this.firstDoc = firstDoc;
+	}
+	
+	/**
+	 * The document numbers of the whole run this loader is part of, e.g. for pre-splitting a sharded collection. In coordinated
+	 * runs, the coordinator passes its own range to every agent, which loads only a part of it.
+	 * 
+	 * @return The range of the whole run, the range of this loader unless configured otherwise
+	 */
+	public KeyRange getKeyspace() {
+		if ((keyspaceFirst < 0) || (keyspaceDocs < 0)) {
+			return new KeyRange(firstDoc, numdocs);
+		}
+		return new KeyRange(keyspaceFirst, keyspaceDocs);
+	}
+	
+	public void setKeyspace(long first, long docs) {
+		this.keyspaceFirst = first;
+		this.keyspaceDocs = docs;
+	}
+	
+	/**
+	 * The partition of the unique string space this loader draws from.
+	 * 
+	 * @return The partition index, between 0 and getPartitions()-1
+	 */
+	public int getPartition() {
+		return partition;
+	}
+	
+	public void setPartition(int partition) {
+		this.partition = partition;
+	}
+	
+	public int getPartitions() {
+		return partitions;
+	}
+	
+	public void setPartitions(int partitions) {
+		this.partitions = partitions;
+	}
+	
+	/**
+	 * The maximum insert rate for this loader
+	 * 
+	 * @return The rate in documents per second, 0 if unlimited
+	 */
+	public int getRateLimit() {
+		return rateLimit;
+	}
+	
+	public void setRateLimit(int docsPerSecond) {
+		this.rateLimit = docsPerSecond;
+	}
+	
+	/**
+	 * Whether the target collection is dropped before loading.
+	 * 
+	 * @return True if the collection should be dropped
+	 */
+	public boolean isDrop() {
+		return drop;
+	}
+	
+	public void setDrop(boolean drop) {
+		this.drop = drop;
+	}
+	
+	/**
+	 * The number of worker threads generating and saving documents
+	 * 
+	 * @return The number of workers, at least 1
+	 */
+	public int getThreads() {
+		return threads;
+	}
+	
+	public void setThreads(int threads) {
+		this.threads = threads;
+	}
+	
+	/**
+	 * The base name of the files worker positions are checkpointed to. Each worker appends its index, and keeps the unique strings
+	 * it has generated in a file with the suffix .strings in addition, which grows with every unique string.
+	 * 
+	 * @return The checkpoint file name or an empty string if checkpointing is disabled
+	 */
+	public String getCheckpointFile() {
+		return scrubbedString(checkpointFile);
+	}
+	
+	public void setCheckpointFile(String file) {
+		this.checkpointFile = file;
+	}
+	
+	/**
+	 * @return The number of documents each worker saves between two checkpoints
+	 */
+	public int getCheckpointInterval() {
+		return checkpointInterval;
+	}
+	
+	public void setCheckpointInterval(int interval) {
+		this.checkpointInterval = interval;
+	}
+	
+	/**
+	 * Whether to continue an interrupted load from its checkpoints instead of starting over. Implies not dropping the collection.
+	 * 
+	 * @return True if the load should be resumed
+	 */
+	public boolean isResume() {
+		return resume;
+	}
+	
+	public void setResume(boolean resume) {
+		this.resume = resume;
+	}
+	
+	/**
+	 * Whether documents are generated from a fixed seed. Seeded runs generate document n identically regardless of
+	 * the number of threads, agents or the order of generation.
+	 * 
+	 * @return True if a seed is configured
+	 */
+	public boolean isSeeded() {
+		return seed != null;
+	}
+	
+	/**
+	 * @return The configured seed, 0 if the run is not seeded
+	 */
+	public long getSeed() {
+		return (seed == null ? 0 : seed.longValue());
+	}
+	
+	public void setSeed(long seed) {
+		this.seed = Long.valueOf(seed);
+	}
+	
+	/**
+	 * @return The maximum number of unique strings a single document uses in a seeded run
+	 */
+	public int getUniquePerDoc() {
+		return uniquePerDoc;
+	}
+	
+	public void setUniquePerDoc(int count) {
+		this.uniquePerDoc = count;
+	}
+	
+	/**
+	 * The secondary indexes to build, as a semicolon-separated list of JSON index definitions. See IndexBenchmark.
+	 * 
+	 * @return The index definitions or an empty string if no secondary indexes are built
+	 */
+	public String getIndexes() {
+		return scrubbedString(indexes);
+	}
+	
+	public void setIndexes(String indexes) {
+		this.indexes = indexes;
+	}
+	
+	/**
+	 * When secondary indexes are built: "before" the load, "after" it or "incremental"ly, one between each of equal load segments.
+	 * 
+	 * @return The index phase, defaulting to "after"
+	 */
+	public String getIndexPhase() {
+		return ("".equals(scrubbedString(indexPhase)) ? INDEX_AFTER : indexPhase);
+	}
+	
+	public void setIndexPhase(String phase) {
+		this.indexPhase = phase;
+	}
+	
+	/**
+	 * How documents are written: "sync"hronously by the workers generating them, or "async"hronously by a separate pool
+	 * of I/O threads while the workers continue generating.
+	 * 
+	 * @return The write mode, defaulting to "sync"
+	 */
+	public String getWriteMode() {
+		return ("".equals(scrubbedString(writeMode)) ? WRITE_SYNC : writeMode);
+	}
+	
+	public void setWriteMode(String mode) {
+		this.writeMode = mode;
+	}
+	
+	/**
+	 * @return The number of documents sent in one insert request
+	 */
+	public int getBatchSize() {
+		return batchSize;
+	}
+	
+	public void setBatchSize(int batchSize) {
+		this.batchSize = batchSize;
+	}
+	
+	/**
+	 * @return The number of threads sending requests in async write mode
+	 */
+	public int getIOThreads() {
+		return ioThreads;
+	}
+	
+	public void setIOThreads(int ioThreads) {
+		this.ioThreads = ioThreads;
+	}
+	
+	/**
+	 * @return The maximum number of documents submitted but not yet acknowledged in async write mode
+	 */
+	public int getMaxInFlight() {
+		return maxInFlight;
+	}
+	
+	public void setMaxInFlight(int maxInFlight) {
+		this.maxInFlight = maxInFlight;
+	}
+	
+	/**
+	 * A MongoDB connection string. If set, it takes precedence over hostname, port and hosts.
+	 * 
+	 * @return The URI or an empty string if none is configured
+	 */
+	public String getUri() {
+		return scrubbedString(uri);
+	}
+	
+	public void setUri(String uri) {
+		this.uri = uri;
+	}
+	
+	/**
+	 * Comma-separated host[:port] seeds of a replica set. Hosts without a port use the configured port.
+	 * 
+	 * @return The seed list or an empty string if the single hostname is used
+	 */
+	public String getHosts() {
+		return scrubbedString(hosts);
+	}
+	
+	public void setHosts(String hosts) {
+		this.hosts = hosts;
+	}
+	
+	/**
+	 * @return The maximum size of the connection pool to each server
+	 */
+	public int getConnectionsPerHost() {
+		return connectionsPerHost;
+	}
+	
+	public void setConnectionsPerHost(int connectionsPerHost) {
+		this.connectionsPerHost = connectionsPerHost;
+	}
+	
+	/**
+	 * @return The multiplier of the pool size giving the number of threads that may wait for a connection
+	 */
+	public int getThreadsAllowedToBlock() {
+		return threadsAllowedToBlock;
+	}
+	
+	public void setThreadsAllowedToBlock(int threadsAllowedToBlock) {
+		this.threadsAllowedToBlock = threadsAllowedToBlock;
+	}
+	
+	/**
+	 * @return The connect timeout in ms, 0 for none
+	 */
+	public int getConnectTimeout() {
+		return connectTimeout;
+	}
+	
+	public void setConnectTimeout(int connectTimeout) {
+		this.connectTimeout = connectTimeout;
+	}
+	
+	/**
+	 * @return The socket read timeout in ms, 0 for none
+	 */
+	public int getSocketTimeout() {
+		return socketTimeout;
+	}
+	
+	public void setSocketTimeout(int socketTimeout) {
+		this.socketTimeout = socketTimeout;
+	}
+	
+	/**
+	 * @return The maximum time in ms a thread waits for a pooled connection
+	 */
+	public int getMaxWaitTime() {
+		return maxWaitTime;
+	}
+	
+	public void setMaxWaitTime(int maxWaitTime) {
+		this.maxWaitTime = maxWaitTime;
+	}
+	
+	/**
+	 * The read preference by name, e.g. "primary", "secondaryPreferred" or "nearest"
+	 * 
+	 * @return The read preference or an empty string for the driver default
+	 */
+	public String getReadPreference() {
+		return scrubbedString(readPreference);
+	}
+	
+	public void setReadPreference(String readPreference) {
+		this.readPreference = readPreference;
+	}
+	
+	/**
+	 * Wire compression. Only "none" is supported by the driver in use.
+	 * 
+	 * @return The compression or an empty string if not configured
+	 */
+	public String getCompression() {
+		return scrubbedString(compression);
+	}
+	
+	public void setCompression(String compression) {
+		this.compression = compression;
+	}
+	
+	/**
+	 * The shard key to shard the collection on before loading, as JSON, e.g. {"_id": "hashed"}. See ShardingSetup.
+	 * 
+	 * @return The shard key or an empty string if the collection is not sharded
+	 */
+	public String getShardKey() {
+		return scrubbedString(shardKey);
+	}
+	
+	public void setShardKey(String shardKey) {
+		this.shardKey = shardKey;
+	}
+	
+	/**
+	 * @return The number of chunks to pre-split the collection into, 0 for one per shard
+	 */
+	public int getShardChunks() {
+		return shardChunks;
+	}
+	
+	public void setShardChunks(int chunks) {
+		this.shardChunks = chunks;
+	}
+	
+	/**
+	 * The file a Flight Recorder recording of the run is written to. See LoadRecording.
+	 * 
+	 * @return The recording file or an empty string if no recording is started
+	 */
+	public String getRecordingFile() {
+		return scrubbedString(recordingFile);
+	}
+	
+	public void setRecordingFile(String file) {
+		this.recordingFile = file;
+	}
+	
+	/**
+	 * @return The name of the predefined Flight Recorder settings to record with, defaulting to "profile"
+	 */
+	public String getRecordingSettings() {
+		return ("".equals(scrubbedString(recordingSettings)) ? "profile" : recordingSettings);
+	}
+	
+	public void setRecordingSettings(String settings) {
+		this.recordingSettings = settings;
+	}
+	
+	/**
+	 * The port of the embedded HTTP endpoint serving metrics in the Prometheus text format. See MetricsServer.
+	 * 
+	 * @return The port or 0 if no metrics are served
+	 */
+	public int getMetricsPort() {
+		return metricsPort;
+	}
+	
+	public void setMetricsPort(int port) {
+		this.metricsPort = port;
+	}
+	
+	/**
+	 * The write concern of inserts, given by name such as "acknowledged", "journaled" or "majority", or as a number of servers.
+	 * 
+	 * @return The write concern, WriteConcern.ACKNOWLEDGED if none is configured
+	 * @throws IllegalArgumentException If the configured write concern is unknown
+	 */
+	public WriteConcern getWriteConcern() {
+		String name = scrubbedString(writeConcern).trim();
+		if ("".equals(name)) {
+			return WriteConcern.ACKNOWLEDGED;
+		}
+		if (name.matches("[0-9]+")) {
+			return new WriteConcern(Integer.parseInt(name));
+		}
+		WriteConcern concern = WriteConcern.valueOf(name);
+		if (concern == null) {
+			throw new IllegalArgumentException("Unknown write concern " + name);
+		}
+		return concern;
+	}
+	
+	public void setWriteConcern(String writeConcern) {
+		this.writeConcern = writeConcern;
+	}
+	
+	/**
+	 * The number of updates growing existing documents after the load. See UpdateWorkload.
+	 * 
+	 * @return The number of updates, 0 for no update phase
+	 */
+	public int getUpdates() {
+		return updates;
+	}
+	
+	public void setUpdates(int updates) {
+		this.updates = updates;
+	}
+	
+	/**
+	 * @return The distribution documents to update are picked by, see KeyDistribution. Defaults to uniform.
+	 */
+	public String getUpdateDistribution() {
+		return ("".equals(scrubbedString(updateDistribution)) ? KeyDistribution.UNIFORM : updateDistribution);
+	}
+	
+	public void setUpdateDistribution(String distribution) {
+		this.updateDistribution = distribution;
+	}
+	
+	/**
+	 * @return The skew of the zipfian update distributions, between 0 and 1 exclusive
+	 */
+	public double getUpdateTheta() {
+		return updateTheta;
+	}
+	
+	public void setUpdateTheta(double theta) {
+		this.updateTheta = theta;
+	}
+	
+	/**
+	 * @return The number of line items added to an invoice by each update
+	 */
+	public int getUpdateItems() {
+		return updateItems;
+	}
+	
+	public void setUpdateItems(int items) {
+		this.updateItems = items;
+	}
+	
+	/**
+	 * @return The number of threads updating, the number of load threads unless configured
+	 */
+	public int getUpdateThreads() {
+		return (updateThreads == 0 ? threads : updateThreads);
+	}
+	
+	public void setUpdateThreads(int threads) {
+		this.updateThreads = threads;
+	}
+	
+	/**
+	 * @return True if the insert phase is skipped and only existing documents are updated
+	 */
+	public boolean isUpdateOnly() {
+		return updateOnly;
+	}
+	
+	public void setUpdateOnly(boolean updateOnly) {
+		this.updateOnly = updateOnly;
+	}
+	
+	/**
+	 * @return True if the documents are read back and compared with their regenerated content after the load. See LoadVerifier.
+	 */
+	public boolean isVerify() {
+		return verify;
+	}
+	
+	public void setVerify(boolean verify) {
+		this.verify = verify;
+	}
+	
+	/**
+	 * @return The number of threads scanning the collection when verifying, the number of load threads unless configured
+	 */
+	public int getVerifyThreads() {
+		return (verifyThreads == 0 ? threads : verifyThreads);
+	}
+	
+	public void setVerifyThreads(int threads) {
+		this.verifyThreads = threads;
+	}
+	
+	/**
+	 * The number of times a write failing with a transient error, such as a network error or a primary stepping down, is retried.
+	 * See WriteRetrier.
+	 * 
+	 * @return The number of retries, 0 to fail on the first error
+	 */
+	public int getMaxRetries() {
+		return maxRetries;
+	}
+	
+	public void setMaxRetries(int retries) {
+		this.maxRetries = retries;
+	}
+	
+	/**
+	 * @return The wait before the first retry of a write in ms, doubling with each further retry
+	 */
+	public long getRetryBackoff() {
+		return retryBackoff;
+	}
+	
+	public void setRetryBackoff(long backoff) {
+		this.retryBackoff = backoff;
+	}
+	
+	/**
+	 * @return The maximum wait between two attempts of a write in ms
+	 */
+	public long getMaxRetryBackoff() {
+		return maxRetryBackoff;
+	}
+	
+	public void setMaxRetryBackoff(long backoff) {
+		this.maxRetryBackoff = backoff;
+	}
+	
+	/**
+	 * @return True if writes that failed for good are counted and skipped, false if they abort the run
+	 */
+	public boolean isSkipErrors() {
+		return skipErrors;
+	}
+	
+	public void setSkipErrors(boolean skipErrors) {
+		this.skipErrors = skipErrors;
+	}
+	
+	/**
+	 * The distribution of the number of line items per invoice generated by FastInvoiceFactory, e.g. uniform(1,14), fixed(5)
+	 * or geometric(8,100).
+	 * 
+	 * @return The distribution, FastInvoiceFactory.DEFAULT_ITEM_COUNTS if not configured
+	 */
+	public String getInvoiceItems() {
+		return ("".equals(scrubbedString(invoiceItems)) ? FastInvoiceFactory.DEFAULT_ITEM_COUNTS : invoiceItems);
+	}
+	
+	public void setInvoiceItems(String distribution) {
+		this.invoiceItems = distribution;
+	}
+
+	
+	/**
+	 * The name of the DocumentFactoryProvider to generate documents with, as discovered by DocumentFactories, e.g. invoice,
+	 * fastinvoice or json. Takes precedence over the factory class.
+	 * 
+	 * @return The provider name, empty if the factory class is used
+	 */
+	public String getFactory() {
+		return scrubbedString(factory);
+	}
+	
+	public void setFactory(String name) {
+		this.factory = name;
+	}
+	
+	/**
+	 * The JSON file listing the queries to run after the load, see QueryWorkload.
+	 * 
+	 * @return The path of the query file, empty for no query phase
+	 */
+	public String getQueries() {
+		return scrubbedString(queries);
+	}
+	
+	public void setQueries(String queryFile) {
+		this.queries = queryFile;
+	}
+	
+	/**
+	 * @return The number of threads running queries, defaults to the number of worker threads
+	 */
+	public int getQueryThreads() {
+		return (queryThreads == 0 ? threads : queryThreads);
+	}
+	
+	public void setQueryThreads(int threads) {
+		this.queryThreads = threads;
+	}
+	
+	/**
+	 * @return How long queries are run for in seconds
+	 */
+	public int getQueryDuration() {
+		return queryDuration;
+	}
+	
+	public void setQueryDuration(int seconds) {
+		this.queryDuration = seconds;
+	}
+	
+	/**
+	 * @return The distribution the documents query parameters are taken from are picked by, see KeyDistribution. Defaults to uniform.
+	 */
+	public String getQueryDistribution() {
+		return ("".equals(scrubbedString(queryDistribution)) ? KeyDistribution.UNIFORM : queryDistribution);
+	}
+	
+	public void setQueryDistribution(String distribution) {
+		this.queryDistribution = distribution;
+	}
+	
+	/**
+	 * @return The skew of the zipfian query distributions, between 0 and 1 exclusive
+	 */
+	public double getQueryTheta() {
+		return queryTheta;
+	}
+	
+	public void setQueryTheta(double theta) {
+		this.queryTheta = theta;
+	}
+	
+	/**
+	 * @return Whether the plan of each query is explained before the queries are run
+	 */
+	public boolean isQueryExplain() {
+		return queryExplain;
+	}
+	
+	public void setQueryExplain(boolean explain) {
+		this.queryExplain = explain;
+	}
+	
+	/**
+	 * @return Whether the replication lag to the secondaries is measured during the load. Through a mongos, the lag to the
+	 * secondaries of each shard is measured, which requires the credentials of the load to be valid on the shards.
+	 */
+	public boolean isLagMonitor() {
+		return lagMonitor;
+	}
+	
+	public void setLagMonitor(boolean monitor) {
+		this.lagMonitor = monitor;
+	}
+	
+	/**
+	 * @return Every how many documents one carries a timestamp to measure the replication lag by
+	 */
+	public int getLagSample() {
+		return lagSample;
+	}
+	
+	public void setLagSample(int sample) {
+		this.lagSample = sample;
+	}
+	
+	/**
+	 * @return The directory the result file of the run is saved to, empty if none is saved
+	 */
+	public String getResultDir() {
+		return scrubbedString(resultDir);
+	}
+	
+	public void setResultDir(String directory) {
+		this.resultDir = directory;
+	}
+	
+	/**
+	 * Whether the ids of documents inserted with id strategy objectid are kept, 16 bytes each, for the update and query workloads and
+	 * for references to draw existing documents from. See IdRegistry.
+	 * 
+	 * @return True if the ids are registered
+	 */
+	public boolean isRegisterIds() {
+		return registerIds;
+	}
+	
+	public void setRegisterIds(boolean register) {
+		this.registerIds = register;
+	}
+}
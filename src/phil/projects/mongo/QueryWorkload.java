@@ -0,0 +1,674 @@
+package phil.projects.mongo;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.Set;
+
+import org.apache.log4j.Logger;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.CommandResult;
+import com.mongodb.DB;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+import com.mongodb.util.JSON;
+import com.mongodb.util.JSONParseException;
+
+import phil.projects.mongo.stats.QueryStatistics;
+
+/**
+ * Runs a set of find and aggregate queries against the loaded collection for a set time at a set concurrency, recording the
+ * latency of each query separately.
+ *
+ * The queries are read from a JSON file holding a list of query definitions, each either a find or an aggregation:
+ * {"name": "by customer", "find": {"customer": {"$param": "customer"}}, "projection": {...}, "sort": {...}, "limit": 10, "weight": 3}
+ * {"name": "totals", "aggregate": [{"$match": {"total price": {"$gte": {"$param": "total price"}}}}, {"$group": ...}]}
+ *
+ * Each thread keeps picking queries in proportion to their weight (default 1). Placeholders are replaced on every execution:
+ * {"$param": "path"} - the value at the dotted path of a loaded document, picked from the loaded range by the query distribution
+ * and generated again. A * in the path stands for a random field or element, e.g. items.*.amount. Parameters only match stored
+ * values in seeded runs, otherwise they follow the same distribution. All parameters of one execution come from one document.
+ * If the ids of the documents were registered while inserting them, see IdRegistry, the document is picked from those by the
+ * query distribution and read from the collection instead, so parameters match stored values in any run.
+ * {"$gen": ...} - a generator expression as in JSON samples, see SampleExpression
+ *
+ * Before the queries are run, the plan of each is explained once, summarizing the plan stages, the indexes used and the number
+ * of index keys and documents examined.
+ *
+ * @author ptaprogg
+ *
+ */
+public class QueryWorkload {
+
+	private static Logger logger = Logger.getLogger(QueryWorkload.class);
+
+	//Keeps the random sequence of query threads apart from that of update threads with the same seed
+	private static final long QUERY_SALT = 0x51ed27a3c0ffee01L;
+
+	private static final Set<String> QUERY_KEYS = new HashSet<String>(Arrays.asList("name", "weight", "find", "projection", "sort", "limit", "aggregate"));
+
+	/**
+	 * A parameter placeholder, taking its value from a generated document
+	 */
+	private static final class Param {
+
+		final String path;
+		final String[] segments;
+
+		Param(String path) {
+			this.path = path;
+			this.segments = path.split("\\.");
+		}
+	}
+
+	/**
+	 * A query definition with its placeholders compiled
+	 */
+	private static abstract class Query {
+
+		final String name;
+		final double weight;
+		final boolean usesParams;
+
+		Query(String name, double weight, boolean usesParams) {
+			this.name = name;
+			this.weight = weight;
+			this.usesParams = usesParams;
+		}
+
+		/**
+		 * Runs the query and reads all results
+		 *
+		 * @return The number of results
+		 */
+		abstract long execute(DBCollection collection, Binding binding);
+
+		/**
+		 * @return The explain output of the query
+		 */
+		abstract DBObject explain(DBCollection collection, Binding binding);
+	}
+
+	private static final class FindQuery extends Query {
+
+		final Object filter;
+		final DBObject projection;
+		final DBObject sort;
+		final int limit;
+
+		FindQuery(String name, double weight, boolean usesParams, Object filter, DBObject projection, DBObject sort, int limit) {
+			super(name, weight, usesParams);
+			this.filter = filter;
+			this.projection = projection;
+			this.sort = sort;
+			this.limit = limit;
+		}
+
+		private DBCursor cursor(DBCollection collection, Binding binding) {
+			DBCursor cursor = collection.find((DBObject)binding.bind(filter), projection);
+			if (sort != null) {
+				cursor.sort(sort);
+			}
+			if (limit > 0) {
+				cursor.limit(limit);
+			}
+			return cursor;
+		}
+
+		@Override
+		long execute(DBCollection collection, Binding binding) {
+			DBCursor cursor = cursor(collection, binding);
+			try {
+				long results = 0;
+				while (cursor.hasNext()) {
+					cursor.next();
+					results++;
+				}
+				return results;
+			}
+			finally {
+				cursor.close();
+			}
+		}
+
+		@Override
+		DBObject explain(DBCollection collection, Binding binding) {
+			DBCursor cursor = cursor(collection, binding);
+			try {
+				return cursor.explain();
+			}
+			catch (NoSuchElementException nsee) {
+				//The driver reads the explain output as the first result, some servers return none
+				throw new MongoException("No explain output returned");
+			}
+			finally {
+				cursor.close();
+			}
+		}
+	}
+
+	private static final class AggregateQuery extends Query {
+
+		final Object[] pipeline;
+
+		AggregateQuery(String name, double weight, boolean usesParams, Object[] pipeline) {
+			super(name, weight, usesParams);
+			this.pipeline = pipeline;
+		}
+
+		private DBObject[] stages(Binding binding) {
+			DBObject[] stages = new DBObject[pipeline.length];
+			for (int i = 0; i < stages.length; i++) {
+				stages[i] = (DBObject)binding.bind(pipeline[i]);
+			}
+			return stages;
+		}
+
+		/**
+		 * Runs the aggregate command with a cursor, which servers since 3.6 require and DBCollection.aggregate does not request,
+		 * and reads the remaining batches with getMore
+		 */
+		@Override
+		long execute(DBCollection collection, Binding binding) {
+			DB db = collection.getDB();
+			CommandResult result = db.command(new BasicDBObject("aggregate", collection.getName()).append("pipeline", Arrays.asList(stages(binding)))
+					.append("cursor", new BasicDBObject()));
+			result.throwOnError();
+			DBObject cursor = (DBObject)result.get("cursor");
+			long results = ((List<?>)cursor.get("firstBatch")).size();
+			long id = ((Number)cursor.get("id")).longValue();
+			while (id != 0) {
+				result = db.command(new BasicDBObject("getMore", id).append("collection", collection.getName()));
+				result.throwOnError();
+				cursor = (DBObject)result.get("cursor");
+				results += ((List<?>)cursor.get("nextBatch")).size();
+				id = ((Number)cursor.get("id")).longValue();
+			}
+			return results;
+		}
+
+		@Override
+		DBObject explain(DBCollection collection, Binding binding) {
+			CommandResult result = collection.getDB().command(new BasicDBObject("aggregate", collection.getName())
+					.append("pipeline", Arrays.asList(stages(binding))).append("explain", true));
+			result.throwOnError();
+			return result;
+		}
+	}
+
+	/**
+	 * Replaces the placeholders of one execution
+	 */
+	private static final class Binding {
+
+		final RandomGenerator rand;
+		final DBObject document;
+		final long sequence;
+
+		Binding(RandomGenerator rand, DBObject document, long sequence) {
+			this.rand = rand;
+			this.document = document;
+			this.sequence = sequence;
+		}
+
+		Object bind(Object template) {
+			if (template instanceof Param) {
+				return extract(document, ((Param)template).segments, 0);
+			}
+			if (template instanceof SampleExpression) {
+				return ((SampleExpression)template).evaluate(rand, sequence);
+			}
+			if (template instanceof BasicDBList) {
+				BasicDBList list = (BasicDBList)template;
+				BasicDBList bound = new BasicDBList();
+				for (Object element : list) {
+					bound.add(bind(element));
+				}
+				return bound;
+			}
+			if (template instanceof DBObject) {
+				DBObject object = (DBObject)template;
+				BasicDBObject bound = new BasicDBObject();
+				for (String key : object.keySet()) {
+					bound.put(key, bind(object.get(key)));
+				}
+				return bound;
+			}
+			return template;
+		}
+
+		/**
+		 * @return The value at the path, null if the document has none there
+		 */
+		private Object extract(Object value, String[] path, int index) {
+			if (index == path.length) {
+				return value;
+			}
+			if ("*".equals(path[index])) {
+				if (value instanceof List) {
+					List<?> list = (List<?>)value;
+					return (list.isEmpty() ? null : extract(list.get(rand.getRandomIntInRange(list.size())), path, index + 1));
+				}
+				if (value instanceof DBObject) {
+					List<String> keys = new ArrayList<String>(((DBObject)value).keySet());
+					return (keys.isEmpty() ? null : extract(((DBObject)value).get(keys.get(rand.getRandomIntInRange(keys.size()))), path, index + 1));
+				}
+				return null;
+			}
+			if (value instanceof DBObject) {
+				return extract(((DBObject)value).get(path[index]), path, index + 1);
+			}
+			return null;
+		}
+	}
+
+	private final MongoLoad loader;
+	private final DBCollection collection;
+	private final MongoLoadConfig config;
+	//What documents are picked from, set when the run starts as the documents may still be loading before
+	private volatile KeyDistribution distribution;
+	private volatile IdRegistry ids;
+	private final List<Query> queries;
+	private final double totalWeight;
+
+	private volatile List<QueryStatistics> statistics;
+	private final List<String> plans = new ArrayList<String>();
+	private volatile Throwable failure;
+
+	/**
+	 * @param loader The loader that generated the documents, used to generate them again for parameters
+	 * @param collection The collection to query
+	 * @param config The config holding the query settings. Documents are picked from the range that was loaded.
+	 * @throws IllegalArgumentException If the query file cannot be read or holds invalid definitions
+	 */
+	public QueryWorkload(MongoLoad loader, DBCollection collection, MongoLoadConfig config) {
+		this.loader = loader;
+		this.collection = collection;
+		this.config = config;
+		this.queries = parse(config.getQueries());
+		double total = 0;
+		for (Query query : queries) {
+			total += query.weight;
+		}
+		this.totalWeight = total;
+	}
+
+	private static List<Query> parse(String path) {
+		Object definitions;
+		try {
+			definitions = JSON.parse(MongoJSONFactory.readSample(MongoJSONFactory.sampleFile(path), "UTF-8"));
+		}
+		catch (IOException ioe) {
+			logger.error("IO Exception while reading queries: " + ioe.getMessage());
+			throw new IllegalArgumentException("Unable to read queries " + path, ioe);
+		}
+		catch (JSONParseException jpe) {
+			logger.error("JSON parse exception while trying to parse queries: " + jpe.getMessage());
+			throw new IllegalArgumentException("Queries " + path + " are not valid JSON", jpe);
+		}
+		if (!(definitions instanceof BasicDBList) || ((BasicDBList)definitions).isEmpty()) {
+			throw new IllegalArgumentException("Queries " + path + " are not a list of query definitions");
+		}
+		List<Query> queries = new ArrayList<Query>();
+		Set<String> names = new HashSet<String>();
+		for (Object definition : (BasicDBList)definitions) {
+			if (!(definition instanceof DBObject)) {
+				throw new IllegalArgumentException("Query definition " + definition + " is not a document");
+			}
+			Query query = compile((DBObject)definition, queries.size());
+			if (!names.add(query.name)) {
+				throw new IllegalArgumentException("Query name " + query.name + " is used twice");
+			}
+			queries.add(query);
+		}
+		return queries;
+	}
+
+	private static Query compile(DBObject definition, int index) {
+		for (String key : definition.keySet()) {
+			if (!QUERY_KEYS.contains(key)) {
+				throw new IllegalArgumentException("Unknown key " + key + " in query definition " + definition);
+			}
+		}
+		String name = (definition.containsField("name") ? String.valueOf(definition.get("name")) : "query" + index);
+		Object weight = definition.get("weight");
+		if ((weight != null) && (!(weight instanceof Number) || !(((Number)weight).doubleValue() > 0))) {
+			throw new IllegalArgumentException("Weight of query " + name + " must be a positive number");
+		}
+		double w = (weight == null ? 1 : ((Number)weight).doubleValue());
+		boolean[] usesParams = new boolean[1];
+		if (definition.containsField("find") == definition.containsField("aggregate")) {
+			throw new IllegalArgumentException("Query " + name + " must define either find or aggregate");
+		}
+		if (definition.containsField("find")) {
+			if (!(definition.get("find") instanceof DBObject) || (definition.get("find") instanceof List)) {
+				throw new IllegalArgumentException("Filter of query " + name + " is not a document");
+			}
+			Object limit = definition.get("limit");
+			if ((limit != null) && (!(limit instanceof Integer) || ((Integer)limit < 0))) {
+				throw new IllegalArgumentException("Limit of query " + name + " must be a non-negative integer");
+			}
+			Object filter = compileValue(definition.get("find"), name, usesParams);
+			return new FindQuery(name, w, usesParams[0], filter, document(definition, "projection", name), document(definition, "sort", name),
+					(limit == null ? 0 : (Integer)limit));
+		}
+		if (definition.containsField("projection") || definition.containsField("sort") || definition.containsField("limit")) {
+			throw new IllegalArgumentException("Query " + name + " is an aggregation, use pipeline stages instead of projection, sort or limit");
+		}
+		if (!(definition.get("aggregate") instanceof List) || ((List<?>)definition.get("aggregate")).isEmpty()) {
+			throw new IllegalArgumentException("Pipeline of query " + name + " is not a list of stages");
+		}
+		List<?> stages = (List<?>)definition.get("aggregate");
+		Object[] pipeline = new Object[stages.size()];
+		for (int i = 0; i < pipeline.length; i++) {
+			if (!(stages.get(i) instanceof DBObject) || (stages.get(i) instanceof List)) {
+				throw new IllegalArgumentException("Stage " + i + " of query " + name + " is not a document");
+			}
+			pipeline[i] = compileValue(stages.get(i), name, usesParams);
+		}
+		return new AggregateQuery(name, w, usesParams[0], pipeline);
+	}
+
+	private static DBObject document(DBObject definition, String key, String name) {
+		Object value = definition.get(key);
+		if ((value != null) && (!(value instanceof DBObject) || (value instanceof List))) {
+			throw new IllegalArgumentException("The " + key + " of query " + name + " is not a document");
+		}
+		return (DBObject)value;
+	}
+
+	/**
+	 * Replaces the placeholders of a value with their compiled form
+	 *
+	 * @param usesParams Set to true if a $param placeholder is found
+	 */
+	private static Object compileValue(Object value, String name, boolean[] usesParams) {
+		if ((value instanceof DBObject) && ((DBObject)value).containsField("$param")) {
+			DBObject param = (DBObject)value;
+			if ((param.keySet().size() != 1) || !(param.get("$param") instanceof String) || "".equals(param.get("$param"))) {
+				throw new IllegalArgumentException("Invalid parameter " + param + " in query " + name + ", expected {\"$param\": \"path\"}");
+			}
+			usesParams[0] = true;
+			return new Param((String)param.get("$param"));
+		}
+		if (SampleExpression.isExpression(value)) {
+			//Queries are compiled after the collections of the run have been prepared
+			return SampleExpression.compile(name, (DBObject)value).resolve();
+		}
+		if (value instanceof BasicDBList) {
+			BasicDBList compiled = new BasicDBList();
+			for (Object element : (BasicDBList)value) {
+				compiled.add(compileValue(element, name, usesParams));
+			}
+			return compiled;
+		}
+		if (value instanceof DBObject) {
+			DBObject object = (DBObject)value;
+			BasicDBObject compiled = new BasicDBObject();
+			for (String key : object.keySet()) {
+				compiled.put(key, compileValue(object.get(key), name, usesParams));
+			}
+			return compiled;
+		}
+		return value;
+	}
+
+	/**
+	 * Summarizes the explain output of a query: the plan stages, the indexes used and the number of index keys and documents
+	 * examined. Understands the output of both the legacy query system (cursor, nscanned, nscannedObjects) and the query
+	 * planner (stage, indexName, totalKeysExamined, totalDocsExamined). Plans that were considered but not chosen are skipped.
+	 *
+	 * @param explain The explain output
+	 * @return A single line summary
+	 */
+	static String summarizePlan(DBObject explain) {
+		Set<String> stages = new LinkedHashSet<String>();
+		Set<String> indexes = new LinkedHashSet<String>();
+		long[] examined = new long[] {-1, -1};
+		walkPlan(explain, stages, indexes, examined, true);
+		StringBuilder sb = new StringBuilder();
+		sb.append(stages.isEmpty() ? "unknown plan" : join(stages, " > "));
+		sb.append(indexes.isEmpty() ? ", no index" : ", index " + join(indexes, ", "));
+		sb.append(examined[0] < 0 ? "" : ", " + examined[0] + " keys examined");
+		sb.append(examined[1] < 0 ? "" : ", " + examined[1] + " documents examined");
+		return sb.toString();
+	}
+
+	private static String join(Set<String> values, String separator) {
+		StringBuilder sb = new StringBuilder();
+		for (String value : values) {
+			if (sb.length() > 0) {
+				sb.append(separator);
+			}
+			sb.append(value);
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * @param examined Keys and documents examined, -1 until found
+	 * @param count Whether counts found at this level are added. Totals of a level already include those of the levels below.
+	 */
+	private static void walkPlan(Object value, Set<String> stages, Set<String> indexes, long[] examined, boolean count) {
+		if (value instanceof List) {
+			for (Object element : (List<?>)value) {
+				walkPlan(element, stages, indexes, examined, count);
+			}
+			return;
+		}
+		if (!(value instanceof DBObject)) {
+			return;
+		}
+		DBObject object = (DBObject)value;
+		if (object.get("stage") instanceof String) {
+			stages.add((String)object.get("stage"));
+		}
+		if (object.get("indexName") instanceof String) {
+			indexes.add((String)object.get("indexName"));
+		}
+		if (object.get("cursor") instanceof String) {
+			//Legacy plans, e.g. BtreeCursor customer_1 or BasicCursor
+			String[] cursor = ((String)object.get("cursor")).split(" ", 2);
+			stages.add(cursor[0]);
+			if (cursor.length > 1) {
+				indexes.add(cursor[1]);
+			}
+		}
+		boolean counted = false;
+		if (count) {
+			counted |= add(object, examined, 0, "totalKeysExamined", "nscanned");
+			counted |= add(object, examined, 1, "totalDocsExamined", "nscannedObjects");
+		}
+		for (String key : object.keySet()) {
+			if (!"allPlans".equals(key) && !"rejectedPlans".equals(key) && !"allPlansExecution".equals(key)) {
+				walkPlan(object.get(key), stages, indexes, examined, count && !counted);
+			}
+		}
+	}
+
+	private static boolean add(DBObject object, long[] examined, int index, String key, String legacyKey) {
+		Object value = (object.get(key) instanceof Number ? object.get(key) : object.get(legacyKey));
+		if (!(value instanceof Number)) {
+			return false;
+		}
+		examined[index] = Math.max(0, examined[index]) + ((Number)value).longValue();
+		return true;
+	}
+
+	private Random random(int worker) {
+		//Seeded runs pick the same documents again
+		return (config.isSeeded() ? new Random(RandomGenerator.mix((config.getSeed() ^ QUERY_SALT) + 0x9e3779b97f4a7c15L * (worker + 1))) : new Random());
+	}
+
+	private Query pick(Random random) {
+		double pick = random.nextDouble() * totalWeight;
+		for (Query query : queries) {
+			pick -= query.weight;
+			if (pick < 0) {
+				return query;
+			}
+		}
+		return queries.get(queries.size() - 1);
+	}
+
+	private Binding binding(Query query, DocumentGenerator generator, Random random) {
+		long number = distribution.next(random);
+		DBObject document = null;
+		if (query.usesParams) {
+			document = (ids == null ? loader.generateDocument(generator, number) : collection.findOne(new BasicDBObject("_id", ids.getId(number))));
+		}
+		return new Binding(RandomGenerator.getInstance(), document, number);
+	}
+
+	/**
+	 * Picks documents by number from the range that was loaded, or by their place in the registered ids if there are any
+	 */
+	private void pickDocuments() {
+		IdRegistry registered = loader.getIdRegistry();
+		ids = (((registered != null) && (registered.size() > 0)) ? registered : null);
+		KeyRange range = (ids == null ? new KeyRange(config.getFirstDoc(), config.getNumdocs()) : new KeyRange(0, ids.size()));
+		distribution = KeyDistribution.create(config.getQueryDistribution(), range, config.getQueryTheta());
+	}
+
+	/**
+	 * Explains each query once, with the parameters of a picked document
+	 */
+	private void explainAll() {
+		plans.clear();
+		Random random = random(-1);
+		DocumentGenerator generator = loader.createGenerator(0);
+		try {
+			for (Query query : queries) {
+				String plan;
+				try {
+					plan = summarizePlan(query.explain(collection, binding(query, generator, random)));
+				}
+				catch (MongoException me) {
+					plan = "explain failed: " + me.getMessage();
+				}
+				plans.add(plan);
+				logger.info("Plan of query " + query.name + ": " + plan);
+			}
+		}
+		finally {
+			generator.close();
+		}
+	}
+
+	/**
+	 * Explains the queries if configured, then runs them for the configured time and waits for all threads to finish.
+	 * Failed queries are counted and do not stop the others.
+	 *
+	 * @return The statistics of each query, in the order of the query file
+	 * @throws RuntimeException If a query thread failed for another reason
+	 */
+	public List<QueryStatistics> run() {
+		pickDocuments();
+		if (config.isQueryExplain()) {
+			explainAll();
+		}
+		long start = System.currentTimeMillis();
+		List<QueryStatistics> queryStatistics = new ArrayList<QueryStatistics>();
+		for (Query query : queries) {
+			queryStatistics.add(new QueryStatistics(query.name, start));
+		}
+		statistics = Collections.unmodifiableList(queryStatistics);
+		failure = null;
+		final long end = start + config.getQueryDuration() * 1000L;
+		int threads = config.getQueryThreads();
+		logger.info("Running " + queries.size() + " queries for " + config.getQueryDuration() + "s using " + threads + " threads, taking parameters from documents picked "
+				+ config.getQueryDistribution());
+
+		Thread[] workers = new Thread[threads];
+		for (int i = 0; i < threads; i++) {
+			final int worker = i;
+			workers[i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						DocumentGenerator generator = loader.createGenerator(worker);
+						try {
+							query(worker, generator, end);
+						}
+						finally {
+							generator.close();
+						}
+					}
+					catch (Throwable t) {
+						logger.error("Query worker " + worker + " failed: " + t.getMessage());
+						failure = t;
+					}
+				}
+			}, "MongoLoad query " + i);
+			workers[i].start();
+		}
+		for (Thread worker : workers) {
+			try {
+				worker.join();
+			}
+			catch (InterruptedException ie) {
+				failure = ie;
+				Thread.currentThread().interrupt();
+			}
+		}
+		for (QueryStatistics s : statistics) {
+			s.finish();
+		}
+		if (failure != null) {
+			logger.error("Queries aborted: " + failure.getMessage());
+			throw (failure instanceof RuntimeException ? (RuntimeException)failure : new RuntimeException("Queries aborted", failure));
+		}
+		return statistics;
+	}
+
+	private void query(int worker, DocumentGenerator generator, long end) {
+		Random random = random(worker);
+		while ((System.currentTimeMillis() < end) && (failure == null)) {
+			Query query = pick(random);
+			QueryStatistics s = statistics.get(queries.indexOf(query));
+			Binding binding = binding(query, generator, random);
+			long start = System.nanoTime();
+			try {
+				long results = query.execute(collection, binding);
+				s.recordQuery((System.nanoTime() - start) / 1000, results);
+			}
+			catch (MongoException me) {
+				//Only the first failure of each query is logged, a broken query would fail on every execution
+				if (s.recordError() == 0) {
+					logger.warn("Query " + query.name + " failed: " + me.getMessage());
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return The statistics of each query of the current or last run, null if not run yet
+	 */
+	public List<QueryStatistics> getStatistics() {
+		return statistics;
+	}
+
+	/**
+	 * @return A multi-line, human-readable report of the latency and plan of each query
+	 */
+	public String report() {
+		StringBuilder sb = new StringBuilder("Query results");
+		for (int i = 0; i < queries.size(); i++) {
+			sb.append(String.format("%n  %s", statistics.get(i).report()));
+			if (i < plans.size()) {
+				sb.append(String.format("%n    plan: %s", plans.get(i)));
+			}
+		}
+		return sb.toString();
+	}
+}
@@ -1,13 +1,22 @@
 package phil.projects.mongo;
 
-import java.util.HashMap;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Random;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.log4j.Logger;
 
+import phil.projects.mongo.jfr.UniqueStringCollisionEvent;
+
 /**
- * A singleton random generator providing numbers and strings.
+ * A per-thread random generator providing numbers and strings.
  * 
  * @author ptaprogg
  *
@@ -30,37 +39,137 @@ public class RandomGenerator {
 	
 	private static Logger logger = Logger.getLogger(RandomGenerator.class);
 	
+	/**
+	 * Snapshot of a generator's state. Restoring it makes the generator continue with exactly the same sequence of values.
+	 * A snapshot taken without the unique strings handed out restores an empty set, to be filled by a UniqueStringJournal.
+	 */
+	public static final class State implements Serializable {
+		
+		static final long serialVersionUID = 2026101904;
+		
+		private final Random rand;
+		private final LongHashSet knownStrings;
+		private final HashSet<String> knownLongStrings;
+		private final long[] stringCount;
+		private final long retryCount;
+		private final int partition;
+		private final int partitions;
+		
+		private State(RandomGenerator g, boolean withStrings) {
+			this.rand = copy(g.rand);
+			this.knownStrings = (withStrings ? new LongHashSet(g.knownStrings) : null);
+			this.knownLongStrings = (withStrings ? new HashSet<String>(g.knownLongStrings) : null);
+			this.stringCount = Arrays.copyOf(g.stringCount, g.stringCount.length);
+			this.retryCount = g.retryCount;
+			this.partition = g.partition;
+			this.partitions = g.partitions;
+		}
+		
+		//java.util.Random offers no way to read its seed, but serialisation preserves it
+		private static Random copy(Random r) {
+			try {
+				ByteArrayOutputStream bos = new ByteArrayOutputStream();
+				ObjectOutputStream oos = new ObjectOutputStream(bos);
+				oos.writeObject(r);
+				oos.close();
+				return (Random)new ObjectInputStream(new ByteArrayInputStream(bos.toByteArray())).readObject();
+			}
+			catch (IOException ioe) {
+				throw new IllegalStateException("Unable to copy random generator state", ioe);
+			}
+			catch (ClassNotFoundException cnfe) {
+				throw new IllegalStateException("Unable to copy random generator state", cnfe);
+			}
+		}
+	}
+	
 	//The java.util.Random generator used by this instance
-	private Random rand = new Random(System.currentTimeMillis());
+	private Random rand = new Random();
 	
-	//The singleton instance
-	private static RandomGenerator instance = null;
+	//One instance per thread, so that workers produce independent and reproducible sequences
+	private static final ThreadLocal<RandomGenerator> instance = new ThreadLocal<RandomGenerator>() {
+		@Override
+		protected RandomGenerator initialValue() {
+			return new RandomGenerator();
+		}
+	};
 	
 	private RandomGenerator() {};
 
-	//Getter method for Singleton instance
+	//Getter method for the calling thread's instance
 	public static RandomGenerator getInstance() {
-		if (instance == null) {
-			instance = new RandomGenerator();
-		}
-		return instance;
+		return instance.get();
 	}
 	
 	//Used to gather statistics on unique string retries
-	private static long retryCount = 0;
+	private long retryCount = 0;
+	
+	//Collisions are logged as one summary per interval rather than one warning each
+	private static final long COLLISION_LOG_INTERVAL = TimeUnit.SECONDS.toNanos(10);
+	private long collisionsSinceLog = 0;
+	private long lastCollisionLog = System.nanoTime();
+	
+	//Used to keep track of generated unique strings, encoded as longs up to MAX_ENCODED_LENGTH characters and as strings beyond
+	private LongHashSet knownStrings = new LongHashSet();
+	private HashSet<String> knownLongStrings = new HashSet<String>();
 	
-	//Used to keep track of generated unique strings
-	private HashSet<String> knownStrings = new HashSet<String>();
+	//Receives each new unique string for incremental checkpoints, null if not checkpointing
+	private UniqueStringJournal journal = null;
 	
-	//Used to keep track of the number of generated unique strings for calculating saturation
-	private HashMap<Integer,Long> stringCount = new HashMap<Integer,Long>();
+	//Longest string encoded as a long, one base 27 digit per character so that strings of different lengths differ. 27^13 still fits into a long.
+	private static final int MAX_ENCODED_LENGTH = 13;
+	
+	//Longest string that can be requested
+	private static final int MAX_LENGTH = 1024;
+	
+	//Used to keep track of the number of generated unique strings for calculating saturation, by length
+	private long[] stringCount = new long[MAX_LENGTH + 1];
 	
 	//Characters to be used to form random strings
 	static final String allowedCharacters = "abcdefghijklmnopqrstuvwxyz";
 	
+	//Longest unique string suffix that can be produced by permuting a document's slot. 26^13 still fits into a long.
+	private static final int MAX_PERMUTED_LENGTH = 13;
+	
+	//Set in seeded mode: the seed of the run, the document being generated (-1 if not seeded) and its unique strings so far
+	private long seed;
+	private long document = -1;
+	private int documentUniqueStrings;
+	private int uniqueStringsPerDocument = 1;
+	
+	//The partition of the unique string space this instance draws from. Unique strings only start with characters at
+	//positions in allowedCharacters that are congruent to partition modulo partitions.
+	private int partition = 0;
+	private int partitions = 1;
+	
+	/**
+	 * Restricts unique strings to one partition of the possible strings, so that several generators - for example in
+	 * different loader processes - never hand out the same unique string.
+	 * 
+	 * @param partition The partition to use, between 0 and partitions-1
+	 * @param partitions The total number of partitions
+	 */
+	public void setPartition(int partition, int partitions) {
+		if ((partitions < 1) || (partitions > allowedCharacters.length())) {
+			throw new IllegalArgumentException("Number of partitions must be between 1 and " + allowedCharacters.length());
+		}
+		if ((partition < 0) || (partition >= partitions)) {
+			throw new IllegalArgumentException("Partition " + partition + " is outside of 0.." + (partitions-1));
+		}
+		this.partition = partition;
+		this.partitions = partitions;
+	}
+	
+	/**
+	 * @return The number of characters a unique string may start with in the current partition
+	 */
+	private int partitionCharacters() {
+		return (allowedCharacters.length() - partition + partitions - 1) / partitions;
+	}
+	
 	/**
 	 * Calculates the maximum possible number of random strings for a given length based
-	 * on the number of allowed characters.  
+	 * on the number of allowed characters and the current partition.  
 	 * 
 	 * @param n The length of string for which to calculate the number of combinations
 	 * 
@@ -68,9 +177,12 @@ public class RandomGenerator {
 	 */
 	private long uniqueCapacity(int n) {
 		int length = allowedCharacters.length();
-		int capacity = 1;
-		for (int i = 1; i <= n; i++) {
-			capacity *= length; 
+		long capacity = (n > 0 ? partitionCharacters() : 1);
+		for (int i = 2; i <= n; i++) {
+			capacity *= length;
+			if (capacity < 0) {
+				return Long.MAX_VALUE;
+			}
 		}
 		return capacity;
 	}
@@ -83,8 +195,8 @@ public class RandomGenerator {
 	 */
 	public String getRandomString(int length) {
 		
-		if (length > 1024) {
-			throw new IllegalArgumentException("Requested length " + length + " is larger than 1024 characters");
+		if (length > MAX_LENGTH) {
+			throw new IllegalArgumentException("Requested length " + length + " is larger than " + MAX_LENGTH + " characters");
 		}
 		//char array to hold the generated string
 		char[] string = new char[length];
@@ -94,13 +206,28 @@ public class RandomGenerator {
 			string[i] = allowedCharacters.charAt(rand.nextInt(allowedCharacters.length()));
 		}
 		String ret = new String(string);
-		logger.trace("Generated random string: " + ret);
+		if (logger.isTraceEnabled()) {
+			logger.trace("Generated random string: " + ret);
+		}
 		return ret;
 	}
 
+	/**
+	 * Fills part of an array with random characters, drawing the same values as getRandomString(length) would.
+	 * 
+	 * @param dest The array to fill
+	 * @param offset The index of the first character to fill
+	 * @param length The number of characters to fill
+	 */
+	void fillRandomChars(char[] dest, int offset, int length) {
+		for (int i = offset; i < offset + length; i++) {
+			dest[i] = allowedCharacters.charAt(rand.nextInt(allowedCharacters.length()));
+		}
+	}
+
 	/**
 	 * Generates a random string of given length that is guaranteed to be unique for this instance of the
-	 * RandomGenerator.
+	 * RandomGenerator. In seeded mode, it is unique across all documents generated with the same seed.
 	 * 
 	 * @param length The length of the returned string
 	 * @return A unique random string of the supplied length
@@ -109,37 +236,220 @@ public class RandomGenerator {
 	 */
 	public String getRandomUniqueString(int length) {
 		
-		if (length > 1024) {
-			throw new IllegalArgumentException("Requested length " + length + " is larger than 1024 characters");
+		if (length > MAX_LENGTH) {
+			throw new IllegalArgumentException("Requested length " + length + " is larger than " + MAX_LENGTH + " characters");
 		}
 		
-		//Check whether the stringCount map already contains an entry for this length
-		if (stringCount.get(length) == null) {
-			//If not, create it and set the number of generated strings to 0
-			stringCount.put(Integer.valueOf(length), Long.valueOf(0));
+		if (document >= 0) {
+			return getDocumentUniqueString(length);
 		}
 		
 		//Try to generate a unique string until one is found. Abort if this instance is nearing saturation for the given length of string
 		do {
 			String ret = getRandomString(length);
-			if (knownStrings.add(ret)) {
+			if ((partitions > 1) && (length > 0)) {
+				//Move the first character into this generator's partition
+				char[] chars = ret.toCharArray();
+				chars[0] = allowedCharacters.charAt(partition + partitions * rand.nextInt(partitionCharacters()));
+				ret = new String(chars);
+			}
+			if ((length <= MAX_ENCODED_LENGTH ? addKnownString(encode(ret)) : addKnownString(ret))) {
 				//A unique string was found. Add it to the list of strings and increment counter
-				stringCount.put(Integer.valueOf(length), Long.valueOf((stringCount.get(Integer.valueOf(length)).intValue()+1)));
+				stringCount[length]++;
 				return ret;
 			}
 			else {
 				//The generated string has already been returned previously. Retry...
 				retryCount++;
-				logger.warn("Discarding non-unique String " + ret);
-				logger.debug("Count for strings of length " + length + " is " + stringCount.get(Integer.valueOf(length)));
+				UniqueStringCollisionEvent collision = new UniqueStringCollisionEvent();
+				if (collision.shouldCommit()) {
+					collision.length = length;
+					collision.generated = stringCount[length];
+					collision.retries = retryCount;
+					collision.commit();
+				}
+				logCollision(length, ret);
 			}
 		}
 		//while will only be reached if a collision is detected. This allows for strings to be generated even past the cutoff point as long as no collisions occur.
-		while (stringCount.get(Integer.valueOf(length)) < (uniqueCapacity(length)*.8));
+		while (stringCount[length] < (uniqueCapacity(length)*.8));
 		logger.error("Count for Strings of length " + length + " is at 80%. Aborting...");
 		throw new UniqueStringSaturationException("Unique Strings of length " + length + " saturated.");
 	}
 
+	private boolean addKnownString(long code) {
+		if (!knownStrings.add(code)) {
+			return false;
+		}
+		if (journal != null) {
+			journal.added(code);
+		}
+		return true;
+	}
+	
+	private boolean addKnownString(String s) {
+		if (!knownLongStrings.add(s)) {
+			return false;
+		}
+		if (journal != null) {
+			journal.added(s);
+		}
+		return true;
+	}
+	
+	/**
+	 * Sets the journal to pass new unique strings to, or null to stop journaling
+	 */
+	void setJournal(UniqueStringJournal journal) {
+		this.journal = journal;
+	}
+	
+	/**
+	 * Marks a string read from a journal as handed out, without journaling it again
+	 */
+	void restoreUniqueString(long code) {
+		knownStrings.add(code);
+	}
+	
+	void restoreUniqueString(String s) {
+		knownLongStrings.add(s);
+	}
+
+	/**
+	 * Encodes a string of allowed characters as a long, one base 27 digit per character, from 1 for the first allowed character
+	 */
+	private static long encode(String s) {
+		long code = 0;
+		for (int i = 0; i < s.length(); i++) {
+			code = code * 27 + allowedCharacters.indexOf(s.charAt(i)) + 1;
+		}
+		return code;
+	}
+
+	private void logCollision(int length, String discarded) {
+		collisionsSinceLog++;
+		if (logger.isDebugEnabled()) {
+			logger.debug("Discarding non-unique String " + discarded + ", count for strings of length " + length + " is " + stringCount[length]);
+		}
+		long now = System.nanoTime();
+		if (now - lastCollisionLog >= COLLISION_LOG_INTERVAL) {
+			logger.warn("Discarded " + collisionsSinceLog + " non-unique strings in the last " + TimeUnit.NANOSECONDS.toSeconds(now - lastCollisionLog)
+					+ "s, " + retryCount + " in total. Last of length " + length + " with " + stringCount[length] + " generated.");
+			collisionsSinceLog = 0;
+			lastCollisionLog = now;
+		}
+	}
+
+	/**
+	 * Switches this generator to seeded mode and positions it at the start of a document. All values drawn until the
+	 * next call only depend on the seed and the document number, so any document can be generated again, in any order
+	 * and on any thread.
+	 * 
+	 * @param seed The seed of the run
+	 * @param document The number of the document about to be generated
+	 */
+	public void startDocument(long seed, long document) {
+		if (document < 0) {
+			throw new IllegalArgumentException("Document number must not be negative");
+		}
+		this.seed = seed;
+		this.document = document;
+		this.documentUniqueStrings = 0;
+		rand.setSeed(mix(seed + 0x9e3779b97f4a7c15L * (document + 1)));
+	}
+	
+	/**
+	 * Leaves seeded mode. The generator continues with a time-based seed.
+	 */
+	public void clearSeed() {
+		this.document = -1;
+		this.rand = new Random();
+	}
+	
+	/**
+	 * Sets how many unique strings a single document may request in seeded mode. Each document owns this many
+	 * consecutive slots of the unique string space, so larger values reduce the number of documents possible.
+	 * 
+	 * @param count The number of unique strings per document, at least 1
+	 */
+	public void setUniqueStringsPerDocument(int count) {
+		if (count < 1) {
+			throw new IllegalArgumentException("At least one unique string per document required");
+		}
+		this.uniqueStringsPerDocument = count;
+	}
+	
+	/**
+	 * Seeded replacement for the collision-checking unique strings: the document's slot in the unique string space is
+	 * mapped to a string by a keyed permutation, which makes the result unique without remembering earlier strings.
+	 * Strings longer than 13 characters get a random prefix in front of a unique 13 character suffix.
+	 */
+	private String getDocumentUniqueString(int length) {
+		if (documentUniqueStrings >= uniqueStringsPerDocument) {
+			throw new IllegalStateException("More than " + uniqueStringsPerDocument + " unique strings requested for one document");
+		}
+		long ordinal = document * uniqueStringsPerDocument + documentUniqueStrings++;
+		int permutedLength = Math.min(length, MAX_PERMUTED_LENGTH);
+		long capacity = 1;
+		for (int i = 0; i < permutedLength; i++) {
+			capacity *= allowedCharacters.length();
+		}
+		if ((ordinal < 0) || (ordinal >= capacity)) {
+			logger.error("Document " + document + " exceeds the number of unique strings of length " + length);
+			throw new UniqueStringSaturationException("Unique Strings of length " + length + " saturated.");
+		}
+		long value = permute(ordinal, capacity, mix(seed ^ length));
+		
+		char[] string = new char[length];
+		for (int i = 0; i < length - permutedLength; i++) {
+			string[i] = allowedCharacters.charAt(rand.nextInt(allowedCharacters.length()));
+		}
+		for (int i = length - 1; i >= length - permutedLength; i--) {
+			string[i] = allowedCharacters.charAt((int)(value % allowedCharacters.length()));
+			value /= allowedCharacters.length();
+		}
+		return new String(string);
+	}
+	
+	/**
+	 * Bijective mapping of [0, n) onto itself, using a four round Feistel network over the next even power of two
+	 * and cycle-walking until the result falls back into the domain.
+	 * 
+	 * @param x The value to map, between 0 and n-1
+	 * @param n The size of the domain
+	 * @param key The key selecting the permutation
+	 * @return The mapped value, between 0 and n-1
+	 */
+	static long permute(long x, long n, long key) {
+		if (n <= 1) {
+			return 0;
+		}
+		int bits = 64 - Long.numberOfLeadingZeros(n - 1);
+		int half = (bits + 1) / 2;
+		long mask = (1L << half) - 1;
+		do {
+			long left = x >>> half;
+			long right = x & mask;
+			for (int round = 0; round < 4; round++) {
+				long tmp = left ^ (mix(key + round * 0x632be59bd9b4e019L + right) & mask);
+				left = right;
+				right = tmp;
+			}
+			x = (left << half) | right;
+		}
+		while (x >= n);
+		return x;
+	}
+	
+	/**
+	 * SplitMix64 finaliser, used to derive well-distributed seeds from seeds and document numbers.
+	 */
+	static long mix(long z) {
+		z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+		z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+		return z ^ (z >>> 31);
+	}
+	
 	/**
 	 * Simple pass-through method to retrieve an int within given range from the internal Random generator.
 	 * 
@@ -150,6 +460,26 @@ public class RandomGenerator {
 		return rand.nextInt(range);
 	}
 	
+	/**
+	 * Simple pass-through method to pick a value of a distribution using the internal Random generator.
+	 * 
+	 * @param distribution The distribution to pick from
+	 * @return A value within the range of the distribution
+	 */
+	public long getRandomLong(KeyDistribution distribution) {
+		return distribution.next(rand);
+	}
+	
+	/**
+	 * Simple pass-through method to draw an id from a registry using the internal Random generator.
+	 * 
+	 * @param ids The registry to draw from
+	 * @return One of the registered ids, a Long or an ObjectId, each equally likely
+	 */
+	public Object getRandomId(IdRegistry ids) {
+		return ids.sampleId(rand);
+	}
+	
 	/**
 	 * Simple pass-through method to retrieve an int from the internal Random generator.
 	 * 
@@ -168,11 +498,53 @@ public class RandomGenerator {
 		return rand.nextDouble();
 	}
 	
+	/**
+	 * Takes a snapshot of this generator's state, including the unique strings handed out so far.
+	 * 
+	 * @return A copy of the state that is not affected by further use of this generator
+	 */
+	public State getState() {
+		return new State(this, true);
+	}
+	
+	/**
+	 * Takes a snapshot of this generator's state, leaving out the unique strings, which a UniqueStringJournal
+	 * keeps instead. The snapshot then takes constant time and space however many strings have been handed out.
+	 * 
+	 * @return A copy of the state without the unique strings
+	 */
+	public State getStateWithoutStrings() {
+		return new State(this, false);
+	}
+	
+	/**
+	 * Restores a previously taken snapshot. The generator will continue exactly where the snapshot was taken.
+	 * 
+	 * @param state The snapshot to restore
+	 */
+	public void restoreState(State state) {
+		this.rand = State.copy(state.rand);
+		this.knownStrings = (state.knownStrings == null ? new LongHashSet() : new LongHashSet(state.knownStrings));
+		this.knownLongStrings = (state.knownLongStrings == null ? new HashSet<String>() : new HashSet<String>(state.knownLongStrings));
+		this.stringCount = Arrays.copyOf(state.stringCount, state.stringCount.length);
+		this.retryCount = state.retryCount;
+		this.partition = state.partition;
+		this.partitions = state.partitions;
+	}
+	
+	/**
+	 * @return The number of unique strings discarded because they had been generated before
+	 */
+	public long getRetryCount() {
+		return retryCount;
+	}
+	
 	public String printStatistics() {
-		float totalStrings = (float)knownStrings.size() + (float)retryCount;
+		long known = knownStrings.size() + knownLongStrings.size();
+		float totalStrings = (float)known + (float)retryCount;
 		float wastage = ((float)Math.round(((float)retryCount / totalStrings)*10000))/100;
 		
-		return knownStrings.size() + " strings produces; " + retryCount + " retries; wastage: " + wastage + "%";
+		return known + " strings produces; " + retryCount + " retries; wastage: " + wastage + "%";
 	}
 	
 }
@@ -0,0 +1,56 @@
+package phil.projects.mongo;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Simple pacing limiter handing out evenly spaced permits. Can be shared between threads.
+ *
+ * @author ptaprogg
+ *
+ */
+class RateLimiter {
+
+	//Time between two permits in ns
+	private final long intervalNanos;
+
+	//The time the next permit becomes available
+	private final AtomicLong nextPermit;
+
+	/**
+	 * @param permitsPerSecond The rate to limit to. Must be greater than 0.
+	 */
+	RateLimiter(int permitsPerSecond) {
+		if (permitsPerSecond <= 0) {
+			throw new IllegalArgumentException("Rate must be greater than 0");
+		}
+		this.intervalNanos = TimeUnit.SECONDS.toNanos(1) / permitsPerSecond;
+		this.nextPermit = new AtomicLong(System.nanoTime());
+	}
+
+	/**
+	 * Blocks until the caller may proceed with the given number of operations.
+	 *
+	 * @param permits The number of operations about to be executed
+	 */
+	void acquire(int permits) {
+		long now = System.nanoTime();
+		long slot;
+		long next;
+		//Do not let an idle limiter build up a burst allowance
+		do {
+			slot = nextPermit.get();
+			next = Math.max(slot, now) + intervalNanos * permits;
+		}
+		while (!nextPermit.compareAndSet(slot, next));
+		long wait = Math.max(slot, now) - now;
+		if (wait > 0) {
+			try {
+				TimeUnit.NANOSECONDS.sleep(wait);
+			}
+			catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+}
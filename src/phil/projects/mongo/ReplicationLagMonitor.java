@@ -0,0 +1,535 @@
+package phil.projects.mongo;
+
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+import org.bson.types.BSONTimestamp;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.Bytes;
+import com.mongodb.CommandResult;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.mongodb.MongoClient;
+import com.mongodb.MongoException;
+import com.mongodb.ReadPreference;
+import com.mongodb.ServerAddress;
+
+import phil.projects.mongo.stats.LatencyHistogram;
+import phil.projects.mongo.stats.ThroughputSeries;
+
+/**
+ * Measures the replication lag to each secondary of a replica set while a load runs.
+ *
+ * Every n-th generated document carries the wall-clock time its batch was handed to the driver in the field _lagts. One thread
+ * per secondary tails the oplog of that secondary for inserts into the loaded collection carrying the field, and records the
+ * time from the write to the arrival of the entry in the secondary's oplog. Both times are taken from this process's clock. The
+ * lag therefore includes the write on the primary, batching on the server and the network, which is what a reader of the
+ * secondary sees. Change streams would be the modern way, but they need a newer driver than this tool is built on, so the oplog
+ * is tailed directly, which also works on servers before 3.6.
+ *
+ * Through a mongos, which is not a member of a replica set itself, the shards are listed and the secondaries of every shard that
+ * is a replica set are tailed, connecting to the shards directly with the credentials of the load. A shard only receives the
+ * sampled documents routed to it, so at the end of the load its secondaries wait for the last sampled document in the oplog
+ * of the shard's primary rather than for the last one stamped.
+ *
+ * Documents written while the monitor runs keep their _lagts field. The verifier ignores it.
+ *
+ * @author ptaprogg
+ *
+ */
+public class ReplicationLagMonitor {
+
+	private static Logger logger = Logger.getLogger(ReplicationLagMonitor.class);
+
+	/**
+	 * The field holding the write time in sampled documents
+	 */
+	public static final String FIELD = "_lagts";
+
+	//How long stop() waits for the secondaries to receive the last sampled document
+	private static final long DRAIN_TIMEOUT = TimeUnit.SECONDS.toMillis(30);
+
+	//Pause before tailing again after the cursor died or failed
+	private static final long RETRY_DELAY = 1000;
+
+	//Most rows of the lag chart, longer runs are charted in buckets of several seconds
+	private static final int CHART_ROWS = 60;
+	private static final int CHART_WIDTH = 40;
+
+	/**
+	 * Tails the oplog of one secondary
+	 */
+	final class Tailer implements Runnable {
+
+		final ServerAddress address;
+		
+		//The shard of the secondary, null if not connected through a mongos
+		final String shard;
+		
+		final LatencyHistogram lag = new LatencyHistogram();
+
+		//Lag summed up and entries counted per second of the write
+		final ThroughputSeries lagMillis;
+		final ThroughputSeries samples;
+
+		//The latest write time received
+		final AtomicLong latest = new AtomicLong();
+
+		volatile MongoClient secondary;
+
+		Tailer(ServerAddress address, String shard) {
+			this.address = address;
+			this.shard = shard;
+			this.lagMillis = new ThroughputSeries(startMillis);
+			this.samples = new ThroughputSeries(startMillis);
+		}
+
+		@Override
+		public void run() {
+			BSONTimestamp position = null;
+			while (!stopped) {
+				DBCursor cursor = null;
+				try {
+					if (secondary == null) {
+						secondary = new MongoClient(address, client.getCredentialsList(), client.getMongoClientOptions());
+					}
+					DBCollection oplog = secondary.getDB("local").getCollection("oplog.rs");
+					if (position == null) {
+						position = last(oplog);
+					}
+					DBObject query = new BasicDBObject("ts", new BasicDBObject("$gt", position)).append("ns", namespace).append("op", "i")
+							.append("o." + FIELD, new BasicDBObject("$exists", true));
+					cursor = oplog.find(query, new BasicDBObject("ts", 1).append("o." + FIELD, 1));
+					cursor.setReadPreference(ReadPreference.secondaryPreferred());
+					cursor.addOption(Bytes.QUERYOPTION_TAILABLE).addOption(Bytes.QUERYOPTION_AWAITDATA).addOption(Bytes.QUERYOPTION_OPLOGREPLAY);
+					while (!stopped && cursor.hasNext()) {
+						DBObject entry = cursor.next();
+						long arrival = System.currentTimeMillis();
+						position = (BSONTimestamp)entry.get("ts");
+						Object written = ((DBObject)entry.get("o")).get(FIELD);
+						if (written instanceof Number) {
+							record(((Number)written).longValue(), arrival);
+						}
+					}
+				}
+				catch (RuntimeException re) {
+					//Driver errors are MongoExceptions, closing the client from stop() surfaces as various exceptions in the tailing thread
+					if (!stopped) {
+						logger.warn("Tailing the oplog of " + address + " failed, retrying: " + re.getMessage());
+					}
+				}
+				finally {
+					if (cursor != null) {
+						try {
+							cursor.close();
+						}
+						catch (RuntimeException re) {
+							logger.debug("Closing the oplog cursor of " + address + " failed: " + re.getMessage());
+						}
+					}
+				}
+				if (!stopped) {
+					//The cursor died, e.g. because the oplog was empty, or the query failed
+					try {
+						Thread.sleep(RETRY_DELAY);
+					}
+					catch (InterruptedException ie) {
+						return;
+					}
+				}
+			}
+		}
+
+		/**
+		 * @return The timestamp of the newest oplog entry, so that tailing starts with the writes of this run
+		 */
+		private BSONTimestamp last(DBCollection oplog) {
+			DBCursor cursor = oplog.find(new BasicDBObject(), new BasicDBObject("ts", 1)).sort(new BasicDBObject("$natural", -1)).limit(1);
+			cursor.setReadPreference(ReadPreference.secondaryPreferred());
+			try {
+				return (cursor.hasNext() ? (BSONTimestamp)cursor.next().get("ts") : new BSONTimestamp(0, 0));
+			}
+			finally {
+				cursor.close();
+			}
+		}
+
+		void record(long written, long arrival) {
+			long lagMs = Math.max(0, arrival - written);
+			lag.record(lagMs * 1000);
+			lagMillis.record(written, lagMs);
+			samples.record(written, 1);
+			long l;
+			while ((l = latest.get()) < written) {
+				latest.compareAndSet(l, written);
+			}
+		}
+	}
+
+	private final MongoClient client;
+	private final String namespace;
+	private final int sample;
+	private final long startMillis;
+
+	private final List<Tailer> tailers = new ArrayList<Tailer>();
+	
+	//The members listed for each shard whose secondaries are tailed, empty if not connected through a mongos
+	private final Map<String, List<ServerAddress>> shards = new LinkedHashMap<String, List<ServerAddress>>();
+	private final List<Thread> threads = new ArrayList<Thread>();
+	private volatile boolean stopped;
+
+	//The latest write time stamped into a document
+	private final AtomicLong stamped = new AtomicLong();
+
+	/**
+	 * @param client The client of the load, whose credentials and options are used to connect to the secondaries
+	 * @param collection The collection being loaded
+	 * @param sample Every how many documents one is stamped
+	 */
+	public ReplicationLagMonitor(MongoClient client, DBCollection collection, int sample) {
+		this(client, collection.getFullName(), sample, System.currentTimeMillis());
+	}
+
+	ReplicationLagMonitor(MongoClient client, String namespace, int sample, long startMillis) {
+		this.client = client;
+		this.namespace = namespace;
+		this.sample = sample;
+		this.startMillis = startMillis;
+	}
+
+	/**
+	 * Finds the secondaries, those of the shards if connected to a mongos, and starts tailing their oplogs
+	 *
+	 * @return False if the servers are not a replica set or sharded cluster with secondaries, in which case nothing is measured
+	 */
+	public boolean start() {
+		if (isMongos()) {
+			addShards();
+			if (tailers.isEmpty()) {
+				logger.warn("No shard of the cluster is a replica set with secondaries, replication lag is not measured");
+				return false;
+			}
+		}
+		else {
+			CommandResult isMaster = client.getDB("admin").command("isMaster");
+			isMaster.throwOnError();
+			if (!isMaster.containsField("setName") || !(isMaster.get("hosts") instanceof List)) {
+				logger.warn("Not connected to a replica set, replication lag is not measured");
+				return false;
+			}
+			addSecondaries(isMaster, null);
+			if (tailers.isEmpty()) {
+				logger.warn("Replica set " + isMaster.get("setName") + " has no secondaries, replication lag is not measured");
+				return false;
+			}
+		}
+		for (Tailer tailer : tailers) {
+			Thread thread = new Thread(tailer, "MongoLoad lag " + tailer.address);
+			thread.setDaemon(true);
+			thread.start();
+			threads.add(thread);
+		}
+		logger.info("Measuring replication lag to " + tailers.size() + " secondaries" + (shards.isEmpty() ? "" : " of " + shards.size() + " shards")
+				+ " on every " + sample + "th document");
+		return true;
+	}
+
+	/**
+	 * @return True if connected to a mongos
+	 */
+	private boolean isMongos() {
+		try {
+			return client.getDB("admin").command("isdbgrid").ok();
+		}
+		catch (MongoException me) {
+			logger.debug("isdbgrid failed: " + me.getMessage());
+			return false;
+		}
+	}
+
+	/**
+	 * Adds a tailer for each secondary of each shard that is a replica set
+	 */
+	private void addShards() {
+		CommandResult result = client.getDB("admin").command("listShards");
+		result.throwOnError();
+		for (Object entry : (List<?>)result.get("shards")) {
+			String name = ((DBObject)entry).get("_id").toString();
+			//Replica set shards are listed as setName/host1,host2,...
+			String host = String.valueOf(((DBObject)entry).get("host"));
+			int slash = host.indexOf('/');
+			if (slash < 0) {
+				logger.warn("Shard " + name + " is not a replica set, its replication lag is not measured");
+				continue;
+			}
+			List<ServerAddress> members = new ArrayList<ServerAddress>();
+			for (String member : host.substring(slash + 1).split(",")) {
+				ServerAddress address = address(member);
+				if (address != null) {
+					members.add(address);
+				}
+			}
+			if (members.isEmpty()) {
+				continue;
+			}
+			MongoClient shardClient = null;
+			try {
+				shardClient = new MongoClient(members, client.getCredentialsList(), client.getMongoClientOptions());
+				CommandResult isMaster = shardClient.getDB("admin").command("isMaster");
+				isMaster.throwOnError();
+				int before = tailers.size();
+				addSecondaries(isMaster, name);
+				if (tailers.size() == before) {
+					logger.warn("Shard " + name + " has no secondaries, its replication lag is not measured");
+				}
+				else {
+					shards.put(name, members);
+				}
+			}
+			catch (MongoException me) {
+				logger.warn("Shard " + name + " cannot be reached, its replication lag is not measured: " + me.getMessage());
+			}
+			finally {
+				if (shardClient != null) {
+					shardClient.close();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Adds a tailer for each secondary of a replica set
+	 *
+	 * @param isMaster The reply of a member of the replica set to isMaster
+	 * @param shard The shard the replica set is, null if not connected through a mongos
+	 */
+	private void addSecondaries(CommandResult isMaster, String shard) {
+		if (!(isMaster.get("hosts") instanceof List)) {
+			return;
+		}
+		String primary = (String)isMaster.get("primary");
+		for (Object host : (List<?>)isMaster.get("hosts")) {
+			if (!host.equals(primary)) {
+				ServerAddress address = address((String)host);
+				if (address != null) {
+					addTailer(address, shard);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Adds a tailer for a secondary, started by start()
+	 *
+	 * @param address The address of the secondary
+	 * @param shard The shard of the secondary, null if not connected through a mongos
+	 * @return The tailer
+	 */
+	Tailer addTailer(ServerAddress address, String shard) {
+		Tailer tailer = new Tailer(address, shard);
+		tailers.add(tailer);
+		return tailer;
+	}
+
+	/**
+	 * @return The address of a host:port string, null if the host cannot be resolved
+	 */
+	private static ServerAddress address(String host) {
+		try {
+			String[] parts = host.split(":");
+			return new ServerAddress(parts[0], (parts.length > 1 ? Integer.parseInt(parts[1]) : ServerAddress.defaultPort()));
+		}
+		catch (UnknownHostException uhe) {
+			logger.warn("Host " + host + " cannot be resolved, its replication lag is not measured");
+			return null;
+		}
+	}
+
+	/**
+	 * @param number The number of a generated document
+	 * @return Whether the document is to be stamped
+	 */
+	public boolean isSampled(long number) {
+		return (number % sample == 0);
+	}
+
+	/**
+	 * Marks a generated document to be stamped when written
+	 */
+	public void mark(DBObject document) {
+		document.put(FIELD, 0L);
+	}
+
+	/**
+	 * Stamps the marked documents of a batch with the current time, just before the batch is written
+	 */
+	public void stamp(List<DBObject> batch) {
+		long now = System.currentTimeMillis();
+		boolean any = false;
+		for (DBObject document : batch) {
+			if (document.containsField(FIELD)) {
+				document.put(FIELD, now);
+				any = true;
+			}
+		}
+		if (any) {
+			long s;
+			while ((s = stamped.get()) < now) {
+				stamped.compareAndSet(s, now);
+			}
+		}
+	}
+
+	/**
+	 * Waits until every secondary received the last stamped document or the drain timeout passed, then stops tailing
+	 */
+	public void stop() {
+		long deadline = System.currentTimeMillis() + DRAIN_TIMEOUT;
+		Map<String, Long> shardTargets = new HashMap<String, Long>();
+		for (Tailer tailer : tailers) {
+			long target;
+			if (tailer.shard == null) {
+				target = stamped.get();
+			}
+			else {
+				if (!shardTargets.containsKey(tailer.shard)) {
+					shardTargets.put(tailer.shard, lastSampled(tailer.shard));
+				}
+				target = shardTargets.get(tailer.shard);
+			}
+			while ((tailer.latest.get() < target) && (System.currentTimeMillis() < deadline)) {
+				try {
+					Thread.sleep(100);
+				}
+				catch (InterruptedException ie) {
+					Thread.currentThread().interrupt();
+					break;
+				}
+			}
+			if (tailer.latest.get() < target) {
+				logger.warn("Secondary " + tailer.address + " did not receive the last sampled document within " + DRAIN_TIMEOUT / 1000 + "s");
+			}
+		}
+		stopped = true;
+		for (Tailer tailer : tailers) {
+			if (tailer.secondary != null) {
+				tailer.secondary.close();
+			}
+		}
+		for (Thread thread : threads) {
+			try {
+				thread.join(RETRY_DELAY * 2);
+			}
+			catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Reads the write time of the last sampled document of this run in the oplog of a shard's primary
+	 *
+	 * @param shard The shard
+	 * @return The write time, or 0 if the shard received no sampled document or its primary cannot be read
+	 */
+	private long lastSampled(String shard) {
+		MongoClient shardClient = null;
+		try {
+			shardClient = new MongoClient(shards.get(shard), client.getCredentialsList(), client.getMongoClientOptions());
+			DBObject query = new BasicDBObject("ns", namespace).append("op", "i").append("o." + FIELD, new BasicDBObject("$gte", startMillis));
+			DBCursor cursor = shardClient.getDB("local").getCollection("oplog.rs").find(query, new BasicDBObject("o." + FIELD, 1))
+					.sort(new BasicDBObject("$natural", -1)).limit(1);
+			try {
+				Object written = (cursor.hasNext() ? ((DBObject)cursor.next().get("o")).get(FIELD) : null);
+				return (written instanceof Number ? ((Number)written).longValue() : 0);
+			}
+			finally {
+				cursor.close();
+			}
+		}
+		catch (MongoException me) {
+			logger.warn("The oplog of the primary of shard " + shard + " cannot be read, not waiting for its secondaries: " + me.getMessage());
+			return 0;
+		}
+		finally {
+			if (shardClient != null) {
+				shardClient.close();
+			}
+		}
+	}
+
+	/**
+	 * @return The lag by secondary, in the order of the replica set config, shard by shard through a mongos
+	 */
+	public Map<String, LatencyHistogram> getLag() {
+		Map<String, LatencyHistogram> lag = new LinkedHashMap<String, LatencyHistogram>();
+		for (Tailer tailer : tailers) {
+			lag.put(tailer.address.toString(), tailer.lag);
+		}
+		return lag;
+	}
+
+	/**
+	 * @param inserts The documents inserted per second, aligned to the series by wall-clock time
+	 * @return A report of the lag of each secondary and a chart of the mean lag of the slowest secondary against the insert rate
+	 */
+	public String report(ThroughputSeries inserts) {
+		StringBuilder sb = new StringBuilder("Replication lag");
+		int length = 0;
+		for (Tailer tailer : tailers) {
+			sb.append(String.format("%n  %s: %s", tailer.address, tailer.lag.summary()));
+			length = Math.max(length, tailer.samples.getLength());
+		}
+		if (length == 0) {
+			return sb.toString();
+		}
+		//Insert seconds count from the start of the load, lag seconds from the start of the monitor
+		int offset = (int)((startMillis - inserts.getStartMillis()) / 1000);
+		int bucket = (length + CHART_ROWS - 1) / CHART_ROWS;
+		int rows = (length + bucket - 1) / bucket;
+		double[] rate = new double[rows];
+		double[] lag = new double[rows];
+		double maxLag = 0;
+		for (int r = 0; r < rows; r++) {
+			long documents = 0;
+			for (int s = r * bucket; s < (r + 1) * bucket; s++) {
+				documents += inserts.get(s + offset);
+			}
+			rate[r] = documents / (double)bucket;
+			for (Tailer tailer : tailers) {
+				long sum = 0;
+				long count = 0;
+				for (int s = r * bucket; s < (r + 1) * bucket; s++) {
+					sum += tailer.lagMillis.get(s);
+					count += tailer.samples.get(s);
+				}
+				if (count > 0) {
+					lag[r] = Math.max(lag[r], sum / (double)count);
+				}
+			}
+			maxLag = Math.max(maxLag, lag[r]);
+		}
+		sb.append(String.format("%n  %8s %10s %10s", "second", "inserts/s", "lag ms"));
+		for (int r = 0; r < rows; r++) {
+			int bar = (maxLag == 0 ? 0 : (int)Math.round(lag[r] / maxLag * CHART_WIDTH));
+			sb.append(String.format("%n  %8d %10.0f %10.1f %s", r * bucket, rate[r], lag[r], repeat('#', bar)));
+		}
+		return sb.toString();
+	}
+
+	private static String repeat(char c, int n) {
+		char[] chars = new char[n];
+		Arrays.fill(chars, c);
+		return new String(chars);
+	}
+}
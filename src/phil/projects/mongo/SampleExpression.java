@@ -0,0 +1,391 @@
+package phil.projects.mongo;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.log4j.Logger;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.DBObject;
+
+/**
+ * A generator expression in a JSON sample, replacing a literal value whose random counterpart would not match the data to
+ * simulate. An expression is a document with the key $gen naming the kind of value, plus the parameters of that kind:
+ *
+ * {"$gen": "int", "min": 0, "max": 1000} - an integer between min and max inclusive, by default 0 and 2147483647. Values
+ * outside the int range are generated as longs. With "distribution": "zipfian" and an optional "theta" (default 0.99), a few
+ * values are picked most of the time, see KeyDistribution.
+ * {"$gen": "double", "min": 0, "max": 1} - a double between min inclusive and max exclusive, by default 0 and 1
+ * {"$gen": "enum", "values": ["a", "b", "c"], "weights": [5, 3, 2]} - one of the values, which must be strings, numbers or
+ * booleans. Without weights all values are equally likely.
+ * {"$gen": "seq", "start": 0, "step": 1} - start + step * the number of the document, as a long
+ * {"$gen": "ref", "collection": "customers", "distribution": "zipfian"} - the _id of a document of another collection loaded
+ * in the same run with sequence ids, see IdPools. The distribution and theta are those of int and determine the fan-out, how
+ * many documents reference the same one. Ids registered as an IdRegistry are drawn uniformly. With "count": n, a list of n ids is generated instead, or with "count": n and
+ * "maxcount": m a list of between n and m ids. IdPools only knows the collections loaded by this process, so in a run spread over
+ * agents, references only point to the documents loaded by the same agent.
+ *
+ * Expressions are compiled once with the sample and are immutable, so all threads share them. References are resolved against
+ * the registered ids by resolve() before each run, which returns a resolved copy for the caller to keep and leaves the compiled
+ * expression as it is, so that factories sharing a compiled sample cannot change each other's references. Random values are drawn from the calling thread's RandomGenerator, which
+ * keeps seeded runs deterministic.
+ *
+ * @author ptaprogg
+ *
+ */
+abstract class SampleExpression {
+
+	private static final Logger logger = Logger.getLogger(SampleExpression.class);
+
+	/**
+	 * The key marking a document as an expression
+	 */
+	static final String GEN = "$gen";
+
+	private static final double DEFAULT_THETA = 0.99;
+
+	/**
+	 * Evaluates the expression for one document
+	 *
+	 * @param rand The generator to draw random values from
+	 * @param sequence The number of the document being generated
+	 * @return The value
+	 */
+	abstract Object evaluate(RandomGenerator rand, long sequence);
+
+	/**
+	 * Prepares the expression for a run, once all collections of the run have been registered in IdPools. Nothing to do for
+	 * expressions other than references.
+	 *
+	 * @return The expression to evaluate in the run, this one unless it refers to other collections
+	 * @throws IllegalStateException If the expression refers to a collection that is not registered
+	 */
+	SampleExpression resolve() {
+		return this;
+	}
+
+	/**
+	 * @param sample A value of the sample
+	 * @return True if the value is an expression
+	 */
+	static boolean isExpression(Object sample) {
+		return (sample instanceof DBObject) && ((DBObject)sample).containsField(GEN);
+	}
+
+	/**
+	 * Compiles an expression
+	 *
+	 * @param key The key of the field holding the expression, for error messages
+	 * @param spec The expression document
+	 * @return The compiled expression
+	 * @throws IllegalArgumentException If the kind is unknown or a parameter is missing, unknown or invalid
+	 */
+	static SampleExpression compile(String key, DBObject spec) {
+		Object kind = spec.get(GEN);
+		if ("int".equals(kind)) {
+			checkParameters(key, spec, "min", "max", "distribution", "theta");
+			long min = longParameter(key, spec, "min", 0);
+			long max = longParameter(key, spec, "max", Integer.MAX_VALUE);
+			if (max < min) {
+				throw invalid(key, "max below min");
+			}
+			if (max - min < 0) {
+				throw invalid(key, "range too large");
+			}
+			String distribution = (spec.containsField("distribution") ? String.valueOf(spec.get("distribution")) : KeyDistribution.UNIFORM);
+			double theta = doubleParameter(key, spec, "theta", DEFAULT_THETA);
+			KeyDistribution values;
+			try {
+				values = KeyDistribution.create(distribution, new KeyRange(min, max - min + 1), theta);
+			}
+			catch (IllegalArgumentException iae) {
+				throw invalid(key, iae.getMessage());
+			}
+			return new IntExpression(values, (min >= Integer.MIN_VALUE) && (max <= Integer.MAX_VALUE));
+		}
+		if ("double".equals(kind)) {
+			checkParameters(key, spec, "min", "max");
+			double min = doubleParameter(key, spec, "min", 0);
+			double max = doubleParameter(key, spec, "max", 1);
+			if (!(max > min)) {
+				throw invalid(key, "max not above min");
+			}
+			return new DoubleExpression(min, max);
+		}
+		if ("enum".equals(kind)) {
+			checkParameters(key, spec, "values", "weights");
+			Object[] values = listParameter(key, spec, "values");
+			if (values.length == 0) {
+				throw invalid(key, "no values");
+			}
+			for (Object value : values) {
+				if (!(value instanceof String) && !(value instanceof Number) && !(value instanceof Boolean)) {
+					throw invalid(key, "values must be strings, numbers or booleans");
+				}
+			}
+			double[] cumulative = null;
+			if (spec.containsField("weights")) {
+				Object[] weights = listParameter(key, spec, "weights");
+				if (weights.length != values.length) {
+					throw invalid(key, "number of weights differs from number of values");
+				}
+				cumulative = new double[weights.length];
+				double total = 0;
+				for (int i = 0; i < weights.length; i++) {
+					if (!(weights[i] instanceof Number) || !(((Number)weights[i]).doubleValue() >= 0)) {
+						throw invalid(key, "weights must be numbers not below 0");
+					}
+					total += ((Number)weights[i]).doubleValue();
+					cumulative[i] = total;
+				}
+				if (!(total > 0)) {
+					throw invalid(key, "weights must not all be 0");
+				}
+			}
+			return new EnumExpression(values, cumulative);
+		}
+		if ("seq".equals(kind)) {
+			checkParameters(key, spec, "start", "step");
+			return new SequenceExpression(longParameter(key, spec, "start", 0), longParameter(key, spec, "step", 1));
+		}
+		if ("ref".equals(kind)) {
+			checkParameters(key, spec, "collection", "distribution", "theta", "count", "maxcount");
+			if (!(spec.get("collection") instanceof String)) {
+				throw invalid(key, "collection must be a collection name");
+			}
+			String distribution = (spec.containsField("distribution") ? String.valueOf(spec.get("distribution")) : KeyDistribution.UNIFORM);
+			double theta = doubleParameter(key, spec, "theta", DEFAULT_THETA);
+			try {
+				//Checks name and theta, the range is only known once the run is prepared
+				KeyDistribution.create(distribution, new KeyRange(0, 2), theta);
+			}
+			catch (IllegalArgumentException iae) {
+				throw invalid(key, iae.getMessage());
+			}
+			long count = longParameter(key, spec, "count", -1);
+			long maxCount = longParameter(key, spec, "maxcount", count);
+			if (spec.containsField("maxcount") && !spec.containsField("count")) {
+				throw invalid(key, "maxcount requires count");
+			}
+			if (spec.containsField("count") && (count < 0)) {
+				throw invalid(key, "count must not be negative");
+			}
+			if ((maxCount < count) || (maxCount > Integer.MAX_VALUE)) {
+				throw invalid(key, "maxcount below count or too large");
+			}
+			return new ReferenceExpression((String)spec.get("collection"), distribution, theta, (int)count, (int)maxCount);
+		}
+		logger.error("Unknown generator expression " + kind + " at \"" + key + "\"");
+		throw new IllegalArgumentException("Unknown generator expression " + kind + " at \"" + key + "\", expected int, double, enum, seq or ref");
+	}
+
+	private static IllegalArgumentException invalid(String key, String reason) {
+		logger.error("Invalid generator expression at \"" + key + "\": " + reason);
+		return new IllegalArgumentException("Invalid generator expression at \"" + key + "\": " + reason);
+	}
+
+	private static void checkParameters(String key, DBObject spec, String... parameters) {
+		Set<String> known = new HashSet<String>(Arrays.asList(parameters));
+		known.add(GEN);
+		for (String parameter : spec.keySet()) {
+			if (!known.contains(parameter)) {
+				throw invalid(key, "unknown parameter " + parameter + " for " + spec.get(GEN));
+			}
+		}
+	}
+
+	private static long longParameter(String key, DBObject spec, String parameter, long defaultValue) {
+		Object value = spec.get(parameter);
+		if (value == null) {
+			return defaultValue;
+		}
+		if (!(value instanceof Integer) && !(value instanceof Long)) {
+			throw invalid(key, parameter + " must be an integer");
+		}
+		return ((Number)value).longValue();
+	}
+
+	private static double doubleParameter(String key, DBObject spec, String parameter, double defaultValue) {
+		Object value = spec.get(parameter);
+		if (value == null) {
+			return defaultValue;
+		}
+		if (!(value instanceof Number)) {
+			throw invalid(key, parameter + " must be a number");
+		}
+		return ((Number)value).doubleValue();
+	}
+
+	private static Object[] listParameter(String key, DBObject spec, String parameter) {
+		Object value = spec.get(parameter);
+		if (!(value instanceof List)) {
+			throw invalid(key, parameter + " must be a list");
+		}
+		return ((List<?>)value).toArray();
+	}
+
+	private static final class IntExpression extends SampleExpression {
+
+		private final KeyDistribution values;
+		private final boolean intRange;
+
+		IntExpression(KeyDistribution values, boolean intRange) {
+			this.values = values;
+			this.intRange = intRange;
+		}
+
+		@Override
+		Object evaluate(RandomGenerator rand, long sequence) {
+			long value = rand.getRandomLong(values);
+			//Not as a conditional expression, which would promote both to long
+			if (intRange) {
+				return Integer.valueOf((int)value);
+			}
+			return Long.valueOf(value);
+		}
+	}
+
+	private static final class DoubleExpression extends SampleExpression {
+
+		private final double min;
+		private final double span;
+
+		DoubleExpression(double min, double max) {
+			this.min = min;
+			this.span = max - min;
+		}
+
+		@Override
+		Object evaluate(RandomGenerator rand, long sequence) {
+			return min + rand.getRandomDouble() * span;
+		}
+	}
+
+	private static final class EnumExpression extends SampleExpression {
+
+		private final Object[] values;
+
+		//Running totals of the weights, null if all values are equally likely
+		private final double[] cumulative;
+
+		EnumExpression(Object[] values, double[] cumulative) {
+			this.values = values;
+			this.cumulative = cumulative;
+		}
+
+		@Override
+		Object evaluate(RandomGenerator rand, long sequence) {
+			if (cumulative == null) {
+				return values[rand.getRandomIntInRange(values.length)];
+			}
+			double pick = rand.getRandomDouble() * cumulative[cumulative.length - 1];
+			//The first value whose running total is above the pick, which is never one of weight 0
+			int low = 0;
+			int high = cumulative.length - 1;
+			while (low < high) {
+				int middle = (low + high) >>> 1;
+				if (cumulative[middle] > pick) {
+					high = middle;
+				}
+				else {
+					low = middle + 1;
+				}
+			}
+			return values[low];
+		}
+	}
+
+	private static final class SequenceExpression extends SampleExpression {
+
+		private final long start;
+		private final long step;
+
+		SequenceExpression(long start, long step) {
+			this.start = start;
+			this.step = step;
+		}
+
+		@Override
+		Object evaluate(RandomGenerator rand, long sequence) {
+			return start + step * sequence;
+		}
+	}
+
+	private static final class ReferenceExpression extends SampleExpression {
+
+		/**
+		 * A reference resolved for one run, drawing from the ids registered for the collection, either as a distribution over
+		 * a range or as a registry
+		 */
+		private static final class Resolved extends SampleExpression {
+
+			final KeyDistribution distribution;
+			final IdRegistry registry;
+			final int count;
+			final int maxCount;
+
+			Resolved(KeyDistribution distribution, IdRegistry registry, int count, int maxCount) {
+				this.distribution = distribution;
+				this.registry = registry;
+				this.count = count;
+				this.maxCount = maxCount;
+			}
+
+			private Object next(RandomGenerator rand) {
+				return (distribution == null ? rand.getRandomId(registry) : rand.getRandomLong(distribution));
+			}
+
+			@Override
+			Object evaluate(RandomGenerator rand, long sequence) {
+				if (count < 0) {
+					return next(rand);
+				}
+				int n = (maxCount > count ? count + rand.getRandomIntInRange(maxCount - count + 1) : count);
+				BasicDBList references = new BasicDBList();
+				for (int i = 0; i < n; i++) {
+					references.add(next(rand));
+				}
+				return references;
+			}
+		}
+
+		private final String collection;
+		private final String distribution;
+		private final double theta;
+
+		//Negative for a single id
+		private final int count;
+		private final int maxCount;
+
+		ReferenceExpression(String collection, String distribution, double theta, int count, int maxCount) {
+			this.collection = collection;
+			this.distribution = distribution;
+			this.theta = theta;
+			this.count = count;
+			this.maxCount = maxCount;
+		}
+
+		/**
+		 * Creates the distribution over the ids of the collection, which takes time linear in their number for the zipfian
+		 * distributions, so that it is neither done while generating nor by several threads
+		 */
+		@Override
+		SampleExpression resolve() {
+			KeyRange range = IdPools.get(collection);
+			IdRegistry registry = (range == null ? IdPools.getRegistry(collection) : null);
+			if ((range == null) && (registry == null)) {
+				logger.error("No ids registered for referenced collection " + collection);
+				throw new IllegalStateException("No ids registered for referenced collection " + collection
+						+ ", which must be loaded in the same run by this process, with sequence ids or registered ObjectIds");
+			}
+			return new Resolved((range == null ? null : KeyDistribution.create(distribution, range, theta)), registry, count, maxCount);
+		}
+
+		@Override
+		Object evaluate(RandomGenerator rand, long sequence) {
+			throw new IllegalStateException("Reference to collection " + collection + " has not been resolved");
+		}
+	}
+}
@@ -0,0 +1,268 @@
+package phil.projects.mongo;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.CommandResult;
+import com.mongodb.DB;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+import com.mongodb.WriteConcern;
+import com.mongodb.util.JSON;
+import com.mongodb.util.JSONParseException;
+
+/**
+ * Shards the target collection before a load so that inserts are spread over all shards from the start, instead of landing on a
+ * single chunk that the balancer then has to split and move while the load runs.
+ *
+ * With a hashed shard key, the cluster creates and distributes the initial chunks itself. With a ranged key on _id and sequence ids,
+ * the range of document numbers is split into equal chunks which are moved to the shards round-robin. Other ranged keys cannot be
+ * pre-split as their values are not known in advance. Balancing of the collection is disabled during the load and restored afterwards.
+ *
+ * Against a plain mongod, which has no sharding commands, the setup is skipped with a warning.
+ *
+ * @author ptaprogg
+ *
+ */
+public class ShardingSetup {
+
+	private static Logger logger = Logger.getLogger(ShardingSetup.class);
+
+	private final DBCollection collection;
+	private final DB admin;
+	private final String namespace;
+	private final DBObject shardKey;
+
+	//Whether the collection was sharded by this setup
+	private boolean sharded = false;
+
+	//Documents per shard as reported by collStats after the load
+	private final Map<String, Long> distribution = new LinkedHashMap<String, Long>();
+
+	/**
+	 * @param collection The collection to shard
+	 * @param shardKey The shard key as JSON, e.g. {"_id": "hashed"}
+	 */
+	public ShardingSetup(DBCollection collection, String shardKey) {
+		this.collection = collection;
+		this.admin = collection.getDB().getSisterDB("admin");
+		this.namespace = collection.getFullName();
+		this.shardKey = parseKey(shardKey);
+	}
+
+	/**
+	 * Parses a shard key definition
+	 *
+	 * @param shardKey The key as JSON
+	 * @return The key document
+	 * @throws IllegalArgumentException If the definition is not a JSON document
+	 */
+	static DBObject parseKey(String shardKey) {
+		Object parsed;
+		try {
+			parsed = JSON.parse(shardKey);
+		}
+		catch (JSONParseException jpe) {
+			throw new IllegalArgumentException("Shard key " + shardKey + " is not valid JSON", jpe);
+		}
+		if (!(parsed instanceof DBObject) || ((DBObject)parsed).keySet().isEmpty()) {
+			throw new IllegalArgumentException("Shard key " + shardKey + " is not a key document");
+		}
+		return (DBObject)parsed;
+	}
+
+	private boolean isHashed() {
+		return shardKey.keySet().size() == 1 && "hashed".equals(shardKey.get(shardKey.keySet().iterator().next()));
+	}
+
+	/**
+	 * @return True if connected to a mongos
+	 */
+	private boolean isMongos() {
+		try {
+			return admin.command("isdbgrid").ok();
+		}
+		catch (MongoException me) {
+			logger.debug("isdbgrid failed: " + me.getMessage());
+			return false;
+		}
+	}
+
+	/**
+	 * Lists the shards of the cluster
+	 *
+	 * @return The shard names
+	 */
+	List<String> listShards() {
+		CommandResult result = admin.command("listShards");
+		result.throwOnError();
+		List<String> shards = new ArrayList<String>();
+		for (Object shard : (List<?>)result.get("shards")) {
+			shards.add(((DBObject)shard).get("_id").toString());
+		}
+		return shards;
+	}
+
+	private CommandResult command(DBObject command, boolean failOnError) {
+		CommandResult result = admin.command(command);
+		if (!result.ok()) {
+			if (failOnError) {
+				logger.error("Command " + command + " failed: " + result.getErrorMessage());
+				result.throwOnError();
+			}
+			logger.debug("Command " + command + " failed: " + result.getErrorMessage());
+		}
+		return result;
+	}
+
+	/**
+	 * Enables sharding on the database, shards the empty collection and distributes its initial chunks.
+	 *
+	 * @param range The document numbers the whole run will load, including those of other agents
+	 * @param chunks The number of chunks to pre-split into, 0 for one per shard
+	 * @param sequenceIds Whether _id values are the document numbers
+	 * @return True if the collection was sharded, false if not connected to a mongos
+	 */
+	public boolean shard(KeyRange range, int chunks, boolean sequenceIds) {
+		if (!isMongos()) {
+			logger.warn("Not connected to a mongos, loading " + namespace + " unsharded");
+			return false;
+		}
+		List<String> shards = listShards();
+		if (chunks <= 0) {
+			chunks = shards.size();
+		}
+		logger.info("Sharding " + namespace + " on " + shardKey + " across " + shards.size() + " shards");
+
+		//Fails harmlessly if sharding is already enabled for the database
+		command(new BasicDBObject("enableSharding", collection.getDB().getName()), false);
+
+		BasicDBObject shardCollection = new BasicDBObject("shardCollection", namespace).append("key", shardKey);
+		if (isHashed()) {
+			//The cluster splits the hashed key space and spreads the chunks evenly itself
+			shardCollection.append("numInitialChunks", chunks);
+			command(shardCollection, true);
+		}
+		else {
+			command(shardCollection, true);
+			if (shardKey.keySet().size() == 1 && shardKey.containsField("_id") && sequenceIds) {
+				preSplit(range, chunks, shards);
+			}
+			else {
+				logger.warn("Ranged shard key " + shardKey + " cannot be pre-split, inserts will start on a single chunk. Consider a hashed key.");
+			}
+		}
+		sharded = true;
+
+		//Chunks are placed already, keep the balancer from moving them during the load
+		setBalancing(false);
+		return true;
+	}
+
+	/**
+	 * Calculates where to split a range into equal chunks
+	 *
+	 * @param range The document numbers of the whole run
+	 * @param chunks The number of chunks, at most one per document
+	 * @return The first document number of each chunk. The first chunk also holds all lower keys, the last one all higher keys.
+	 */
+	static List<Long> splitPoints(KeyRange range, int chunks) {
+		chunks = (int)Math.max(1, Math.min(chunks, range.getCount()));
+		List<Long> points = new ArrayList<Long>(chunks);
+		for (int c = 0; c < chunks; c++) {
+			points.add(range.split(chunks, c).getStart());
+		}
+		return points;
+	}
+
+	/**
+	 * Splits the range into equal chunks and moves them to the shards round-robin
+	 */
+	private void preSplit(KeyRange range, int chunks, List<String> shards) {
+		List<Long> points = splitPoints(range, chunks);
+		for (Long point : points.subList(1, points.size())) {
+			command(new BasicDBObject("split", namespace).append("middle", new BasicDBObject("_id", point)), true);
+		}
+		for (int c = 0; c < points.size(); c++) {
+			String shard = shards.get(c % shards.size());
+			BasicDBObject moveChunk = new BasicDBObject("moveChunk", namespace)
+					.append("find", new BasicDBObject("_id", points.get(c)))
+					.append("to", shard);
+			CommandResult result = command(moveChunk, false);
+			//Moving a chunk onto the shard it is on already fails, which is fine
+			if (!result.ok() && !String.valueOf(result.getErrorMessage()).contains("already")) {
+				result.throwOnError();
+			}
+		}
+		logger.info("Pre-split " + range + " into " + points.size() + " chunks");
+	}
+
+	/**
+	 * Enables or disables balancing of the collection only, leaving the cluster-wide balancer setting alone
+	 */
+	private void setBalancing(boolean enabled) {
+		DBCollection collections = collection.getDB().getSisterDB("config").getCollection("collections");
+		DBObject update = (enabled ? new BasicDBObject("$unset", new BasicDBObject("noBalance", 1))
+				: new BasicDBObject("$set", new BasicDBObject("noBalance", true)));
+		collections.update(new BasicDBObject("_id", namespace), update, false, false, WriteConcern.ACKNOWLEDGED);
+		logger.debug("Balancing of " + namespace + (enabled ? " enabled" : " disabled"));
+	}
+
+	/**
+	 * Restores balancing of the collection and reads how the documents were distributed over the shards.
+	 */
+	public void finish() {
+		if (!sharded) {
+			return;
+		}
+		setBalancing(true);
+		distribution.clear();
+		CommandResult stats = collection.getStats();
+		if (!stats.ok() || !(stats.get("shards") instanceof DBObject)) {
+			logger.warn("Unable to retrieve per-shard statistics: " + stats.getErrorMessage());
+			return;
+		}
+		DBObject shards = (DBObject)stats.get("shards");
+		for (String shard : shards.keySet()) {
+			Object count = ((DBObject)shards.get(shard)).get("count");
+			distribution.put(shard, (count instanceof Number ? ((Number)count).longValue() : 0));
+		}
+	}
+
+	public boolean isSharded() {
+		return sharded;
+	}
+
+	/**
+	 * @return The number of documents on each shard, empty if not sharded or not yet finished
+	 */
+	public Map<String, Long> getDistribution() {
+		return distribution;
+	}
+
+	/**
+	 * @return A multi-line, human-readable report of the documents per shard
+	 */
+	public String report() {
+		if (!sharded) {
+			return namespace + " was loaded unsharded";
+		}
+		long total = 0;
+		for (long count : distribution.values()) {
+			total += count;
+		}
+		StringBuilder sb = new StringBuilder();
+		sb.append(String.format("Distribution of %s over %d shards, key %s", namespace, distribution.size(), shardKey));
+		for (Map.Entry<String, Long> shard : distribution.entrySet()) {
+			sb.append(String.format("%n  %s: %d documents (%.1f%%)", shard.getKey(), shard.getValue(),
+					(total == 0 ? 0 : shard.getValue() * 100.0 / total)));
+		}
+		return sb.toString();
+	}
+}
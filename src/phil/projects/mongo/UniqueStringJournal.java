@@ -0,0 +1,168 @@
+package phil.projects.mongo;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The unique strings a worker's RandomGenerator has handed out, appended to a file next to the worker's checkpoint.
+ *
+ * Writing the whole set of unique strings with every checkpoint takes time linear in the documents loaded so far, and
+ * quadratic time over a long run. Instead the generator passes each new unique string to its journal, and a checkpoint
+ * only appends the strings generated since the previous one and records the length of the file it covers. Resuming
+ * reads the file up to that length and drops anything appended after it. Not thread-safe, owned by one worker.
+ *
+ * @author ptaprogg
+ *
+ */
+final class UniqueStringJournal {
+
+	//Record types: a string encoded as a long, or a string too long to be encoded
+	private static final byte ENCODED = 0;
+	private static final byte STRING = 1;
+
+	private final File file;
+
+	//Strings generated since the last flush
+	private long[] encoded = new long[1024];
+	private int encodedCount = 0;
+	private final List<String> strings = new ArrayList<String>();
+
+	UniqueStringJournal(File file) {
+		this.file = file;
+	}
+
+	/**
+	 * Gets the file the unique strings of a worker are journaled to
+	 *
+	 * @param checkpointFile The worker's checkpoint file
+	 * @return The journal file
+	 */
+	static File fileFor(File checkpointFile) {
+		return new File(checkpointFile.getPath() + ".strings");
+	}
+
+	void added(long code) {
+		if (encodedCount == encoded.length) {
+			encoded = Arrays.copyOf(encoded, encoded.length * 2);
+		}
+		encoded[encodedCount++] = code;
+	}
+
+	void added(String s) {
+		strings.add(s);
+	}
+
+	/**
+	 * Appends the strings generated since the last flush to the file
+	 *
+	 * @return The length of the file, to be recorded with the checkpoint
+	 * @throws IOException If the strings cannot be written
+	 */
+	long flush() throws IOException {
+		if ((encodedCount > 0) || !strings.isEmpty()) {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+			try {
+				for (int i = 0; i < encodedCount; i++) {
+					out.writeByte(ENCODED);
+					out.writeLong(encoded[i]);
+				}
+				for (String s : strings) {
+					out.writeByte(STRING);
+					out.writeUTF(s);
+				}
+			}
+			finally {
+				out.close();
+			}
+			encodedCount = 0;
+			strings.clear();
+		}
+		return file.length();
+	}
+
+	/**
+	 * Empties the file for a run that does not resume
+	 *
+	 * @throws IOException If the file cannot be truncated
+	 */
+	void reset() throws IOException {
+		truncate(0);
+		encodedCount = 0;
+		strings.clear();
+	}
+
+	/**
+	 * Adds the strings journaled up to a checkpoint to a generator and drops those journaled after it
+	 *
+	 * @param length The length of the file recorded with the checkpoint
+	 * @param rand The generator to add the strings to
+	 * @throws IOException If the file is shorter than the checkpoint expects or cannot be read
+	 */
+	void replay(long length, RandomGenerator rand) throws IOException {
+		if (file.length() < length) {
+			throw new IOException("Unique string journal " + file + " is shorter than its checkpoint expects");
+		}
+		if (length > 0) {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			try {
+				long read = 0;
+				while (read < length) {
+					byte type = in.readByte();
+					if (type == ENCODED) {
+						rand.restoreUniqueString(in.readLong());
+						read += 9;
+					}
+					else if (type == STRING) {
+						String s = in.readUTF();
+						rand.restoreUniqueString(s);
+						//The UTF length prefix and the modified UTF-8 bytes
+						read += 3 + utfLength(s);
+					}
+					else {
+						throw new IOException("Unique string journal " + file + " is corrupt at offset " + read);
+					}
+				}
+			}
+			catch (EOFException eofe) {
+				throw new IOException("Unique string journal " + file + " ends within a record", eofe);
+			}
+			finally {
+				in.close();
+			}
+		}
+		truncate(length);
+		encodedCount = 0;
+		strings.clear();
+	}
+
+	private void truncate(long length) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.setLength(length);
+		}
+		finally {
+			raf.close();
+		}
+	}
+
+	//The number of bytes DataOutput.writeUTF() writes for the characters of a string
+	private static int utfLength(String s) {
+		int length = 0;
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			length += ((c >= 0x0001) && (c <= 0x007F) ? 1 : (c > 0x07FF ? 3 : 2));
+		}
+		return length;
+	}
+}
@@ -0,0 +1,215 @@
+package phil.projects.mongo;
+
+import java.util.Date;
+import java.util.Random;
+
+import org.apache.log4j.Logger;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.CommandResult;
+import com.mongodb.DBCollection;
+import com.mongodb.MongoException;
+import com.mongodb.ReadPreference;
+import com.mongodb.WriteConcern;
+import com.mongodb.WriteResult;
+
+import phil.projects.mongo.stats.GrowthStatistics;
+
+/**
+ * Grows existing invoices by adding line items to them, to measure how update latency develops as documents get larger.
+ *
+ * Each update picks an invoice from the configured key distribution, by document number with sequence ids or else by its place
+ * in the ids registered while inserting, see IdRegistry. It adds new line items to the invoice, increments
+ * its item count, total price and update counter and sets the time of the update. Invoices keep their line items in a
+ * sub-document keyed by item name rather than in an array, so new items are added with $set on a new key instead of $push.
+ * The effect on the document, and on the storage engine having to grow or move it, is the same.
+ * Updates retried after a transient error only apply if the invoice does not hold their first new item yet, so that an update
+ * whose response was lost does not increment the totals twice.
+ *
+ * Latencies are recorded by how often the invoice had been grown in this run before, so that hot invoices growing large can
+ * be told apart from the rest. On MMAPv1, the collection's padding factor before and after shows how often documents had to move.
+ *
+ * @author ptaprogg
+ *
+ */
+public class UpdateWorkload {
+
+	private static Logger logger = Logger.getLogger(UpdateWorkload.class);
+
+	private final DBCollection collection;
+	private final MongoLoadConfig config;
+	private final KeyRange range;
+	private final IdRegistry ids;
+	private final KeyDistribution distribution;
+	private final WriteConcern writeConcern;
+	private final WriteRetrier retrier;
+
+	//How often each document updated in this run has been grown, only holding the documents actually picked
+	private final LongCounterMap growth = new LongCounterMap();
+
+	private GrowthStatistics statistics;
+	private volatile Throwable failure;
+	private Double paddingBefore;
+	private Double paddingAfter;
+
+	/**
+	 * @param collection The collection holding the documents to update
+	 * @param config The config holding the update settings. Documents are picked from the range that was loaded.
+	 * @param ids The ids of the documents written, null to pick documents by number from the range that was loaded
+	 * @throws IllegalStateException If no ids were registered, as every insert failed
+	 */
+	public UpdateWorkload(DBCollection collection, MongoLoadConfig config, IdRegistry ids) {
+		if ((ids != null) && (ids.size() == 0)) {
+			throw new IllegalStateException("No ids of inserted documents registered to update");
+		}
+		this.collection = collection;
+		this.config = config;
+		this.ids = ids;
+		//Indexes into the registry take the place of document numbers
+		this.range = (ids == null ? new KeyRange(config.getFirstDoc(), config.getNumdocs()) : new KeyRange(0, ids.size()));
+		this.distribution = KeyDistribution.create(config.getUpdateDistribution(), range, config.getUpdateTheta());
+		this.writeConcern = config.getWriteConcern();
+		this.retrier = new WriteRetrier(config);
+	}
+
+	private Double paddingFactor() {
+		CommandResult stats = collection.getStats();
+		Object padding = stats.get("paddingFactor");
+		return (padding instanceof Number ? Double.valueOf(((Number)padding).doubleValue()) : null);
+	}
+
+	/**
+	 * Runs the configured number of updates split over the update threads and waits for them to finish.
+	 *
+	 * @return The statistics of the updates
+	 * @throws RuntimeException If an update failed
+	 */
+	public GrowthStatistics run() {
+		paddingBefore = paddingFactor();
+		statistics = new GrowthStatistics(System.currentTimeMillis());
+		failure = null;
+		final RateLimiter limiter = (config.getRateLimit() > 0 ? new RateLimiter(config.getRateLimit()) : null);
+		int threads = config.getUpdateThreads();
+		logger.info("Starting " + config.getUpdates() + " updates of " + range + " using " + threads + " threads, picking documents "
+				+ config.getUpdateDistribution());
+
+		Thread[] workers = new Thread[threads];
+		for (int i = 0; i < threads; i++) {
+			final int worker = i;
+			final int updates = config.getUpdates() / threads + (i < config.getUpdates() % threads ? 1 : 0);
+			workers[i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						update(worker, updates, limiter);
+					}
+					catch (Throwable t) {
+						logger.error("Update worker " + worker + " failed: " + t.getMessage());
+						statistics.recordError();
+						failure = t;
+					}
+				}
+			}, "MongoLoad updater " + i);
+			workers[i].start();
+		}
+		for (Thread worker : workers) {
+			try {
+				worker.join();
+			}
+			catch (InterruptedException ie) {
+				failure = ie;
+				Thread.currentThread().interrupt();
+			}
+		}
+		statistics.finish();
+		paddingAfter = paddingFactor();
+		if (failure != null) {
+			logger.error("Updates aborted: " + failure.getMessage());
+			throw (failure instanceof RuntimeException ? (RuntimeException)failure : new RuntimeException("Updates aborted", failure));
+		}
+		return statistics;
+	}
+
+	private void update(int worker, int updates, RateLimiter limiter) {
+		//Seeded runs pick the same documents again
+		Random random = (config.isSeeded() ? new Random(RandomGenerator.mix(config.getSeed() + 0x9e3779b97f4a7c15L * (worker + 1))) : new Random());
+		RandomGenerator rand = RandomGenerator.getInstance();
+		for (int u = 0; (u < updates) && (failure == null); u++) {
+			if (limiter != null) {
+				limiter.acquire(1);
+			}
+			long number = distribution.next(random);
+			int level = growth.getAndIncrement(number);
+			Object id = (ids == null ? Long.valueOf(number) : ids.getId(number));
+
+			BasicDBObject set = new BasicDBObject("last updated", new Date());
+			String firstItem = null;
+			int total = 0;
+			for (int i = 0; i < config.getUpdateItems(); i++) {
+				int amount = rand.getRandomIntInRange(20) + 1;
+				int unitprice = rand.getRandomIntInRange(100) + 1;
+				//The level makes the name unique within the invoice, so an item is never replaced
+				String item = "items." + rand.getRandomString(5) + "-" + level + "-" + i;
+				set.append(item, new BasicDBObject("amount", amount).append("unit price", unitprice).append("price", amount * unitprice));
+				firstItem = (firstItem == null ? item : firstItem);
+				total += amount * unitprice;
+			}
+			BasicDBObject inc = new BasicDBObject("total number of items", config.getUpdateItems()).append("total price", total).append("updates", 1);
+
+			final BasicDBObject query = new BasicDBObject("_id", id);
+			//The $inc is not idempotent. A retry only applies if an earlier attempt did not add the items before its response was lost.
+			final BasicDBObject retryQuery = new BasicDBObject("_id", id).append(firstItem, new BasicDBObject("$exists", false));
+			final BasicDBObject update = new BasicDBObject("$set", set).append("$inc", inc);
+			long start = System.nanoTime();
+			Boolean found;
+			try {
+				found = retrier.execute(new WriteRetrier.Write<Boolean>() {
+					@Override
+					public Boolean attempt(boolean retry) {
+						WriteResult result = collection.update((retry ? retryQuery : query), update, false, false, writeConcern);
+						//Unacknowledged writes do not report matches, count them as found
+						if (!writeConcern.callGetLastError() || (result.getN() > 0)) {
+							return Boolean.TRUE;
+						}
+						//Nothing matched the retry either because the invoice is missing or because it has the items already
+						return Boolean.valueOf(retry && (collection.count(query, ReadPreference.primary()) > 0));
+					}
+
+					@Override
+					public boolean isApplied() {
+						//Updates do not insert, a duplicate key is an error
+						return false;
+					}
+				}, statistics);
+			}
+			catch (MongoException me) {
+				if (!config.isSkipErrors()) {
+					throw me;
+				}
+				statistics.recordError();
+				logger.warn("Skipped update of " + id + " after " + WriteError.classify(me).getLabel() + " error: " + me.getMessage());
+				continue;
+			}
+			long latency = (System.nanoTime() - start) / 1000;
+			statistics.recordUpdate(level, latency, (found == null) || found.booleanValue());
+		}
+	}
+
+	/**
+	 * @return The statistics of the current or last run, null if not run yet
+	 */
+	public GrowthStatistics getStatistics() {
+		return statistics;
+	}
+
+	/**
+	 * @return A multi-line, human-readable report of the updates
+	 */
+	public String report() {
+		StringBuilder sb = new StringBuilder(statistics.report());
+		if ((paddingBefore != null) && (paddingAfter != null)) {
+			sb.append(String.format("%nPadding factor %.3f before, %.3f after updating", paddingBefore, paddingAfter));
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,104 @@
+package phil.projects.mongo;
+
+import java.io.IOException;
+
+import com.mongodb.CommandResult;
+import com.mongodb.MongoException;
+import com.mongodb.WriteConcernException;
+
+/**
+ * Classes of errors a write can fail with, deciding whether the write is worth retrying.
+ *
+ * Network errors, a primary that stepped down and write concern timeouts are transient, e.g. while a replica set elects a
+ * new primary. Duplicate keys and all other errors will fail the same way again.
+ *
+ * @author ptaprogg
+ *
+ */
+public enum WriteError {
+
+	DUPLICATE_KEY("duplicate key", false),
+	NETWORK("network", true),
+	NOT_MASTER("not master", true),
+	WRITE_CONCERN_TIMEOUT("write concern timeout", true),
+	OTHER("other", false);
+
+	//Server error codes of duplicate keys
+	private static final int[] DUPLICATE_KEY_CODES = { 11000, 11001, 12582 };
+
+	//Server error codes of writes sent to a member that is not or no longer primary
+	private static final int[] NOT_MASTER_CODES = { 10054, 10056, 10058, 10107, 13435, 13436 };
+
+	//Server error code of a write concern that was not satisfied in time
+	private static final int WRITE_CONCERN_TIMEOUT_CODE = 64;
+
+	private final String label;
+	private final boolean retriable;
+
+	private WriteError(String label, boolean retriable) {
+		this.label = label;
+		this.retriable = retriable;
+	}
+
+	/**
+	 * @return A short lower-case name for reports and metrics
+	 */
+	public String getLabel() {
+		return label;
+	}
+
+	/**
+	 * @return True if the error is transient and the write may succeed when retried
+	 */
+	public boolean isRetriable() {
+		return retriable;
+	}
+
+	private static boolean contains(int[] codes, int code) {
+		for (int c : codes) {
+			if (c == code) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Classifies the error a write failed with
+	 *
+	 * @param t The error thrown by the driver
+	 * @return The class of the error
+	 */
+	public static WriteError classify(Throwable t) {
+		if (t instanceof MongoException.DuplicateKey) {
+			return DUPLICATE_KEY;
+		}
+		if ((t instanceof MongoException.Network) || (t instanceof IOException) || (t.getCause() instanceof IOException)) {
+			return NETWORK;
+		}
+		if (t instanceof WriteConcernException) {
+			CommandResult result = ((WriteConcernException)t).getCommandResult();
+			if (Boolean.TRUE.equals(result.get("wtimeout"))) {
+				return WRITE_CONCERN_TIMEOUT;
+			}
+		}
+		if (t instanceof MongoException) {
+			int code = ((MongoException)t).getCode();
+			if (contains(DUPLICATE_KEY_CODES, code)) {
+				return DUPLICATE_KEY;
+			}
+			if (contains(NOT_MASTER_CODES, code)) {
+				return NOT_MASTER;
+			}
+			if (code == WRITE_CONCERN_TIMEOUT_CODE) {
+				return WRITE_CONCERN_TIMEOUT;
+			}
+		}
+		//The driver reports a missing primary without a code
+		String message = String.valueOf(t.getMessage()).toLowerCase();
+		if (message.contains("not master") || message.contains("can't find a master") || message.contains("no replica set members")) {
+			return NOT_MASTER;
+		}
+		return OTHER;
+	}
+}
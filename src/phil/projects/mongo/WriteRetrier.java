@@ -0,0 +1,179 @@
+package phil.projects.mongo;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+import com.mongodb.ReadPreference;
+import com.mongodb.WriteConcern;
+
+import phil.projects.mongo.jfr.WriteRetryEvent;
+import phil.projects.mongo.stats.RetryListener;
+
+/**
+ * Retries writes that fail with transient errors, waiting exponentially longer between attempts.
+ *
+ * The backoff doubles with every attempt up to a maximum, and is randomized between half and the full value so that
+ * writers failing together do not retry together. A write that failed because of the network may still have been applied,
+ * so a duplicate key on a retry may mean that an earlier attempt succeeded. The write is then asked whether it is complete,
+ * as a retried batch can fail on the documents inserted before and on others alike. Instances can be shared between threads.
+ *
+ * @author ptaprogg
+ *
+ */
+public class WriteRetrier {
+
+	private static Logger logger = Logger.getLogger(WriteRetrier.class);
+
+	/**
+	 * One attempt of a write
+	 */
+	public interface Write<T> {
+
+		/**
+		 * @param retry True if an earlier attempt failed
+		 * @return The result of the write
+		 */
+		public T attempt(boolean retry);
+
+		/**
+		 * Called when a retry failed with a duplicate key
+		 *
+		 * @return True if earlier attempts applied the whole write, false if the duplicate key is an error
+		 */
+		public boolean isApplied();
+
+	}
+
+	/**
+	 * Inserts a batch of documents. A retry continues past the documents an earlier attempt inserted already.
+	 */
+	public static class BatchInsert implements Write<Void> {
+
+		private final DBCollection collection;
+		private final List<DBObject> batch;
+		private final WriteConcern writeConcern;
+
+		public BatchInsert(DBCollection collection, List<DBObject> batch, WriteConcern writeConcern) {
+			this.collection = collection;
+			this.batch = batch;
+			this.writeConcern = writeConcern;
+		}
+
+		@Override
+		public Void attempt(boolean retry) {
+			collection.insert(batch, (retry ? writeConcern.continueOnErrorForInsert(true) : writeConcern));
+			return null;
+		}
+
+		/**
+		 * The driver only reports the last error of a batch, so the documents are counted. The driver has set the ids of all of
+		 * them on the first attempt.
+		 */
+		@Override
+		public boolean isApplied() {
+			if (!writeConcern.callGetLastError()) {
+				//Nothing to count against reliably without acknowledged writes
+				return false;
+			}
+			BasicDBList ids = new BasicDBList();
+			for (DBObject document : batch) {
+				ids.add(document.get("_id"));
+			}
+			long written = collection.getCount(new BasicDBObject("_id", new BasicDBObject("$in", ids)), null, 0, 0, ReadPreference.primary());
+			if (written < batch.size()) {
+				logger.warn("Retried batch is missing " + (batch.size() - written) + " of " + batch.size() + " documents");
+				return false;
+			}
+			return true;
+		}
+	}
+
+	private final int maxRetries;
+	private final long backoffMillis;
+	private final long maxBackoffMillis;
+
+	/**
+	 * @param maxRetries The number of times a write is retried, 0 to fail on the first error
+	 * @param backoffMillis The wait before the first retry in ms
+	 * @param maxBackoffMillis The maximum wait between two attempts in ms
+	 */
+	public WriteRetrier(int maxRetries, long backoffMillis, long maxBackoffMillis) {
+		this.maxRetries = maxRetries;
+		this.backoffMillis = backoffMillis;
+		this.maxBackoffMillis = maxBackoffMillis;
+	}
+
+	/**
+	 * @param config The config holding the retry settings
+	 */
+	public WriteRetrier(MongoLoadConfig config) {
+		this(config.getMaxRetries(), config.getRetryBackoff(), config.getMaxRetryBackoff());
+	}
+
+	/**
+	 * Executes a write, retrying it on transient errors.
+	 *
+	 * @param write The write to execute
+	 * @param listener Records retries and recoveries
+	 * @return The result of the successful attempt, null if a retry found the write applied already
+	 * @throws MongoException The error of the last attempt if the write failed with a permanent error or after the last retry
+	 */
+	public <T> T execute(Write<T> write, RetryListener listener) {
+		long firstFailure = 0;
+		for (int attempt = 0;; attempt++) {
+			try {
+				T result = write.attempt(attempt > 0);
+				if (attempt > 0) {
+					listener.recordRecovery((System.nanoTime() - firstFailure) / 1000);
+				}
+				return result;
+			}
+			catch (MongoException me) {
+				WriteError error = WriteError.classify(me);
+				if ((attempt > 0) && (error == WriteError.DUPLICATE_KEY) && write.isApplied()) {
+					//An earlier attempt was applied before its response was lost
+					listener.recordRecovery((System.nanoTime() - firstFailure) / 1000);
+					return null;
+				}
+				if (!error.isRetriable() || (attempt >= maxRetries)) {
+					throw me;
+				}
+				if (attempt == 0) {
+					firstFailure = System.nanoTime();
+				}
+				listener.recordRetry(error.getLabel());
+				backoff(error, attempt + 1, me);
+			}
+		}
+	}
+
+	private void backoff(WriteError error, int attempt, MongoException me) {
+		long backoff = Math.min(maxBackoffMillis, backoffMillis * (1L << Math.min(attempt - 1, 20)));
+		backoff = backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+		logger.warn("Write failed with " + error.getLabel() + " error (" + me.getMessage() + "), retry " + attempt + " of " + maxRetries + " in " + backoff + "ms");
+		WriteRetryEvent retry = new WriteRetryEvent();
+		retry.begin();
+		try {
+			TimeUnit.MILLISECONDS.sleep(backoff);
+		}
+		catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			throw me;
+		}
+		retry.end();
+		if (retry.shouldCommit()) {
+			retry.error = error.getLabel();
+			retry.attempt = attempt;
+			retry.backoff = backoff;
+			retry.commit();
+		}
+	}
+}
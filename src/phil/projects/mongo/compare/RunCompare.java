@@ -0,0 +1,307 @@
+package phil.projects.mongo.compare;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import com.mongodb.DBObject;
+
+import phil.projects.mongo.LogShutdown;
+
+/**
+ * Compares the results of runs with a baseline and flags statistically significant regressions, e.g. to gate a server upgrade
+ * or config change on the same workload.
+ *
+ * Insert throughput is compared by Welch's t-test on the per-second throughput, leaving out the first and last second, which
+ * are partial. Insert, update and query latencies and the replication lag are compared by the Mann-Whitney U test on their
+ * histograms. A difference is a regression or improvement if it is significant at the chosen level and the mean changed by
+ * more than the threshold, as with millions of samples even negligible differences are significant. Other figures are shown
+ * for information. Settings and environment that differ from the baseline are listed first.
+ *
+ * Usage: RunCompare [-alpha 0.05] [-threshold 5] baseline.json candidate.json...
+ * The exit code is 2 if any candidate regressed, so that scripts can gate on it.
+ *
+ * @author ptaprogg
+ *
+ */
+public class RunCompare {
+
+	/**
+	 * The outcome of comparing one figure
+	 */
+	public static final class Difference {
+
+		private final String metric;
+		private final double baseline;
+		private final double candidate;
+		private final boolean lowerIsBetter;
+		private final double p;
+		private final String verdict;
+
+		Difference(String metric, double baseline, double candidate, boolean lowerIsBetter, double p, String verdict) {
+			this.metric = metric;
+			this.baseline = baseline;
+			this.candidate = candidate;
+			this.lowerIsBetter = lowerIsBetter;
+			this.p = p;
+			this.verdict = verdict;
+		}
+
+		public String getMetric() {
+			return metric;
+		}
+
+		public double getBaseline() {
+			return baseline;
+		}
+
+		public double getCandidate() {
+			return candidate;
+		}
+
+		public boolean isLowerBetter() {
+			return lowerIsBetter;
+		}
+
+		/**
+		 * @return The change in percent of the baseline
+		 */
+		public double getChangePercent() {
+			return (baseline == 0 ? 0 : (candidate - baseline) / baseline * 100);
+		}
+
+		/**
+		 * @return The p-value, NaN for figures compared for information only
+		 */
+		public double getP() {
+			return p;
+		}
+
+		public boolean isRegression() {
+			return REGRESSION.equals(verdict);
+		}
+
+		public String getVerdict() {
+			return verdict;
+		}
+	}
+
+	private static final String REGRESSION = "REGRESSION";
+	private static final String IMPROVEMENT = "improvement";
+
+	public static final double DEFAULT_ALPHA = 0.05;
+	public static final double DEFAULT_THRESHOLD = 5;
+
+	private final double alpha;
+	private final double threshold;
+
+	/**
+	 * @param alpha The significance level
+	 * @param threshold The smallest change of the mean in percent that counts as a regression or improvement
+	 */
+	public RunCompare(double alpha, double threshold) {
+		if ((alpha <= 0) || (alpha >= 1)) {
+			throw new IllegalArgumentException("Significance level must be between 0 and 1 exclusive");
+		}
+		if (threshold < 0) {
+			throw new IllegalArgumentException("Threshold must not be negative");
+		}
+		this.alpha = alpha;
+		this.threshold = threshold;
+	}
+
+	/**
+	 * Compares all figures the two results have in common
+	 *
+	 * @return The differences, in the order of the result file
+	 */
+	public List<Difference> compare(RunResult baseline, RunResult candidate) {
+		DBObject b = baseline.getDocument();
+		DBObject c = candidate.getDocument();
+		List<Difference> differences = new ArrayList<Difference>();
+		DBObject insertB = (DBObject)b.get("insert");
+		DBObject insertC = (DBObject)c.get("insert");
+		if ((insertB != null) && (insertC != null)) {
+			double[] throughputB = steadySeconds((List<?>)insertB.get("throughput"));
+			double[] throughputC = steadySeconds((List<?>)insertC.get("throughput"));
+			if ((throughputB.length >= 2) && (throughputC.length >= 2)) {
+				differences.add(tested("insert docs/s", Significance.mean(throughputB), Significance.mean(throughputC), false,
+						Significance.welch(throughputB, throughputC)));
+			}
+			else {
+				differences.add(info("insert docs/s", number(insertB, "documentsPerSecond"), number(insertC, "documentsPerSecond"), false));
+			}
+			latency(differences, "insert latency", (DBObject)insertB.get("latency"), (DBObject)insertC.get("latency"));
+			differences.add(info("average document bytes", number(insertB, "averageDocumentSize"), number(insertC, "averageDocumentSize"), true));
+		}
+		DBObject updateB = (DBObject)b.get("update");
+		DBObject updateC = (DBObject)c.get("update");
+		if ((updateB != null) && (updateC != null)) {
+			differences.add(info("updates/s", number(updateB, "updatesPerSecond"), number(updateC, "updatesPerSecond"), false));
+			latency(differences, "update latency", (DBObject)updateB.get("latency"), (DBObject)updateC.get("latency"));
+		}
+		if ((b.get("queries") instanceof List) && (c.get("queries") instanceof List)) {
+			for (Object queryB : (List<?>)b.get("queries")) {
+				for (Object queryC : (List<?>)c.get("queries")) {
+					Object name = ((DBObject)queryB).get("name");
+					if (name.equals(((DBObject)queryC).get("name"))) {
+						differences.add(info("query " + name + " queries/s", number((DBObject)queryB, "queriesPerSecond"), number((DBObject)queryC, "queriesPerSecond"), false));
+						latency(differences, "query " + name + " latency", (DBObject)((DBObject)queryB).get("latency"), (DBObject)((DBObject)queryC).get("latency"));
+					}
+				}
+			}
+		}
+		DBObject replicationB = (DBObject)b.get("replication");
+		DBObject replicationC = (DBObject)c.get("replication");
+		if ((replicationB != null) && (replicationC != null)) {
+			for (String secondary : replicationB.keySet()) {
+				if (replicationC.containsField(secondary)) {
+					latency(differences, "replication lag " + secondary, (DBObject)replicationB.get(secondary), (DBObject)replicationC.get(secondary));
+				}
+			}
+		}
+		DBObject sizesB = (DBObject)b.get("sizes");
+		DBObject sizesC = (DBObject)c.get("sizes");
+		if ((sizesB != null) && (sizesC != null)) {
+			for (String key : new String[] {"size", "storageSize", "totalIndexSize"}) {
+				if ((sizesB.get(key) instanceof Number) && (sizesC.get(key) instanceof Number)) {
+					differences.add(info(key + " bytes", number(sizesB, key), number(sizesC, key), true));
+				}
+			}
+		}
+		return differences;
+	}
+
+	/**
+	 * @return The per-second throughput without the first and last second
+	 */
+	private static double[] steadySeconds(List<?> throughput) {
+		if ((throughput == null) || (throughput.size() <= 2)) {
+			return new double[0];
+		}
+		double[] values = new double[throughput.size() - 2];
+		for (int i = 0; i < values.length; i++) {
+			values[i] = ((Number)throughput.get(i + 1)).doubleValue();
+		}
+		return values;
+	}
+
+	private void latency(List<Difference> differences, String metric, DBObject b, DBObject c) {
+		if ((b == null) || (c == null)) {
+			return;
+		}
+		//Micros in the file, ms in the report
+		differences.add(tested(metric + " mean ms", number(b, "mean") / 1000, number(c, "mean") / 1000, true,
+				Significance.mannWhitney(RunResult.buckets(b), RunResult.buckets(c))));
+		differences.add(info(metric + " p99 ms", number(b, "p99") / 1000, number(c, "p99") / 1000, true));
+	}
+
+	private Difference tested(String metric, double baseline, double candidate, boolean lowerIsBetter, double p) {
+		String verdict = "";
+		if ((p < alpha) && (baseline != 0)) {
+			double change = (candidate - baseline) / baseline * 100;
+			if (Math.abs(change) > threshold) {
+				verdict = (((change > 0) == lowerIsBetter) ? REGRESSION : IMPROVEMENT);
+			}
+		}
+		return new Difference(metric, baseline, candidate, lowerIsBetter, p, verdict);
+	}
+
+	private static Difference info(String metric, double baseline, double candidate, boolean lowerIsBetter) {
+		return new Difference(metric, baseline, candidate, lowerIsBetter, Double.NaN, "");
+	}
+
+	private static double number(DBObject document, String key) {
+		Object value = document.get(key);
+		return (value instanceof Number ? ((Number)value).doubleValue() : Double.NaN);
+	}
+
+	/**
+	 * @return The settings and environment of the candidate that differ from the baseline, one per line
+	 */
+	public static String settingsDiff(RunResult baseline, RunResult candidate) {
+		StringBuilder sb = new StringBuilder();
+		for (String section : new String[] {"config", "environment"}) {
+			DBObject b = (DBObject)baseline.getDocument().get(section);
+			DBObject c = (DBObject)candidate.getDocument().get(section);
+			if ((b == null) || (c == null)) {
+				continue;
+			}
+			Set<String> keys = new LinkedHashSet<String>(b.keySet());
+			keys.addAll(c.keySet());
+			for (String key : keys) {
+				Object valueB = b.get(key);
+				Object valueC = c.get(key);
+				if ((valueB == null) ? (valueC != null) : !valueB.equals(valueC)) {
+					sb.append(String.format("  %s.%s: %s -> %s%n", section, key, valueB, valueC));
+				}
+			}
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * @return A table of the differences
+	 */
+	public static String report(List<Difference> differences) {
+		StringBuilder sb = new StringBuilder(String.format("  %-40s %14s %14s %9s %9s %s%n", "metric", "baseline", "candidate", "change", "p", ""));
+		for (Difference d : differences) {
+			sb.append(String.format("  %-40s %14.2f %14.2f %8.1f%% %9s %s%n", d.getMetric(), d.getBaseline(), d.getCandidate(), d.getChangePercent(),
+					(Double.isNaN(d.getP()) ? "-" : String.format("%.4f", d.getP())), d.getVerdict()));
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Usage: RunCompare [-alpha 0.05] [-threshold 5] &lt;baseline&gt; &lt;candidate&gt;...
+	 */
+	public static void main(String[] args) throws IOException {
+		LogShutdown.install();
+		double alpha = DEFAULT_ALPHA;
+		double threshold = DEFAULT_THRESHOLD;
+		List<File> files = new ArrayList<File>();
+		try {
+			for (int i = 0; i < args.length; i++) {
+				if ("-alpha".equals(args[i]) && (i + 1 < args.length)) {
+					alpha = Double.parseDouble(args[++i]);
+				}
+				else if ("-threshold".equals(args[i]) && (i + 1 < args.length)) {
+					threshold = Double.parseDouble(args[++i]);
+				}
+				else {
+					files.add(new File(args[i]));
+				}
+			}
+		}
+		catch (NumberFormatException nfe) {
+			files.clear();
+		}
+		if (files.size() < 2) {
+			System.err.println("Usage: RunCompare [-alpha 0.05] [-threshold 5] <baseline> <candidate>...");
+			System.exit(1);
+		}
+		RunCompare compare = new RunCompare(alpha, threshold);
+		RunResult baseline = RunResult.load(files.get(0));
+		boolean regressed = false;
+		for (File file : files.subList(1, files.size())) {
+			RunResult candidate = RunResult.load(file);
+			System.out.println(file + " against baseline " + files.get(0));
+			String diff = settingsDiff(baseline, candidate);
+			if (!"".equals(diff)) {
+				System.out.print("Differences in settings and environment:" + String.format("%n") + diff);
+			}
+			List<Difference> differences = compare.compare(baseline, candidate);
+			System.out.println(report(differences));
+			for (Difference d : differences) {
+				regressed |= d.isRegression();
+			}
+		}
+		if (regressed) {
+			System.out.println("Significant regressions found (alpha " + alpha + ", threshold " + threshold + "%)");
+			System.exit(2);
+		}
+	}
+}
@@ -0,0 +1,323 @@
+package phil.projects.mongo.compare;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.CommandResult;
+import com.mongodb.DB;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.Mongo;
+import com.mongodb.MongoException;
+import com.mongodb.util.JSON;
+import com.mongodb.util.JSONParseException;
+
+import phil.projects.mongo.MongoLoad;
+import phil.projects.mongo.MongoLoadConfig;
+import phil.projects.mongo.stats.GrowthStatistics;
+import phil.projects.mongo.stats.LatencyHistogram;
+import phil.projects.mongo.stats.LoadStatistics;
+import phil.projects.mongo.stats.QueryStatistics;
+import phil.projects.mongo.stats.ThroughputSeries;
+
+/**
+ * The machine-readable result of a run, saved as a JSON file so that runs can be compared with RunCompare.
+ *
+ * A result holds the config and environment of the run, and the throughput, latency and size statistics of each of its phases:
+ * {"version": 1, "namespace": "test.invoices", "start": ..., "config": {...}, "environment": {...},
+ * "insert": {"documents": ..., "documentsPerSecond": ..., "throughput": [per second], "latency": {...}},
+ * "update": {...}, "queries": [{"name": ..., "latency": {...}}], "replication": {"host:port": {...}}, "sizes": {...}}
+ * Latencies are in microseconds and include the non-empty buckets of their histogram, as [index, count] pairs.
+ *
+ * Credentials are not saved.
+ *
+ * @author ptaprogg
+ *
+ */
+public class RunResult {
+
+	private static Logger logger = Logger.getLogger(RunResult.class);
+
+	/**
+	 * The version of the result format
+	 */
+	public static final int VERSION = 1;
+
+	private final DBObject document;
+
+	/**
+	 * @param document The parsed result file
+	 */
+	public RunResult(DBObject document) {
+		this.document = document;
+	}
+
+	public DBObject getDocument() {
+		return document;
+	}
+
+	/**
+	 * Collects the result of a loader's last run
+	 *
+	 * @param loader The loader, after populating
+	 * @param collection The collection it loaded
+	 * @param config The config of the run
+	 * @return The result
+	 */
+	public static RunResult collect(MongoLoad loader, DBCollection collection, MongoLoadConfig config) {
+		BasicDBObject result = new BasicDBObject("version", VERSION).append("namespace", loader.getNamespace());
+		LoadStatistics statistics = loader.getStatistics();
+		if (statistics != null) {
+			result.append("start", new Date(statistics.getStartMillis())).append("durationMillis", statistics.getDurationMillis());
+		}
+		result.append("config", config(config));
+		result.append("environment", environment(collection.getDB()));
+		if (statistics != null) {
+			result.append("insert", new BasicDBObject("documents", statistics.getDocuments())
+					.append("errors", statistics.getErrors())
+					.append("retries", statistics.getRetries())
+					.append("collisions", statistics.getCollisions())
+					.append("durationMillis", statistics.getDurationMillis())
+					.append("documentsPerSecond", statistics.getDocumentsPerSecond())
+					.append("averageDocumentSize", statistics.getAverageDocumentSize())
+					.append("throughput", throughput(statistics.getThroughput()))
+					.append("latency", latency(statistics.getInsertLatency())));
+		}
+		GrowthStatistics updates = loader.getUpdateStatistics();
+		if (updates != null) {
+			result.append("update", new BasicDBObject("updates", updates.getUpdates())
+					.append("missing", updates.getMissing())
+					.append("errors", updates.getErrors())
+					.append("durationMillis", updates.getDurationMillis())
+					.append("updatesPerSecond", updates.getUpdatesPerSecond())
+					.append("latency", latency(updates.getLatency())));
+		}
+		List<QueryStatistics> queries = loader.getQueryStatistics();
+		if (queries != null) {
+			BasicDBList list = new BasicDBList();
+			for (QueryStatistics query : queries) {
+				list.add(new BasicDBObject("name", query.getName())
+						.append("queries", query.getQueries())
+						.append("results", query.getResults())
+						.append("errors", query.getErrors())
+						.append("queriesPerSecond", query.getQueriesPerSecond())
+						.append("latency", latency(query.getLatency())));
+			}
+			result.append("queries", list);
+		}
+		Map<String, LatencyHistogram> lag = loader.getReplicationLag();
+		if (lag != null) {
+			BasicDBObject replication = new BasicDBObject();
+			for (Map.Entry<String, LatencyHistogram> secondary : lag.entrySet()) {
+				replication.append(secondary.getKey(), latency(secondary.getValue()));
+			}
+			result.append("replication", replication);
+		}
+		result.append("sizes", sizes(collection));
+		return new RunResult(result);
+	}
+
+	/**
+	 * @return The settings of the config by field name, without the password and with credentials removed from the URI
+	 */
+	private static DBObject config(MongoLoadConfig config) {
+		BasicDBObject settings = new BasicDBObject();
+		for (Field field : MongoLoadConfig.class.getDeclaredFields()) {
+			if (Modifier.isStatic(field.getModifiers()) || "password".equals(field.getName())) {
+				continue;
+			}
+			try {
+				field.setAccessible(true);
+				Object value = field.get(config);
+				if ((value instanceof String) && "uri".equals(field.getName())) {
+					value = ((String)value).replaceFirst("//[^@/]*@", "//");
+				}
+				if ((value == null) || (value instanceof String) || (value instanceof Number) || (value instanceof Boolean)) {
+					settings.append(field.getName(), value);
+				}
+			}
+			catch (IllegalAccessException iae) {
+				logger.debug("Unable to read setting " + field.getName() + ": " + iae.getMessage());
+			}
+		}
+		return settings;
+	}
+
+	private static DBObject environment(DB db) {
+		Runtime runtime = Runtime.getRuntime();
+		BasicDBObject environment = new BasicDBObject("javaVersion", System.getProperty("java.version"))
+				.append("javaVm", System.getProperty("java.vm.name"))
+				.append("os", System.getProperty("os.name") + " " + System.getProperty("os.version") + " " + System.getProperty("os.arch"))
+				.append("processors", runtime.availableProcessors())
+				.append("maxHeapBytes", runtime.maxMemory())
+				.append("driverVersion", Mongo.getMajorVersion() + "." + Mongo.getMinorVersion());
+		try {
+			environment.append("host", InetAddress.getLocalHost().getHostName());
+		}
+		catch (UnknownHostException uhe) {
+			logger.debug("Unable to resolve the local host name: " + uhe.getMessage());
+		}
+		//Servers may deny any of these to the user of the run
+		try {
+			CommandResult buildInfo = db.getSisterDB("admin").command("buildInfo");
+			if (buildInfo.ok()) {
+				environment.append("serverVersion", buildInfo.get("version"));
+			}
+			CommandResult isMaster = db.getSisterDB("admin").command("isMaster");
+			if (isMaster.ok()) {
+				environment.append("topology", ("isdbgrid".equals(isMaster.get("msg")) ? "sharded"
+						: (isMaster.containsField("setName") ? "replica set " + isMaster.get("setName") : "standalone")));
+			}
+			CommandResult serverStatus = db.getSisterDB("admin").command("serverStatus");
+			if (serverStatus.ok() && (serverStatus.get("storageEngine") instanceof DBObject)) {
+				environment.append("storageEngine", ((DBObject)serverStatus.get("storageEngine")).get("name"));
+			}
+		}
+		catch (MongoException me) {
+			logger.warn("Unable to read the server environment: " + me.getMessage());
+		}
+		return environment;
+	}
+
+	private static DBObject sizes(DBCollection collection) {
+		BasicDBObject sizes = new BasicDBObject();
+		try {
+			CommandResult stats = collection.getStats();
+			if (stats.ok()) {
+				for (String key : new String[] {"count", "size", "avgObjSize", "storageSize", "totalIndexSize", "nindexes"}) {
+					if (stats.get(key) instanceof Number) {
+						sizes.append(key, stats.get(key));
+					}
+				}
+			}
+		}
+		catch (MongoException me) {
+			logger.warn("Unable to read the collection size: " + me.getMessage());
+		}
+		return sizes;
+	}
+
+	private static BasicDBList throughput(ThroughputSeries series) {
+		BasicDBList list = new BasicDBList();
+		int length = series.getLength();
+		for (int s = 0; s < length; s++) {
+			list.add(series.get(s));
+		}
+		return list;
+	}
+
+	/**
+	 * @return The summary and non-empty buckets of a histogram
+	 */
+	static DBObject latency(LatencyHistogram histogram) {
+		BasicDBList buckets = new BasicDBList();
+		long[] counts = histogram.getBucketCounts();
+		for (int i = 0; i < counts.length; i++) {
+			if (counts[i] != 0) {
+				BasicDBList bucket = new BasicDBList();
+				bucket.add(i);
+				bucket.add(counts[i]);
+				buckets.add(bucket);
+			}
+		}
+		return new BasicDBObject("count", histogram.getCount())
+				.append("mean", histogram.getMean())
+				.append("p50", histogram.getValueAtPercentile(50))
+				.append("p90", histogram.getValueAtPercentile(90))
+				.append("p99", histogram.getValueAtPercentile(99))
+				.append("p999", histogram.getValueAtPercentile(99.9))
+				.append("max", histogram.getMax())
+				.append("buckets", buckets);
+	}
+
+	/**
+	 * @param latency A latency saved by latency(LatencyHistogram)
+	 * @return The counts of all buckets, ordered by value
+	 */
+	static long[] buckets(DBObject latency) {
+		long[] counts = new LatencyHistogram().getBucketCounts();
+		for (Object bucket : (List<?>)latency.get("buckets")) {
+			List<?> pair = (List<?>)bucket;
+			counts[((Number)pair.get(0)).intValue()] = ((Number)pair.get(1)).longValue();
+		}
+		return counts;
+	}
+
+	/**
+	 * Saves the result to a new file named after the namespace and start time
+	 *
+	 * @param directory The directory to save to, created if missing
+	 * @return The file written
+	 * @throws IOException If the file cannot be written
+	 */
+	public File save(File directory) throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Unable to create result directory " + directory);
+		}
+		Date start = (document.get("start") instanceof Date ? (Date)document.get("start") : new Date());
+		File file = new File(directory, document.get("namespace") + "-" + new SimpleDateFormat("yyyyMMdd-HHmmss").format(start) + ".json");
+		OutputStream os = new FileOutputStream(file);
+		try {
+			os.write(JSON.serialize(document).getBytes(StandardCharsets.UTF_8));
+		}
+		finally {
+			os.close();
+		}
+		return file;
+	}
+
+	/**
+	 * @param file A file written by save
+	 * @return The result
+	 * @throws IOException If the file cannot be read
+	 * @throws IllegalArgumentException If the file is not a result file
+	 */
+	public static RunResult load(File file) throws IOException {
+		byte[] data = new byte[(int)file.length()];
+		InputStream is = new FileInputStream(file);
+		try {
+			int read = 0;
+			while (read < data.length) {
+				int n = is.read(data, read, data.length - read);
+				if (n < 0) {
+					break;
+				}
+				read += n;
+			}
+		}
+		finally {
+			is.close();
+		}
+		Object parsed;
+		try {
+			parsed = JSON.parse(new String(data, StandardCharsets.UTF_8));
+		}
+		catch (JSONParseException jpe) {
+			throw new IllegalArgumentException(file + " is not valid JSON", jpe);
+		}
+		if (!(parsed instanceof DBObject) || !(((DBObject)parsed).get("version") instanceof Number)) {
+			throw new IllegalArgumentException(file + " is not a result file");
+		}
+		if (((Number)((DBObject)parsed).get("version")).intValue() > VERSION) {
+			throw new IllegalArgumentException(file + " was written by a newer version");
+		}
+		return new RunResult((DBObject)parsed);
+	}
+}
@@ -0,0 +1,172 @@
+package phil.projects.mongo.compare;
+
+/**
+ * Two-sided significance tests for comparing two runs.
+ *
+ * Throughput is compared with Welch's t-test on the per-second values, which does not assume equal variances. Latencies are
+ * compared with the Mann-Whitney U test, which makes no assumption about their distribution. It is computed directly from the
+ * buckets of two latency histograms, treating all values of a bucket as tied, so no individual values need to be kept.
+ *
+ * @author ptaprogg
+ *
+ */
+final class Significance {
+
+	private Significance() {
+	}
+
+	/**
+	 * Welch's t-test
+	 *
+	 * @param a The values of one sample, at least 2
+	 * @param b The values of the other sample, at least 2
+	 * @return The two-sided p-value of the hypothesis that both samples have the same mean, NaN if a sample is too small
+	 */
+	static double welch(double[] a, double[] b) {
+		if ((a.length < 2) || (b.length < 2)) {
+			return Double.NaN;
+		}
+		double meanA = mean(a);
+		double meanB = mean(b);
+		double varA = variance(a, meanA) / a.length;
+		double varB = variance(b, meanB) / b.length;
+		if (varA + varB == 0) {
+			return (meanA == meanB ? 1 : 0);
+		}
+		double t = (meanA - meanB) / Math.sqrt(varA + varB);
+		double df = (varA + varB) * (varA + varB) / (varA * varA / (a.length - 1) + varB * varB / (b.length - 1));
+		return incompleteBeta(df / (df + t * t), df / 2, 0.5);
+	}
+
+	static double mean(double[] values) {
+		double sum = 0;
+		for (double value : values) {
+			sum += value;
+		}
+		return sum / values.length;
+	}
+
+	private static double variance(double[] values, double mean) {
+		double sum = 0;
+		for (double value : values) {
+			sum += (value - mean) * (value - mean);
+		}
+		return sum / (values.length - 1);
+	}
+
+	/**
+	 * The Mann-Whitney U test with the normal approximation, corrected for ties
+	 *
+	 * @param a The counts of one histogram by bucket, ordered by value
+	 * @param b The counts of the other histogram, with the same buckets
+	 * @return The two-sided p-value of the hypothesis that values of both are equally likely to be the larger, NaN if a
+	 * histogram is empty
+	 */
+	static double mannWhitney(long[] a, long[] b) {
+		if (a.length != b.length) {
+			throw new IllegalArgumentException("Histograms with different buckets");
+		}
+		double countA = 0;
+		double countB = 0;
+		for (int i = 0; i < a.length; i++) {
+			countA += a[i];
+			countB += b[i];
+		}
+		if ((countA == 0) || (countB == 0)) {
+			return Double.NaN;
+		}
+		double n = countA + countB;
+		double below = 0;
+		double rankSumA = 0;
+		double ties = 0;
+		for (int i = 0; i < a.length; i++) {
+			double tied = (double)a[i] + b[i];
+			if (tied == 0) {
+				continue;
+			}
+			//All values of a bucket share the mean of the ranks they occupy
+			rankSumA += a[i] * (below + (tied + 1) / 2);
+			ties += tied * tied * tied - tied;
+			below += tied;
+		}
+		double u = rankSumA - countA * (countA + 1) / 2;
+		double variance = countA * countB / 12 * ((n + 1) - ties / (n * (n - 1)));
+		if (variance <= 0) {
+			//All values tied
+			return 1;
+		}
+		double z = Math.max(0, Math.abs(u - countA * countB / 2) - 0.5) / Math.sqrt(variance);
+		//The approximation of erfc is slightly above 1 at 0
+		return Math.min(1, erfc(z / Math.sqrt(2)));
+	}
+
+	/**
+	 * The complementary error function, with a relative error below 1.2e-7
+	 */
+	static double erfc(double x) {
+		double z = Math.abs(x);
+		double t = 1 / (1 + 0.5 * z);
+		double r = t * Math.exp(-z * z - 1.26551223 + t * (1.00002368 + t * (0.37409196 + t * (0.09678418 + t * (-0.18628806
+				+ t * (0.27886807 + t * (-1.13520398 + t * (1.48851587 + t * (-0.82215223 + t * 0.17087277)))))))));
+		return (x >= 0 ? r : 2 - r);
+	}
+
+	/**
+	 * The regularized incomplete beta function I_x(a, b)
+	 */
+	static double incompleteBeta(double x, double a, double b) {
+		if ((x <= 0) || (x >= 1)) {
+			return (x <= 0 ? 0 : 1);
+		}
+		double front = Math.exp(logGamma(a + b) - logGamma(a) - logGamma(b) + a * Math.log(x) + b * Math.log(1 - x));
+		//The continued fraction converges quickly on this side, use the symmetry otherwise
+		if (x < (a + 1) / (a + b + 2)) {
+			return front * betaFraction(x, a, b) / a;
+		}
+		return 1 - front * betaFraction(1 - x, b, a) / b;
+	}
+
+	private static double betaFraction(double x, double a, double b) {
+		final double tiny = 1e-300;
+		double c = 1;
+		double d = 1 - (a + b) * x / (a + 1);
+		d = 1 / (Math.abs(d) < tiny ? tiny : d);
+		double h = d;
+		for (int m = 1; m <= 300; m++) {
+			int m2 = 2 * m;
+			double aa = m * (b - m) * x / ((a + m2 - 1) * (a + m2));
+			d = 1 + aa * d;
+			d = 1 / (Math.abs(d) < tiny ? tiny : d);
+			c = 1 + aa / c;
+			c = (Math.abs(c) < tiny ? tiny : c);
+			h *= d * c;
+			aa = -(a + m) * (a + b + m) * x / ((a + m2) * (a + m2 + 1));
+			d = 1 + aa * d;
+			d = 1 / (Math.abs(d) < tiny ? tiny : d);
+			c = 1 + aa / c;
+			c = (Math.abs(c) < tiny ? tiny : c);
+			double delta = d * c;
+			h *= delta;
+			if (Math.abs(delta - 1) < 1e-12) {
+				break;
+			}
+		}
+		return h;
+	}
+
+	/**
+	 * The logarithm of the gamma function, by the Lanczos approximation
+	 */
+	static double logGamma(double x) {
+		final double[] coefficients = {76.18009172947146, -86.50532032941677, 24.01409824083091, -1.231739572450155,
+				0.1208650973866179e-2, -0.5395239384953e-5};
+		double y = x;
+		double tmp = x + 5.5;
+		tmp -= (x + 0.5) * Math.log(tmp);
+		double series = 1.000000000190015;
+		for (double coefficient : coefficients) {
+			series += coefficient / ++y;
+		}
+		return -tmp + Math.log(2.5066282746310005 * series / x);
+	}
+}
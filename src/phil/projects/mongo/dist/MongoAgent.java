@@ -0,0 +1,125 @@
+package phil.projects.mongo.dist;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.ConnectException;
+import java.net.Socket;
+import java.util.Properties;
+
+import org.apache.log4j.Logger;
+
+import phil.projects.mongo.LogShutdown;
+import phil.projects.mongo.MongoLoadConfig;
+import phil.projects.mongo.stats.LoadStatistics;
+import phil.projects.mongo.ui.MongoRunner;
+
+/**
+ * A loader process taking part in a coordinated run. It receives its configuration from a MongoCoordinator,
+ * prepares a MongoRunner, waits for the common start signal and reports its statistics back once done.
+ *
+ * @author ptaprogg
+ *
+ */
+public class MongoAgent {
+
+	private static Logger logger = Logger.getLogger(MongoAgent.class);
+
+	//How long to keep trying to reach a coordinator that is not listening yet
+	private static final long CONNECT_TIMEOUT = 30000;
+
+	private final String host;
+	private final int port;
+
+	public MongoAgent(String host, int port) {
+		this.host = host;
+		this.port = port;
+	}
+
+	private Socket connect() throws IOException {
+		long deadline = System.currentTimeMillis() + CONNECT_TIMEOUT;
+		while (true) {
+			try {
+				return new Socket(host, port);
+			}
+			catch (ConnectException ce) {
+				if (System.currentTimeMillis() > deadline) {
+					throw ce;
+				}
+				try {
+					Thread.sleep(250);
+				}
+				catch (InterruptedException ie) {
+					throw new IOException("Interrupted while connecting to coordinator");
+				}
+			}
+		}
+	}
+
+	/**
+	 * Connects to the coordinator and runs the assigned share of the load.
+	 *
+	 * @throws IOException If communication with the coordinator fails
+	 */
+	public void run() throws IOException {
+		Socket socket = connect();
+		try {
+			ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
+			out.flush();
+			ObjectInputStream in = new ObjectInputStream(socket.getInputStream());
+			try {
+				Properties props = (Properties)in.readObject();
+				MongoLoadConfig config = new MongoLoadConfig(props);
+				logger.info("Received assignment: documents " + config.getFirstDoc() + " to " + (config.getFirstDoc() + config.getNumdocs() - 1)
+						+ ", partition " + config.getPartition() + " of " + config.getPartitions());
+
+				MongoRunner runner = new MongoRunner(config);
+				runner.prepare();
+				out.writeObject(MongoCoordinator.READY);
+				out.flush();
+
+				Object command = in.readObject();
+				if (!MongoCoordinator.START.equals(command)) {
+					throw new IOException("Unexpected command from coordinator: " + command);
+				}
+				Long startTime = (Long)in.readObject();
+				//The start signal arrives at or after the coordinator's start, so this maps no local time before it
+				long clockOffset = startTime.longValue() - System.currentTimeMillis();
+				logger.debug("Starting, coordinator start time " + startTime + ", clock offset " + clockOffset + "ms");
+				runner.load();
+
+				LoadStatistics statistics = runner.getStatistics();
+				statistics.setClockOffset(clockOffset);
+				out.writeObject(statistics);
+				out.flush();
+				logger.info("Agent finished, " + statistics.getDocuments() + " documents inserted");
+			}
+			catch (ClassNotFoundException cnfe) {
+				throw new IOException("Coordinator sent unknown class", cnfe);
+			}
+			catch (RuntimeException re) {
+				//Let the coordinator know why this agent failed before giving up
+				logger.error("Agent run failed: " + re.getMessage());
+				out.writeObject(re);
+				out.flush();
+				throw re;
+			}
+		}
+		finally {
+			socket.close();
+		}
+	}
+
+	/**
+	 * Usage: MongoAgent &lt;coordinator host&gt; [port]
+	 */
+	public static void main(String[] args) throws Exception {
+		LogShutdown.install();
+		if (args.length < 1) {
+			System.err.println("Usage: MongoAgent <coordinator host> [port]");
+			System.exit(1);
+		}
+		int port = (args.length > 1 ? Integer.parseInt(args[1]) : MongoCoordinator.DEFAULT_PORT);
+		new MongoAgent(args[0], port).run();
+	}
+}
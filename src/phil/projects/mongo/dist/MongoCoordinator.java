@@ -0,0 +1,241 @@
+package phil.projects.mongo.dist;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import org.apache.log4j.Logger;
+
+import phil.projects.mongo.KeyRange;
+import phil.projects.mongo.LogShutdown;
+import phil.projects.mongo.MongoLoadConfig;
+import phil.projects.mongo.stats.LoadStatistics;
+
+/**
+ * Coordinates a load run spread over several agent processes.
+ *
+ * The coordinator waits for the requested number of agents to connect, splits the documents, the unique string space and the rate limit
+ * between them and sends each agent its share of the configuration. Once all agents have prepared their connection, they are started
+ * together and their statistics are merged into a single report.
+ *
+ * Protocol, using object streams over one socket per agent:
+ * coordinator sends the agent's Properties, agent answers READY, coordinator sends START followed by the common start time,
+ * agent answers with its LoadStatistics or the Throwable that ended its run. The agent sets the offset of its clock to the start time
+ * it received on its statistics, so the per-second throughput of agents with skewed clocks is merged on the coordinator's seconds.
+ *
+ * @author ptaprogg
+ *
+ */
+public class MongoCoordinator {
+
+	private static Logger logger = Logger.getLogger(MongoCoordinator.class);
+
+	static final String READY = "READY";
+	static final String START = "START";
+
+	public static final int DEFAULT_PORT = 27100;
+
+	//The configuration shared by all agents before splitting
+	private final Properties baseProperties;
+	private final int agents;
+	private final int port;
+
+	/**
+	 * @param baseProperties The loader properties for the whole run
+	 * @param agents The number of agents to wait for
+	 * @param port The port agents connect to
+	 */
+	public MongoCoordinator(Properties baseProperties, int agents, int port) {
+		if (agents < 1) {
+			throw new IllegalArgumentException("At least one agent required");
+		}
+		//Validate the base configuration once instead of failing in every agent
+		MongoLoadConfig.MongoLoadConfigValidator.validate(new MongoLoadConfig(baseProperties));
+		this.baseProperties = baseProperties;
+		this.agents = agents;
+		this.port = port;
+	}
+
+	/**
+	 * Calculates the configuration of one agent.
+	 *
+	 * @param agent The index of the agent, between 0 and the number of agents-1
+	 * @return The Properties the agent will load with
+	 */
+	Properties assignment(int agent) {
+		MongoLoadConfig base = new MongoLoadConfig(baseProperties);
+		Properties props = new Properties();
+		props.putAll(baseProperties);
+
+		//Documents are split into consecutive ranges, spreading the remainder over the first agents
+		KeyRange range = new KeyRange(base.getFirstDoc(), base.getNumdocs()).split(agents, agent);
+		props.setProperty("numdocs", Long.toString(range.getCount()));
+		props.setProperty("firstdoc", Long.toString(range.getStart()));
+		//The agent that drops the collection pre-splits it for everybody's documents
+		KeyRange keyspace = base.getKeyspace();
+		props.setProperty("keyspacefirst", Long.toString(keyspace.getStart()));
+		props.setProperty("keyspacedocs", Long.toString(keyspace.getCount()));
+
+		//Unique strings are split by partition. Partitions of an already partitioned run are split further.
+		props.setProperty("partition", Integer.toString(base.getPartition() * agents + agent));
+		props.setProperty("partitions", Integer.toString(base.getPartitions() * agents));
+
+		if (base.getRateLimit() > 0) {
+			int rate = base.getRateLimit() / agents + (agent < base.getRateLimit() % agents ? 1 : 0);
+			props.setProperty("ratelimit", Integer.toString(Math.max(rate, 1)));
+		}
+
+		//Only the first agent may drop the collection, before anybody starts loading
+		props.setProperty("drop", Boolean.toString(base.isDrop() && (agent == 0)));
+		return props;
+	}
+
+	/**
+	 * Runs the coordinated load. Blocks until all agents have finished.
+	 *
+	 * @return The merged statistics of all agents
+	 * @throws IOException If communication with an agent fails
+	 */
+	public LoadStatistics run() throws IOException {
+		List<Socket> sockets = new ArrayList<Socket>();
+		List<ObjectOutputStream> outputs = new ArrayList<ObjectOutputStream>();
+		List<ObjectInputStream> inputs = new ArrayList<ObjectInputStream>();
+		ServerSocket server = new ServerSocket(port);
+		try {
+			logger.info("Waiting for " + agents + " agents on port " + port);
+			for (int i = 0; i < agents; i++) {
+				Socket socket = server.accept();
+				sockets.add(socket);
+				ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
+				out.flush();
+				outputs.add(out);
+				inputs.add(new ObjectInputStream(socket.getInputStream()));
+				out.writeObject(assignment(i));
+				out.flush();
+				logger.info("Agent " + i + " connected from " + socket.getRemoteSocketAddress());
+			}
+			//Agent 0 may still be dropping the collection, so wait for everybody before starting
+			for (int i = 0; i < agents; i++) {
+				Object reply = readReply(inputs.get(i), i);
+				if (!READY.equals(reply)) {
+					throw new IOException("Unexpected reply from agent " + i + ": " + reply);
+				}
+			}
+			long startTime = System.currentTimeMillis();
+			for (ObjectOutputStream out : outputs) {
+				out.writeObject(START);
+				out.writeObject(Long.valueOf(startTime));
+				out.flush();
+			}
+			logger.info("All agents started");
+
+			LoadStatistics merged = new LoadStatistics(startTime);
+			for (int i = 0; i < agents; i++) {
+				Object reply = readReply(inputs.get(i), i);
+				if (!(reply instanceof LoadStatistics)) {
+					throw new IOException("Unexpected reply from agent " + i + ": " + reply);
+				}
+				LoadStatistics agentStatistics = (LoadStatistics)reply;
+				logger.info("Agent " + i + " finished: " + agentStatistics.getDocuments() + " documents, " + agentStatistics.getInsertLatency().summary());
+				long dropped = merged.merge(agentStatistics);
+				if (dropped > 0) {
+					logger.warn("Agent " + i + " recorded " + dropped + " documents before the coordinated start, left out of the throughput series");
+				}
+			}
+			merged.finish();
+			logger.info("Coordinated run of " + agents + " agents complete.\n" + merged.report());
+			return merged;
+		}
+		finally {
+			for (Socket socket : sockets) {
+				try {
+					socket.close();
+				}
+				catch (IOException ioe) {
+					//ignore
+				}
+			}
+			server.close();
+		}
+	}
+
+	private Object readReply(ObjectInputStream in, int agent) throws IOException {
+		Object reply;
+		try {
+			reply = in.readObject();
+		}
+		catch (ClassNotFoundException cnfe) {
+			throw new IOException("Agent " + agent + " sent unknown class", cnfe);
+		}
+		if (reply instanceof Throwable) {
+			logger.error("Agent " + agent + " failed: " + ((Throwable)reply).getMessage());
+			throw new IOException("Agent " + agent + " failed", (Throwable)reply);
+		}
+		return reply;
+	}
+
+	/**
+	 * Starts agents as separate JVMs on this host, using the classpath of the current JVM.
+	 *
+	 * @return The started processes
+	 * @throws IOException If a process cannot be started
+	 */
+	public List<Process> spawnLocalAgents() throws IOException {
+		String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+		List<Process> processes = new ArrayList<Process>();
+		for (int i = 0; i < agents; i++) {
+			ProcessBuilder pb = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+					MongoAgent.class.getName(), "localhost", Integer.toString(port));
+			pb.inheritIO();
+			processes.add(pb.start());
+		}
+		logger.info("Spawned " + agents + " local agents");
+		return processes;
+	}
+
+	/**
+	 * Usage: MongoCoordinator &lt;properties&gt; &lt;agents&gt; [port] [spawn]
+	 *
+	 * With "spawn", the agents are started as local processes, otherwise they have to be started separately using MongoAgent.
+	 */
+	public static void main(String[] args) throws Exception {
+		LogShutdown.install();
+		if (args.length < 2) {
+			System.err.println("Usage: MongoCoordinator <properties> <agents> [port] [spawn]");
+			System.exit(1);
+		}
+		Properties prop = new Properties();
+		InputStream is = Thread.currentThread().getContextClassLoader().getResourceAsStream(args[0]);
+		if (is == null) {
+			System.err.println("Unable to load specified properties file");
+			System.exit(1);
+		}
+		prop.load(is);
+		is.close();
+
+		int agents = Integer.parseInt(args[1]);
+		int port = (args.length > 2 ? Integer.parseInt(args[2]) : DEFAULT_PORT);
+		boolean spawn = (args.length > 3) && "spawn".equals(args[3]);
+
+		MongoCoordinator coordinator = new MongoCoordinator(prop, agents, port);
+		List<Process> processes = new ArrayList<Process>();
+		if (spawn) {
+			processes = coordinator.spawnLocalAgents();
+		}
+		try {
+			coordinator.run();
+		}
+		finally {
+			for (Process p : processes) {
+				p.waitFor();
+			}
+		}
+	}
+}
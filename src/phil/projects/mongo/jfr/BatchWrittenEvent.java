@@ -0,0 +1,35 @@
+package phil.projects.mongo.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight Recorder event for one insert request. The event duration is the write latency.
+ *
+ * @author ptaprogg
+ *
+ */
+@Name("phil.projects.mongo.BatchWritten")
+@Label("Batch Written")
+@Category("MongoLoad")
+@Description("A batch of documents was written to MongoDB")
+@StackTrace(false)
+public class BatchWrittenEvent extends Event {
+
+	@Label("Collection")
+	public String collection;
+
+	@Label("Documents")
+	public int documents;
+
+	@Label("Asynchronous")
+	@Description("Whether the batch was written by the async write engine")
+	public boolean async;
+
+	@Label("Succeeded")
+	public boolean succeeded;
+}
@@ -0,0 +1,34 @@
+package phil.projects.mongo.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight Recorder event for the generation of one document. The event duration is the time spent in the factory.
+ *
+ * @author ptaprogg
+ *
+ */
+@Name("phil.projects.mongo.DocumentGenerated")
+@Label("Document Generated")
+@Category("MongoLoad")
+@Description("A document was generated by the document factory")
+@StackTrace(false)
+public class DocumentGeneratedEvent extends Event {
+
+	@Label("Document Number")
+	public long documentNumber;
+
+	@Label("Factory")
+	public String factory;
+
+	@Label("Size")
+	@Description("BSON size of the document")
+	@DataAmount(DataAmount.BYTES)
+	public int size;
+}
@@ -0,0 +1,85 @@
+package phil.projects.mongo.jfr;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.text.ParseException;
+
+import org.apache.log4j.Logger;
+
+import jdk.jfr.Configuration;
+import jdk.jfr.Recording;
+
+/**
+ * A Flight Recorder recording covering one load run, written to a file when the run ends.
+ *
+ * The recording uses one of the JDK's predefined settings ("default" or "profile"). Events are enabled by default, but the
+ * MongoLoad events are enabled explicitly on top, so that settings turning off unknown events cannot drop them.
+ * The events of this package are only recorded while a recording is running, either started through this class or externally,
+ * e.g. with -XX:StartFlightRecording. Otherwise they cost no more than a check of whether they are enabled.
+ *
+ * @author ptaprogg
+ *
+ */
+public class LoadRecording {
+
+	private static Logger logger = Logger.getLogger(LoadRecording.class);
+
+	private final Recording recording;
+	private final Path destination;
+
+	private LoadRecording(Recording recording, Path destination) {
+		this.recording = recording;
+		this.destination = destination;
+	}
+
+	/**
+	 * Starts a recording
+	 *
+	 * @param file The file the recording is written to when stopped
+	 * @param settings The name of the predefined JDK settings to use
+	 * @return The running recording
+	 * @throws IllegalArgumentException If the settings do not exist or the recording cannot be started
+	 */
+	public static LoadRecording start(String file, String settings) {
+		Recording recording;
+		try {
+			recording = new Recording(Configuration.getConfiguration(settings));
+		}
+		catch (IOException ioe) {
+			throw new IllegalArgumentException("Unable to read Flight Recorder settings " + settings, ioe);
+		}
+		catch (ParseException pe) {
+			throw new IllegalArgumentException("Unable to parse Flight Recorder settings " + settings, pe);
+		}
+		recording.setName("MongoLoad");
+		recording.enable(DocumentGeneratedEvent.class);
+		recording.enable(BatchWrittenEvent.class);
+		recording.enable(UniqueStringCollisionEvent.class);
+		recording.enable(WriteRetryEvent.class);
+		Path destination = Paths.get(file);
+		try {
+			recording.setDestination(destination);
+		}
+		catch (IOException ioe) {
+			recording.close();
+			throw new IllegalArgumentException("Unable to write Flight Recorder recording to " + file, ioe);
+		}
+		recording.start();
+		logger.info("Flight Recorder recording started, writing to " + destination.toAbsolutePath() + " when the run ends");
+		return new LoadRecording(recording, destination);
+	}
+
+	/**
+	 * Stops the recording and writes it to its file
+	 */
+	public void stop() {
+		try {
+			recording.stop();
+			logger.info("Flight Recorder recording written to " + destination.toAbsolutePath());
+		}
+		finally {
+			recording.close();
+		}
+	}
+}
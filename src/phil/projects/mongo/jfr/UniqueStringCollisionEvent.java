@@ -0,0 +1,33 @@
+package phil.projects.mongo.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight Recorder event for a random string that had been generated before and was discarded.
+ *
+ * @author ptaprogg
+ *
+ */
+@Name("phil.projects.mongo.UniqueStringCollision")
+@Label("Unique String Collision")
+@Category("MongoLoad")
+@Description("A generated unique string collided with an earlier one and was generated again")
+@StackTrace(false)
+public class UniqueStringCollisionEvent extends Event {
+
+	@Label("Length")
+	public int length;
+
+	@Label("Strings Of Length")
+	@Description("Unique strings of this length generated so far by the generator")
+	public long generated;
+
+	@Label("Retries")
+	@Description("Collisions of the generator so far, including this one")
+	public long retries;
+}
@@ -0,0 +1,35 @@
+package phil.projects.mongo.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * Flight Recorder event for a failed write that is about to be retried. The event spans the backoff before the retry.
+ *
+ * @author ptaprogg
+ *
+ */
+@Name("phil.projects.mongo.WriteRetry")
+@Label("Write Retry")
+@Category("MongoLoad")
+@Description("A write failed with a transient error and is retried after a backoff")
+@StackTrace(false)
+public class WriteRetryEvent extends Event {
+
+	@Label("Error")
+	@Description("The class of the error, e.g. network or not master")
+	public String error;
+
+	@Label("Attempt")
+	@Description("The number of the failed attempt, starting at 1")
+	public int attempt;
+
+	@Label("Backoff")
+	@Timespan(Timespan.MILLISECONDS)
+	public long backoff;
+}
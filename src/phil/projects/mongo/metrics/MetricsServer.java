@@ -0,0 +1,272 @@
+package phil.projects.mongo.metrics;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import org.apache.log4j.Logger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import phil.projects.mongo.MongoLoad;
+import phil.projects.mongo.stats.GrowthStatistics;
+import phil.projects.mongo.stats.LatencyHistogram;
+import phil.projects.mongo.stats.LoadStatistics;
+import phil.projects.mongo.stats.QueryStatistics;
+
+/**
+ * Embedded HTTP endpoint serving loader and JVM metrics in the Prometheus text format at /metrics.
+ *
+ * Loaders register themselves and are labelled with their namespace. A loader registering for a namespace replaces the previous one,
+ * so consecutive runs continue the same series. Metrics are read from the loaders' statistics on each scrape, which only sums striped
+ * counters and never blocks the workers.
+ *
+ * @author ptaprogg
+ *
+ */
+public class MetricsServer implements HttpHandler {
+
+	private static Logger logger = Logger.getLogger(MetricsServer.class);
+
+	//One server per port and process
+	private static final Map<Integer, MetricsServer> servers = new HashMap<Integer, MetricsServer>();
+
+	private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+	private final HttpServer server;
+	private final Map<String, MongoLoad> loaders = new ConcurrentHashMap<String, MongoLoad>();
+
+	private MetricsServer(int port) throws IOException {
+		server = HttpServer.create(new InetSocketAddress(port), 0);
+		server.createContext("/metrics", this);
+		server.setExecutor(Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "MongoLoad metrics");
+				t.setDaemon(true);
+				return t;
+			}
+		}));
+		server.start();
+		logger.info("Serving metrics at http://localhost:" + port + "/metrics");
+	}
+
+	/**
+	 * Gets the server for a port, starting it on first use
+	 *
+	 * @param port The port to listen on
+	 * @return The running server
+	 * @throws IllegalArgumentException If the server cannot be started
+	 */
+	public static synchronized MetricsServer getInstance(int port) {
+		MetricsServer server = servers.get(port);
+		if (server == null) {
+			try {
+				server = new MetricsServer(port);
+			}
+			catch (IOException ioe) {
+				logger.error("Unable to start metrics server on port " + port + ": " + ioe.getMessage());
+				throw new IllegalArgumentException("Unable to start metrics server on port " + port, ioe);
+			}
+			servers.put(port, server);
+		}
+		return server;
+	}
+
+	/**
+	 * Exposes the metrics of a loader, replacing any loader registered for the same namespace
+	 *
+	 * @param loader The loader to add
+	 */
+	public void register(MongoLoad loader) {
+		loaders.put(loader.getNamespace(), loader);
+	}
+
+	public void unregister(MongoLoad loader) {
+		loaders.remove(loader.getNamespace(), loader);
+	}
+
+	/**
+	 * Stops the server and forgets all registered loaders
+	 */
+	public void stop() {
+		synchronized (MetricsServer.class) {
+			servers.values().remove(this);
+		}
+		server.stop(0);
+		loaders.clear();
+	}
+
+	@Override
+	public void handle(HttpExchange exchange) throws IOException {
+		try {
+			byte[] body = scrape().getBytes(StandardCharsets.UTF_8);
+			exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+			exchange.sendResponseHeaders(200, body.length);
+			OutputStream out = exchange.getResponseBody();
+			out.write(body);
+			out.close();
+		}
+		catch (RuntimeException re) {
+			logger.error("Metrics scrape failed: " + re.getMessage());
+			exchange.sendResponseHeaders(500, -1);
+		}
+		finally {
+			exchange.close();
+		}
+	}
+
+	private static String escape(String label) {
+		return label.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+	}
+
+	private static void header(StringBuilder sb, String name, String type, String help) {
+		sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+	}
+
+	private static void sample(StringBuilder sb, String name, String labels, double value) {
+		sb.append(name);
+		if (labels.length() > 0) {
+			sb.append('{').append(labels).append('}');
+		}
+		//Whole numbers without a fraction, everything else in Java's locale-independent notation
+		sb.append(' ').append((value == Math.rint(value)) && (Math.abs(value) < 1e15) ? Long.toString((long)value) : Double.toString(value)).append('\n');
+	}
+
+	/**
+	 * Renders all metrics
+	 *
+	 * @return The metrics in the Prometheus text format
+	 */
+	String scrape() {
+		StringBuilder sb = new StringBuilder();
+		Map<String, LoadStatistics> statistics = new HashMap<String, LoadStatistics>();
+		for (Map.Entry<String, MongoLoad> entry : loaders.entrySet()) {
+			LoadStatistics s = entry.getValue().getStatistics();
+			if (s != null) {
+				statistics.put("namespace=\"" + escape(entry.getKey()) + "\"", s);
+			}
+		}
+
+		header(sb, "mongoload_documents_inserted_total", "counter", "Documents inserted by the current run");
+		for (Map.Entry<String, LoadStatistics> s : statistics.entrySet()) {
+			sample(sb, "mongoload_documents_inserted_total", s.getKey(), s.getValue().getDocuments());
+		}
+		header(sb, "mongoload_errors_total", "counter", "Failed writes");
+		for (Map.Entry<String, LoadStatistics> s : statistics.entrySet()) {
+			sample(sb, "mongoload_errors_total", s.getKey(), s.getValue().getErrors());
+		}
+		header(sb, "mongoload_unique_string_collisions_total", "counter", "Generated unique strings discarded because they had been generated before");
+		for (Map.Entry<String, LoadStatistics> s : statistics.entrySet()) {
+			sample(sb, "mongoload_unique_string_collisions_total", s.getKey(), s.getValue().getCollisions());
+		}
+		header(sb, "mongoload_write_errors_total", "counter", "Writes that failed for good, by class of error");
+		for (Map.Entry<String, LoadStatistics> s : statistics.entrySet()) {
+			for (Map.Entry<String, Long> error : s.getValue().getErrorsByClass().entrySet()) {
+				sample(sb, "mongoload_write_errors_total", s.getKey() + ",error=\"" + escape(error.getKey()) + "\"", error.getValue());
+			}
+		}
+		header(sb, "mongoload_write_retries_total", "counter", "Write attempts that failed with a transient error and were retried, by class of error");
+		for (Map.Entry<String, LoadStatistics> s : statistics.entrySet()) {
+			for (Map.Entry<String, Long> retry : s.getValue().getRetriesByClass().entrySet()) {
+				sample(sb, "mongoload_write_retries_total", s.getKey() + ",error=\"" + escape(retry.getKey()) + "\"", retry.getValue());
+			}
+		}
+		header(sb, "mongoload_sampled_documents_total", "counter", "Documents whose BSON size was measured");
+		for (Map.Entry<String, LoadStatistics> s : statistics.entrySet()) {
+			sample(sb, "mongoload_sampled_documents_total", s.getKey(), s.getValue().getSampledDocuments());
+		}
+		header(sb, "mongoload_sampled_document_bytes_total", "counter", "BSON bytes of the documents whose size was measured");
+		for (Map.Entry<String, LoadStatistics> s : statistics.entrySet()) {
+			sample(sb, "mongoload_sampled_document_bytes_total", s.getKey(), s.getValue().getSampledBytes());
+		}
+		header(sb, "mongoload_inserted_bytes_estimate", "gauge", "Estimated BSON bytes inserted, from the average sampled document size");
+		for (Map.Entry<String, LoadStatistics> s : statistics.entrySet()) {
+			sample(sb, "mongoload_inserted_bytes_estimate", s.getKey(), Math.round(s.getValue().getDocuments() * s.getValue().getAverageDocumentSize()));
+		}
+		header(sb, "mongoload_generator_seconds_total", "counter", "Time spent generating documents, summed over all workers");
+		for (Map.Entry<String, LoadStatistics> s : statistics.entrySet()) {
+			sample(sb, "mongoload_generator_seconds_total", s.getKey(), s.getValue().getGeneratorNanos() / 1e9);
+		}
+		header(sb, "mongoload_writer_seconds_total", "counter", "Time spent in write requests, summed over all writing threads");
+		for (Map.Entry<String, LoadStatistics> s : statistics.entrySet()) {
+			sample(sb, "mongoload_writer_seconds_total", s.getKey(), s.getValue().getWriterMicros() / 1e6);
+		}
+		header(sb, "mongoload_operation_latency_seconds", "summary", "Latency of write requests by operation");
+		for (Map.Entry<String, LoadStatistics> s : statistics.entrySet()) {
+			latencySummary(sb, s.getKey() + ",operation=\"insert\"", s.getValue().getInsertLatency());
+		}
+		for (Map.Entry<String, MongoLoad> entry : loaders.entrySet()) {
+			GrowthStatistics updates = entry.getValue().getUpdateStatistics();
+			if (updates != null) {
+				latencySummary(sb, "namespace=\"" + escape(entry.getKey()) + "\",operation=\"update\"", updates.getLatency());
+			}
+			List<QueryStatistics> queries = entry.getValue().getQueryStatistics();
+			if (queries != null) {
+				for (QueryStatistics query : queries) {
+					latencySummary(sb, "namespace=\"" + escape(entry.getKey()) + "\",operation=\"query\",query=\"" + escape(query.getName()) + "\"", query.getLatency());
+				}
+			}
+			Map<String, LatencyHistogram> lag = entry.getValue().getReplicationLag();
+			if (lag != null) {
+				for (Map.Entry<String, LatencyHistogram> secondary : lag.entrySet()) {
+					latencySummary(sb, "namespace=\"" + escape(entry.getKey()) + "\",operation=\"replication\",secondary=\"" + escape(secondary.getKey()) + "\"", secondary.getValue());
+				}
+			}
+		}
+		header(sb, "mongoload_writes_in_flight", "gauge", "Documents submitted to the async write engine but not yet written");
+		for (Map.Entry<String, MongoLoad> entry : loaders.entrySet()) {
+			sample(sb, "mongoload_writes_in_flight", "namespace=\"" + escape(entry.getKey()) + "\"", entry.getValue().getWritesInFlight());
+		}
+		appendJvm(sb);
+		return sb.toString();
+	}
+
+	private static void latencySummary(StringBuilder sb, String labels, LatencyHistogram latency) {
+		for (double q : QUANTILES) {
+			sample(sb, "mongoload_operation_latency_seconds", labels + ",quantile=\"" + q + "\"", latency.getValueAtPercentile(q * 100) / 1e6);
+		}
+		sample(sb, "mongoload_operation_latency_seconds_sum", labels, latency.getSum() / 1e6);
+		sample(sb, "mongoload_operation_latency_seconds_count", labels, latency.getCount());
+	}
+
+	private static void appendJvm(StringBuilder sb) {
+		header(sb, "jvm_gc_collections_total", "counter", "Garbage collections by collector");
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+			sample(sb, "jvm_gc_collections_total", "gc=\"" + escape(gc.getName()) + "\"", Math.max(0, gc.getCollectionCount()));
+		}
+		header(sb, "jvm_gc_collection_seconds_total", "counter", "Time spent in garbage collection by collector");
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+			sample(sb, "jvm_gc_collection_seconds_total", "gc=\"" + escape(gc.getName()) + "\"", Math.max(0, gc.getCollectionTime()) / 1000.0);
+		}
+		MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+		header(sb, "jvm_memory_used_bytes", "gauge", "Used memory by area");
+		sample(sb, "jvm_memory_used_bytes", "area=\"heap\"", memory.getHeapMemoryUsage().getUsed());
+		sample(sb, "jvm_memory_used_bytes", "area=\"nonheap\"", memory.getNonHeapMemoryUsage().getUsed());
+
+		//Allocation counters are a HotSpot extension and only cover threads still alive
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		if ((threads instanceof com.sun.management.ThreadMXBean) && ((com.sun.management.ThreadMXBean)threads).isThreadAllocatedMemoryEnabled()) {
+			long allocated = 0;
+			for (long bytes : ((com.sun.management.ThreadMXBean)threads).getThreadAllocatedBytes(threads.getAllThreadIds())) {
+				allocated += Math.max(0, bytes);
+			}
+			header(sb, "jvm_live_threads_allocated_bytes", "gauge", "Bytes allocated by all live threads since they started");
+			sample(sb, "jvm_live_threads_allocated_bytes", "", allocated);
+		}
+	}
+}
@@ -0,0 +1,148 @@
+package phil.projects.mongo.stats;
+
+import java.io.Serializable;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latencies of updates that grow existing documents, grouped by how often the document had been grown before.
+ *
+ * Growth levels are bucketed by powers of two: 0, 1, 2-3, 4-7 and so on, up to a last bucket for everything above.
+ *
+ * @author ptaprogg
+ *
+ */
+public class GrowthStatistics implements Serializable, RetryListener {
+
+	static final long serialVersionUID = 2026101901;
+
+	private static final int LEVELS = 11;
+
+	private final LatencyHistogram latency = new LatencyHistogram();
+	private final LatencyHistogram[] levelLatency = new LatencyHistogram[LEVELS];
+	private final LongAdder updates = new LongAdder();
+	private final LongAdder missing = new LongAdder();
+	private final LongAdder errors = new LongAdder();
+	private final LongAdder retries = new LongAdder();
+	private final LatencyHistogram recovery = new LatencyHistogram();
+
+	private final long startMillis;
+	private volatile long endMillis;
+
+	/**
+	 * @param startMillis The wall-clock time the updates started at
+	 */
+	public GrowthStatistics(long startMillis) {
+		this.startMillis = startMillis;
+		for (int i = 0; i < LEVELS; i++) {
+			levelLatency[i] = new LatencyHistogram();
+		}
+	}
+
+	static int bucket(int level) {
+		return (level <= 0 ? 0 : Math.min(LEVELS - 1, 32 - Integer.numberOfLeadingZeros(level)));
+	}
+
+	private static String bucketLabel(int bucket) {
+		if (bucket == 0) {
+			return "0";
+		}
+		int low = 1 << (bucket - 1);
+		if (bucket == LEVELS - 1) {
+			return low + "+";
+		}
+		return (low == (2 * low - 1) ? Integer.toString(low) : low + "-" + (2 * low - 1));
+	}
+
+	/**
+	 * Records a completed update
+	 *
+	 * @param level The number of times the document had been grown before this update
+	 * @param latencyMicros The time the update took in microseconds
+	 * @param found Whether the document existed
+	 */
+	public void recordUpdate(int level, long latencyMicros, boolean found) {
+		if (!found) {
+			missing.increment();
+			return;
+		}
+		latency.record(latencyMicros);
+		levelLatency[bucket(level)].record(latencyMicros);
+		updates.increment();
+	}
+
+	public void recordError() {
+		errors.increment();
+	}
+
+	@Override
+	public void recordRetry(String error) {
+		retries.increment();
+	}
+
+	@Override
+	public void recordRecovery(long micros) {
+		recovery.record(micros);
+	}
+
+	public void finish() {
+		endMillis = System.currentTimeMillis();
+	}
+
+	public LatencyHistogram getLatency() {
+		return latency;
+	}
+
+	public long getUpdates() {
+		return updates.sum();
+	}
+
+	/**
+	 * @return The number of updates whose document did not exist
+	 */
+	public long getMissing() {
+		return missing.sum();
+	}
+
+	public long getErrors() {
+		return errors.sum();
+	}
+
+	public long getRetries() {
+		return retries.sum();
+	}
+
+	/**
+	 * @return The times from the first failed attempt of an update to its success
+	 */
+	public LatencyHistogram getRecovery() {
+		return recovery;
+	}
+
+	public long getDurationMillis() {
+		return (endMillis == 0 ? System.currentTimeMillis() : endMillis) - startMillis;
+	}
+
+	public double getUpdatesPerSecond() {
+		long duration = getDurationMillis();
+		return (duration <= 0 ? 0 : updates.sum() * 1000.0 / duration);
+	}
+
+	/**
+	 * @return A multi-line, human-readable report of the update latencies by growth level
+	 */
+	public String report() {
+		StringBuilder sb = new StringBuilder();
+		sb.append(String.format("Updated %d documents in %dms (%.1f updates/s), %d not found, %d errors%n",
+				getUpdates(), getDurationMillis(), getUpdatesPerSecond(), getMissing(), getErrors()));
+		sb.append("Update latency: ").append(latency.summary());
+		if (getRetries() > 0) {
+			sb.append(String.format("%n%d retries, recovery time: ", getRetries())).append(recovery.summary());
+		}
+		for (int i = 0; i < LEVELS; i++) {
+			if (levelLatency[i].getCount() > 0) {
+				sb.append(String.format("%n  grown %s times before: ", bucketLabel(i))).append(levelLatency[i].summary());
+			}
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,174 @@
+package phil.projects.mongo.stats;
+
+import java.io.Serializable;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A fixed-size, log-linear histogram of latencies in microseconds.
+ *
+ * Values below 32 are counted exactly; above that every power of two is split into 32 sub-buckets, giving a precision of about 3%.
+ * Recording is lock-free so several workers can share one histogram, and histograms of different loaders can be merged.
+ *
+ * @author ptaprogg
+ *
+ */
+public class LatencyHistogram implements Serializable {
+
+	static final long serialVersionUID = 2026101901;
+
+	//Number of bits used for the sub-buckets of each power of two
+	private static final int SUB_BUCKET_BITS = 5;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+	//Highest power of two tracked. Anything above is counted in the last bucket.
+	private static final int MAX_EXPONENT = 40;
+	private static final long MAX_VALUE = (1L << (MAX_EXPONENT + 1)) - 1;
+
+	static final int BUCKETS = SUB_BUCKETS + (MAX_EXPONENT - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	//Striped, as every recording thread updates them
+	private final LongAdder count = new LongAdder();
+	private final LongAdder sum = new LongAdder();
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * Calculates the bucket a value is counted in
+	 *
+	 * @param value The value in microseconds
+	 * @return The index into the counts array
+	 */
+	static int bucketIndex(long value) {
+		if (value < SUB_BUCKETS) {
+			return (int)value;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int subBucket = (int)((value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1));
+		return SUB_BUCKETS + (exponent - SUB_BUCKET_BITS) * SUB_BUCKETS + subBucket;
+	}
+
+	/**
+	 * Calculates the smallest value counted in a bucket
+	 *
+	 * @param index The bucket index
+	 * @return The lowest value in microseconds that maps to this bucket
+	 */
+	static long bucketLowerBound(int index) {
+		if (index < SUB_BUCKETS) {
+			return index;
+		}
+		int exponent = (index - SUB_BUCKETS) / SUB_BUCKETS + SUB_BUCKET_BITS;
+		long subBucket = (index - SUB_BUCKETS) % SUB_BUCKETS;
+		return (SUB_BUCKETS + subBucket) << (exponent - SUB_BUCKET_BITS);
+	}
+
+	/**
+	 * Records a single latency
+	 *
+	 * @param micros The latency in microseconds. Negative values are counted as 0.
+	 */
+	public void record(long micros) {
+		long value = Math.min(Math.max(micros, 0), MAX_VALUE);
+		counts.incrementAndGet(bucketIndex(value));
+		count.increment();
+		sum.add(value);
+		long currentMax = max.get();
+		while ((value > currentMax) && !max.compareAndSet(currentMax, value)) {
+			currentMax = max.get();
+		}
+	}
+
+	/**
+	 * Adds all values recorded in another histogram to this one.
+	 *
+	 * @param other The histogram to add
+	 */
+	public void merge(LatencyHistogram other) {
+		for (int i = 0; i < BUCKETS; i++) {
+			long c = other.counts.get(i);
+			if (c != 0) {
+				counts.addAndGet(i, c);
+			}
+		}
+		count.add(other.count.sum());
+		sum.add(other.sum.sum());
+		long otherMax = other.max.get();
+		long currentMax = max.get();
+		while ((otherMax > currentMax) && !max.compareAndSet(currentMax, otherMax)) {
+			currentMax = max.get();
+		}
+	}
+
+	public long getCount() {
+		return count.sum();
+	}
+
+	/**
+	 * @return A copy of the number of values counted in each bucket, ordered by value
+	 */
+	public long[] getBucketCounts() {
+		long[] copy = new long[BUCKETS];
+		for (int i = 0; i < BUCKETS; i++) {
+			copy[i] = counts.get(i);
+		}
+		return copy;
+	}
+
+	/**
+	 * @return The sum of all recorded latencies in microseconds
+	 */
+	public long getSum() {
+		return sum.sum();
+	}
+
+	public long getMax() {
+		return max.get();
+	}
+
+	/**
+	 * @return The mean latency in microseconds, 0 if nothing was recorded
+	 */
+	public double getMean() {
+		long c = count.sum();
+		return (c == 0 ? 0 : (double)sum.sum() / c);
+	}
+
+	/**
+	 * Gets the latency below which the given percentage of values fall.
+	 * The result is the middle of the bucket the percentile falls into, capped at the recorded maximum.
+	 *
+	 * @param percentile The percentile to look up, between 0 and 100
+	 * @return The latency in microseconds, 0 if nothing was recorded
+	 */
+	public long getValueAtPercentile(double percentile) {
+		if ((percentile < 0) || (percentile > 100)) {
+			throw new IllegalArgumentException("Percentile " + percentile + " is not between 0 and 100");
+		}
+		long total = count.sum();
+		if (total == 0) {
+			return 0;
+		}
+		long target = Math.max(1, (long)Math.ceil((percentile / 100) * total));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts.get(i);
+			if (seen >= target) {
+				long lower = bucketLowerBound(i);
+				long upper = (i + 1 < BUCKETS ? bucketLowerBound(i + 1) - 1 : MAX_VALUE);
+				return Math.min(lower + (upper - lower) / 2, max.get());
+			}
+		}
+		return max.get();
+	}
+
+	/**
+	 * @return A one-line summary of the recorded latencies in milliseconds
+	 */
+	public String summary() {
+		return String.format("count=%d mean=%.2fms p50=%.2fms p90=%.2fms p99=%.2fms p99.9=%.2fms max=%.2fms",
+				getCount(), getMean() / 1000, getValueAtPercentile(50) / 1000.0, getValueAtPercentile(90) / 1000.0,
+				getValueAtPercentile(99) / 1000.0, getValueAtPercentile(99.9) / 1000.0, getMax() / 1000.0);
+	}
+}
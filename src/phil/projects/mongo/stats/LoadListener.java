@@ -0,0 +1,15 @@
+package phil.projects.mongo.stats;
+
+/**
+ * Receives periodic snapshots of a running load.
+ *
+ * Listeners are called from the loader's reporting thread, never from a worker thread, and should return quickly.
+ *
+ * @author ptaprogg
+ *
+ */
+public interface LoadListener {
+
+	public void statisticsUpdated(LoadSnapshot snapshot);
+
+}
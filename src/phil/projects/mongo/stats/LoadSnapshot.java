@@ -0,0 +1,75 @@
+package phil.projects.mongo.stats;
+
+/**
+ * Immutable view of a running load at one point in time. Rates and latencies cover the interval since the previous snapshot.
+ *
+ * @author ptaprogg
+ *
+ */
+public final class LoadSnapshot {
+
+	private final long timeMillis;
+	private final long completed;
+	private final long total;
+	private final double opsPerSecond;
+	private final long p99Micros;
+	private final double bytesPerSecond;
+	private final long etaMillis;
+	private final boolean finished;
+
+	public LoadSnapshot(long timeMillis, long completed, long total, double opsPerSecond, long p99Micros, double bytesPerSecond, long etaMillis, boolean finished) {
+		this.timeMillis = timeMillis;
+		this.completed = completed;
+		this.total = total;
+		this.opsPerSecond = opsPerSecond;
+		this.p99Micros = p99Micros;
+		this.bytesPerSecond = bytesPerSecond;
+		this.etaMillis = etaMillis;
+		this.finished = finished;
+	}
+
+	public long getTimeMillis() {
+		return timeMillis;
+	}
+
+	public long getCompleted() {
+		return completed;
+	}
+
+	public long getTotal() {
+		return total;
+	}
+
+	/**
+	 * @return The completed percentage
+	 */
+	public int getPercent() {
+		return (total == 0 ? 100 : (int)Math.round(completed * 100.0 / total));
+	}
+
+	public double getOpsPerSecond() {
+		return opsPerSecond;
+	}
+
+	public long getP99Micros() {
+		return p99Micros;
+	}
+
+	public double getBytesPerSecond() {
+		return bytesPerSecond;
+	}
+
+	/**
+	 * @return The estimated time to completion in ms based on the average rate so far, -1 if unknown
+	 */
+	public long getEtaMillis() {
+		return etaMillis;
+	}
+
+	/**
+	 * @return True for the last snapshot of a run, sent once the load and any verification, updates and queries are complete
+	 */
+	public boolean isFinished() {
+		return finished;
+	}
+}
@@ -0,0 +1,354 @@
+package phil.projects.mongo.stats;
+
+import java.io.Serializable;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Statistics gathered by a single load run: insert latencies, per-second throughput, errors and retries and the overall duration.
+ * Counters are striped so that workers never contend on them and reading them, e.g. for metrics, never slows down the workers.
+ *
+ * Statistics of several loaders can be merged, for example when a coordinator collects the results of its agents.
+ *
+ * @author ptaprogg
+ *
+ */
+public class LoadStatistics implements Serializable, RetryListener {
+
+	static final long serialVersionUID = 2026101902;
+
+	private final LatencyHistogram insertLatency = new LatencyHistogram();
+	private final ThroughputSeries throughput;
+	private final LongAdder documents = new LongAdder();
+	private final LongAdder errors = new LongAdder();
+	private final LongAdder collisions = new LongAdder();
+
+	//Failed writes and retries by class of error
+	private final ConcurrentMap<String, LongAdder> errorsByClass = new ConcurrentHashMap<String, LongAdder>();
+	private final ConcurrentMap<String, LongAdder> retriesByClass = new ConcurrentHashMap<String, LongAdder>();
+	private final LongAdder retries = new LongAdder();
+
+	//Time from the first failed attempt of a write to its success
+	private final LatencyHistogram recovery = new LatencyHistogram();
+
+	//Sampled document sizes, used to estimate the bytes written
+	private final LongAdder sampledBytes = new LongAdder();
+	private final LongAdder sampledDocuments = new LongAdder();
+
+	//Time spent generating documents and waiting for writes, summed over all threads
+	private final LongAdder generatorNanos = new LongAdder();
+	private final LongAdder writerMicros = new LongAdder();
+
+	//Wall-clock start and end of the run
+	private final long startMillis;
+	private volatile long endMillis;
+
+	//Difference of the clock of the process that merges these statistics to the one they were recorded by
+	private long clockOffsetMillis;
+
+	//Latencies since the last snapshot, and the time and document count it was taken at
+	private volatile LatencyHistogram intervalLatency = new LatencyHistogram();
+	private long lastSnapshotMillis;
+	private long lastSnapshotDocuments;
+
+	/**
+	 * @param startMillis The wall-clock time the run started at
+	 */
+	public LoadStatistics(long startMillis) {
+		this.startMillis = startMillis;
+		this.throughput = new ThroughputSeries(startMillis);
+		this.lastSnapshotMillis = startMillis;
+	}
+
+	/**
+	 * Records a completed insert
+	 *
+	 * @param latencyMicros The time the write took in microseconds
+	 * @param docs The number of documents written
+	 */
+	public void recordInsert(long latencyMicros, int docs) {
+		insertLatency.record(latencyMicros);
+		intervalLatency.record(latencyMicros);
+		documents.add(docs);
+		writerMicros.add(latencyMicros);
+		throughput.record(System.currentTimeMillis(), docs);
+	}
+
+	/**
+	 * Records a failed write
+	 */
+	public void recordError() {
+		errors.increment();
+	}
+
+	/**
+	 * Records a write that failed for good, after any retries
+	 *
+	 * @param error The class of the error
+	 */
+	public void recordError(String error) {
+		errors.increment();
+		counter(errorsByClass, error).increment();
+	}
+
+	@Override
+	public void recordRetry(String error) {
+		retries.increment();
+		counter(retriesByClass, error).increment();
+	}
+
+	@Override
+	public void recordRecovery(long micros) {
+		recovery.record(micros);
+	}
+
+	private static LongAdder counter(ConcurrentMap<String, LongAdder> counters, String key) {
+		LongAdder counter = counters.get(key);
+		if (counter == null) {
+			LongAdder added = counters.putIfAbsent(key, counter = new LongAdder());
+			if (added != null) {
+				counter = added;
+			}
+		}
+		return counter;
+	}
+
+	private static Map<String, Long> sums(ConcurrentMap<String, LongAdder> counters) {
+		Map<String, Long> sums = new TreeMap<String, Long>();
+		for (Map.Entry<String, LongAdder> counter : counters.entrySet()) {
+			sums.put(counter.getKey(), counter.getValue().sum());
+		}
+		return sums;
+	}
+
+	/**
+	 * Records unique strings that were discarded because they had been generated before
+	 *
+	 * @param count The number of discarded strings
+	 */
+	public void recordCollisions(long count) {
+		collisions.add(count);
+	}
+
+	/**
+	 * Records the time taken to generate a document
+	 *
+	 * @param nanos The generation time in nanoseconds
+	 */
+	public void recordGeneration(long nanos) {
+		generatorNanos.add(nanos);
+	}
+
+	/**
+	 * Records the encoded size of a document. Only a sample of documents needs to be measured.
+	 *
+	 * @param bytes The BSON size of the document
+	 */
+	public void recordDocumentSize(int bytes) {
+		sampledBytes.add(bytes);
+		sampledDocuments.increment();
+	}
+
+	/**
+	 * @return The average BSON size of the sampled documents, 0 if none were sampled
+	 */
+	public double getAverageDocumentSize() {
+		long sampled = sampledDocuments.sum();
+		return (sampled == 0 ? 0 : (double)sampledBytes.sum() / sampled);
+	}
+
+	/**
+	 * Takes a snapshot of the run and starts a new interval. Only one thread should take snapshots.
+	 *
+	 * @param completed The number of documents completed, including those of earlier runs that were resumed
+	 * @param total The total number of documents of the run
+	 * @param finished Whether this is the final snapshot of the run
+	 * @return The snapshot
+	 */
+	public synchronized LoadSnapshot snapshot(long completed, long total, boolean finished) {
+		long now = System.currentTimeMillis();
+		long docs = documents.sum();
+		LatencyHistogram interval = intervalLatency;
+		intervalLatency = new LatencyHistogram();
+
+		long elapsed = now - lastSnapshotMillis;
+		double opsPerSecond = (elapsed <= 0 ? 0 : (docs - lastSnapshotDocuments) * 1000.0 / elapsed);
+		lastSnapshotMillis = now;
+		lastSnapshotDocuments = docs;
+
+		//Estimate the remaining time from the average rate of this run
+		long eta = -1;
+		if (finished || (completed >= total)) {
+			eta = 0;
+		}
+		else if (docs > 0) {
+			eta = (long)((total - completed) * (double)(now - startMillis) / docs);
+		}
+		return new LoadSnapshot(now, completed, total, opsPerSecond, interval.getValueAtPercentile(99),
+				opsPerSecond * getAverageDocumentSize(), eta, finished);
+	}
+
+	/**
+	 * Marks the run as finished
+	 */
+	public void finish() {
+		endMillis = System.currentTimeMillis();
+	}
+
+	/**
+	 * Adds the results of another run. The start of this run should not be later than that of the other, after correcting the
+	 * other's times by its clock offset.
+	 *
+	 * @param other The statistics to add
+	 * @return The number of documents of the other run that fall before the start of this one and are left out of the throughput
+	 */
+	public long merge(LoadStatistics other) {
+		insertLatency.merge(other.insertLatency);
+		long dropped = throughput.merge(other.throughput, other.clockOffsetMillis);
+		documents.add(other.documents.sum());
+		errors.add(other.errors.sum());
+		collisions.add(other.collisions.sum());
+		for (Map.Entry<String, LongAdder> error : other.errorsByClass.entrySet()) {
+			counter(errorsByClass, error.getKey()).add(error.getValue().sum());
+		}
+		retries.add(other.retries.sum());
+		for (Map.Entry<String, LongAdder> retry : other.retriesByClass.entrySet()) {
+			counter(retriesByClass, retry.getKey()).add(retry.getValue().sum());
+		}
+		recovery.merge(other.recovery);
+		sampledBytes.add(other.sampledBytes.sum());
+		sampledDocuments.add(other.sampledDocuments.sum());
+		generatorNanos.add(other.generatorNanos.sum());
+		writerMicros.add(other.writerMicros.sum());
+		endMillis = Math.max(endMillis, other.endMillis + other.clockOffsetMillis);
+		return dropped;
+	}
+
+	/**
+	 * Sets the difference of the clock of the process that will merge these statistics to the clock of this one, e.g. of a
+	 * coordinator to its agent, so that their throughput series are aligned on the same seconds.
+	 *
+	 * @param offsetMillis The time to add to the times of this process
+	 */
+	public void setClockOffset(long offsetMillis) {
+		this.clockOffsetMillis = offsetMillis;
+	}
+
+	public LatencyHistogram getInsertLatency() {
+		return insertLatency;
+	}
+
+	public ThroughputSeries getThroughput() {
+		return throughput;
+	}
+
+	public long getDocuments() {
+		return documents.sum();
+	}
+
+	public long getErrors() {
+		return errors.sum();
+	}
+
+	/**
+	 * @return The number of unique strings discarded because they had been generated before
+	 */
+	public long getCollisions() {
+		return collisions.sum();
+	}
+
+	/**
+	 * @return The number of failed writes by class of error. Failures outside of writes are only included in getErrors().
+	 */
+	public Map<String, Long> getErrorsByClass() {
+		return sums(errorsByClass);
+	}
+
+	/**
+	 * @return The number of retried attempts
+	 */
+	public long getRetries() {
+		return retries.sum();
+	}
+
+	/**
+	 * @return The number of retried attempts by class of error
+	 */
+	public Map<String, Long> getRetriesByClass() {
+		return sums(retriesByClass);
+	}
+
+	/**
+	 * @return The times from the first failed attempt of a write to its success
+	 */
+	public LatencyHistogram getRecovery() {
+		return recovery;
+	}
+
+	/**
+	 * @return The total BSON size of the sampled documents
+	 */
+	public long getSampledBytes() {
+		return sampledBytes.sum();
+	}
+
+	public long getSampledDocuments() {
+		return sampledDocuments.sum();
+	}
+
+	/**
+	 * @return The time spent generating documents in nanoseconds, summed over all workers
+	 */
+	public long getGeneratorNanos() {
+		return generatorNanos.sum();
+	}
+
+	/**
+	 * @return The time spent in write requests in microseconds, summed over all writing threads
+	 */
+	public long getWriterMicros() {
+		return writerMicros.sum();
+	}
+
+	public long getStartMillis() {
+		return startMillis;
+	}
+
+	/**
+	 * @return The duration of the run in ms. For runs that have not finished, the time elapsed so far.
+	 */
+	public long getDurationMillis() {
+		return (endMillis == 0 ? System.currentTimeMillis() : endMillis) - startMillis;
+	}
+
+	/**
+	 * @return The average number of documents written per second over the whole run
+	 */
+	public double getDocumentsPerSecond() {
+		long duration = getDurationMillis();
+		return (duration <= 0 ? 0 : documents.sum() * 1000.0 / duration);
+	}
+
+	/**
+	 * @return A multi-line, human-readable report of this run
+	 */
+	public String report() {
+		StringBuilder sb = new StringBuilder();
+		sb.append(String.format("Inserted %d documents in %dms (%.1f docs/s, average document size %.0f bytes)%n",
+				getDocuments(), getDurationMillis(), getDocumentsPerSecond(), getAverageDocumentSize()));
+		sb.append("Insert latency: ").append(insertLatency.summary()).append(String.format("%n"));
+		sb.append(String.format("Time generating %.1fs, writing %.1fs, %d errors, %d unique string collisions%n", getGeneratorNanos() / 1e9,
+				getWriterMicros() / 1e6, getErrors(), getCollisions()));
+		if ((getRetries() > 0) || !errorsByClass.isEmpty()) {
+			sb.append(String.format("Retries %s, errors %s%n", getRetriesByClass(), getErrorsByClass()));
+			if (recovery.getCount() > 0) {
+				sb.append("Recovery time: ").append(recovery.summary()).append(String.format("%n"));
+			}
+		}
+		sb.append("Documents per second: ").append(throughput.toCSV());
+		return sb.toString();
+	}
+}
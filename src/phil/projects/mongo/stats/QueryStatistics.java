@@ -0,0 +1,99 @@
+package phil.projects.mongo.stats;
+
+import java.io.Serializable;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latencies and result counts of one query of the query phase
+ *
+ * @author ptaprogg
+ *
+ */
+public class QueryStatistics implements Serializable {
+
+	static final long serialVersionUID = 2026101903;
+
+	private final String name;
+	private final LatencyHistogram latency = new LatencyHistogram();
+	private final LongAdder results = new LongAdder();
+	private final LongAdder errors = new LongAdder();
+
+	private final long startMillis;
+	private volatile long endMillis;
+
+	/**
+	 * @param name The name of the query
+	 * @param startMillis The wall-clock time the queries started at
+	 */
+	public QueryStatistics(String name, long startMillis) {
+		this.name = name;
+		this.startMillis = startMillis;
+	}
+
+	/**
+	 * Records a completed execution
+	 *
+	 * @param latencyMicros The time from sending the query to reading its last result in microseconds
+	 * @param results The number of documents returned
+	 */
+	public void recordQuery(long latencyMicros, long results) {
+		latency.record(latencyMicros);
+		this.results.add(results);
+	}
+
+	/**
+	 * Records a failed execution
+	 *
+	 * @return The number of failed executions before this one
+	 */
+	public long recordError() {
+		long before = errors.sum();
+		errors.increment();
+		return before;
+	}
+
+	public void finish() {
+		endMillis = System.currentTimeMillis();
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public LatencyHistogram getLatency() {
+		return latency;
+	}
+
+	public long getQueries() {
+		return latency.getCount();
+	}
+
+	/**
+	 * @return The number of documents returned by all executions
+	 */
+	public long getResults() {
+		return results.sum();
+	}
+
+	public long getErrors() {
+		return errors.sum();
+	}
+
+	public long getDurationMillis() {
+		return (endMillis == 0 ? System.currentTimeMillis() : endMillis) - startMillis;
+	}
+
+	public double getQueriesPerSecond() {
+		long duration = getDurationMillis();
+		return (duration <= 0 ? 0 : getQueries() * 1000.0 / duration);
+	}
+
+	/**
+	 * @return A single line report of the executions and their latency
+	 */
+	public String report() {
+		long queries = getQueries();
+		return String.format("%s: %.1f queries/s, %.1f results each, %d errors, latency %s", name, getQueriesPerSecond(),
+				(queries == 0 ? 0 : getResults() / (double)queries), getErrors(), latency.summary());
+	}
+}
@@ -0,0 +1,25 @@
+package phil.projects.mongo.stats;
+
+/**
+ * Records the retries of writes that failed with transient errors.
+ *
+ * @author ptaprogg
+ *
+ */
+public interface RetryListener {
+
+	/**
+	 * Records a failed attempt that is about to be retried
+	 *
+	 * @param error The class of the error the attempt failed with
+	 */
+	public void recordRetry(String error);
+
+	/**
+	 * Records a write that succeeded after having been retried
+	 *
+	 * @param micros The time from the first failed attempt to success in microseconds
+	 */
+	public void recordRecovery(long micros);
+
+}
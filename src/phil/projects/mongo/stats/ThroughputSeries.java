@@ -0,0 +1,146 @@
+package phil.projects.mongo.stats;
+
+import java.io.Serializable;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Number of operations completed per second of a run.
+ *
+ * Seconds are counted from a start timestamp, so series of loaders started at different times can be merged by wall-clock time.
+ * Storage is allocated in chunks of an hour as the run progresses and recording is lock-free.
+ *
+ * @author ptaprogg
+ *
+ */
+public class ThroughputSeries implements Serializable {
+
+	static final long serialVersionUID = 2026101901;
+
+	private static final int CHUNK_SECONDS = 3600;
+	private static final int MAX_CHUNKS = 24 * 30;
+
+	//Wall-clock time of second 0
+	private final long startMillis;
+
+	private final AtomicReferenceArray<AtomicLongArray> chunks = new AtomicReferenceArray<AtomicLongArray>(MAX_CHUNKS);
+
+	/**
+	 * @param startMillis The wall-clock time in ms that second 0 of this series starts at
+	 */
+	public ThroughputSeries(long startMillis) {
+		this.startMillis = startMillis;
+	}
+
+	public long getStartMillis() {
+		return startMillis;
+	}
+
+	private AtomicLongArray chunk(int index) {
+		AtomicLongArray chunk = chunks.get(index);
+		if (chunk == null) {
+			chunks.compareAndSet(index, null, new AtomicLongArray(CHUNK_SECONDS));
+			chunk = chunks.get(index);
+		}
+		return chunk;
+	}
+
+	/**
+	 * Adds a number of operations to the second the given time falls into.
+	 * Times before the start of the series or beyond 30 days are ignored.
+	 *
+	 * @param timeMillis The wall-clock time the operations completed at
+	 * @param operations The number of operations completed
+	 */
+	public void record(long timeMillis, long operations) {
+		long second = (timeMillis - startMillis) / 1000;
+		if ((second < 0) || (second >= (long)MAX_CHUNKS * CHUNK_SECONDS)) {
+			return;
+		}
+		chunk((int)(second / CHUNK_SECONDS)).addAndGet((int)(second % CHUNK_SECONDS), operations);
+	}
+
+	/**
+	 * @param second The second since the start of the series
+	 * @return The number of operations recorded in that second
+	 */
+	public long get(int second) {
+		if ((second < 0) || (second >= MAX_CHUNKS * CHUNK_SECONDS)) {
+			return 0;
+		}
+		AtomicLongArray chunk = chunks.get(second / CHUNK_SECONDS);
+		return (chunk == null ? 0 : chunk.get(second % CHUNK_SECONDS));
+	}
+
+	/**
+	 * @return The number of seconds up to and including the last one holding any operations
+	 */
+	public int getLength() {
+		for (int c = MAX_CHUNKS - 1; c >= 0; c--) {
+			AtomicLongArray chunk = chunks.get(c);
+			if (chunk == null) {
+				continue;
+			}
+			for (int s = CHUNK_SECONDS - 1; s >= 0; s--) {
+				if (chunk.get(s) != 0) {
+					return c * CHUNK_SECONDS + s + 1;
+				}
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * Adds the operations of another series to this one, aligning both by wall-clock time.
+	 * Seconds of the other series that lie before the start of this one are dropped, so merge into the earliest series.
+	 *
+	 * @param other The series to add
+	 * @return The number of operations dropped
+	 */
+	public long merge(ThroughputSeries other) {
+		return merge(other, 0);
+	}
+
+	/**
+	 * Adds the operations of another series recorded by a different clock to this one.
+	 * Seconds of the other series that lie before the start of this one are dropped.
+	 *
+	 * @param other The series to add
+	 * @param offsetMillis The difference of this series' clock to that of the other series, added to the other's times
+	 * @return The number of operations dropped
+	 */
+	public long merge(ThroughputSeries other, long offsetMillis) {
+		long dropped = 0;
+		long otherStart = other.startMillis + offsetMillis;
+		int length = other.getLength();
+		for (int s = 0; s < length; s++) {
+			long operations = other.get(s);
+			if (operations == 0) {
+				continue;
+			}
+			long timeMillis = otherStart + s * 1000L;
+			if (timeMillis < startMillis) {
+				dropped += operations;
+			}
+			else {
+				record(timeMillis, operations);
+			}
+		}
+		return dropped;
+	}
+
+	/**
+	 * @return The per-second values as a comma-separated list
+	 */
+	public String toCSV() {
+		StringBuilder sb = new StringBuilder();
+		int length = getLength();
+		for (int s = 0; s < length; s++) {
+			if (s > 0) {
+				sb.append(',');
+			}
+			sb.append(get(s));
+		}
+		return sb.toString();
+	}
+}
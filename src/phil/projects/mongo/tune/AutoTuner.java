@@ -0,0 +1,262 @@
+package phil.projects.mongo.tune;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
+import org.apache.log4j.Logger;
+
+import phil.projects.mongo.LogShutdown;
+import phil.projects.mongo.MongoLoadConfig;
+import phil.projects.mongo.stats.LoadStatistics;
+import phil.projects.mongo.ui.MongoRunner;
+
+/**
+ * Searches for the concurrency and batch size giving the highest throughput.
+ *
+ * For each batch size, a short load is run at increasing concurrency until the p99 write latency exceeds the SLA or the
+ * throughput stops improving by more than the plateau threshold. Batch sizes are increased the same way. The best step within
+ * the SLA is reported as the optimum, together with the measurements of all steps.
+ *
+ * Concurrency means worker threads when writing synchronously and I/O threads when writing asynchronously.
+ * All loader properties apply to every step, plus the following:
+ * tune.concurrency - comma-separated concurrency levels to try, ascending (default 1,2,4,8,16)
+ * tune.batchsizes - comma-separated batch sizes to try, ascending (default 1,10,100)
+ * tune.stepdocs - documents loaded per step (default 10000)
+ * tune.slams - p99 latency per write request in ms above which a step breaches the SLA, 0 for none (default 0)
+ * tune.plateau - minimum throughput gain in percent to keep stepping (default 5)
+ *
+ * @author ptaprogg
+ *
+ */
+public class AutoTuner {
+
+	private static Logger logger = Logger.getLogger(AutoTuner.class);
+
+	/**
+	 * The measurements of one step
+	 */
+	public static class Step {
+
+		private final int concurrency;
+		private final int batchSize;
+		private final double throughput;
+		private final long p99Micros;
+		private final boolean slaBreached;
+
+		Step(int concurrency, int batchSize, double throughput, long p99Micros, boolean slaBreached) {
+			this.concurrency = concurrency;
+			this.batchSize = batchSize;
+			this.throughput = throughput;
+			this.p99Micros = p99Micros;
+			this.slaBreached = slaBreached;
+		}
+
+		public int getConcurrency() {
+			return concurrency;
+		}
+
+		public int getBatchSize() {
+			return batchSize;
+		}
+
+		/**
+		 * @return Documents per second
+		 */
+		public double getThroughput() {
+			return throughput;
+		}
+
+		/**
+		 * @return The 99th percentile latency of a write request in microseconds
+		 */
+		public long getP99Micros() {
+			return p99Micros;
+		}
+
+		public boolean isSlaBreached() {
+			return slaBreached;
+		}
+	}
+
+	private final Properties baseProperties;
+	private final int[] concurrencyLevels;
+	private final int[] batchSizes;
+	private final int stepDocs;
+	private final long slaMicros;
+	private final double plateauPercent;
+	//Whether concurrency means I/O threads rather than worker threads
+	private final boolean async;
+
+	private final List<Step> steps = new ArrayList<Step>();
+	private Step optimum;
+
+	/**
+	 * @param baseProperties The loader and tuning properties
+	 */
+	public AutoTuner(Properties baseProperties) {
+		this.baseProperties = baseProperties;
+		this.concurrencyLevels = parseLevels(baseProperties.getProperty("tune.concurrency", "1,2,4,8,16"), "tune.concurrency");
+		this.batchSizes = parseLevels(baseProperties.getProperty("tune.batchsizes", "1,10,100"), "tune.batchsizes");
+		try {
+			this.stepDocs = Integer.parseInt(baseProperties.getProperty("tune.stepdocs", "10000").trim());
+			this.slaMicros = Math.round(Double.parseDouble(baseProperties.getProperty("tune.slams", "0").trim()) * 1000);
+			this.plateauPercent = Double.parseDouble(baseProperties.getProperty("tune.plateau", "5").trim());
+		}
+		catch (NumberFormatException nfe) {
+			logger.error("Error reading tuning properties: " + nfe.getMessage());
+			throw new IllegalArgumentException("Error reading tuning properties", nfe);
+		}
+		if (stepDocs < 1) {
+			throw new IllegalArgumentException("At least one document per step required");
+		}
+		Properties props = new Properties();
+		props.putAll(baseProperties);
+		props.setProperty("numdocs", Integer.toString(stepDocs));
+		this.async = MongoLoadConfig.WRITE_ASYNC.equals(new MongoLoadConfig(props).getWriteMode());
+		//Validate the configuration of every step before loading anything
+		for (int concurrency : concurrencyLevels) {
+			for (int batchSize : batchSizes) {
+				MongoLoadConfig.MongoLoadConfigValidator.validate(new MongoLoadConfig(stepProperties(concurrency, batchSize)));
+			}
+		}
+	}
+
+	static int[] parseLevels(String list, String key) {
+		String[] parts = list.split(",");
+		int[] levels = new int[parts.length];
+		for (int i = 0; i < parts.length; i++) {
+			try {
+				levels[i] = Integer.parseInt(parts[i].trim());
+			}
+			catch (NumberFormatException nfe) {
+				logger.error("Error reading " + key + ": " + nfe.getMessage());
+				throw new IllegalArgumentException("Error reading " + key, nfe);
+			}
+			if ((levels[i] < 1) || ((i > 0) && (levels[i] <= levels[i - 1]))) {
+				throw new IllegalArgumentException(key + " must list positive values in ascending order");
+			}
+		}
+		return levels;
+	}
+
+	/**
+	 * Calculates the loader properties of one step
+	 */
+	Properties stepProperties(int concurrency, int batchSize) {
+		Properties props = new Properties();
+		props.putAll(baseProperties);
+		props.setProperty(async ? "iothreads" : "threads", Integer.toString(concurrency));
+		props.setProperty("batchsize", Integer.toString(batchSize));
+		props.setProperty("numdocs", Integer.toString(stepDocs));
+		return props;
+	}
+
+	/**
+	 * Whether a step improved on the best throughput so far by less than the plateau threshold
+	 */
+	boolean isPlateau(double best, double throughput) {
+		return throughput < best * (1 + plateauPercent / 100);
+	}
+
+	/**
+	 * Runs the steps and determines the optimum.
+	 *
+	 * @return All steps in the order they were run
+	 */
+	public List<Step> run() {
+		steps.clear();
+		optimum = null;
+		double bestOverall = 0;
+		for (int batchSize : batchSizes) {
+			double bestForBatch = 0;
+			for (int concurrency : concurrencyLevels) {
+				Step step = runStep(concurrency, batchSize);
+				steps.add(step);
+				if (step.isSlaBreached()) {
+					logger.info("Latency SLA exceeded at concurrency " + concurrency + ", batch size " + batchSize);
+					break;
+				}
+				if ((optimum == null) || (step.getThroughput() > optimum.getThroughput())) {
+					optimum = step;
+				}
+				if ((bestForBatch > 0) && isPlateau(bestForBatch, step.getThroughput())) {
+					logger.info("Throughput plateaued at concurrency " + concurrency + ", batch size " + batchSize);
+					break;
+				}
+				bestForBatch = Math.max(bestForBatch, step.getThroughput());
+			}
+			if ((bestOverall > 0) && isPlateau(bestOverall, bestForBatch)) {
+				logger.info("Throughput plateaued at batch size " + batchSize);
+				break;
+			}
+			bestOverall = Math.max(bestOverall, bestForBatch);
+		}
+		return Collections.unmodifiableList(steps);
+	}
+
+	/**
+	 * Loads the documents of one step and measures it
+	 */
+	Step runStep(int concurrency, int batchSize) {
+		logger.info("Tuning step: concurrency " + concurrency + ", batch size " + batchSize);
+		MongoRunner runner = new MongoRunner(new MongoLoadConfig(stepProperties(concurrency, batchSize)));
+		runner.prepare();
+		runner.load();
+		LoadStatistics statistics = runner.getStatistics();
+		long p99 = statistics.getInsertLatency().getValueAtPercentile(99);
+		return new Step(concurrency, batchSize, statistics.getDocumentsPerSecond(), p99, (slaMicros > 0) && (p99 > slaMicros));
+	}
+
+	/**
+	 * @return The step with the highest throughput within the SLA, null if no step met it
+	 */
+	public Step getOptimum() {
+		return optimum;
+	}
+
+	/**
+	 * @return The measurements of all steps as a table, marking the optimum
+	 */
+	public String report() {
+		StringBuilder sb = new StringBuilder();
+		sb.append(String.format("Tuning results (%s, %d documents per step)%n", (async ? "I/O threads" : "threads"), stepDocs));
+		sb.append(String.format("%12s %10s %12s %10s%n", "concurrency", "batch", "docs/s", "p99 ms"));
+		for (Step step : steps) {
+			sb.append(String.format("%12d %10d %12.1f %10.2f %s%n", step.getConcurrency(), step.getBatchSize(), step.getThroughput(),
+					step.getP99Micros() / 1000.0, (step == optimum ? "<- optimum" : (step.isSlaBreached() ? "SLA exceeded" : ""))));
+		}
+		if (optimum == null) {
+			sb.append("No step met the latency SLA");
+		}
+		else {
+			sb.append(String.format("Optimum: concurrency %d, batch size %d at %.1f docs/s", optimum.getConcurrency(), optimum.getBatchSize(), optimum.getThroughput()));
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Usage: AutoTuner &lt;properties&gt;
+	 */
+	public static void main(String[] args) throws Exception {
+		LogShutdown.install();
+		if (args.length < 1) {
+			System.err.println("Usage: AutoTuner <properties>");
+			System.exit(1);
+		}
+		Properties prop = new Properties();
+		InputStream is = Thread.currentThread().getContextClassLoader().getResourceAsStream(args[0]);
+		if (is == null) {
+			System.err.println("Unable to load specified properties file");
+			System.exit(1);
+		}
+		prop.load(is);
+		is.close();
+
+		AutoTuner tuner = new AutoTuner(prop);
+		tuner.run();
+		System.out.println(tuner.report());
+	}
+}
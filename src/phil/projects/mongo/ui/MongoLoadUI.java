@@ -1,8 +1,12 @@
 package phil.projects.mongo.ui;
 
+import java.awt.BorderLayout;
 import java.awt.GridLayout;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
 
 import javax.swing.JButton;
 import javax.swing.JFrame;
@@ -12,11 +16,14 @@ import javax.swing.JPanel;
 import javax.swing.JProgressBar;
 import javax.swing.JTextField;
 import javax.swing.SwingConstants;
+import javax.swing.SwingUtilities;
 import javax.swing.SwingWorker;
 
 import org.apache.log4j.Logger;
 
 import phil.projects.mongo.MongoLoadConfig;
+import phil.projects.mongo.stats.LoadListener;
+import phil.projects.mongo.stats.LoadSnapshot;
 
 /**
  * The GUI for the Generator, based on JPanel. 
@@ -35,6 +42,12 @@ public class MongoLoadUI extends JPanel implements ActionListener {
 	private JButton startButton;
 	private JProgressBar progressBar;
 	private JTextField textField;
+	private JPanel controls;
+	
+	//The live statistics shown during a run
+	private JPanel statsPanel;
+	private JLabel statsLabel;
+	private ThroughputChart chart;
 	
 	//The config object used for the runner
 	private MongoLoadConfig config;
@@ -43,57 +56,60 @@ public class MongoLoadUI extends JPanel implements ActionListener {
 	private MongoRunner runner;
 
 	/**
-	 * SwingWorker used to update the progress bar. It monitors the runner.
+	 * SwingWorker used to update the progress bar and live statistics. It listens to snapshots pushed by the loader,
+	 * publishes them from the background thread and applies only the latest one on the event dispatch thread.
 	 * 
 	 * @author ptaprogg
 	 *
 	 */
-	private class ProgressUpdater extends SwingWorker<Void, Void> {
-		
-		//The runner to monitor
-		private MongoRunner runner;
-		
-		//The UI components used during the update cycle
-		private JProgressBar progressBar;
-		private int progress;
+	private class ProgressUpdater extends SwingWorker<Void, LoadSnapshot> implements LoadListener {
 		
-		@SuppressWarnings("unused")
-		private ProgressUpdater() {};
+		//Snapshots handed over from the loader's reporting thread
+		private final BlockingQueue<LoadSnapshot> snapshots = new LinkedBlockingQueue<LoadSnapshot>();
 		
-		public ProgressUpdater(JProgressBar progressBar, MongoRunner runner) {
-			this.progressBar = progressBar;
-			this.runner = runner;
-			this.progress = 0;
+		//Called by the loader's reporting thread, must not touch any UI components
+		@Override
+		public void statisticsUpdated(LoadSnapshot snapshot) {
+			snapshots.offer(snapshot);
 		}
 
 		//Worker will run this in the background
 		@Override
 		protected Void doInBackground() throws Exception {
 			logger.debug("Updater thread started");
-			//Continue updating until progress reaches 100
-			while (progress < 100) {
-				//Get progress from runner
-				progress = runner.getProgress();
-				//Update progress bar with value and string
-				progressBar.setValue(progress);
-				progressBar.setString(Integer.toString(progress) + "%");
-
-				//Sleep for a bit to let the runner run
-				try {
-					Thread.sleep(250);
-				}
-				catch (InterruptedException ie) {
-					//ignore
-				}
+			//Continue publishing until the loader sends its final snapshot
+			LoadSnapshot snapshot;
+			do {
+				snapshot = snapshots.take();
+				publish(snapshot);
 			}
+			while (!snapshot.isFinished());
 			return null;
 		}
 		
+		//Runs on the EDT. Snapshots published in quick succession arrive together, so only the latest is shown.
+		@Override
+		protected void process(List<LoadSnapshot> chunks) {
+			LoadSnapshot latest = chunks.get(chunks.size() - 1);
+			progressBar.setValue(latest.getPercent());
+			progressBar.setString(Integer.toString(latest.getPercent()) + "%");
+			if (latest.isFinished()) {
+				//Sent after the updates and queries, keep showing the rates of the last second of the load
+				return;
+			}
+			statsLabel.setText(String.format("%.0f ops/s | p99 %.1fms | %.1f KB/s | ETA %s",
+					latest.getOpsPerSecond(), latest.getP99Micros() / 1000.0, latest.getBytesPerSecond() / 1024, formatEta(latest.getEtaMillis())));
+			chart.add(latest.getOpsPerSecond());
+		}
+		
 		//Called once the thread finishes. Displays confirmation dialog and restores UI to interactive state
 		@Override
 		public void done() {
-			//Dislpay the dialog
-			JOptionPane.showMessageDialog(null, "Operation complete", "Complete", JOptionPane.INFORMATION_MESSAGE);
+			runner.removeLoadListener(this);
+			if (!isCancelled()) {
+				//Dislpay the dialog
+				JOptionPane.showMessageDialog(null, "Operation complete", "Complete", JOptionPane.INFORMATION_MESSAGE);
+			}
 			
 			//Restore UI and repaint
 			restoreUI();
@@ -101,6 +117,14 @@ public class MongoLoadUI extends JPanel implements ActionListener {
 		}
 		
 	}
+	
+	private static String formatEta(long millis) {
+		if (millis < 0) {
+			return "--:--:--";
+		}
+		long seconds = millis / 1000;
+		return String.format("%02d:%02d:%02d", seconds / 3600, (seconds / 60) % 60, seconds % 60);
+	}
 
 	/**
 	 * Standard constructor to initialise UI
@@ -108,8 +132,8 @@ public class MongoLoadUI extends JPanel implements ActionListener {
 	 * @param config The MongoLoadConfig to use for the loader thread
 	 */
 	public MongoLoadUI(MongoLoadConfig config) {
-		//Set up the GridLayout for this
-		super(new GridLayout(3,1));
+		//Controls on top, live statistics below while a run is in progress
+		super(new BorderLayout());
 		this.config = config;
 		
 		//Create and initialize UI components
@@ -123,9 +147,20 @@ public class MongoLoadUI extends JPanel implements ActionListener {
 		progressBar.setString("0%");
 		textField = new JTextField();
 		textField.setText(String.valueOf(config.getNumdocs()));
-		add(label);
-		add(textField);
-		add(startButton);
+		controls = new JPanel(new GridLayout(3,1));
+		controls.add(label);
+		controls.add(textField);
+		controls.add(startButton);
+		add(controls, BorderLayout.NORTH);
+		
+		statsLabel = new JLabel(" ");
+		statsLabel.setHorizontalAlignment(SwingConstants.CENTER);
+		chart = new ThroughputChart(120);
+		statsPanel = new JPanel(new BorderLayout());
+		statsPanel.add(statsLabel, BorderLayout.NORTH);
+		statsPanel.add(chart, BorderLayout.CENTER);
+		statsPanel.setVisible(false);
+		add(statsPanel, BorderLayout.CENTER);
 
 		//Set up the runner
 		runner = new MongoRunner(config);
@@ -145,9 +180,10 @@ public class MongoLoadUI extends JPanel implements ActionListener {
 	
 	protected void restoreUI() {
 		label.setText("Please enter number of documents to create below");
-		remove(progressBar);
-		add(textField,1);
+		controls.remove(progressBar);
+		controls.add(textField,1);
 		startButton.setEnabled(true);
+		revalidate();
 		repaint();
 	}
 
@@ -174,23 +210,39 @@ public class MongoLoadUI extends JPanel implements ActionListener {
 		//Set UI to non-interactive
 		label.setText("In Progress...");
 		startButton.setEnabled(false);
-		remove(textField);
-		add(progressBar, 1);
+		controls.remove(textField);
+		controls.add(progressBar, 1);
+		progressBar.setValue(0);
+		progressBar.setString("0%");
+		statsLabel.setText(" ");
+		chart.clear();
+		statsPanel.setVisible(true);
+		revalidate();
+		if (getTopLevelAncestor() instanceof JFrame) {
+			((JFrame)getTopLevelAncestor()).pack();
+		}
 
 		//The worker thread that will run the load
 		Thread worker = new Thread(runner);
 		
-		//The progress updater thread
-		ProgressUpdater updater = new ProgressUpdater(progressBar, runner);
+		//The progress updater, subscribed to the loader's snapshots
+		final ProgressUpdater updater = new ProgressUpdater();
+		runner.addLoadListener(updater);
 		
 		//Add uncaught exception handler to worker thread
 		worker.setUncaughtExceptionHandler(new Thread.UncaughtExceptionHandler() {
 			@Override
-			public void uncaughtException(Thread t, Throwable e) {
-				JOptionPane.showMessageDialog(null, e.getMessage(), "Error in Worker Thread", JOptionPane.ERROR_MESSAGE);
+			public void uncaughtException(Thread t, final Throwable e) {
 				logger.error("Error in worker thread: " + e.getMessage());
 				e.printStackTrace();
-				restoreUI();
+				//UI components may only be touched on the EDT. Cancelling the updater restores the UI.
+				SwingUtilities.invokeLater(new Runnable() {
+					@Override
+					public void run() {
+						updater.cancel(true);
+						JOptionPane.showMessageDialog(null, e.getMessage(), "Error in Worker Thread", JOptionPane.ERROR_MESSAGE);
+					}
+				});
 			}
 		});
 		
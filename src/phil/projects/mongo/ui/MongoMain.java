@@ -5,11 +5,13 @@ import java.io.InputStream;
 import java.util.Properties;
 
 
+import phil.projects.mongo.LogShutdown;
 import phil.projects.mongo.MongoLoadConfig;
 
 public class MongoMain {
 
 		public static void main(String[] args) throws Exception {
+		LogShutdown.install();
 		
 		//See if we were invoked with args and if so try to read properties filename from first argument
 		Properties prop = new Properties();
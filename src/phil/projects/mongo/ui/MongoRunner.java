@@ -1,12 +1,17 @@
 package phil.projects.mongo.ui;
 
 import java.net.UnknownHostException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import org.apache.log4j.Logger;
 
-import phil.projects.mongo.MongoDBObjectFactory;
+import phil.projects.mongo.DocumentFactories;
+import phil.projects.mongo.DocumentFactoryProvider;
 import phil.projects.mongo.MongoLoad;
 import phil.projects.mongo.MongoLoadConfig;
+import phil.projects.mongo.stats.LoadListener;
+import phil.projects.mongo.stats.LoadStatistics;
 
 /**
  * This is the runner class for the load that will be started in a separate thread. 
@@ -20,6 +25,8 @@ public class MongoRunner implements Runnable {
 	private MongoLoadConfig config;
 	//The loader that will be used
 	private MongoLoad loader;
+	//Listeners to register with each new loader
+	private final List<LoadListener> listeners = new CopyOnWriteArrayList<LoadListener>();
 	
 	private static Logger logger = Logger.getLogger(MongoRunner.class);
 	
@@ -36,44 +43,48 @@ public class MongoRunner implements Runnable {
 	
 	@Override
 	public void run() {
+		prepare();
+		load();
+		logger.info("Loader thread finished");
+	}
+	
+	/**
+	 * Instantiates the configured factory and loader, tests the connection and prepares the target collection.
+	 */
+	public void prepare() {
 		//Create a new invoice loader. The type is interchangeable with other loaders
 //		loader = new MongoLoad(config, new MongoInvoiceFactory());
 		
-		String factoryClassName = config.getFactoryClass();
-		
-		MongoDBObjectFactory factory = null;
-		try {
-			logger.debug("Trying to get factory class");
-			factory = (MongoDBObjectFactory)(Class.forName(factoryClassName)).newInstance();	
-		}
-		catch (ClassCastException cce) {
-			throw new RuntimeException("Specified DBObjectFactory " + factoryClassName + " is of wrong type", cce);
-		}
-		catch (ClassNotFoundException cnfe) {
-			throw new RuntimeException("Specified DBObjectFactory " + factoryClassName + " not found");
-		}
-		catch (IllegalAccessException iae) {
-			throw new RuntimeException("IllegalAccessException encountered when trying to instantiate " + factoryClassName);
+		DocumentFactoryProvider provider = DocumentFactories.create(config);
+		logger.debug("Document factory " + provider.getName() + " got");
+		loader = new MongoLoad(config, provider, null);
+		for (LoadListener listener : listeners) {
+			loader.addLoadListener(listener);
 		}
-		catch (InstantiationException ie) {
-			throw new RuntimeException("Failed to instantiate " + factoryClassName);
-		}
-		if (factory == null) {
-			throw new RuntimeException("Failed to instantiate " + factoryClassName);
-		}
-		logger.debug("Factory class got");
-		loader = new MongoLoad(config, factory);
 		logger.debug("Loader initialized");
 		//Test the connection
 		loader.testConnection();
 		logger.debug("Connection test complete");
-		//Start the run
 		try {
-			loader.createAndPopulate();
+			loader.prepare();
 		} catch (UnknownHostException e) {
 			throw new IllegalArgumentException("Unknown hostname " + config.getHostname());
 		}
-		logger.info("Loader thread finished");
+	}
+	
+	/**
+	 * Starts the run. prepare() must have been called before. The loader's connections are closed once the run ends.
+	 */
+	public void load() {
+		if (loader == null) {
+			throw new IllegalStateException("Runner has not been prepared");
+		}
+		try {
+			loader.populate();
+		}
+		finally {
+			loader.close();
+		}
 	}
 	
 	/**
@@ -90,4 +101,31 @@ public class MongoRunner implements Runnable {
 		}
 	}
 
+	
+	/**
+	 * Get the statistics of the run
+	 * 
+	 * @return The statistics as reported by the loader or null if the run has not started yet
+	 */
+	public LoadStatistics getStatistics() {
+		return (loader == null ? null : loader.getStatistics());
+	}
+
+	
+	/**
+	 * Registers a listener with the loader of the next run. See MongoLoad.addLoadListener().
+	 * 
+	 * @param listener The listener to add
+	 */
+	public void addLoadListener(LoadListener listener) {
+		listeners.add(listener);
+	}
+	
+	public void removeLoadListener(LoadListener listener) {
+		listeners.remove(listener);
+		if (loader != null) {
+			loader.removeLoadListener(listener);
+		}
+	}
+
 }
\ No newline at end of file
@@ -0,0 +1,84 @@
+package phil.projects.mongo.ui;
+
+import java.awt.Color;
+import java.awt.Dimension;
+import java.awt.Graphics;
+
+import javax.swing.JComponent;
+
+/**
+ * Small rolling line chart of the most recent throughput values. Must only be used on the event dispatch thread.
+ *
+ * @author ptaprogg
+ *
+ */
+public class ThroughputChart extends JComponent {
+
+	public static final long serialVersionUID = 2026101903;
+
+	//The values shown, oldest first, stored in a ring buffer
+	private final double[] values;
+	private int next = 0;
+	private int count = 0;
+
+	/**
+	 * @param capacity The number of values shown before the oldest ones roll off
+	 */
+	public ThroughputChart(int capacity) {
+		this.values = new double[capacity];
+		setPreferredSize(new Dimension(300, 60));
+	}
+
+	/**
+	 * Appends a value and repaints the chart
+	 *
+	 * @param value The value to add
+	 */
+	public void add(double value) {
+		values[next] = value;
+		next = (next + 1) % values.length;
+		count = Math.min(count + 1, values.length);
+		repaint();
+	}
+
+	public void clear() {
+		next = 0;
+		count = 0;
+		repaint();
+	}
+
+	@Override
+	protected void paintComponent(Graphics g) {
+		int width = getWidth();
+		int height = getHeight();
+		g.setColor(Color.WHITE);
+		g.fillRect(0, 0, width, height);
+		g.setColor(Color.LIGHT_GRAY);
+		g.drawRect(0, 0, width - 1, height - 1);
+		if (count < 2) {
+			return;
+		}
+		double max = 0;
+		for (int i = 0; i < count; i++) {
+			max = Math.max(max, values[i]);
+		}
+		if (max <= 0) {
+			max = 1;
+		}
+		g.setColor(Color.BLUE);
+		int first = (next - count + values.length) % values.length;
+		int prevX = 0;
+		int prevY = 0;
+		for (int i = 0; i < count; i++) {
+			double value = values[(first + i) % values.length];
+			int x = (int)((long)i * (width - 1) / (values.length - 1));
+			int y = height - 2 - (int)(value / max * (height - 4));
+			if (i > 0) {
+				g.drawLine(prevX, prevY, x, y);
+			}
+			prevX = x;
+			prevY = y;
+		}
+		g.drawString(String.format("%.0f ops/s", max), 4, 12);
+	}
+}
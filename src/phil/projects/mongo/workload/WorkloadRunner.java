@@ -0,0 +1,304 @@
+package phil.projects.mongo.workload;
+
+import java.io.File;
+import java.io.InputStream;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+import org.apache.log4j.Logger;
+
+import com.mongodb.MongoClient;
+
+import phil.projects.mongo.DocumentFactories;
+import phil.projects.mongo.LogShutdown;
+import phil.projects.mongo.MongoClientFactory;
+import phil.projects.mongo.MongoLoad;
+import phil.projects.mongo.MongoLoadConfig;
+import phil.projects.mongo.stats.LoadStatistics;
+
+/**
+ * Runs several workloads, each loading its own namespace, concurrently from one process over one shared connection pool.
+ *
+ * Workloads are listed in the "workloads" property, e.g. workloads=invoices,samples. Each workload starts from the base
+ * properties, overridden by any property prefixed with "workload.&lt;name&gt;.", e.g. workload.samples.collection=samples or
+ * workload.samples.writeconcern=journaled. Unless a workload sets numdocs or ratelimit itself, the base values are split between
+ * the workloads in proportion to their weight, given as workload.&lt;name&gt;.weight (default 1). Files written per loader, the
+ * checkpoint file and the Flight Recorder recording, get the workload name inserted before their extension, e.g. load.jfr becomes
+ * load.samples.jfr, unless a workload sets its own. Flight Recorder records the whole process, so every recording holds the events
+ * of all workloads.
+ *
+ * The client is created from the base connection settings. Each workload keeps its own statistics.
+ *
+ * @author ptaprogg
+ *
+ */
+public class WorkloadRunner {
+
+	private static Logger logger = Logger.getLogger(WorkloadRunner.class);
+
+	static final String WORKLOADS = "workloads";
+	static final String PREFIX = "workload.";
+
+	//Properties naming a file each loader writes, which would be overwritten by the other workloads
+	private static final String[] FILE_PROPERTIES = {"checkpointfile", "jfr"};
+
+	private final Properties baseProperties;
+	private final List<String> names = new ArrayList<String>();
+
+	//The loaders of the current or last run by workload name
+	private final Map<String, MongoLoad> loaders = new LinkedHashMap<String, MongoLoad>();
+	private LoadStatistics total;
+
+	/**
+	 * @param baseProperties The base properties including the workload definitions
+	 * @throws IllegalArgumentException If no workloads are defined, the configuration of one is invalid or two load the same namespace
+	 * or write the same checkpoint or recording file
+	 */
+	public WorkloadRunner(Properties baseProperties) {
+		this.baseProperties = baseProperties;
+		for (String name : baseProperties.getProperty(WORKLOADS, "").split(",")) {
+			if (name.trim().length() > 0) {
+				names.add(name.trim());
+			}
+		}
+		if (names.isEmpty()) {
+			throw new IllegalArgumentException("No workloads defined");
+		}
+		Set<String> namespaces = new HashSet<String>();
+		Set<String> files = new HashSet<String>();
+		for (String name : names) {
+			MongoLoadConfig config = new MongoLoadConfig(workloadProperties(name));
+			MongoLoadConfig.MongoLoadConfigValidator.validate(config);
+			if (!namespaces.add(config.getUserDB() + "." + config.getCollection())) {
+				throw new IllegalArgumentException("Workload " + name + " loads " + config.getUserDB() + "." + config.getCollection() + " like another workload");
+			}
+			for (String file : new String[] {config.getCheckpointFile(), config.getRecordingFile()}) {
+				if (!"".equals(file) && !files.add(file)) {
+					throw new IllegalArgumentException("Workload " + name + " writes " + file + " like another workload");
+				}
+			}
+		}
+	}
+
+	private double weight(String name) {
+		String weight = baseProperties.getProperty(PREFIX + name + ".weight", "1");
+		try {
+			double w = Double.parseDouble(weight.trim());
+			if (w <= 0) {
+				throw new IllegalArgumentException("Weight of workload " + name + " must be positive");
+			}
+			return w;
+		}
+		catch (NumberFormatException nfe) {
+			throw new IllegalArgumentException("Invalid weight " + weight + " of workload " + name, nfe);
+		}
+	}
+
+	/**
+	 * Splits a base value between the workloads by weight. Rounding differences go to the last workload so the shares add up.
+	 */
+	private long share(String key, String name) {
+		long value = Long.parseLong(baseProperties.getProperty(key, "0").trim());
+		double totalWeight = 0;
+		for (String n : names) {
+			totalWeight += weight(n);
+		}
+		if (name.equals(names.get(names.size() - 1))) {
+			long others = 0;
+			for (String n : names.subList(0, names.size() - 1)) {
+				others += (long)Math.floor(value * weight(n) / totalWeight);
+			}
+			return value - others;
+		}
+		return (long)Math.floor(value * weight(name) / totalWeight);
+	}
+
+	/**
+	 * Inserts the workload name into a file name, before the extension if there is one
+	 */
+	static String workloadFile(String file, String name) {
+		int dot = file.lastIndexOf('.');
+		//Not a dot within a directory name or starting a hidden file's name
+		if (dot <= Math.max(file.lastIndexOf('/'), file.lastIndexOf(File.separatorChar)) + 1) {
+			return file + "." + name;
+		}
+		return file.substring(0, dot) + "." + name + file.substring(dot);
+	}
+
+	/**
+	 * Calculates the configuration of one workload
+	 *
+	 * @param name The workload name
+	 * @return The Properties the workload's loader is configured with
+	 */
+	Properties workloadProperties(String name) {
+		Properties props = new Properties();
+		String prefix = PREFIX + name + ".";
+		for (String key : baseProperties.stringPropertyNames()) {
+			if (!key.startsWith(PREFIX) && !WORKLOADS.equals(key)) {
+				props.setProperty(key, baseProperties.getProperty(key));
+			}
+		}
+		try {
+			if (baseProperties.containsKey("numdocs")) {
+				props.setProperty("numdocs", Long.toString(share("numdocs", name)));
+			}
+			if (baseProperties.containsKey("ratelimit")) {
+				props.setProperty("ratelimit", Long.toString(share("ratelimit", name)));
+			}
+		}
+		catch (NumberFormatException nfe) {
+			throw new IllegalArgumentException("Error reading numdocs or ratelimit", nfe);
+		}
+		for (String key : FILE_PROPERTIES) {
+			String file = baseProperties.getProperty(key, "").trim();
+			if (file.length() > 0) {
+				props.setProperty(key, workloadFile(file, name));
+			}
+		}
+		for (String key : baseProperties.stringPropertyNames()) {
+			if (key.startsWith(prefix) && !key.equals(prefix + "weight")) {
+				props.setProperty(key.substring(prefix.length()), baseProperties.getProperty(key));
+			}
+		}
+		return props;
+	}
+
+	/**
+	 * Prepares all workloads, then loads them concurrently and waits for all to finish.
+	 *
+	 * @throws UnknownHostException If the hostname specified for the Mongo instance cannot be resolved
+	 * @throws RuntimeException If any workload failed, after all others have finished
+	 */
+	public void run() throws UnknownHostException {
+		MongoClient client = MongoClientFactory.create(new MongoLoadConfig(baseProperties));
+		loaders.clear();
+		total = null;
+		try {
+			for (String name : names) {
+				MongoLoadConfig config = new MongoLoadConfig(workloadProperties(name));
+				MongoLoad loader = new MongoLoad(config, DocumentFactories.create(config), client);
+				loader.prepare();
+				loaders.put(name, loader);
+			}
+
+			final Map<String, RuntimeException> failures = new LinkedHashMap<String, RuntimeException>();
+			List<Thread> threads = new ArrayList<Thread>();
+			for (final Map.Entry<String, MongoLoad> workload : loaders.entrySet()) {
+				Thread t = new Thread(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							workload.getValue().populate();
+						}
+						catch (RuntimeException re) {
+							logger.error("Workload " + workload.getKey() + " failed: " + re.getMessage());
+							synchronized (failures) {
+								failures.put(workload.getKey(), re);
+							}
+						}
+					}
+				}, "Workload " + workload.getKey());
+				threads.add(t);
+				t.start();
+			}
+			for (Thread t : threads) {
+				try {
+					t.join();
+				}
+				catch (InterruptedException ie) {
+					Thread.currentThread().interrupt();
+					throw new RuntimeException("Interrupted while waiting for workloads", ie);
+				}
+			}
+			logger.info(report());
+			if (!failures.isEmpty()) {
+				Map.Entry<String, RuntimeException> first = failures.entrySet().iterator().next();
+				throw new RuntimeException(failures.size() + " workloads failed, first " + first.getKey(), first.getValue());
+			}
+		}
+		finally {
+			for (MongoLoad loader : loaders.values()) {
+				loader.close();
+			}
+			client.close();
+		}
+	}
+
+	/**
+	 * @return The statistics of each workload of the current or last run by workload name
+	 */
+	public Map<String, LoadStatistics> getStatistics() {
+		Map<String, LoadStatistics> statistics = new LinkedHashMap<String, LoadStatistics>();
+		for (Map.Entry<String, MongoLoad> workload : loaders.entrySet()) {
+			if (workload.getValue().getStatistics() != null) {
+				statistics.put(workload.getKey(), workload.getValue().getStatistics());
+			}
+		}
+		return statistics;
+	}
+
+	/**
+	 * @return The statistics of all workloads merged, null if no workload has run
+	 */
+	public synchronized LoadStatistics getTotal() {
+		if (total == null) {
+			Map<String, LoadStatistics> statistics = getStatistics();
+			if (statistics.isEmpty()) {
+				return null;
+			}
+			long start = Long.MAX_VALUE;
+			for (LoadStatistics s : statistics.values()) {
+				start = Math.min(start, s.getStartMillis());
+			}
+			total = new LoadStatistics(start);
+			for (LoadStatistics s : statistics.values()) {
+				total.merge(s);
+			}
+		}
+		return total;
+	}
+
+	/**
+	 * @return A multi-line, human-readable report of each workload and their total
+	 */
+	public String report() {
+		StringBuilder sb = new StringBuilder();
+		for (Map.Entry<String, LoadStatistics> workload : getStatistics().entrySet()) {
+			sb.append(String.format("Workload %s (%s)%n", workload.getKey(), loaders.get(workload.getKey()).getNamespace()));
+			sb.append(workload.getValue().report()).append(String.format("%n"));
+		}
+		LoadStatistics all = getTotal();
+		if (all != null) {
+			sb.append(String.format("All %d workloads%n", loaders.size())).append(all.report());
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Usage: WorkloadRunner &lt;properties&gt;
+	 */
+	public static void main(String[] args) throws Exception {
+		LogShutdown.install();
+		if (args.length < 1) {
+			System.err.println("Usage: WorkloadRunner <properties>");
+			System.exit(1);
+		}
+		Properties prop = new Properties();
+		InputStream is = Thread.currentThread().getContextClassLoader().getResourceAsStream(args[0]);
+		if (is == null) {
+			System.err.println("Unable to load specified properties file");
+			System.exit(1);
+		}
+		prop.load(is);
+		is.close();
+
+		new WorkloadRunner(prop).run();
+	}
+}
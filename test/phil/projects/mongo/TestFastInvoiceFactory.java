@@ -0,0 +1,92 @@
+package phil.projects.mongo;
+
+import static org.junit.Assert.*;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.mongodb.DBObject;
+
+/**
+ * @author ptaprogg
+ *
+ */
+public class TestFastInvoiceFactory {
+
+	private static final long SEED = 42;
+
+	@After
+	public void tearDown() {
+		RandomGenerator.getInstance().clearSeed();
+	}
+
+	private static DBObject generate(MongoDBObjectFactory factory, MongoLoadConfig config, long document) {
+		RandomGenerator.getInstance().startDocument(SEED, document);
+		return factory.generateDocument(config);
+	}
+
+	/**
+	 * With the default distribution, both factories must generate the same invoice from the same random sequence.
+	 */
+	@Test
+	public void testMatchesInvoiceFactory() {
+		MongoLoadConfig config = new MongoLoadConfig.MongoLoadConfigBuilder("test", 1000).build();
+		MongoDBObjectFactory original = new MongoInvoiceFactory();
+		MongoDBObjectFactory fast = new FastInvoiceFactory();
+		for (long n = 0; n < 1000; n++) {
+			DBObject expected = generate(original, config, n);
+			DBObject actual = generate(fast, config, n);
+			assertEquals("Invoice " + n + " differs", expected, actual);
+			assertEquals("Field order of invoice " + n + " differs", expected.toString(), actual.toString());
+		}
+	}
+
+	/**
+	 * The generators of the registered provider must generate the same invoices as the factory.
+	 */
+	@Test
+	public void testProvider() {
+		MongoLoadConfig config = new MongoLoadConfig.MongoLoadConfigBuilder("test", 1000).withInvoiceItems("uniform(0,30)").build();
+		DocumentFactoryProvider provider = DocumentFactories.byName("fastinvoice");
+		provider.init(config);
+		DocumentGenerator generator = provider.createGenerator(0);
+		final DBObject[] output = new DBObject[1];
+		DocumentOutput target = new DocumentOutput() {
+			@Override
+			public void accept(DBObject document) {
+				output[0] = document;
+			}
+		};
+		MongoDBObjectFactory fast = new FastInvoiceFactory();
+		for (long n = 0; n < 1000; n++) {
+			RandomGenerator.getInstance().startDocument(SEED, n);
+			generator.generate(n, target);
+			assertEquals("Invoice " + n + " differs", generate(fast, config, n), output[0]);
+		}
+		generator.close();
+		provider.close();
+	}
+
+	@Test
+	public void testItemCountDistributions() {
+		MongoLoadConfig config = new MongoLoadConfig.MongoLoadConfigBuilder("test", 1000).withInvoiceItems("fixed(3)").build();
+		MongoDBObjectFactory fast = new FastInvoiceFactory();
+		for (long n = 0; n < 100; n++) {
+			DBObject invoice = generate(fast, config, n);
+			assertEquals(3, invoice.get("total number of items"));
+		}
+		config.setInvoiceItems("geometric(4,20)");
+		long total = 0;
+		for (long n = 0; n < 10000; n++) {
+			int items = (Integer)generate(fast, config, n).get("total number of items");
+			assertTrue("Item count " + items + " out of range", (items >= 1) && (items <= 20));
+			total += items;
+		}
+		assertEquals(4.0, total / 10000.0, 0.3);
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void testInvalidDistribution() {
+		FastInvoiceFactory.ItemCounts.parse("uniform(5,1)");
+	}
+}
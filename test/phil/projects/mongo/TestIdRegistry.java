@@ -0,0 +1,97 @@
+package phil.projects.mongo;
+
+import static org.junit.Assert.*;
+
+import java.util.Random;
+
+import org.bson.types.ObjectId;
+import org.junit.Test;
+
+/**
+ * @author ptaprogg
+ *
+ */
+public class TestIdRegistry {
+
+	@Test
+	public void testConcurrentAdd() throws InterruptedException {
+		final IdRegistry ids = new IdRegistry();
+		final int perThread = 100000;
+		Thread[] threads = new Thread[4];
+		for (int t = 0; t < threads.length; t++) {
+			final long base = t * (long)perThread;
+			threads[t] = new Thread() {
+				@Override
+				public void run() {
+					for (int i = 0; i < perThread; i++) {
+						ids.add(base + i);
+					}
+				}
+			};
+			threads[t].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		assertEquals(threads.length * perThread, ids.size());
+		boolean[] seen = new boolean[threads.length * perThread];
+		for (long i = 0; i < ids.size(); i++) {
+			int id = (int)ids.get(i);
+			assertFalse("Id " + id + " stored twice", seen[id]);
+			seen[id] = true;
+		}
+		//Seven chunks of 64K ids
+		assertEquals(7L * 65536 * 8, ids.getMemoryBytes());
+	}
+
+	@Test
+	public void testSample() {
+		IdRegistry ids = new IdRegistry();
+		for (int i = 0; i < 10; i++) {
+			ids.add(-i);
+		}
+		Random random = new Random(1);
+		int[] counts = new int[10];
+		for (int i = 0; i < 100000; i++) {
+			counts[(int)-ids.sample(random)]++;
+		}
+		for (int count : counts) {
+			assertTrue("Ids not drawn uniformly: " + count, Math.abs(count - 10000) < 500);
+		}
+	}
+
+	@Test
+	public void testObjectIds() {
+		IdRegistry ids = IdRegistry.forObjectIds();
+		ObjectId[] added = new ObjectId[70000];
+		for (int i = 0; i < added.length; i++) {
+			added[i] = new ObjectId();
+			assertEquals(i, ids.add(added[i]));
+		}
+		//Ids with the high bits of every part set, the next chunk is taken in the middle of the loop above
+		ObjectId high = new ObjectId(-1, -1, -1);
+		ids.add(high);
+		for (int i = 0; i < added.length; i++) {
+			assertEquals(added[i], ids.getId(i));
+		}
+		assertEquals(high, ids.getId(added.length));
+		assertTrue(ids.sampleId(new Random(1)) instanceof ObjectId);
+		//16 bytes per id
+		assertEquals(3L * 65536 * 8, ids.getMemoryBytes());
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testObjectIdInLongRegistry() {
+		new IdRegistry().add(new ObjectId());
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testSampleEmpty() {
+		new IdRegistry().sample(new Random());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testAddReserved() {
+		new IdRegistry().add(Long.MIN_VALUE);
+	}
+}
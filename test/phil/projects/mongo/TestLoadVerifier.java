@@ -0,0 +1,163 @@
+package phil.projects.mongo;
+
+import static org.junit.Assert.*;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.MongoClient;
+import com.mongodb.ServerAddress;
+
+import de.bwaldvogel.mongo.MongoServer;
+import de.bwaldvogel.mongo.backend.memory.MemoryBackend;
+
+/**
+ * Loads seeded invoices into an in-memory server, damages them and checks what the verifier finds.
+ *
+ * @author ptaprogg
+ *
+ */
+public class TestLoadVerifier {
+
+	private static final int DOCUMENTS = 200;
+
+	private MongoServer server;
+	private MongoClient client;
+	private DBCollection collection;
+
+	@Before
+	public void setUp() throws Exception {
+		server = new MongoServer(new MemoryBackend());
+		InetSocketAddress address = server.bind();
+		client = new MongoClient(new ServerAddress(address));
+		collection = client.getDB("test").getCollection("invoices");
+	}
+
+	@After
+	public void tearDown() {
+		client.close();
+		server.shutdownNow();
+		RandomGenerator.getInstance().clearSeed();
+	}
+
+	private MongoLoadConfig.MongoLoadConfigBuilder builder(long firstDoc) {
+		return new MongoLoadConfig.MongoLoadConfigBuilder("test", DOCUMENTS).withPort(client.getAddress().getPort())
+				.withCollection("invoices").withFirstDoc(firstDoc)
+				.withIdStrategy(MongoLoadConfig.ID_SEQUENCE).withSeed(42).withThreads(2).withResultDir("");
+	}
+
+	private MongoLoad load(MongoLoadConfig config) throws Exception {
+		MongoLoad loader = new MongoLoad(config, new MongoInvoiceFactory(), client);
+		loader.prepare();
+		loader.populate();
+		return loader;
+	}
+
+	private static LoadVerifier verify(MongoLoad loader, DBCollection collection, MongoLoadConfig config) {
+		config.setVerifyThreads(3);
+		LoadVerifier verifier = new LoadVerifier(loader, collection, config);
+		verifier.verify();
+		return verifier;
+	}
+
+	@Test
+	public void testClean() throws Exception {
+		MongoLoadConfig config = builder(0).build();
+		LoadVerifier verifier = verify(load(config), collection, config);
+		assertTrue(verifier.report(), verifier.isClean());
+		assertEquals(DOCUMENTS, verifier.getChecked());
+		assertEquals(0, verifier.getUnexpected());
+	}
+
+	@Test
+	public void testMissing() throws Exception {
+		MongoLoadConfig config = builder(0).build();
+		MongoLoad loader = load(config);
+		collection.remove(new BasicDBObject("_id", 0L));
+		collection.remove(new BasicDBObject("_id", new BasicDBObject("$gte", 70L).append("$lt", 73L)));
+		collection.remove(new BasicDBObject("_id", DOCUMENTS - 1L));
+		LoadVerifier verifier = verify(loader, collection, config);
+		assertFalse(verifier.isClean());
+		assertEquals(5, verifier.getMissing());
+		assertEquals(DOCUMENTS - 5, verifier.getChecked());
+		assertEquals(0, verifier.getCorrupt());
+		assertTrue(verifier.report(), verifier.report().contains("missing e.g."));
+	}
+
+	@Test
+	public void testCorrupt() throws Exception {
+		MongoLoadConfig config = builder(0).build();
+		MongoLoad loader = load(config);
+		collection.update(new BasicDBObject("_id", 42L), new BasicDBObject("$set", new BasicDBObject("total price", -1)));
+		collection.update(new BasicDBObject("_id", 43L), new BasicDBObject("$set", new BasicDBObject("extra", 1)));
+		LoadVerifier verifier = verify(loader, collection, config);
+		assertEquals(2, verifier.getCorrupt());
+		assertEquals(0, verifier.getMissing());
+		assertTrue(verifier.report(), verifier.report().contains("42 at .total price"));
+	}
+
+	/**
+	 * A unique _id index rules out duplicates within one server, so the scan is fed a document twice as it would get it
+	 * from the shards of a collection not sharded by _id.
+	 */
+	@Test
+	public void testDuplicates() throws Exception {
+		MongoLoadConfig config = builder(0).build();
+		MongoLoad loader = load(config);
+		List<DBObject> documents = new ArrayList<DBObject>();
+		for (DBObject document : collection.find().sort(new BasicDBObject("_id", 1))) {
+			documents.add(document);
+			if (((Number)document.get("_id")).longValue() == 10) {
+				documents.add(document);
+			}
+		}
+		LoadVerifier verifier = new LoadVerifier(loader, collection, config);
+		DocumentGenerator generator = loader.createGenerator(0);
+		verifier.compare(new KeyRange(0, DOCUMENTS), documents.iterator(), generator);
+		generator.close();
+		assertEquals(1, verifier.getDuplicates());
+		assertEquals(DOCUMENTS, verifier.getChecked());
+		assertEquals(0, verifier.getMissing());
+		assertEquals(0, verifier.getCorrupt());
+	}
+
+	@Test
+	public void testUnexpected() throws Exception {
+		MongoLoadConfig config = builder(100).build();
+		MongoLoad loader = load(config);
+		collection.insert(new BasicDBObject("_id", 99L));
+		collection.insert(new BasicDBObject("_id", "stray"));
+		LoadVerifier verifier = verify(loader, collection, config);
+		assertEquals(2, verifier.getUnexpected());
+		assertFalse(verifier.isClean());
+	}
+
+	/**
+	 * The documents of other loaders of the run, and of earlier runs if the collection was not dropped, are not unexpected
+	 */
+	@Test
+	public void testSharedCollection() throws Exception {
+		MongoLoadConfig config = builder(100).withKeyspace(0, 3 * DOCUMENTS).build();
+		MongoLoad loader = load(config);
+		collection.insert(new BasicDBObject("_id", 0L));
+		collection.insert(new BasicDBObject("_id", 3L * DOCUMENTS - 1));
+		LoadVerifier verifier = verify(loader, collection, config);
+		assertTrue(verifier.report(), verifier.isClean());
+		assertEquals(0, verifier.getUnexpected());
+
+		MongoLoadConfig kept = builder(100).withDrop(false).build();
+		collection.insert(new BasicDBObject("_id", "earlier run"));
+		verifier = verify(loader, collection, kept);
+		assertTrue(verifier.report(), verifier.isClean());
+		assertEquals(-1, verifier.getUnexpected());
+		assertTrue(verifier.report(), verifier.report().contains("not checked for unexpected"));
+	}
+}
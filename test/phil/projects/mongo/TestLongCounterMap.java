@@ -0,0 +1,45 @@
+package phil.projects.mongo;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import org.junit.Test;
+
+/**
+ * @author ptaprogg
+ *
+ */
+public class TestLongCounterMap {
+
+	@Test
+	public void testConcurrentIncrements() throws InterruptedException {
+		final LongCounterMap counters = new LongCounterMap();
+		final int keys = 50000;
+		//Each thread counts every key once, so the counts each key returns must be 0 to threads - 1 without gaps
+		final AtomicIntegerArray seen = new AtomicIntegerArray(keys * 4);
+		Thread[] threads = new Thread[4];
+		for (int t = 0; t < threads.length; t++) {
+			threads[t] = new Thread() {
+				@Override
+				public void run() {
+					for (int i = 0; i < keys; i++) {
+						//Spread over the long range, including 0 and negative keys
+						long key = (i - keys / 2) * 0x10000000001L;
+						int count = counters.getAndIncrement(key);
+						assertEquals(0, seen.getAndIncrement(i * 4 + count));
+					}
+				}
+			};
+			threads[t].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		assertEquals(keys, counters.size());
+		for (int i = 0; i < seen.length(); i++) {
+			assertEquals(1, seen.get(i));
+		}
+		assertEquals(threads.length, counters.getAndIncrement(0));
+	}
+}
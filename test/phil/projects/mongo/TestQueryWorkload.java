@@ -0,0 +1,31 @@
+package phil.projects.mongo;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import com.mongodb.DBObject;
+import com.mongodb.util.JSON;
+
+/**
+ * @author ptaprogg
+ *
+ */
+public class TestQueryWorkload {
+
+	@Test
+	public void testSummarizePlan() {
+		DBObject explain = (DBObject)JSON.parse("{\"queryPlanner\": {\"winningPlan\": {\"stage\": \"FETCH\", \"inputStage\": {\"stage\": \"IXSCAN\", \"indexName\": \"customer_1\"}},"
+				+ " \"rejectedPlans\": [{\"stage\": \"COLLSCAN\"}]},"
+				+ " \"executionStats\": {\"totalKeysExamined\": 12, \"totalDocsExamined\": 10, \"executionStages\": {\"stage\": \"FETCH\", \"docsExamined\": 10,"
+				+ " \"inputStage\": {\"stage\": \"IXSCAN\", \"keysExamined\": 12}}, \"allPlansExecution\": [{\"totalKeysExamined\": 99}]}}");
+		assertEquals("FETCH > IXSCAN, index customer_1, 12 keys examined, 10 documents examined", QueryWorkload.summarizePlan(explain));
+	}
+
+	@Test
+	public void testSummarizeLegacyPlan() {
+		DBObject explain = (DBObject)JSON.parse("{\"cursor\": \"BtreeCursor customer_1\", \"nscanned\": 5, \"nscannedObjects\": 4, \"allPlans\": [{\"cursor\": \"BasicCursor\", \"nscanned\": 200}]}");
+		assertEquals("BtreeCursor, index customer_1, 5 keys examined, 4 documents examined", QueryWorkload.summarizePlan(explain));
+		assertEquals("unknown plan, no index", QueryWorkload.summarizePlan((DBObject)JSON.parse("{\"ok\": 1}")));
+	}
+}
@@ -79,6 +79,55 @@ public class TestRandomGenerator {
 		fail("Exception not thrown");		
 	}
 
+	/**
+	 * Test method for {@link phil.projects.mongo.RandomGenerator#startDocument(long, long)}.
+	 */
+	@Test
+	public void testSeededDocumentsRepeatable() {
+		RandomGenerator g = RandomGenerator.getInstance();
+		try {
+			String[] first = new String[100];
+			for (int doc = 0; doc < first.length; doc++) {
+				g.startDocument(42, doc);
+				first[doc] = g.getRandomString(8) + g.getRandomInt() + g.getRandomUniqueString(6);
+			}
+			//Generate again in a different order, the documents must not change
+			for (int doc = first.length - 1; doc >= 0; doc--) {
+				g.startDocument(42, doc);
+				assertEquals("Document " + doc + " changed", first[doc], g.getRandomString(8) + g.getRandomInt() + g.getRandomUniqueString(6));
+			}
+			g.startDocument(43, 0);
+			assertFalse("Different seeds generated the same document", first[0].equals(g.getRandomString(8) + g.getRandomInt() + g.getRandomUniqueString(6)));
+		}
+		finally {
+			g.clearSeed();
+		}
+	}
+
+	/**
+	 * Seeded unique strings must be unique over the whole string space and fail once it is exhausted.
+	 */
+	@Test
+	public void testSeededUniqueStrings() {
+		RandomGenerator g = RandomGenerator.getInstance();
+		HashSet<String> strings = new HashSet<String>();
+		try {
+			for (int doc = 0; doc < 17576; doc++) {
+				g.startDocument(7, doc);
+				assertTrue("Generator returned non-unique string", strings.add(g.getRandomUniqueString(3)));
+			}
+			g.startDocument(7, 17576);
+			g.getRandomUniqueString(3);
+			fail("Exception not thrown");
+		}
+		catch (UniqueStringSaturationException usse) {
+			assertEquals(17576, strings.size());
+		}
+		finally {
+			g.clearSeed();
+		}
+	}
+
 	/**
 	 * Test method for {@link phil.projects.mongo.RandomGenerator#getRandomIntInRange(int)}.
 	 */
@@ -0,0 +1,114 @@
+package phil.projects.mongo;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.mongodb.ServerAddress;
+
+import phil.projects.mongo.stats.ThroughputSeries;
+
+/**
+ * @author ptaprogg
+ *
+ */
+public class TestReplicationLagMonitor {
+
+	private static final long START = 1500000000000L;
+
+	private static ReplicationLagMonitor monitor() {
+		return new ReplicationLagMonitor(null, "test.inv", 10, START);
+	}
+
+	private static String row(int second, double rate, double lag, int bar) {
+		char[] chars = new char[bar];
+		Arrays.fill(chars, '#');
+		return String.format("  %8d %10.0f %10.1f %s", second, rate, lag, new String(chars));
+	}
+
+	private static List<String> rows(String report) {
+		List<String> rows = new ArrayList<String>();
+		for (String line : report.split("\\r?\\n")) {
+			if (line.matches("\\s+\\d+ .*")) {
+				rows.add(line);
+			}
+		}
+		return rows;
+	}
+
+	@Test
+	public void testRecord() throws Exception {
+		ReplicationLagMonitor monitor = monitor();
+		ReplicationLagMonitor.Tailer tailer = monitor.addTailer(new ServerAddress("localhost", 27018), null);
+		tailer.record(START + 100, START + 150);
+		tailer.record(START + 1100, START + 1400);
+		tailer.record(START + 1200, START + 1300);
+		//Clocks cannot put the arrival before the write, as both are taken here, but the lag must not turn negative regardless
+		tailer.record(START + 900, START + 800);
+
+		assertEquals(4, tailer.lag.getCount());
+		assertEquals(300000, tailer.lag.getMax());
+		assertEquals(START + 1200, tailer.latest.get());
+		assertEquals(50, tailer.lagMillis.get(0));
+		assertEquals(2, tailer.samples.get(0));
+		assertEquals(400, tailer.lagMillis.get(1));
+		assertEquals(2, tailer.samples.get(1));
+		assertEquals(Arrays.asList(tailer.address.toString()), new ArrayList<String>(monitor.getLag().keySet()));
+	}
+
+	@Test
+	public void testReport() throws Exception {
+		ReplicationLagMonitor monitor = monitor();
+		ReplicationLagMonitor.Tailer fast = monitor.addTailer(new ServerAddress("localhost", 27018), null);
+		ReplicationLagMonitor.Tailer slow = monitor.addTailer(new ServerAddress("localhost", 27019), null);
+		fast.record(START + 100, START + 150);
+		fast.record(START + 1100, START + 1400);
+		fast.record(START + 1200, START + 1300);
+		slow.record(START + 200, START + 280);
+		slow.record(START + 1500, START + 1500);
+
+		//The load started two seconds before the monitor, so its third second is the monitor's first
+		ThroughputSeries inserts = new ThroughputSeries(START - 2000);
+		inserts.record(START - 1500, 999);
+		inserts.record(START + 100, 500);
+		inserts.record(START + 1100, 300);
+
+		String report = monitor.report(inserts);
+		assertTrue(report, report.contains(fast.address + ": "));
+		assertTrue(report, report.contains(slow.address + ": "));
+		//Each row charts the mean lag of the slowest secondary in that second
+		assertEquals(Arrays.asList(row(0, 500, 80, 16), row(1, 300, 200, 40)), rows(report));
+	}
+
+	@Test
+	public void testReportBuckets() throws Exception {
+		ReplicationLagMonitor monitor = monitor();
+		ReplicationLagMonitor.Tailer tailer = monitor.addTailer(new ServerAddress("localhost", 27018), null);
+		tailer.record(START, START + 10);
+		tailer.record(START + 1000, START + 1030);
+		tailer.record(START + 119000, START + 119040);
+		ThroughputSeries inserts = new ThroughputSeries(START);
+		inserts.record(START, 100);
+		inserts.record(START + 1000, 300);
+
+		//120 seconds are charted in 60 rows of two seconds, the lag averaged over the entries of both
+		List<String> rows = rows(monitor.report(inserts));
+		assertEquals(60, rows.size());
+		assertEquals(row(0, 200, 20, 20), rows.get(0));
+		assertEquals(row(2, 0, 0, 0), rows.get(1));
+		assertEquals(row(118, 0, 40, 40), rows.get(59));
+	}
+
+	@Test
+	public void testReportWithoutSamples() throws Exception {
+		ReplicationLagMonitor monitor = monitor();
+		monitor.addTailer(new ServerAddress("localhost", 27018), null);
+		String report = monitor.report(new ThroughputSeries(START));
+		assertTrue(report, rows(report).isEmpty());
+		assertEquals(2, report.split("\\r?\\n").length);
+	}
+}
@@ -0,0 +1,142 @@
+package phil.projects.mongo;
+
+import static org.junit.Assert.*;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.mongodb.DBObject;
+import com.mongodb.util.JSON;
+
+/**
+ * @author ptaprogg
+ *
+ */
+public class TestSampleExpression {
+
+	@After
+	public void tearDown() {
+		RandomGenerator.getInstance().clearSeed();
+		IdPools.clear();
+	}
+
+	private static SampleExpression compile(String json) {
+		return SampleExpression.compile("test", (DBObject)JSON.parse(json));
+	}
+
+	@Test
+	public void testInt() {
+		SampleExpression expression = compile("{\"$gen\": \"int\", \"min\": -5, \"max\": 5}");
+		RandomGenerator rand = RandomGenerator.getInstance();
+		boolean[] seen = new boolean[11];
+		for (int i = 0; i < 10000; i++) {
+			int value = (Integer)expression.evaluate(rand, i);
+			assertTrue("Value " + value + " out of range", (value >= -5) && (value <= 5));
+			seen[value + 5] = true;
+		}
+		for (int i = 0; i < seen.length; i++) {
+			assertTrue("Value " + (i - 5) + " never generated", seen[i]);
+		}
+		assertTrue(compile("{\"$gen\": \"int\", \"max\": 10000000000}").evaluate(rand, 0) instanceof Long);
+	}
+
+	/**
+	 * Zero weights must never be picked, the others in proportion to their weights
+	 */
+	@Test
+	public void testWeightedEnum() {
+		SampleExpression expression = compile("{\"$gen\": \"enum\", \"values\": [\"a\", \"b\", \"c\", \"d\"], \"weights\": [0, 3, 0, 1]}");
+		RandomGenerator rand = RandomGenerator.getInstance();
+		int b = 0;
+		for (int i = 0; i < 10000; i++) {
+			Object value = expression.evaluate(rand, i);
+			assertTrue("Unexpected value " + value, "b".equals(value) || "d".equals(value));
+			if ("b".equals(value)) {
+				b++;
+			}
+		}
+		assertEquals(0.75, b / 10000.0, 0.03);
+	}
+
+	@Test
+	public void testSequenceAndSeed() {
+		assertEquals(1030L, compile("{\"$gen\": \"seq\", \"start\": 1000, \"step\": 10}").evaluate(RandomGenerator.getInstance(), 3));
+		SampleExpression expression = compile("{\"$gen\": \"double\", \"min\": 2, \"max\": 3}");
+		RandomGenerator rand = RandomGenerator.getInstance();
+		rand.startDocument(42, 7);
+		Object first = expression.evaluate(rand, 7);
+		rand.startDocument(42, 7);
+		assertEquals(first, expression.evaluate(rand, 7));
+	}
+
+	@Test
+	public void testReference() {
+		SampleExpression expression = compile("{\"$gen\": \"ref\", \"collection\": \"customers\", \"distribution\": \"zipfian\", \"count\": 2, \"maxcount\": 4}");
+		IdPools.register("test", "customers", new KeyRange(100, 50));
+		SampleExpression resolved = expression.resolve();
+		RandomGenerator rand = RandomGenerator.getInstance();
+		for (int i = 0; i < 1000; i++) {
+			List<?> references = (List<?>)resolved.evaluate(rand, i);
+			assertTrue("Unexpected number of references " + references.size(), (references.size() >= 2) && (references.size() <= 4));
+			for (Object reference : references) {
+				long id = (Long)reference;
+				assertTrue("Reference " + id + " out of range", (id >= 100) && (id < 150));
+			}
+		}
+		//Registering other ids must take effect for compiled expressions once resolved again, but not for those resolved before
+		IdPools.register("test", "customers", new KeyRange(1000, 1));
+		SampleExpression qualified = compile("{\"$gen\": \"ref\", \"collection\": \"test.customers\"}");
+		assertEquals(1000L, qualified.resolve().evaluate(rand, 0));
+		assertEquals(1000L, ((List<?>)expression.resolve().evaluate(rand, 0)).get(0));
+		long id = (Long)((List<?>)resolved.evaluate(rand, 0)).get(0);
+		assertTrue("Reference " + id + " out of range", (id >= 100) && (id < 150));
+	}
+
+	@Test(expected=IllegalStateException.class)
+	public void testUnregisteredReference() {
+		//Fails when resolved, before any document is generated
+		compile("{\"$gen\": \"ref\", \"collection\": \"nowhere\"}").resolve();
+	}
+
+	@Test(expected=IllegalStateException.class)
+	public void testUnresolvedReference() {
+		compile("{\"$gen\": \"ref\", \"collection\": \"nowhere\"}").evaluate(RandomGenerator.getInstance(), 0);
+	}
+
+	@Test(timeout=5000)
+	public void testWideZipfian() {
+		//The default range holds 2^31 values, whose zeta would take minutes to sum
+		SampleExpression expression = compile("{\"$gen\": \"int\", \"distribution\": \"zipfian\"}");
+		RandomGenerator rand = RandomGenerator.getInstance();
+		Map<Object, Integer> counts = new HashMap<Object, Integer>();
+		int hottest = 0;
+		for (int i = 0; i < 10000; i++) {
+			Object value = expression.evaluate(rand, i);
+			assertTrue("Value " + value + " out of range", ((Integer)value >= 0) && ((Integer)value <= Integer.MAX_VALUE));
+			Integer count = counts.get(value);
+			counts.put(value, (count == null ? 1 : count + 1));
+			hottest = Math.max(hottest, counts.get(value));
+		}
+		//With theta 0.99 the most popular value is picked about 4% of the time
+		assertTrue("Hottest value picked " + hottest + " times", (hottest > 250) && (hottest < 600));
+		double exact = 0;
+		for (int i = 1; i <= 1000000; i++) {
+			exact += 1 / Math.pow(i, 0.99);
+		}
+		assertEquals(exact, KeyDistribution.Zipfian.zeta(1000000, 0.99), exact * 1e-9);
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void testUnknownParameter() {
+		compile("{\"$gen\": \"int\", \"mni\": 0}");
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void testInvalidRange() {
+		compile("{\"$gen\": \"int\", \"min\": 10, \"max\": 1}");
+	}
+}
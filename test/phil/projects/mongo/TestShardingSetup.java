@@ -0,0 +1,35 @@
+package phil.projects.mongo;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+/**
+ * @author ptaprogg
+ *
+ */
+public class TestShardingSetup {
+
+	@Test
+	public void testSplitPoints() {
+		assertEquals(Arrays.asList(0L, 250L, 500L, 750L), ShardingSetup.splitPoints(new KeyRange(0, 1000), 4));
+		//The remainder goes to the first chunks
+		assertEquals(Arrays.asList(100L, 104L, 107L), ShardingSetup.splitPoints(new KeyRange(100, 10), 3));
+	}
+
+	@Test
+	public void testSplitPointsCoverAllAgents() {
+		//What agent 0 of three is given for a run of 3000 documents
+		MongoLoadConfig config = new MongoLoadConfig.MongoLoadConfigBuilder("test", 1000).withKeyspace(0, 3000).build();
+		assertEquals(Arrays.asList(0L, 1000L, 2000L), ShardingSetup.splitPoints(config.getKeyspace(), 3));
+	}
+
+	@Test
+	public void testSplitPointsSmallRange() {
+		//Never more chunks than documents, and at least one
+		assertEquals(Arrays.asList(5L, 6L), ShardingSetup.splitPoints(new KeyRange(5, 2), 8));
+		assertEquals(Arrays.asList(5L), ShardingSetup.splitPoints(new KeyRange(5, 0), 8));
+	}
+}
@@ -0,0 +1,60 @@
+package phil.projects.mongo;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * @author ptaprogg
+ *
+ */
+public class TestUniqueStringJournal {
+
+	@Test
+	public void testReplay() throws IOException {
+		File file = File.createTempFile("journal", ".strings");
+		file.deleteOnExit();
+		RandomGenerator g = RandomGenerator.getInstance();
+		//Start unseeded and without unique strings from other tests
+		g.clearSeed();
+		g.restoreState(g.getStateWithoutStrings());
+		UniqueStringJournal journal = new UniqueStringJournal(file);
+		journal.reset();
+		g.setJournal(journal);
+		//Short strings collide often, so the continuation depends on the exact set of strings restored
+		for (int i = 0; i < 2000; i++) {
+			g.getRandomUniqueString(3);
+		}
+		for (int i = 0; i < 10; i++) {
+			g.getRandomUniqueString(20);
+		}
+		long length = journal.flush();
+		RandomGenerator.State checkpoint = g.getStateWithoutStrings();
+		List<String> continued = new ArrayList<String>();
+		for (int i = 0; i < 500; i++) {
+			continued.add(g.getRandomUniqueString(3));
+		}
+		assertTrue(journal.flush() > length);
+		g.setJournal(null);
+
+		g.restoreState(checkpoint);
+		new UniqueStringJournal(file).replay(length, g);
+		assertEquals(length, file.length());
+		assertTrue(g.printStatistics(), g.printStatistics().startsWith("2010 strings"));
+		for (int i = 0; i < continued.size(); i++) {
+			assertEquals(continued.get(i), g.getRandomUniqueString(3));
+		}
+	}
+
+	@Test(expected=IOException.class)
+	public void testTruncatedJournal() throws IOException {
+		File file = File.createTempFile("journal", ".strings");
+		file.deleteOnExit();
+		new UniqueStringJournal(file).replay(9, RandomGenerator.getInstance());
+	}
+}
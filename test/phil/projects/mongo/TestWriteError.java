@@ -0,0 +1,51 @@
+package phil.projects.mongo;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+
+import org.junit.Test;
+
+import com.mongodb.MongoException;
+
+/**
+ * @author ptaprogg
+ *
+ */
+public class TestWriteError {
+
+	@Test
+	public void testClassifyByCode() {
+		assertEquals(WriteError.DUPLICATE_KEY, WriteError.classify(new MongoException(11000, "E11000 duplicate key error")));
+		assertEquals(WriteError.DUPLICATE_KEY, WriteError.classify(new MongoException(11001, "E11001 duplicate key on update")));
+		assertEquals(WriteError.NOT_MASTER, WriteError.classify(new MongoException(10107, "not master")));
+		assertEquals(WriteError.NOT_MASTER, WriteError.classify(new MongoException(13435, "not master and slaveOk=false")));
+		assertEquals(WriteError.WRITE_CONCERN_TIMEOUT, WriteError.classify(new MongoException(64, "waiting for replication timed out")));
+		assertEquals(WriteError.OTHER, WriteError.classify(new MongoException(10334, "BSONObj size is invalid")));
+	}
+
+	@Test
+	public void testClassifyNetwork() {
+		assertEquals(WriteError.NETWORK, WriteError.classify(new MongoException.Network("Read operation to server failed", new IOException())));
+		assertEquals(WriteError.NETWORK, WriteError.classify(new SocketTimeoutException()));
+		assertEquals(WriteError.NETWORK, WriteError.classify(new MongoException("Write failed", new IOException())));
+	}
+
+	@Test
+	public void testClassifyByMessage() {
+		//The driver reports a missing primary without a code
+		assertEquals(WriteError.NOT_MASTER, WriteError.classify(new MongoException("can't find a master")));
+		assertEquals(WriteError.NOT_MASTER, WriteError.classify(new MongoException("No replica set members available")));
+		assertEquals(WriteError.OTHER, WriteError.classify(new IllegalStateException()));
+	}
+
+	@Test
+	public void testRetriable() {
+		assertTrue(WriteError.NETWORK.isRetriable());
+		assertTrue(WriteError.NOT_MASTER.isRetriable());
+		assertTrue(WriteError.WRITE_CONCERN_TIMEOUT.isRetriable());
+		assertFalse(WriteError.DUPLICATE_KEY.isRetriable());
+		assertFalse(WriteError.OTHER.isRetriable());
+	}
+}
@@ -0,0 +1,137 @@
+package phil.projects.mongo;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.mongodb.MongoException;
+
+import phil.projects.mongo.stats.RetryListener;
+
+/**
+ * @author ptaprogg
+ *
+ */
+public class TestWriteRetrier {
+
+	/**
+	 * Fails with the given errors in turn, then succeeds
+	 */
+	private static final class FailingWrite implements WriteRetrier.Write<String> {
+
+		private final MongoException[] errors;
+		private final boolean applied;
+		final List<Boolean> attempts = new ArrayList<Boolean>();
+
+		FailingWrite(boolean applied, MongoException... errors) {
+			this.errors = errors;
+			this.applied = applied;
+		}
+
+		@Override
+		public String attempt(boolean retry) {
+			attempts.add(Boolean.valueOf(retry));
+			if (attempts.size() <= errors.length) {
+				throw errors[attempts.size() - 1];
+			}
+			return "written";
+		}
+
+		@Override
+		public boolean isApplied() {
+			return applied;
+		}
+	}
+
+	private static final class Listener implements RetryListener {
+
+		final List<String> retries = new ArrayList<String>();
+		int recoveries;
+
+		@Override
+		public void recordRetry(String error) {
+			retries.add(error);
+		}
+
+		@Override
+		public void recordRecovery(long micros) {
+			recoveries++;
+		}
+	}
+
+	private static MongoException network() {
+		return new MongoException.Network("Read operation to server failed", new IOException());
+	}
+
+	private static MongoException duplicateKey() {
+		return new MongoException(11000, "E11000 duplicate key error");
+	}
+
+	@Test
+	public void testRetryTransient() {
+		FailingWrite write = new FailingWrite(false, network(), new MongoException(10107, "not master"));
+		Listener listener = new Listener();
+		assertEquals("written", new WriteRetrier(3, 0, 0).execute(write, listener));
+		assertEquals(Arrays.asList(false, true, true), write.attempts);
+		assertEquals(Arrays.asList("network", "not master"), listener.retries);
+		assertEquals(1, listener.recoveries);
+	}
+
+	@Test
+	public void testGiveUpAfterMaxRetries() {
+		MongoException last = network();
+		FailingWrite write = new FailingWrite(false, network(), network(), last);
+		Listener listener = new Listener();
+		try {
+			new WriteRetrier(2, 0, 0).execute(write, listener);
+			fail("Write succeeded after more retries than allowed");
+		}
+		catch (MongoException me) {
+			assertSame(last, me);
+		}
+		assertEquals(3, write.attempts.size());
+		assertEquals(0, listener.recoveries);
+	}
+
+	@Test
+	public void testNoRetryOfPermanentError() {
+		FailingWrite write = new FailingWrite(true, duplicateKey());
+		try {
+			new WriteRetrier(5, 0, 0).execute(write, new Listener());
+			fail("Duplicate key on the first attempt was not reported");
+		}
+		catch (MongoException me) {
+			assertEquals(11000, me.getCode());
+		}
+		assertEquals(1, write.attempts.size());
+	}
+
+	@Test
+	public void testDuplicateKeyOnRetryApplied() {
+		FailingWrite write = new FailingWrite(true, network(), duplicateKey());
+		Listener listener = new Listener();
+		assertNull(new WriteRetrier(3, 0, 0).execute(write, listener));
+		assertEquals(1, listener.recoveries);
+	}
+
+	@Test
+	public void testDuplicateKeyOnRetryIncomplete() {
+		//The retried batch failed on other documents too, the driver only reported the last error
+		FailingWrite write = new FailingWrite(false, network(), duplicateKey());
+		Listener listener = new Listener();
+		try {
+			new WriteRetrier(3, 0, 0).execute(write, listener);
+			fail("Incomplete batch counted as written");
+		}
+		catch (MongoException me) {
+			assertEquals(11000, me.getCode());
+		}
+		assertEquals(2, write.attempts.size());
+		assertEquals(0, listener.recoveries);
+	}
+}
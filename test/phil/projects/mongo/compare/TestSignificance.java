@@ -0,0 +1,42 @@
+package phil.projects.mongo.compare;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+/**
+ * @author ptaprogg
+ *
+ */
+public class TestSignificance {
+
+	@Test
+	public void testWelch() {
+		double[] a = {27.5, 21.0, 19.0, 23.6, 17.0, 17.9, 16.9, 20.1, 21.9, 22.6, 23.1, 19.6, 19.0, 21.7, 21.4};
+		double[] b = {27.1, 22.0, 20.8, 23.4, 23.4, 23.5, 25.8, 22.0, 24.8, 20.2, 21.9, 22.1, 22.9, 20.5, 24.4};
+		assertEquals(0.02138, Significance.welch(a, b), 1e-4);
+		assertEquals(1, Significance.welch(a, a), 1e-9);
+		assertTrue(Double.isNaN(Significance.welch(new double[] {1}, b)));
+	}
+
+	/**
+	 * Values 1, 2 and 3 counted in the first three buckets, with ties
+	 */
+	@Test
+	public void testMannWhitney() {
+		long[] a = {30, 50, 20, 0};
+		long[] b = {20, 50, 30, 0};
+		assertEquals(0.04619, Significance.mannWhitney(a, b), 1e-4);
+		assertEquals(Significance.mannWhitney(a, b), Significance.mannWhitney(b, a), 1e-12);
+		assertEquals(1, Significance.mannWhitney(a, a), 1e-9);
+		assertEquals(1, Significance.mannWhitney(new long[] {0, 5}, new long[] {0, 7}), 1e-9);
+		assertTrue(Double.isNaN(Significance.mannWhitney(a, new long[4])));
+	}
+
+	@Test
+	public void testErfc() {
+		assertEquals(1, Significance.erfc(0), 1e-7);
+		assertEquals(0.1572992, Significance.erfc(1), 1e-6);
+		assertEquals(1.8427008, Significance.erfc(-1), 1e-6);
+	}
+}
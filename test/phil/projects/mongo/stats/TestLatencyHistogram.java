@@ -0,0 +1,67 @@
+package phil.projects.mongo.stats;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+/**
+ * @author ptaprogg
+ *
+ */
+public class TestLatencyHistogram {
+
+	/**
+	 * Every value must map to a bucket whose lower bound is not above it and is within the histogram's precision.
+	 */
+	@Test
+	public void testBucketBounds() {
+		for (long v = 0; v < 10000000; v = v * 3 / 2 + 1) {
+			int index = LatencyHistogram.bucketIndex(v);
+			long lower = LatencyHistogram.bucketLowerBound(index);
+			assertTrue("Lower bound " + lower + " above value " + v, lower <= v);
+			assertTrue("Value " + v + " not below next bucket", LatencyHistogram.bucketLowerBound(index + 1) > v);
+			assertTrue("Bucket for " + v + " too wide", v - lower <= Math.max(1, v / 32));
+		}
+	}
+
+	@Test
+	public void testPercentiles() {
+		LatencyHistogram h = new LatencyHistogram();
+		for (int i = 1; i <= 1000; i++) {
+			h.record(i * 10);
+		}
+		assertEquals(1000, h.getCount());
+		assertEquals(10000, h.getMax());
+		assertEquals(5005.0, h.getMean(), 0.001);
+		assertEquals(5000, h.getValueAtPercentile(50), 5000 / 32);
+		assertEquals(9900, h.getValueAtPercentile(99), 9900 / 32);
+		assertEquals(10000, h.getValueAtPercentile(100));
+	}
+
+	@Test
+	public void testMerge() {
+		LatencyHistogram a = new LatencyHistogram();
+		LatencyHistogram b = new LatencyHistogram();
+		for (int i = 0; i < 100; i++) {
+			a.record(100);
+			b.record(1000000);
+		}
+		a.merge(b);
+		assertEquals(200, a.getCount());
+		assertEquals(1000000, a.getMax());
+		assertEquals(100, a.getValueAtPercentile(50));
+		assertEquals(1000000, a.getValueAtPercentile(99), 1000000 / 32);
+	}
+
+	@Test
+	public void testSeriesMerge() {
+		ThroughputSeries early = new ThroughputSeries(10000);
+		ThroughputSeries late = new ThroughputSeries(12000);
+		early.record(10500, 5);
+		late.record(12500, 7);
+		late.record(13100, 1);
+		early.merge(late);
+		assertEquals(4, early.getLength());
+		assertEquals("5,0,7,1", early.toCSV());
+	}
+}
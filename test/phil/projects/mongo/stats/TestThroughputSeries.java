@@ -0,0 +1,37 @@
+package phil.projects.mongo.stats;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+/**
+ * @author ptaprogg
+ *
+ */
+public class TestThroughputSeries {
+
+	@Test
+	public void testMergeWithClockOffset() {
+		ThroughputSeries merged = new ThroughputSeries(100000);
+		//An agent whose clock is 5 seconds behind, starting 1.5 seconds after the coordinator
+		ThroughputSeries agent = new ThroughputSeries(96500);
+		agent.record(96500, 10);
+		agent.record(97600, 20);
+		assertEquals(0, merged.merge(agent, 5000));
+		assertEquals(0, merged.get(0));
+		assertEquals(10, merged.get(1));
+		assertEquals(20, merged.get(2));
+	}
+
+	@Test
+	public void testMergeDropsEarlierSeconds() {
+		ThroughputSeries merged = new ThroughputSeries(100000);
+		ThroughputSeries early = new ThroughputSeries(98000);
+		early.record(98000, 10);
+		early.record(99000, 20);
+		early.record(100000, 30);
+		assertEquals(30, merged.merge(early));
+		assertEquals(30, merged.get(0));
+		assertEquals(1, merged.getLength());
+	}
+}
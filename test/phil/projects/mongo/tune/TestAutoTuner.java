@@ -0,0 +1,133 @@
+package phil.projects.mongo.tune;
+
+import static org.junit.Assert.*;
+
+import java.util.List;
+import java.util.Properties;
+
+import org.junit.Test;
+
+/**
+ * @author ptaprogg
+ *
+ */
+public class TestAutoTuner {
+
+	/**
+	 * Measures steps from a table of throughputs instead of loading, indexed by batch size and concurrency level.
+	 * Negative throughputs stand for steps breaching the SLA.
+	 */
+	private static final class StubTuner extends AutoTuner {
+
+		private final double[][] throughputs;
+
+		StubTuner(double[][] throughputs) {
+			super(properties("1,2,4,8", "1,10,100"));
+			this.throughputs = throughputs;
+		}
+
+		@Override
+		Step runStep(int concurrency, int batchSize) {
+			double throughput = throughputs[Integer.toString(batchSize).length() - 1][Integer.numberOfTrailingZeros(concurrency)];
+			return new Step(concurrency, batchSize, Math.abs(throughput), 1000, throughput < 0);
+		}
+	}
+
+	private static Properties properties(String concurrency, String batchSizes) {
+		Properties props = new Properties();
+		props.setProperty("port", "27017");
+		props.setProperty("userDB", "test");
+		props.setProperty("collection", "invoices");
+		props.setProperty("tune.concurrency", concurrency);
+		props.setProperty("tune.batchsizes", batchSizes);
+		props.setProperty("tune.plateau", "5");
+		return props;
+	}
+
+	@Test
+	public void testIsPlateau() {
+		AutoTuner tuner = new AutoTuner(properties("1,2", "1"));
+		assertTrue(tuner.isPlateau(100, 104.9));
+		assertTrue(tuner.isPlateau(100, 90));
+		assertFalse(tuner.isPlateau(100, 105.1));
+	}
+
+	@Test
+	public void testConcurrencyPlateau() {
+		StubTuner tuner = new StubTuner(new double[][] {
+				{100, 200, 204, 400},
+				{150, 300, 500, 800},
+				{160, 310, 320, 330}});
+		List<AutoTuner.Step> steps = tuner.run();
+		//Batch sizes 1 and 100 plateau at concurrency 4, batch size 10 runs all levels
+		assertEquals(3 + 4 + 3, steps.size());
+		assertEquals(8, tuner.getOptimum().getConcurrency());
+		assertEquals(10, tuner.getOptimum().getBatchSize());
+	}
+
+	@Test
+	public void testBatchPlateau() {
+		StubTuner tuner = new StubTuner(new double[][] {
+				{100, 200, 400, 800},
+				{150, 300, 500, 820},
+				{1600, 3200, 6400, 12800}});
+		List<AutoTuner.Step> steps = tuner.run();
+		//Batch size 10 gains less than 5% over batch size 1, which ends the search before batch size 100
+		assertEquals(4 + 4, steps.size());
+		assertEquals(8, tuner.getOptimum().getConcurrency());
+		assertEquals(10, tuner.getOptimum().getBatchSize());
+	}
+
+	@Test
+	public void testConcurrencySlaBreach() {
+		StubTuner tuner = new StubTuner(new double[][] {
+				{100, 200, -400, 800},
+				{150, 300, 500, -1000},
+				{100, 100, 100, 100}});
+		List<AutoTuner.Step> steps = tuner.run();
+		assertEquals(3 + 4 + 2, steps.size());
+		assertTrue(steps.get(2).isSlaBreached());
+		//The breaching steps are faster, but the optimum is the fastest step within the SLA
+		assertEquals(4, tuner.getOptimum().getConcurrency());
+		assertEquals(10, tuner.getOptimum().getBatchSize());
+	}
+
+	@Test
+	public void testBatchSlaBreach() {
+		StubTuner tuner = new StubTuner(new double[][] {
+				{100, 200, 400, 800},
+				{-150, 300, 500, 1000},
+				{1600, 3200, 6400, 12800}});
+		List<AutoTuner.Step> steps = tuner.run();
+		//No step of batch size 10 meets the SLA, which ends the search before batch size 100
+		assertEquals(4 + 1, steps.size());
+		assertEquals(8, tuner.getOptimum().getConcurrency());
+		assertEquals(1, tuner.getOptimum().getBatchSize());
+	}
+
+	@Test
+	public void testNoStepWithinSla() {
+		StubTuner tuner = new StubTuner(new double[][] {
+				{-100, 200, 400, 800},
+				{-150, 300, 500, 1000},
+				{-160, 310, 510, 810}});
+		//Without any step within the SLA there is nothing to plateau from, so every batch size is tried
+		assertEquals(3, tuner.run().size());
+		assertNull(tuner.getOptimum());
+		assertTrue(tuner.report().contains("No step met the latency SLA"));
+	}
+
+	@Test
+	public void testParseLevels() {
+		assertArrayEquals(new int[] {1, 2, 16}, AutoTuner.parseLevels(" 1, 2 ,16", "key"));
+		for (String invalid : new String[] {"1,x", "0,1", "4,2", "1,1", ""}) {
+			try {
+				AutoTuner.parseLevels(invalid, "key");
+				fail("Accepted " + invalid);
+			}
+			catch (IllegalArgumentException iae) {
+				//expected
+			}
+		}
+	}
+}
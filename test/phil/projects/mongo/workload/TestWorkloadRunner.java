@@ -0,0 +1,61 @@
+package phil.projects.mongo.workload;
+
+import static org.junit.Assert.*;
+
+import java.util.Properties;
+
+import org.junit.Test;
+
+/**
+ * @author ptaprogg
+ *
+ */
+public class TestWorkloadRunner {
+
+	private static Properties properties() {
+		Properties props = new Properties();
+		props.setProperty("port", "27017");
+		props.setProperty("userDB", "test");
+		props.setProperty("numdocs", "1000");
+		props.setProperty("idstrategy", "sequence");
+		props.setProperty("checkpointfile", "run/checkpoint");
+		props.setProperty("jfr", "run/load.jfr");
+		props.setProperty("workloads", "invoices,samples");
+		props.setProperty("workload.invoices.collection", "invoices");
+		props.setProperty("workload.samples.collection", "samples");
+		return props;
+	}
+
+	@Test
+	public void testFilesPerWorkload() {
+		WorkloadRunner runner = new WorkloadRunner(properties());
+		Properties invoices = runner.workloadProperties("invoices");
+		assertEquals("run/checkpoint.invoices", invoices.getProperty("checkpointfile"));
+		assertEquals("run/load.invoices.jfr", invoices.getProperty("jfr"));
+		Properties samples = runner.workloadProperties("samples");
+		assertEquals("run/checkpoint.samples", samples.getProperty("checkpointfile"));
+		assertEquals("run/load.samples.jfr", samples.getProperty("jfr"));
+	}
+
+	@Test
+	public void testWorkloadFile() {
+		assertEquals("load.a.jfr", WorkloadRunner.workloadFile("load.jfr", "a"));
+		assertEquals("checkpoint.a", WorkloadRunner.workloadFile("checkpoint", "a"));
+		assertEquals("run.d/checkpoint.a", WorkloadRunner.workloadFile("run.d/checkpoint", "a"));
+		assertEquals(".checkpoint.a", WorkloadRunner.workloadFile(".checkpoint", "a"));
+	}
+
+	@Test
+	public void testSharedFileOverride() {
+		Properties props = properties();
+		props.setProperty("workload.invoices.jfr", "same.jfr");
+		props.setProperty("workload.samples.jfr", "same.jfr");
+		try {
+			new WorkloadRunner(props);
+			fail("Accepted two workloads writing the same recording");
+		}
+		catch (IllegalArgumentException iae) {
+			assertTrue(iae.getMessage(), iae.getMessage().contains("same.jfr"));
+		}
+	}
+}